@@ -0,0 +1,218 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Bitmap index of the rows in each state of a DiscreteColumnVector column
+//
+
+// File: BitmapIndex.java
+
+package camml.core.library;
+
+import java.util.Arrays;
+
+/**
+ * BitmapIndex holds, for each low arity column of a DiscreteColumnVector and each state of
+ * that column, a bitmap of the rows taking that state. <br>
+ *
+ * Counts are calculated by ANDing together the bitmaps of each parent state, and counting the
+ * bits in common with each child state.  Branches of the parent states with no rows are
+ * skipped, and each word covers 64 rows, so for low arity data with many rows this is much
+ * cheaper than a pass over the rows.  preferred() compares the cost of both methods. <br>
+ *
+ * Bitmaps are built for a column the first time it is used.  Their memory is charged to the
+ * budget of a ContingencyCache, and a column whose bitmaps do not fit is never indexed.
+ */
+public class BitmapIndex
+{
+    /** Default value of maxArity */
+    public static final int defaultMaxArity = 16;
+
+    /** Columns with arity above this are never indexed. */
+    protected final int maxArity;
+
+    /** Data the index is built from. */
+    protected final DiscreteColumnVector store;
+
+    /** Cache whose budget bitmaps are charged to, or null if memory is not limited. */
+    protected final ContingencyCache budget;
+
+    /** Number of rows and number of 64 bit words in each bitmap. */
+    protected final int numRows, numWords;
+
+    /** bitmap[col][state] is the set of rows with the given state, or null if not built. */
+    protected final long[][][] bitmap;
+
+    /** reserved[col] is true once memory for the bitmaps of col has been reserved. */
+    protected final boolean[] reserved;
+
+    /** Create an empty index over store with no memory limit. */
+    public BitmapIndex( DiscreteColumnVector store )
+    {
+        this( store, null, defaultMaxArity );
+    }
+
+    /**
+     * Create an empty index over store of columns with arity at most maxArity.  Bitmap memory
+     * is reserved from budget (if not null).
+     */
+    public BitmapIndex( DiscreteColumnVector store, ContingencyCache budget, int maxArity )
+    {
+        this.store = store;
+        this.budget = budget;
+        this.maxArity = maxArity;
+        this.numRows = store.length();
+        this.numWords = (numRows + 63) >>> 6;
+        this.bitmap = new long[store.getNumColumns()][][];
+        this.reserved = new boolean[bitmap.length];
+    }
+
+    /** Return true if the bitmaps of col are built or memory for them could be reserved. */
+    protected boolean available( int col )
+    {
+        synchronized ( bitmap ) {
+            if ( !reserved[col] ) {
+                reserved[col] = (budget == null) ||
+                    budget.reserve( 8L * numWords * store.getArity(col) );
+            }
+            return reserved[col];
+        }
+    }
+
+    /** Return the bitmaps of column col, building them if required. */
+    protected long[][] getBitmaps( int col )
+    {
+        synchronized ( bitmap ) {
+            if ( bitmap[col] == null ) {
+                long[][] b = new long[store.getArity(col)][numWords];
+                for ( int row = 0; row < numRows; row++ ) {
+                    b[store.state(col,row)][row >>> 6] |= 1L << row;
+                }
+                bitmap[col] = b;
+            }
+            return bitmap[col];
+        }
+    }
+
+    /**
+     * Return true if a tally of child given parents over all rows is expected to be cheaper
+     * from bitmaps than from a pass over the rows.  The bitmap cost is one word operation per
+     * 64 rows for each node of the tree of parent states and each child state at its leaves;
+     * the scan cost is one operation per distinct case for each variable.  Bitmaps must also
+     * fit in the memory budget.
+     */
+    public boolean preferred( int child, int[] parents )
+    {
+        if ( store.getArity(child) > maxArity ) { return false; }
+        double nodes = 0, leaves = 1;
+        for ( int j = 0; j < parents.length; j++ ) {
+            if ( store.getArity(parents[j]) > maxArity ) { return false; }
+            leaves *= store.getArity(parents[j]);
+            nodes += leaves;
+        }
+        double bitmapCost = (double)numWords * (nodes + leaves * store.getArity(child));
+        double scanCost = (double)store.getNumCases() * (parents.length + 1);
+        if ( bitmapCost >= scanCost || !available(child) ) { return false; }
+        for ( int j = 0; j < parents.length; j++ ) {
+            if ( !available(parents[j]) ) { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * Return tally[x][j], the number of rows where child has state x and
+     * j = sum_k multipliers[k] * (state(parents[k]) + offsets[k]).  This gives the same result
+     * as DiscreteColumnVector.tally with all rows selected.  Memory used by the bitmaps is
+     * only checked by preferred().
+     */
+    public int[][] tally( int child, int[] parents, int[] multipliers, int[] offsets,
+                          int numCombinations )
+    {
+        long[][] childBitmap = getBitmaps( child );
+        long[][][] parentBitmap = new long[parents.length][][];
+        int base = 0;
+        for ( int j = 0; j < parents.length; j++ ) {
+            parentBitmap[j] = getBitmaps( parents[j] );
+            base += multipliers[j] * offsets[j];
+        }
+
+        // level[j] holds the rows matching the parent states chosen so far.
+        long[][] level = new long[parents.length+1][numWords];
+        Arrays.fill( level[0], -1L );
+        if ( (numRows & 63) != 0 ) { level[0][numWords-1] = (1L << (numRows & 63)) - 1; }
+
+        int[][] tally = new int[childBitmap.length][numCombinations];
+        tally( childBitmap, parentBitmap, multipliers, level, 0, base, tally );
+        return tally;
+    }
+
+    /** Recursively tally the subtree of parent states below parent j. */
+    private void tally( long[][] childBitmap, long[][][] parentBitmap, int[] multipliers,
+                        long[][] level, int j, int combination, int[][] tally )
+    {
+        final long[] rows = level[j];
+        if ( j == parentBitmap.length ) {
+            int total = 0;
+            for ( int w = 0; w < numWords; w++ ) { total += Long.bitCount( rows[w] ); }
+            // The last child state takes whatever is left.
+            int last = childBitmap.length - 1;
+            for ( int x = 0; x < last && total > 0; x++ ) {
+                final long[] c = childBitmap[x];
+                int count = 0;
+                for ( int w = 0; w < numWords; w++ ) { count += Long.bitCount( rows[w] & c[w] ); }
+                tally[x][combination] += count;
+                total -= count;
+            }
+            tally[last][combination] += total;
+            return;
+        }
+
+        final long[] next = level[j+1];
+        for ( int s = 0; s < parentBitmap[j].length; s++ ) {
+            final long[] p = parentBitmap[j][s];
+            long any = 0;
+            for ( int w = 0; w < numWords; w++ ) { next[w] = rows[w] & p[w]; any |= next[w]; }
+            if ( any == 0 ) { continue; }
+            tally( childBitmap, parentBitmap, multipliers, level, j+1,
+                   combination + multipliers[j] * s, tally );
+        }
+    }
+
+    /** Number of bytes used by bitmaps built so far. */
+    public long getUsedBytes()
+    {
+        long bytes = 0;
+        synchronized ( bitmap ) {
+            for ( int i = 0; i < bitmap.length; i++ ) {
+                if ( bitmap[i] != null ) { bytes += 8L * numWords * bitmap[i].length; }
+            }
+        }
+        return bytes;
+    }
+}
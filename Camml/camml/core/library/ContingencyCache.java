@@ -0,0 +1,580 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Cache of contingency tables over a DiscreteColumnVector
+//
+
+// File: ContingencyCache.java
+
+package camml.core.library;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ContingencyCache answers count queries over sets of columns of a DiscreteColumnVector. <br>
+ *
+ * A contingency table (the number of rows in each joint state of a set of variables) is built
+ * by a single pass over the rows the first time a variable set is queried.  Later queries for
+ * the same set are answered from the table without looking at the rows again.  A query for a
+ * subset of a cached set is answered by marginalising the smallest cached superset, and the
+ * marginal is cached as a table of its own. <br>
+ *
+ * When a table must be built, the row to cell index of a recently built subset is refined by
+ * the missing variables, so adding a parent to a family costs one pass over the new parent's
+ * column rather than over every column of the family.  Row indexes have a memory budget of
+ * their own, and the least recently used ones are discarded to stay within it. <br>
+ *
+ * Tables are stored densely when they have no more cells than there are rows, otherwise only
+ * non-zero cells are kept (so no table is larger than the data).  The least recently used
+ * tables are discarded to keep the total size under the memory budget. <br>
+ *
+ * The cache is thread safe.  Exact lookups take no lock, tables are built and marginalised
+ * outside any lock, and a lock is only held to add a table and evict old ones.
+ */
+public class ContingencyCache
+{
+    /** Data counts are taken from. */
+    protected final DiscreteColumnVector store;
+
+    /** Maximum number of bytes used by all tables. */
+    protected final long budgetBytes;
+
+    /** Bytes currently used by tables, guarded by tableLock. */
+    protected long usedBytes = 0;
+
+    /** Bytes of the budget reserved for memory held outside the cache, guarded by tableLock. */
+    protected long reservedBytes = 0;
+
+    /** Tables indexed by variable set. */
+    protected final ConcurrentHashMap<Key,Table> tables = new ConcurrentHashMap<Key,Table>();
+
+    /** tablesWith.get(v) holds every cached table over a set containing variable v. */
+    protected final List<Set<Table>> tablesWith;
+
+    /** Lock held while adding and evicting tables. */
+    protected final Object tableLock = new Object();
+
+    /** Incremented on every table use, Table.lastUsed orders tables for eviction. */
+    protected final AtomicLong clock = new AtomicLong();
+
+    /** Default value of maxRowIndexes */
+    public static final int defaultMaxRowIndexes = 8;
+
+    /** Maximum number of row indexes kept for refinement. */
+    protected final int maxRowIndexes;
+
+    /** Maximum number of bytes used by row indexes, which are not part of budgetBytes. */
+    protected final long rowIndexBudgetBytes;
+
+    /** Bytes currently used by row indexes, guarded by rowIndexes. */
+    protected long rowIndexBytes = 0;
+
+    /** Row to cell indexes of recently built tables, in least recently used order. */
+    protected final LinkedHashMap<Key,RowIndex> rowIndexes =
+        new LinkedHashMap<Key,RowIndex>(16,0.75f,true);
+
+    /** Number of queries answered from an exact table, a superset table and the rows. */
+    protected final LongAdder exactHits = new LongAdder(), supersetHits = new LongAdder(),
+        misses = new LongAdder();
+
+    /** Number of tables built by refining the row index of a subset. */
+    protected final LongAdder refinements = new LongAdder();
+
+    /**
+     * Create a cache over store using at most budgetBytes of memory for tables, and as much
+     * again for up to defaultMaxRowIndexes row indexes.
+     */
+    public ContingencyCache( DiscreteColumnVector store, long budgetBytes )
+    {
+        this( store, budgetBytes, budgetBytes, defaultMaxRowIndexes );
+    }
+
+    /**
+     * Create a cache over store using at most budgetBytes of memory for tables, and keeping
+     * at most maxRowIndexes row indexes in rowIndexBudgetBytes of memory.
+     */
+    public ContingencyCache( DiscreteColumnVector store, long budgetBytes,
+                             long rowIndexBudgetBytes, int maxRowIndexes )
+    {
+        this.store = store;
+        this.budgetBytes = budgetBytes;
+        this.rowIndexBudgetBytes = rowIndexBudgetBytes;
+        this.maxRowIndexes = maxRowIndexes;
+        int numVars = store.getNumColumns();
+        tablesWith = new ArrayList<Set<Table>>( numVars );
+        for ( int v = 0; v < numVars; v++ ) {
+            tablesWith.add( Collections.newSetFromMap( new ConcurrentHashMap<Table,Boolean>() ) );
+        }
+    }
+
+    /**
+     * Return tally[x][j], the number of rows where child has state x and parents have the
+     * joint state j = sum_k multipliers[k] * state(parents[k]).  This matches the layout of
+     * DiscreteColumnVector.tally with zero offsets and all rows selected.
+     */
+    public int[][] tally( int child, int[] parents, int[] multipliers, int numCombinations )
+    {
+        int[] vars = new int[parents.length+1];
+        System.arraycopy( parents, 0, vars, 0, parents.length );
+        vars[parents.length] = child;
+        Arrays.sort( vars );
+        for ( int i = 1; i < vars.length; i++ ) {
+            if ( vars[i] == vars[i-1] ) {
+                // Repeated variables are not worth caching.
+                return store.tally( child, parents, multipliers, new int[parents.length],
+                                    null, numCombinations );
+            }
+        }
+
+        Table table = getTable( vars );
+        if ( table == null ) {
+            return store.tally( child, parents, multipliers, new int[parents.length],
+                                null, numCombinations );
+        }
+
+        // weight[k] = contribution of table.vars[k] to the parent combination.
+        int[] weight = new int[table.vars.length];
+        int childPos = -1;
+        for ( int k = 0; k < table.vars.length; k++ ) {
+            if ( table.vars[k] == child ) { childPos = k; }
+            for ( int j = 0; j < parents.length; j++ ) {
+                if ( table.vars[k] == parents[j] ) { weight[k] = multipliers[j]; }
+            }
+        }
+
+        int[][] tally = new int[store.getArity(child)][numCombinations];
+        int[] state = new int[table.vars.length];
+        int numEntries = table.numEntries();
+        for ( int e = 0; e < numEntries; e++ ) {
+            table.states( e, state );
+            int count = table.countAt(e);
+            if ( count == 0 ) { continue; }
+            int combination = 0;
+            for ( int k = 0; k < state.length; k++ ) {
+                if ( k != childPos ) { combination += weight[k] * state[k]; }
+            }
+            tally[state[childPos]][combination] += count;
+        }
+        return tally;
+    }
+
+    /** Return the number of rows in each state of col, marginalising a cached table if possible. */
+    public int[] counts( int col )
+    {
+        int[][] tally = tally( col, new int[0], new int[0], 1 );
+        int[] counts = new int[tally.length];
+        for ( int x = 0; x < counts.length; x++ ) { counts[x] = tally[x][0]; }
+        return counts;
+    }
+
+    /**
+     * Return a cached table over vars, marginalising the smallest cached superset of vars or
+     * counting the rows if there is none.  Return null if the table would be too large to keep.
+     */
+    protected Table getTable( int[] vars )
+    {
+        Key key = new Key( vars );
+        Table table = tables.get( key );
+        if ( table != null ) {
+            exactHits.increment();
+            table.lastUsed = clock.incrementAndGet();
+            return table;
+        }
+
+        // Only tables containing the least used variable of vars need to be checked.
+        Set<Table> candidates = tablesWith.get(vars[0]);
+        for ( int k = 1; k < vars.length; k++ ) {
+            Set<Table> tables = tablesWith.get(vars[k]);
+            if ( tables.size() < candidates.size() ) { candidates = tables; }
+        }
+        Table best = null;
+        for ( Table t : candidates ) {
+            if ( t.key.contains(key) && (best == null || t.numEntries() < best.numEntries()) ) {
+                best = t;
+            }
+        }
+
+        if ( best != null ) {
+            supersetHits.increment();
+            best.lastUsed = clock.incrementAndGet();
+            table = marginalise( best, vars, key );
+        }
+        else {
+            misses.increment();
+            table = buildTable( vars, key );
+        }
+        if ( table == null ) { return null; }
+        return addTable( table );
+    }
+
+    /**
+     * Add table to the cache and evict the least recently used tables until the cache is
+     * within budget.  If another thread has already added a table over the same variables
+     * that table is returned instead.
+     */
+    protected Table addTable( Table table )
+    {
+        table.lastUsed = clock.incrementAndGet();
+        synchronized ( tableLock ) {
+            Table old = tables.putIfAbsent( table.key, table );
+            if ( old != null ) { return old; }
+            for ( int v : table.vars ) { tablesWith.get(v).add( table ); }
+            usedBytes += table.bytes();
+            evict( table );
+        }
+        return table;
+    }
+
+    /**
+     * Evict least recently used tables other than keep until tables and reserved memory are
+     * within budget.  Must be called holding tableLock.
+     */
+    protected void evict( Table keep )
+    {
+        while ( usedBytes + reservedBytes > budgetBytes ) {
+            Table lru = null;
+            for ( Table t : tables.values() ) {
+                if ( t != keep && (lru == null || t.lastUsed < lru.lastUsed) ) { lru = t; }
+            }
+            if ( lru == null ) { break; }
+            tables.remove( lru.key );
+            for ( int v : lru.vars ) { tablesWith.get(v).remove( lru ); }
+            usedBytes -= lru.bytes();
+        }
+    }
+
+    /**
+     * Reserve bytes of the budget for memory held outside the cache (eg. BitmapIndex bitmaps),
+     * evicting tables to make room.  At most half of the budget may be reserved, so return
+     * false if bytes do not fit.
+     */
+    public boolean reserve( long bytes )
+    {
+        synchronized ( tableLock ) {
+            if ( reservedBytes + bytes > budgetBytes / 2 ) { return false; }
+            reservedBytes += bytes;
+            evict( null );
+            return true;
+        }
+    }
+
+    /** Return the table over vars (a subset of t.vars) found by summing the entries of t. */
+    protected Table marginalise( Table t, int[] vars, Key key )
+    {
+        int[] arity = new int[vars.length];
+        long[] strides = new long[vars.length];
+        long cells = 1;
+        for ( int k = vars.length-1; k >= 0; k-- ) {
+            arity[k] = store.getArity( vars[k] );
+            strides[k] = cells;
+            cells *= arity[k];
+        }
+
+        // stride of each variable of t in the new table, 0 if it is summed out.
+        int[] newStride = new int[t.vars.length];
+        for ( int k = 0; k < t.vars.length; k++ ) {
+            int pos = Arrays.binarySearch( vars, t.vars[k] );
+            if ( pos >= 0 ) { newStride[k] = (int)strides[pos]; }
+        }
+
+        int numEntries = t.numEntries();
+        int[] cellOf = new int[numEntries];
+        int[] state = new int[t.vars.length];
+        for ( int e = 0; e < numEntries; e++ ) {
+            t.states( e, state );
+            int c = 0;
+            for ( int k = 0; k < state.length; k++ ) { c += newStride[k] * state[k]; }
+            cellOf[e] = c;
+        }
+        return countCells( key, vars, arity, strides, cells, cellOf, t.counts, numEntries );
+    }
+
+    /** Count rows of store over vars.  Returns null if the table is too large to cache. */
+    protected Table buildTable( int[] vars, Key key )
+    {
+        DiscreteColumnVector.Cases cases = store.cases( null );
+        long cells = 1;
+        for ( int k = 0; k < vars.length; k++ ) {
+            cells *= store.getArity( vars[k] );
+            if ( cells > Integer.MAX_VALUE ) { return null; }
+        }
+
+        // A table never holds more than one entry per case, so this bounds its size.
+        long maxBytes = Math.min(cells,cases.size) * (cells <= cases.size ? 4 : 12);
+        if ( maxBytes > budgetBytes / 4 ) { return null; }
+
+        RowIndex rowIndex = getRowIndex( vars, key, cases );
+        return countCells( key, rowIndex.vars, rowIndex.arity, rowIndex.strides, cells,
+                           rowIndex.index, cases.weights, cases.size );
+    }
+
+    /**
+     * Return a table over vars where entry i (i < n) adds weight[i] (or 1 if weight is null)
+     * to cell cellOf[i].  The table is dense if it has no more cells than the store has
+     * cases, otherwise the non-zero cells are found with a hash table.
+     */
+    protected Table countCells( Key key, int[] vars, int[] arity, long[] strides, long cells,
+                                int[] cellOf, int[] weight, int n )
+    {
+        if ( cells <= store.getNumCases() ) {
+            int[] counts = new int[(int)cells];
+            for ( int i = 0; i < n; i++ ) { counts[cellOf[i]] += (weight == null) ? 1 : weight[i]; }
+            return new Table( key, vars, arity, strides, null, counts );
+        }
+
+        // Sparse table : open addressing hash table of entry numbers (+1, 0 == empty).
+        int tableSize = Integer.highestOneBit( Math.max(n,1) ) << 2;
+        int[] slotEntry = new int[tableSize];
+        long[] cell = new long[n];
+        int[] counts = new int[n];
+        int numEntries = 0;
+        for ( int i = 0; i < n; i++ ) {
+            int c = cellOf[i];
+            int hash = c * 0x9E3779B9;
+            int slot = (hash ^ (hash >>> 16)) & (tableSize - 1);
+            while ( slotEntry[slot] != 0 && cell[slotEntry[slot]-1] != c ) {
+                slot = (slot + 1) & (tableSize - 1);
+            }
+            if ( slotEntry[slot] == 0 ) {
+                cell[numEntries] = c;
+                slotEntry[slot] = ++numEntries;
+            }
+            counts[slotEntry[slot]-1] += (weight == null) ? 1 : weight[i];
+        }
+        return new Table( key, vars, arity, strides, Arrays.copyOf( cell, numEntries ),
+                          Arrays.copyOf( counts, numEntries ) );
+    }
+
+    /**
+     * Return the cell of each case in a table over vars.  The index of the largest cached
+     * subset of vars is refined by the remaining variables, which are added as the fastest
+     * varying, so the variable order of the result may differ from vars.
+     */
+    protected RowIndex getRowIndex( int[] vars, Key key, DiscreteColumnVector.Cases cases )
+    {
+        RowIndex base = null;
+        synchronized ( rowIndexes ) {
+            for ( RowIndex r : rowIndexes.values() ) {
+                if ( key.contains(r.key) && (base == null || r.vars.length > base.vars.length) ) {
+                    base = r;
+                }
+            }
+            if ( base != null ) { rowIndexes.get( base.key ); refinements.increment(); }
+        }
+
+        int[] order = new int[vars.length];
+        int[] index;
+        int n = 0;
+        if ( base == null ) { index = new int[cases.size]; }
+        else {
+            System.arraycopy( base.vars, 0, order, 0, base.vars.length );
+            n = base.vars.length;
+            index = base.index.clone();
+        }
+        for ( int k = 0; k < vars.length; k++ ) {
+            if ( base != null && base.key.containsVar(vars[k]) ) { continue; }
+            int a = store.getArity( vars[k] );
+            if ( n > 0 ) { for ( int i = 0; i < index.length; i++ ) { index[i] *= a; } }
+            store.addColumn( index, vars[k], 1, 0, cases.rows );
+            order[n++] = vars[k];
+        }
+
+        int[] arity = new int[order.length];
+        long[] strides = new long[order.length];
+        long stride = 1;
+        for ( int k = order.length-1; k >= 0; k-- ) {
+            arity[k] = store.getArity( order[k] );
+            strides[k] = stride;
+            stride *= arity[k];
+        }
+
+        RowIndex rowIndex = new RowIndex( key, order, arity, strides, index );
+        long bytes = 4L * index.length;
+        if ( maxRowIndexes < 1 || bytes > rowIndexBudgetBytes ) { return rowIndex; }
+        synchronized ( rowIndexes ) {
+            RowIndex old = rowIndexes.put( key, rowIndex );
+            if ( old != null ) { rowIndexBytes -= 4L * old.index.length; }
+            rowIndexBytes += bytes;
+            // Evict the least recently used row indexes.
+            Iterator<RowIndex> it = rowIndexes.values().iterator();
+            while ( (rowIndexes.size() > maxRowIndexes || rowIndexBytes > rowIndexBudgetBytes) &&
+                    it.hasNext() ) {
+                RowIndex r = it.next();
+                if ( r == rowIndex ) { continue; }
+                rowIndexBytes -= 4L * r.index.length;
+                it.remove();
+            }
+        }
+        return rowIndex;
+    }
+
+    /** Number of tables built by refining the row index of a cached subset */
+    public long getRefinements() { return refinements.sum(); }
+
+    /** Number of bytes used by cached tables */
+    public long getUsedBytes() { synchronized ( tableLock ) { return usedBytes; } }
+
+    /** Number of bytes used by row indexes */
+    public long getRowIndexBytes() { synchronized ( rowIndexes ) { return rowIndexBytes; } }
+
+    /** Number of bytes reserved by reserve() */
+    public long getReservedBytes() { synchronized ( tableLock ) { return reservedBytes; } }
+
+    /** Number of cached tables */
+    public int getNumTables() { return tables.size(); }
+
+    /** Number of queries answered from a table over exactly the queried variables */
+    public long getExactHits() { return exactHits.sum(); }
+
+    /** Number of queries answered by marginalising a table over a superset of the queried variables */
+    public long getSupersetHits() { return supersetHits.sum(); }
+
+    /** Number of queries requiring a pass over the rows */
+    public long getMisses() { return misses.sum(); }
+
+    /** Print cache statistics */
+    public String toString()
+    {
+        return "ContingencyCache : tables = " + getNumTables() + ", bytes = " + getUsedBytes() +
+            ", exact = " + getExactHits() + ", superset = " + getSupersetHits() +
+            ", misses = " + getMisses() + ", refinements = " + getRefinements();
+    }
+
+    /** Set of variables stored as a bitset. */
+    protected static class Key
+    {
+        final long[] words;
+        final int hash;
+
+        Key( int[] vars )
+        {
+            words = new long[ (vars[vars.length-1] >> 6) + 1 ];
+            for ( int v : vars ) { words[v >> 6] |= 1L << v; }
+            hash = Arrays.hashCode( words );
+        }
+
+        /** Return true if every variable in k is in this set. */
+        boolean contains( Key k )
+        {
+            if ( k.words.length > words.length ) { return false; }
+            for ( int w = 0; w < k.words.length; w++ ) {
+                if ( (k.words[w] & ~words[w]) != 0 ) { return false; }
+            }
+            return true;
+        }
+
+        /** Return true if v is in this set. */
+        boolean containsVar( int v )
+        {
+            return (v >> 6) < words.length && (words[v >> 6] & (1L << v)) != 0;
+        }
+
+        public boolean equals( Object o )
+        {
+            return (o instanceof Key) && Arrays.equals( words, ((Key)o).words );
+        }
+
+        public int hashCode() { return hash; }
+    }
+
+    /** Cell of each case of the store in a table over vars, the last variable varies fastest. */
+    protected static class RowIndex
+    {
+        final Key key;
+        final int[] vars;
+        final int[] arity;
+        final long[] strides;
+        final int[] index;
+
+        RowIndex( Key key, int[] vars, int[] arity, long[] strides, int[] index )
+        {
+            this.key = key; this.vars = vars; this.arity = arity; this.strides = strides;
+            this.index = index;
+        }
+    }
+
+    /** Contingency table over vars, the last variable varies fastest. */
+    protected static class Table
+    {
+        final Key key;
+        final int[] vars;
+        final int[] arity;
+        final long[] strides;
+        /** Cell of each entry for sparse tables, null for dense tables. */
+        final long[] cell;
+        final int[] counts;
+
+        Table( Key key, int[] vars, int[] arity, long[] strides, long[] cell, int[] counts )
+        {
+            this.key = key; this.vars = vars; this.arity = arity; this.strides = strides;
+            this.cell = cell; this.counts = counts;
+        }
+
+        /** Value of the cache's clock when the table was last used. */
+        volatile long lastUsed;
+
+        int numEntries() { return counts.length; }
+
+        long cellAt( int e ) { return (cell == null) ? e : cell[e]; }
+
+        /**
+         * Set state[k] to the state of vars[k] in the cell of entry e.  Entries must be
+         * visited in order from 0 with the same state array, so dense tables count on from
+         * the previous entry rather than decoding each cell with a division per variable.
+         */
+        void states( int e, int[] state )
+        {
+            if ( cell == null && e > 0 ) {
+                for ( int k = state.length-1; k >= 0; k-- ) {
+                    if ( ++state[k] < arity[k] ) { return; }
+                    state[k] = 0;
+                }
+                return;
+            }
+            long c = cellAt(e);
+            for ( int k = 0; k < state.length; k++ ) {
+                state[k] = (int)((c / strides[k]) % arity[k]);
+            }
+        }
+
+        int countAt( int e ) { return counts[e]; }
+
+        long bytes() { return 4L * counts.length + ((cell == null) ? 0 : 8L * cell.length); }
+    }
+}
@@ -0,0 +1,548 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Columnar store for discrete datasets.
+//
+
+// File: DiscreteColumnVector.java
+
+package camml.core.library;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+import cdms.core.Type;
+import cdms.core.Value;
+
+/**
+ * DiscreteColumnVector is a multi column vector of discrete data stored as one primitive
+ * array per column (byte[] when arity <= 256, short[] when arity <= 65536, otherwise int[]).
+ * Values are stored relative to the lower bound of each column. <br>
+ *
+ * It behaves as the vector it was built from (elt(), weight(), type etc. are taken from the
+ * original) but intAt() on its columns, and counting through view(), never create Values.  This
+ * lets CPT style learners count parent/child combinations directly from primitive arrays. <br>
+ *
+ * When there are many duplicate rows (low arity data), identical rows are also collapsed into
+ * weighted cases.  The store still has one element per row, but counts over all rows (or over
+ * large selections) visit each distinct case once, so counting cost depends on the number of
+ * distinct rows rather than the number of rows. <br>
+ *
+ * Use make() to build a store, it returns the original vector if any column is not discrete
+ * with finite bounds, or if any value is missing.
+ */
+public class DiscreteColumnVector extends Value.Vector
+{
+    /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+    private static final long serialVersionUID = 3184710273391157342L;
+
+    /** Vector this store was built from. */
+    protected final Value.Vector source;
+
+    /** Number of rows */
+    protected final int numRows;
+
+    /** Lower bound of each column. */
+    protected final int[] lwb;
+
+    /** Arity of each column. */
+    protected final int[] arity;
+
+    /** byteColumn[i] holds column i if arity[i] <= 256, values are read as (b & 0xFF) */
+    protected final byte[][] byteColumn;
+
+    /** shortColumn[i] holds column i if 256 < arity[i] <= 65536, values read as (s & 0xFFFF) */
+    protected final short[][] shortColumn;
+
+    /** intColumn[i] holds column i if arity[i] > 65536 */
+    protected final int[][] intColumn;
+
+    /** Column vectors returned by cmpnt() */
+    protected final Column[] columnVector;
+
+    /** Rows are collapsed into cases if at most this fraction of rows are distinct. */
+    public static double maxDistinctFraction = 0.5;
+
+    /** distinctOf[row] is the case containing row, or null if rows are not collapsed. */
+    protected int[] distinctOf;
+
+    /** First row of each distinct case. */
+    protected int[] distinctRow;
+
+    /** Number of rows in each distinct case. */
+    protected int[] distinctCount;
+
+    /** Memory budget of the contingency cache of new stores (0 disables the cache) */
+    public static long defaultContingencyCacheBytes = 32L << 20;
+
+    /** Memory budget of this store's contingency cache (0 disables the cache) */
+    protected long contingencyCacheBytes = defaultContingencyCacheBytes;
+
+    /** Cache of count tables, created when first needed. */
+    private transient volatile ContingencyCache contingencyCache;
+
+    /** Use bitmap indexes for low arity counts in new stores */
+    public static boolean defaultUseBitmapIndex = true;
+
+    /** Use a bitmap index for low arity counts in this store */
+    protected boolean useBitmapIndex = defaultUseBitmapIndex;
+
+    /** Bitmap index of low arity columns, created when first needed. */
+    private transient volatile BitmapIndex bitmapIndex;
+
+    /** Last source passed to make() and the resulting store. */
+    private static WeakReference<Value.Vector> lastSource = null;
+    private static WeakReference<DiscreteColumnVector> lastStore = null;
+
+    /**
+     * Return a DiscreteColumnVector holding data, or data itself if it cannot be stored in
+     * columns.  Calling make() twice in a row with the same vector returns the same store.
+     */
+    public static synchronized Value.Vector make( Value.Vector data )
+    {
+        if ( data instanceof DiscreteColumnVector ) { return data; }
+        if ( lastSource != null && lastSource.get() == data ) {
+            DiscreteColumnVector store = lastStore.get();
+            if ( store != null ) { return store; }
+        }
+
+        if ( !(((Type.Vector)data.t).elt instanceof Type.Structured) ) { return data; }
+        Type[] cmpnts = ((Type.Structured)((Type.Vector)data.t).elt).cmpnts;
+        for ( int i = 0; i < cmpnts.length; i++ ) {
+            if ( !(cmpnts[i] instanceof Type.Discrete) ) { return data; }
+            Type.Discrete dType = (Type.Discrete)cmpnts[i];
+            if ( Double.isInfinite(dType.LWB) || Double.isInfinite(dType.UPB) ) { return data; }
+        }
+
+        DiscreteColumnVector store = new DiscreteColumnVector( data );
+        if ( !store.complete ) { return data; }
+        lastSource = new WeakReference<Value.Vector>( data );
+        lastStore = new WeakReference<DiscreteColumnVector>( store );
+        return store;
+    }
+
+    /** Set false by the constructor if a missing or out of range value was found. */
+    private transient boolean complete = true;
+
+    /** Copy all columns of data into primitive arrays. */
+    protected DiscreteColumnVector( Value.Vector data )
+    {
+        super( (Type.Vector)data.t );
+        this.source = data;
+        this.numRows = data.length();
+
+        Type[] cmpnts = ((Type.Structured)((Type.Vector)data.t).elt).cmpnts;
+        int numCols = cmpnts.length;
+        lwb = new int[numCols];
+        arity = new int[numCols];
+        byteColumn = new byte[numCols][];
+        shortColumn = new short[numCols][];
+        intColumn = new int[numCols][];
+        columnVector = new Column[numCols];
+
+        for ( int i = 0; i < numCols && complete; i++ ) {
+            Type.Discrete dType = (Type.Discrete)cmpnts[i];
+            lwb[i] = (int)dType.LWB;
+            arity[i] = (int)(dType.UPB - dType.LWB) + 1;
+            if ( arity[i] <= 256 ) { byteColumn[i] = new byte[numRows]; }
+            else if ( arity[i] <= 65536 ) { shortColumn[i] = new short[numRows]; }
+            else { intColumn[i] = new int[numRows]; }
+
+            Value.Vector col = data.cmpnt(i);
+            for ( int row = 0; row < numRows; row++ ) {
+                if ( col.elt(row).status() != Value.S_PROPER ) { complete = false; break; }
+                int x = col.intAt(row) - lwb[i];
+                if ( x < 0 || x >= arity[i] ) { complete = false; break; }
+                if ( byteColumn[i] != null ) { byteColumn[i][row] = (byte)x; }
+                else if ( shortColumn[i] != null ) { shortColumn[i][row] = (short)x; }
+                else { intColumn[i][row] = x; }
+            }
+        }
+        if ( complete ) { collapseRows(); }
+    }
+
+    /** Copy constructor, see copy() */
+    protected DiscreteColumnVector( DiscreteColumnVector s )
+    {
+        super( (Type.Vector)s.t );
+        this.source = s.source;
+        this.numRows = s.numRows;
+        this.lwb = s.lwb;
+        this.arity = s.arity;
+        this.byteColumn = s.byteColumn;
+        this.shortColumn = s.shortColumn;
+        this.intColumn = s.intColumn;
+        this.columnVector = new Column[arity.length];
+        this.distinctOf = s.distinctOf;
+        this.distinctRow = s.distinctRow;
+        this.distinctCount = s.distinctCount;
+        this.contingencyCacheBytes = s.contingencyCacheBytes;
+        this.useBitmapIndex = s.useBitmapIndex;
+    }
+
+    /**
+     * Find the distinct rows of the store.  If there are few enough of them set distinctOf,
+     * distinctRow and distinctCount, otherwise leave them null.
+     */
+    protected void collapseRows()
+    {
+        final int maxDistinct = (int)(numRows * maxDistinctFraction);
+        if ( maxDistinct < 1 ) { return; }
+
+        // Open addressing hash table of distinct case numbers (+1, 0 == empty).
+        int tableSize = Integer.highestOneBit( maxDistinct ) << 2;
+        int[] table = new int[tableSize];
+        int[] of = new int[numRows];
+        int[] first = new int[maxDistinct];
+        int[] count = new int[maxDistinct];
+        int numDistinct = 0;
+
+        for ( int row = 0; row < numRows; row++ ) {
+            int hash = 0;
+            for ( int col = 0; col < arity.length; col++ ) { hash = hash * 31 + state(col,row); }
+            int slot = (hash ^ (hash >>> 16)) & (tableSize - 1);
+            while ( table[slot] != 0 && !sameRow( first[table[slot]-1], row ) ) {
+                slot = (slot + 1) & (tableSize - 1);
+            }
+            if ( table[slot] == 0 ) {
+                if ( numDistinct == maxDistinct ) { return; }
+                first[numDistinct] = row;
+                table[slot] = ++numDistinct;
+            }
+            of[row] = table[slot] - 1;
+            count[of[row]]++;
+        }
+
+        distinctOf = of;
+        distinctRow = Arrays.copyOf( first, numDistinct );
+        distinctCount = Arrays.copyOf( count, numDistinct );
+    }
+
+    /** Return true if rows a and b hold the same values in every column. */
+    private boolean sameRow( int a, int b )
+    {
+        for ( int col = 0; col < arity.length; col++ ) {
+            if ( state(col,a) != state(col,b) ) { return false; }
+        }
+        return true;
+    }
+
+    /** Number of distinct rows, or the number of rows if rows are not collapsed. */
+    public int getNumCases()
+    {
+        return (distinctRow == null) ? numRows : distinctRow.length;
+    }
+
+    /** Rows of the store to visit when counting, and the number of rows each stands for. */
+    public static class Cases
+    {
+        /** Rows to visit, or null for every row. */
+        public final int[] rows;
+
+        /** Number of selected rows each visited row stands for, or null if one each. */
+        public final int[] weights;
+
+        /** Number of rows visited */
+        public final int size;
+
+        public Cases( int[] rows, int[] weights, int size )
+        {
+            this.rows = rows; this.weights = weights; this.size = size;
+        }
+
+        /** Row visited at position i */
+        public int row( int i ) { return (rows == null) ? i : rows[i]; }
+
+        /** Weight of position i */
+        public int weight( int i ) { return (weights == null) ? 1 : weights[i]; }
+    }
+
+    /**
+     * Return the cases to visit when counting over rows (null for all rows).  Selections no
+     * larger than the number of distinct rows are visited row by row.
+     */
+    public Cases cases( int[] rows )
+    {
+        if ( distinctOf == null ) {
+            return new Cases( rows, null, (rows == null) ? numRows : rows.length );
+        }
+        if ( rows == null ) {
+            return new Cases( distinctRow, distinctCount, distinctRow.length );
+        }
+        if ( rows.length <= distinctRow.length ) {
+            return new Cases( rows, null, rows.length );
+        }
+
+        int[] w = new int[distinctRow.length];
+        for ( int i = 0; i < rows.length; i++ ) { w[distinctOf[rows[i]]]++; }
+        int n = 0;
+        for ( int d = 0; d < w.length; d++ ) { if ( w[d] != 0 ) { n++; } }
+        int[] caseRows = new int[n];
+        int[] caseWeights = new int[n];
+        n = 0;
+        for ( int d = 0; d < w.length; d++ ) {
+            if ( w[d] != 0 ) { caseRows[n] = distinctRow[d]; caseWeights[n] = w[d]; n++; }
+        }
+        return new Cases( caseRows, caseWeights, n );
+    }
+
+    /** Return the state (value - lwb) of column col in the given row. */
+    public int state( int col, int row )
+    {
+        if ( byteColumn[col] != null ) { return byteColumn[col][row] & 0xFF; }
+        if ( shortColumn[col] != null ) { return shortColumn[col][row] & 0xFFFF; }
+        return intColumn[col][row];
+    }
+
+    /** Number of columns in the store */
+    public int getNumColumns() { return arity.length; }
+
+    /** Accessor for arity of column col */
+    public int getArity( int col ) { return arity[col]; }
+
+    /** Accessor for lower bound of column col */
+    public int getLWB( int col ) { return lwb[col]; }
+
+    /** Vector this store was built from. */
+    public Value.Vector getSource() { return source; }
+
+    /** Return the contingency cache of this store, or null if it has been disabled. */
+    public ContingencyCache getContingencyCache()
+    {
+        ContingencyCache cache = contingencyCache;
+        if ( cache == null ) {
+            synchronized ( this ) {
+                if ( contingencyCache == null && contingencyCacheBytes > 0 ) {
+                    contingencyCache = new ContingencyCache( this, contingencyCacheBytes );
+                }
+                cache = contingencyCache;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Set the memory budget of the contingency cache and bitmap index, discarding any cached
+     * tables and bitmaps.
+     */
+    public synchronized void setContingencyCacheBytes( long bytes )
+    {
+        contingencyCacheBytes = bytes;
+        contingencyCache = null;
+        bitmapIndex = null;
+    }
+
+    /**
+     * Return a store holding the same data which shares this store's columns but has its own
+     * contingency cache and bitmap index (initially with the same settings as this store).
+     * Settings of the copy may be changed without affecting other users of this store.
+     */
+    public DiscreteColumnVector copy()
+    {
+        return new DiscreteColumnVector( this );
+    }
+
+    /**
+     * Return the bitmap index of this store, or null if it or the contingency cache (whose
+     * budget it shares) has been disabled.
+     */
+    public BitmapIndex getBitmapIndex()
+    {
+        BitmapIndex index = bitmapIndex;
+        if ( index == null ) {
+            synchronized ( this ) {
+                // Bitmaps are charged to the contingency cache budget, so need the cache.
+                ContingencyCache cache = getContingencyCache();
+                if ( bitmapIndex == null && useBitmapIndex && cache != null ) {
+                    bitmapIndex = new BitmapIndex( this, cache, BitmapIndex.defaultMaxArity );
+                }
+                index = bitmapIndex;
+            }
+        }
+        return index;
+    }
+
+    /** Enable or disable the bitmap index, discarding any bitmaps built. */
+    public synchronized void setUseBitmapIndex( boolean useBitmapIndex )
+    {
+        this.useBitmapIndex = useBitmapIndex;
+        bitmapIndex = null;
+    }
+
+    /**
+     * acc[i] += multiplier * (state(col,r) + offset), where r = i if rows is null, or rows[i].
+     * This is the inner loop used to combine parent columns into a single index.
+     */
+    public void addColumn( int[] acc, int col, int multiplier, int offset, int[] rows )
+    {
+        final int n = acc.length;
+        final int shift = multiplier * offset;
+        if ( byteColumn[col] != null ) {
+            final byte[] c = byteColumn[col];
+            if ( rows == null ) { for ( int i = 0; i < n; i++ ) { acc[i] += multiplier * (c[i] & 0xFF) + shift; } }
+            else { for ( int i = 0; i < n; i++ ) { acc[i] += multiplier * (c[rows[i]] & 0xFF) + shift; } }
+        }
+        else if ( shortColumn[col] != null ) {
+            final short[] c = shortColumn[col];
+            if ( rows == null ) { for ( int i = 0; i < n; i++ ) { acc[i] += multiplier * (c[i] & 0xFFFF) + shift; } }
+            else { for ( int i = 0; i < n; i++ ) { acc[i] += multiplier * (c[rows[i]] & 0xFFFF) + shift; } }
+        }
+        else {
+            final int[] c = intColumn[col];
+            if ( rows == null ) { for ( int i = 0; i < n; i++ ) { acc[i] += multiplier * c[i] + shift; } }
+            else { for ( int i = 0; i < n; i++ ) { acc[i] += multiplier * c[rows[i]] + shift; } }
+        }
+    }
+
+    /**
+     * Return tally[x][j], the number of selected rows where column child has state x and the
+     * parent index (as calculated by addColumn) is j.
+     */
+    public int[][] tally( int child, int[] parents, int[] multipliers, int[] offsets,
+                          int[] rows, int numCombinations )
+    {
+        Cases cases = cases( rows );
+        int[] index = new int[cases.size];
+        for ( int j = 0; j < parents.length; j++ ) {
+            addColumn( index, parents[j], multipliers[j], offsets[j], cases.rows );
+        }
+
+        int[][] tally = new int[arity[child]][numCombinations];
+        for ( int i = 0; i < cases.size; i++ ) {
+            tally[state(child,cases.row(i))][index[i]] += cases.weight(i);
+        }
+        return tally;
+    }
+
+    /** Return the number of selected rows in each state of column col. */
+    public int[] counts( int col, int[] rows )
+    {
+        int[] counts = new int[arity[col]];
+        Cases cases = cases( rows );
+        for ( int i = 0; i < cases.size; i++ ) {
+            counts[ state(col,cases.row(i)) ] += cases.weight(i);
+        }
+        return counts;
+    }
+
+    public int length() { return numRows; }
+
+    public Value elt( int i ) { return source.elt(i); }
+
+    public double weight( int i ) { return source.weight(i); }
+
+    public Value.Vector cmpnt( int col )
+    {
+        if ( columnVector[col] == null ) { columnVector[col] = new Column( col ); }
+        return columnVector[col];
+    }
+
+    /** A single column of a DiscreteColumnVector */
+    public class Column extends Value.Vector
+    {
+        /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+        private static final long serialVersionUID = -5904215617329183651L;
+
+        /** Column index in the store. */
+        public final int col;
+
+        /** Original column, used for elt() */
+        private Value.Vector sourceColumn;
+
+        protected Column( int col )
+        {
+            super( new Type.Vector( ((Type.Structured)((Type.Vector)DiscreteColumnVector.this.t).elt).cmpnts[col] ) );
+            this.col = col;
+        }
+
+        /** Store this column belongs to */
+        public DiscreteColumnVector getStore() { return DiscreteColumnVector.this; }
+
+        public int length() { return numRows; }
+
+        public int intAt( int i ) { return state(col,i) + lwb[col]; }
+
+        public double doubleAt( int i ) { return intAt(i); }
+
+        public Value elt( int i )
+        {
+            if ( sourceColumn == null ) { sourceColumn = source.cmpnt(col); }
+            return sourceColumn.elt(i);
+        }
+
+        public double weight( int i ) { return source.weight(i); }
+    }
+
+    /** Selection of rows and columns of a DiscreteColumnVector, see view() */
+    public static class View
+    {
+        /** Store all data is taken from */
+        public final DiscreteColumnVector store;
+
+        /** Selected rows, or null for all rows */
+        public final int[] rows;
+
+        /** Selected columns of store */
+        public final int[] cols;
+
+        public View( DiscreteColumnVector store, int[] rows, int[] cols )
+        {
+            this.store = store; this.rows = rows; this.cols = cols;
+        }
+    }
+
+    /**
+     * If v is (a selection of) a DiscreteColumnVector return the rows and columns of the store
+     * it shows, otherwise return null.  Understands DiscreteColumnVector, its columns, and
+     * SelectedVectors built over either.
+     */
+    public static View view( Value.Vector v )
+    {
+        if ( v instanceof DiscreteColumnVector ) {
+            DiscreteColumnVector store = (DiscreteColumnVector)v;
+            int[] cols = new int[store.arity.length];
+            for ( int i = 0; i < cols.length; i++ ) { cols[i] = i; }
+            return new View( store, null, cols );
+        }
+        if ( v instanceof Column ) {
+            Column c = (Column)v;
+            return new View( c.getStore(), null, new int[] {c.col} );
+        }
+        if ( v instanceof SelectedVector ) {
+            SelectedVector s = (SelectedVector)v;
+            View base = view( s.getOriginalVector() );
+            if ( base == null ) { return null; }
+            int[] rows = SelectedVector.origToNewIndex( base.rows, s.getRows() );
+            int[] cols = SelectedVector.origToNewIndex( base.cols, s.getColumns() );
+            return new View( base.store, rows, cols );
+        }
+        return null;
+    }
+}
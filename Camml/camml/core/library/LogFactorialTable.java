@@ -0,0 +1,88 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Table of log factorials
+//
+
+// File: LogFactorialTable.java
+
+package camml.core.library;
+
+import cdms.core.FN.LogFactorial;
+
+/**
+ * LogFactorialTable holds LogFactorial.logFactorial(i) for every i up to the largest value
+ * requested so far (but below maxSize), so cost kernels can look up log factorials of counts
+ * as large as the number of rows without calculating them each time.  Larger values are
+ * calculated when required, see lookup(). <br>
+ *
+ * Values are taken from LogFactorial.logFactorial so costs are unchanged by using the table.
+ */
+public class LogFactorialTable
+{
+    /** The table never grows beyond this many entries (8MB). */
+    public static final int maxSize = 1 << 20;
+
+    /** Current table, replaced by a larger copy when required. */
+    private static volatile double[] table = new double[0];
+
+    /**
+     * Return a table t where t[i] == LogFactorial.logFactorial(i) for 0 <= i <= n, or for
+     * i < maxSize if n is larger.  Use lookup(t,i) for values which may be past the end.
+     */
+    public static double[] get( int n )
+    {
+        double[] t = table;
+        if ( n < t.length || t.length == maxSize ) { return t; }
+        synchronized ( LogFactorialTable.class ) {
+            t = table;
+            if ( n < t.length || t.length == maxSize ) { return t; }
+            // Grow geometrically so repeated small increases are cheap.
+            int size = (int)Math.min( maxSize, Math.max( n + 1L, 2L * t.length ) );
+            double[] bigger = new double[size];
+            System.arraycopy( t, 0, bigger, 0, t.length );
+            for ( int i = t.length; i < size; i++ ) { bigger[i] = LogFactorial.logFactorial(i); }
+            table = bigger;
+            return bigger;
+        }
+    }
+
+    /** Return LogFactorial.logFactorial(i), using t (as returned by get()) if it holds i. */
+    public static double lookup( double[] t, int i )
+    {
+        return (i < t.length) ? t[i] : LogFactorial.logFactorial(i);
+    }
+
+    /** Return LogFactorial.logFactorial(n) */
+    public static double logFactorial( int n )
+    {
+        return lookup( get(n), n );
+    }
+}
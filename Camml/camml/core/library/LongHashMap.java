@@ -0,0 +1,194 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Open addressing hash map using primitive long keys.
+//
+
+// File: LongHashMap.java
+
+package camml.core.library;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * LongHashMap is a hash map from primitive long keys to (non null) values. <br>
+ * Keys are stored in a long[] using open addressing with linear probing, so no key objects
+ * are allocated by get() or put().  The map is not synchronized and entries cannot be removed
+ * (except by clear()). <br>
+ * 
+ * Entries may be iterated over without copying them, either using the Iterable interface or
+ * by looping over slots from 0 to capacity()-1 using keyAt() and valueAt() (valueAt() returns
+ * null for empty slots).
+ */
+public class LongHashMap<V> implements Iterable<V>, Serializable
+{
+    /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+    private static final long serialVersionUID = -5327750843092468437L;
+
+    /** Keys of each slot. */
+    private long[] keys;
+    
+    /** Values of each slot, null for empty slots. */
+    private Object[] values;
+    
+    /** Number of entries in map. */
+    private int size;
+    
+    /** keys.length - 1, keys.length is always a power of 2 */
+    private int mask;
+    
+    /** Create an empty map */
+    public LongHashMap() { this(16); }
+    
+    /** Create an empty map able to hold expectedSize entries without resizing. */
+    public LongHashMap( int expectedSize )
+    {
+        int capacity = 16;
+        while ( capacity < expectedSize * 2 && capacity < (1 << 30) ) { capacity <<= 1; }
+        allocate( capacity );
+    }
+    
+    /** Allocate empty arrays of the given capacity. */
+    private void allocate( int capacity )
+    {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+    
+    /** Spread the bits of key to choose a home slot. */
+    private int slot( long key )
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+    
+    /** Number of entries in map */
+    public int size() { return size; }
+    
+    /** Return true if map is empty */
+    public boolean isEmpty() { return size == 0; }
+    
+    /** Number of slots in map. */
+    public int capacity() { return keys.length; }
+    
+    /** Return key stored in slot i, only valid if valueAt(i) is not null. */
+    public long keyAt( int i ) { return keys[i]; }
+    
+    /** Return value stored in slot i, or null if slot i is empty. */
+    @SuppressWarnings("unchecked")
+    public V valueAt( int i ) { return (V)values[i]; }
+    
+    /** Return value associated with key, or null if key is not present. */
+    @SuppressWarnings("unchecked")
+    public V get( long key )
+    {
+        for ( int i = slot(key); values[i] != null; i = (i + 1) & mask ) {
+            if ( keys[i] == key ) { return (V)values[i]; }
+        }
+        return null;
+    }
+    
+    /** Return true if key is present */
+    public boolean containsKey( long key ) { return get(key) != null; }
+    
+    /** Associate value with key, returning the previous value (or null). */
+    @SuppressWarnings("unchecked")
+    public V put( long key, V value )
+    {
+        if ( value == null ) { throw new IllegalArgumentException("null values not allowed"); }
+        
+        int i = slot(key);
+        for ( ; values[i] != null; i = (i + 1) & mask ) {
+            if ( keys[i] == key ) {
+                V old = (V)values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        size ++;
+        
+        // Keep load factor below 0.5
+        if ( size * 2 > keys.length ) { resize( keys.length * 2 ); }
+        return null;
+    }
+    
+    /** Reinsert all entries into a table of the given capacity */
+    private void resize( int capacity )
+    {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate( capacity );
+        for ( int j = 0; j < oldKeys.length; j++ ) {
+            if ( oldValues[j] != null ) {
+                int i = slot( oldKeys[j] );
+                while ( values[i] != null ) { i = (i + 1) & mask; }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+    
+    /** Remove all entries. */
+    public void clear()
+    {
+        java.util.Arrays.fill( values, null );
+        size = 0;
+    }
+    
+    /** Iterate over all values in the map (in no particular order) */
+    public Iterator<V> iterator()
+    {
+        return new Iterator<V>() {
+            int next = advance(0);
+            
+            private int advance( int i ) {
+                while ( i < values.length && values[i] == null ) { i++; }
+                return i;
+            }
+            
+            public boolean hasNext() { return next < values.length; }
+            
+            @SuppressWarnings("unchecked")
+            public V next() {
+                if ( next >= values.length ) { throw new NoSuchElementException(); }
+                V v = (V)values[next];
+                next = advance( next + 1 );
+                return v;
+            }
+            
+            public void remove() { throw new UnsupportedOperationException(); }
+        };
+    }
+}
@@ -79,6 +79,12 @@ public class SelectedVector extends Value.Vector
         return column;
     }
     
+    /** Accesor for originalVector */
+    public Value.Vector getOriginalVector() 
+    {
+        return originalVector;
+    }
+    
     /** Number of cmpnts if a multiCol vector */
     protected final int numCmpnts;
     
@@ -0,0 +1,189 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Run a list of independent tasks on a limited number of threads.
+//
+
+// File: WorkerPool.java
+
+package camml.core.library;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * WorkerPool runs a list of independent tasks to completion and returns their results in the
+ * order the tasks were submitted.  This is used where CaMML splits a fixed amount of work
+ * (sampling chains, anneal restarts, rows of a KL matrix, ...) over several threads, and
+ * (through runShared) where a learner splits each costing over several threads. <br>
+ * <br>
+ * Worker threads are daemon threads so a failed search never holds the JVM open.  If any task
+ * throws an exception the remaining tasks are cancelled and the exception is rethrown as a
+ * RuntimeException in the calling thread.
+ */
+public class WorkerPool
+{
+    /** Static class, never instantiated. */
+    private WorkerPool() {}
+
+    /** Number of threads to use when the caller asks for "all available" (ie. numThreads <= 0) */
+    public static int defaultNumThreads() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+    
+    /** Run all tasks using at most numThreads threads and return the results in task order.
+     *  If numThreads <= 0 one thread per available processor is used.  If only a single thread
+     *  is required tasks are run in the calling thread. */
+    public static <T> List<T> runAll( List<? extends Callable<T>> tasks, int numThreads )
+    {
+        if ( numThreads <= 0 ) { numThreads = defaultNumThreads(); }
+        if ( numThreads > tasks.size() ) { numThreads = tasks.size(); }
+        
+        List<T> results = new ArrayList<T>( tasks.size() );
+        
+        // Shortcut, no point creating threads to run a single task at a time.
+        if ( numThreads <= 1 ) {
+            for ( Callable<T> task : tasks ) {
+                try { results.add( task.call() ); }
+                catch ( RuntimeException e ) { throw e; }
+                catch ( Exception e ) { throw new RuntimeException( e ); }
+            }
+            return results;
+        }
+        
+        ExecutorService pool = Executors.newFixedThreadPool( numThreads, daemonThreadFactory );
+        try {
+            List<Future<T>> futures = new ArrayList<Future<T>>( tasks.size() );
+            for ( Callable<T> task : tasks ) { futures.add( pool.submit( task ) ); }
+            
+            for ( Future<T> future : futures ) {
+                try { results.add( future.get() ); }
+                catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException( "Interrupted waiting for worker thread", e );
+                }
+                catch ( ExecutionException e ) {
+                    Throwable cause = e.getCause();
+                    if ( cause instanceof RuntimeException ) { throw (RuntimeException)cause; }
+                    if ( cause instanceof Error ) { throw (Error)cause; }
+                    throw new RuntimeException( cause );
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
+    
+    /** Pool shared by all calls to runShared, created when first needed. */
+    private static ExecutorService sharedPool = null;
+    
+    /** Return the pool shared by all calls to runShared, creating it if required. */
+    private static synchronized ExecutorService getSharedPool()
+    {
+        if ( sharedPool == null ) { 
+            sharedPool = Executors.newCachedThreadPool( daemonThreadFactory ); 
+        }
+        return sharedPool;
+    }
+    
+    /** 
+     * As runAll, for small batches of tasks run many times over (eg. once per node costed)
+     * where creating a pool for each batch would cost more than the threads save.  Threads are
+     * taken from a long lived shared pool (idle threads exit after a minute) and the calling 
+     * thread runs tasks as well, so at most numThreads tasks run at once and a task may call
+     * runShared itself without waiting on a thread held by its caller.  If a task throws an
+     * exception no further tasks are started and the exception is rethrown once running tasks
+     * have finished.
+     */
+    public static <T> List<T> runShared( final List<? extends Callable<T>> tasks, int numThreads )
+    {
+        if ( numThreads <= 0 ) { numThreads = defaultNumThreads(); }
+        if ( numThreads > tasks.size() ) { numThreads = tasks.size(); }
+        if ( numThreads <= 1 ) { return runAll( tasks, 1 ); }
+        
+        final List<T> results = new ArrayList<T>( Collections.nCopies( tasks.size(), (T)null ) );
+        final AtomicInteger nextTask = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Runnable worker = new Runnable() {
+                public void run() {
+                    while ( failure.get() == null ) {
+                        int i = nextTask.getAndIncrement();
+                        if ( i >= results.size() ) { break; }
+                        try { results.set( i, tasks.get(i).call() ); }
+                        catch ( Throwable t ) { failure.compareAndSet( null, t ); }
+                    }
+                }
+            };
+        
+        ExecutorService pool = getSharedPool();
+        List<Future<?>> helpers = new ArrayList<Future<?>>( numThreads - 1 );
+        for ( int i = 1; i < numThreads; i++ ) { helpers.add( pool.submit( worker ) ); }
+        worker.run();
+        
+        // Helpers must finish before results are returned, so wait through interrupts.
+        boolean interrupted = false;
+        for ( Future<?> helper : helpers ) {
+            while ( true ) {
+                try { helper.get(); break; }
+                catch ( InterruptedException e ) { interrupted = true; }
+                catch ( ExecutionException e ) { failure.compareAndSet( null, e.getCause() ); break; }
+            }
+        }
+        if ( interrupted ) { Thread.currentThread().interrupt(); }
+        
+        Throwable cause = failure.get();
+        if ( cause != null ) {
+            if ( cause instanceof RuntimeException ) { throw (RuntimeException)cause; }
+            if ( cause instanceof Error ) { throw (Error)cause; }
+            throw new RuntimeException( cause );
+        }
+        return results;
+    }
+    
+    /** Creates daemon threads named "camml-worker-N" */
+    private static final ThreadFactory daemonThreadFactory = new ThreadFactory() {
+            private int threadNum = 0;
+            public synchronized Thread newThread( Runnable r ) {
+                Thread t = new Thread( r, "camml-worker-" + (threadNum++) );
+                t.setDaemon( true );
+                return t;
+            }
+        };
+}
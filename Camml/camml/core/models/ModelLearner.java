@@ -190,6 +190,16 @@ public interface ModelLearner extends java.io.Serializable
         
         /** toString() returns "ModelLearner" by default. */
         public String toString() { return getName(); }        
+        
+        /** 
+         * Return learner.getLearnerKey() if learner is a KeyedLearner, otherwise null as the
+         * learner can not be identified.
+         */
+        public static String keyOf( ModelLearner learner )
+        {
+            if ( !(learner instanceof KeyedLearner) ) { return null; }
+            return ((KeyedLearner)learner).getLearnerKey();
+        }
     }
     
     
@@ -212,5 +222,74 @@ public interface ModelLearner extends java.io.Serializable
         public int getNumParams( Value params );
     }
     
+    /**
+     * A ModelLearner implementing CountLearner can parameterize and cost a discrete variable
+     * directly from the number of times each value occurs.  This gives the same result as
+     * sParameterizeAndCost on the equivalent sufficient statistics without creating Values.
+     */
+    public interface CountLearner {
+        public double countParameterizeAndCost( int[] counts );
+        
+        /** 
+         * Return the sum of countParameterizeAndCost over every column tally[.][j] (a CPT
+         * tally as returned by CPT.getSufficientArray) without copying columns.
+         */
+        public double tallyCost( int[][] tally );
+    }
+
+    /**
+     * A ModelLearner implementing TallyLearner costs data from a table of counts which depends
+     * only on the data, so one table may be shared by several TallyLearners.  This lets a node
+     * be costed by MML and ML learners with a single pass over the data.
+     */
+    public interface TallyLearner {
+        /** Return true if this learner is currently able to cost from a tally. */
+        public boolean costsFromTally();
+        
+        /** Return the tally of x given z used by tallyParameterizeAndCost */
+        public int[][] getTally( Value.Vector x, Value.Vector z ) throws LearnerException;
+        
+        /** Return parameterizeAndCost(i,x,z) using a tally from getTally(x,z) */
+        public double tallyParameterizeAndCost( Value.Vector x, Value.Vector z, int[][] tally )
+            throws LearnerException;
+    }
+    
+    /**
+     * A ModelLearner implementing BoundedLearner can cheaply bound the cost returned by
+     * parameterizeAndCost from below.  This allows a learner which cannot beat a cost already
+     * found to be skipped.
+     */
+    public interface BoundedLearner {
+        /**
+         * Return a lower bound on parameterizeAndCost(i,x,z).  mlCost is the negative log
+         * likelihood of x under the maximum likelihood CPT of x given z, which no model of x
+         * given z can improve upon.  Return Double.NEGATIVE_INFINITY if no bound is known.
+         */
+        public double costLowerBound( Value.Vector x, Value.Vector z, double mlCost );
+    }
+    
+    /**
+     * A ModelLearner implementing KeyedLearner can return a key identifying its class and every
+     * setting which changes the costs it returns.  Learners with equal keys return equal costs,
+     * so costs learned by one may be stored and reused by another (see NodeCostStore).
+     */
+    public interface KeyedLearner {
+        /** Return the key of this learner, or null if it can not currently be identified. */
+        public String getLearnerKey();
+    }
+    
+    /**
+     * A ModelLearner implementing CopyableLearner has settings which change how it runs (eg. 
+     * the number of threads it uses) but not the costs it returns.  Static learners are shared
+     * by every search, so a search changes these settings on a copy of the learner instead.
+     */
+    public interface CopyableLearner {
+        /** 
+         * Return a learner returning the same costs as this one, with the same settings, 
+         * whose settings can be changed without changing those of this learner.
+         */
+        public ModelLearner copyLearner();
+    }
+    
 }
 
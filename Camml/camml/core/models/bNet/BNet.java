@@ -423,6 +423,25 @@ public abstract class BNet extends Value.Model
     }
 
 
+    /**
+     * Return logP of each case in x given parameters y when all inputs are missing.
+     * Equivalent to calling noInputLogP for each element of x.
+     */
+    public double[] noInputLogPArray( Value.Vector x, Value y )
+    {
+        int[][] parentList = makeParentList( (Value.Vector)y );
+        int[] order = makeConsistantOrdering( parentList );
+        Value.Model[] subModelList = makeSubModelList( (Value.Vector)y );
+        Value[] subModelParamList = makeSubParamList( (Value.Vector)y );
+        
+        double[] logP = new double[ x.length() ];
+        for ( int i = 0; i < logP.length; i++ ) {
+            logP[i] = noInputLogP( (Value.Structured)x.elt(i), subModelList, subModelParamList,
+                                   order, parentList );
+        }
+        return logP;
+    }
+
     /** return logP for a case where input is entirely unobserved */
     public double noInputLogP( Value.Structured x,
                                Value.Model[] subModel,
@@ -942,7 +961,7 @@ public abstract class BNet extends Value.Model
     }
 
     /** Calculate (discrete) probabily distribution over variable n given y and z */
-    private double[] subLogP( Value.Vector y, Value.Structured z, int n) {
+    double[] subLogP( Value.Vector y, Value.Structured z, int n) {
         Value.Structured subParams = (Value.Structured)y.elt(n);
         Value.Vector parentVec = (Value.Vector)subParams.cmpnt(1);
         Value.Structured subSubParams = (Value.Structured)subParams.cmpnt(2);
@@ -1175,18 +1194,60 @@ public abstract class BNet extends Value.Model
     /** Flag is warning has been printed in kl() */
     private static boolean klWarningPrinted = false;
 
-    /** Calculate KL distance exactly if k <= 30, or stochastically if k > 30. */
+    /** 
+     * FamilyMarginalKL engine built for params1, or a null engine if exact KL is infeasible
+     * for params1.  Never modified, so it may be shared between threads.
+     */
+    private static final class FamilyKLCache {
+        final Value.Vector params1;
+        final FamilyMarginalKL engine;
+        FamilyKLCache( Value.Vector params1, FamilyMarginalKL engine ) {
+            this.params1 = params1; this.engine = engine;
+        }
+    }
+    
+    /** Engine used by the last call to klFamily() or kl() */
+    private transient volatile FamilyKLCache familyKLCache = null;
+
+    /**
+     * Calculate exact KL distance from family marginals of params1.  The marginals of
+     * params1 are cached so repeated calls with the same params1 share the work.
+     * FamilyMarginalKL is not thread safe, so calls sharing an engine are synchronized on it.
+     */
+    public double klFamily( Value.Vector params1, Value.Vector params2 ) {
+        FamilyKLCache c = familyKLCache;
+        if ( c == null || c.params1 != params1 || c.engine == null ) {
+            c = new FamilyKLCache( params1, new FamilyMarginalKL( this, params1 ) );
+            familyKLCache = c;
+        }
+        synchronized ( c.engine ) { return c.engine.kl( params2 ); }
+    }
+
+    /**
+     * Calculate KL distance exactly.  Networks with k <= 30 use klExact, larger networks use
+     * klFamily.  If exact calculation is not possible (continuous variables or very large
+     * intermediate factors) a stochastic approximation is used.
+     */
     public double kl( Value.Vector params1, Value.Vector params2 ) {
         if ( params1.length() <= 30) {
             return klExact(params1,params2);
         }
-        else {
-            if ( !klWarningPrinted ) {
-                System.out.println("WARNING: Using stochastic approximation to KL.");
-                klWarningPrinted = true;
+        
+        // Only try klFamily if it has not already failed for params1.
+        FamilyKLCache c = familyKLCache;
+        boolean infeasible = ( c != null && c.params1 == params1 && c.engine == null );
+        if ( !infeasible ) {
+            try {
+                return klFamily( params1, params2 );
+            } catch ( FamilyMarginalKL.InfeasibleException e ) {
+                familyKLCache = new FamilyKLCache( params1, null );
             }
-            return klStochastic(params1, params2);
         }
+        if ( !klWarningPrinted ) {
+            System.out.println("WARNING: Using stochastic approximation to KL.");
+            klWarningPrinted = true;
+        }
+        return klStochastic(params1, params2);
     }
 
     /** Calculate causal KL distance using uniform prior over interventions.  <br>
@@ -0,0 +1,395 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Exact KL distance using family marginals
+//
+
+// File: FamilyMarginalKL.java
+// Author: rodo@csse.monash.edu.au
+
+package camml.core.models.bNet;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+
+import camml.core.library.StructureFN;
+import cdms.core.Value;
+
+/**
+ * FamilyMarginalKL calculates exact KL distances from a fixed discrete network P. <br>
+ *
+ * KL(P||Q) = sum_i E_P[log P(x_i|pa^P_i)] - sum_i E_P[log Q(x_i|pa^Q_i)] <br>
+ *
+ * Each expectation only requires the marginal of P over a single family of Q, so the
+ * joint distribution is never enumerated.  Marginals are found by variable elimination
+ * over the ancestors of the family in P and are cached, so the cost is shared between
+ * all networks Q compared against the same P.  The entropy term is calculated once. <br>
+ *
+ * An InfeasibleException is thrown if the network has continuous variables or an intermediate
+ * factor would exceed maxFactorSize.
+ */
+public class FamilyMarginalKL
+{
+    /** Thrown when KL can not be calculated exactly, so an approximation should be used. */
+    public static class InfeasibleException extends RuntimeException {
+        /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+        private static final long serialVersionUID = 4415837281204962311L;
+        public InfeasibleException( String s ) { super(s); }
+    }
+
+    /** Default limit on the number of entries in any intermediate factor. */
+    public static final int defaultMaxFactorSize = 1 << 24;
+
+    /** Network used to evaluate local structures. */
+    protected final BNet bNet;
+
+    /** Parameters of P */
+    protected final Value.Vector paramsP;
+
+    /** Arity of each variable. */
+    protected final int[] arity;
+
+    /** Parents of each variable in P */
+    protected final int[][] parentsP;
+
+    /** Conditional probability table of each variable in P as a factor. */
+    protected final Factor[] cpt;
+
+    /** Limit on the number of entries in any intermediate factor. */
+    protected final int maxFactorSize;
+
+    /** Marginals of P indexed by the (sorted) set of variables they cover. */
+    protected final HashMap<BitSet,Factor> marginalCache = new HashMap<BitSet,Factor>();
+
+    /** sum_i E_P[log P(x_i|pa^P_i)], calculated when first required. */
+    private double entropyTerm = Double.NaN;
+
+    /** Create a KL engine for P with the default factor size limit. */
+    public FamilyMarginalKL( BNet bNet, Value.Vector paramsP ) {
+        this( bNet, paramsP, defaultMaxFactorSize );
+    }
+
+    /** Create a KL engine for P, building a factor for each CPT in P. */
+    public FamilyMarginalKL( BNet bNet, Value.Vector paramsP, int maxFactorSize ) {
+        this.bNet = bNet;
+        this.paramsP = paramsP;
+        this.maxFactorSize = maxFactorSize;
+        this.arity = bNet.getArity();
+        for ( int i = 0; i < arity.length; i++ ) {
+            if ( arity[i] <= 0 ) {
+                throw new InfeasibleException("Exact KL requires discrete variables.");
+            }
+        }
+
+        int n = arity.length;
+        parentsP = new int[n][];
+        cpt = new Factor[n];
+        int[] state = new int[n];
+        Value.Structured datum = new StructureFN.FastDiscreteStructure(bNet.dataType,state);
+        for ( int i = 0; i < n; i++ ) {
+            parentsP[i] = getParents( paramsP, i );
+
+            int[] vars = new int[parentsP[i].length+1];
+            System.arraycopy( parentsP[i], 0, vars, 0, parentsP[i].length );
+            vars[vars.length-1] = i;
+            java.util.Arrays.sort( vars );
+            Factor f = new Factor( vars );
+
+            // Enumerate parent combinations and copy P(x_i|pa_i) into the factor.
+            int[] paArity = new int[parentsP[i].length];
+            for ( int j = 0; j < paArity.length; j++ ) { paArity[j] = arity[parentsP[i][j]]; }
+            int[] paIndex = new int[paArity.length];
+            int combinations = f.table.length / arity[i];
+            for ( int c = 0; c < combinations; c++ ) {
+                for ( int j = 0; j < paIndex.length; j++ ) { state[parentsP[i][j]] = paIndex[j]; }
+                double[] logP = bNet.subLogP( paramsP, datum, i );
+                for ( int x = 0; x < arity[i]; x++ ) {
+                    state[i] = x;
+                    f.table[f.index(state)] = Math.exp( logP[x] );
+                }
+                BNet.incrementBitfield( paIndex, paArity );
+            }
+            cpt[i] = f;
+        }
+    }
+
+    /** Return KL(P||Q) */
+    public double kl( Value.Vector paramsQ ) {
+        if ( Double.isNaN(entropyTerm) ) {
+            double total = 0;
+            for ( int i = 0; i < arity.length; i++ ) {
+                total += expectedLogP( paramsP, i, parentsP[i] );
+            }
+            entropyTerm = total;
+        }
+
+        double cross = 0;
+        for ( int i = 0; i < arity.length; i++ ) {
+            cross += expectedLogP( paramsQ, i, getParents(paramsQ,i) );
+            if ( cross == Double.NEGATIVE_INFINITY ) { return Double.POSITIVE_INFINITY; }
+        }
+        return entropyTerm - cross;
+    }
+
+    /** Return the parents of variable i in params */
+    protected static int[] getParents( Value.Vector params, int i ) {
+        Value.Vector parentVec = (Value.Vector)((Value.Structured)params.elt(i)).cmpnt(1);
+        int[] parents = new int[parentVec.length()];
+        for ( int j = 0; j < parents.length; j++ ) { parents[j] = parentVec.intAt(j); }
+        return parents;
+    }
+
+    /**
+     * Return E_P[log Q(x_i|pa_i)] where Q is given by params and pa_i are the parents of
+     * i in Q.  Impossible events under P are ignored, so if Q gives zero probability to
+     * a possible event the result is negative infinity.
+     */
+    protected double expectedLogP( Value.Vector params, int i, int[] parents ) {
+        int n = arity.length;
+        BitSet family = new BitSet(n);
+        family.set(i);
+        for ( int j = 0; j < parents.length; j++ ) { family.set(parents[j]); }
+        Factor marginal = marginal( family );
+
+        int[] state = new int[n];
+        Value.Structured datum = new StructureFN.FastDiscreteStructure(bNet.dataType,state);
+        int[] paArity = new int[parents.length];
+        for ( int j = 0; j < paArity.length; j++ ) { paArity[j] = arity[parents[j]]; }
+        int[] paIndex = new int[paArity.length];
+        int combinations = marginal.table.length / arity[i];
+
+        double total = 0;
+        for ( int c = 0; c < combinations; c++ ) {
+            for ( int j = 0; j < paIndex.length; j++ ) { state[parents[j]] = paIndex[j]; }
+            state[i] = 0;
+            int base = marginal.index(state);
+            int stride = marginal.stride(i);
+
+            // Only evaluate Q when this parent combination is possible under P.
+            boolean possible = false;
+            for ( int x = 0; x < arity[i]; x++ ) {
+                if ( marginal.table[base + x*stride] > 0 ) { possible = true; break; }
+            }
+            if ( possible ) {
+                double[] logQ = bNet.subLogP( params, datum, i );
+                for ( int x = 0; x < arity[i]; x++ ) {
+                    double p = marginal.table[base + x*stride];
+                    if ( p > 0 ) {
+                        if ( logQ[x] == Double.NEGATIVE_INFINITY ) { return Double.NEGATIVE_INFINITY; }
+                        total += p * logQ[x];
+                    }
+                }
+            }
+            BNet.incrementBitfield( paIndex, paArity );
+        }
+        return total;
+    }
+
+    /**
+     * Return the marginal of P over vars.  Only ancestors of vars are relevant, so all
+     * other CPTs are dropped before eliminating variables in a greedy min-size order.
+     */
+    protected Factor marginal( BitSet vars ) {
+        Factor cached = marginalCache.get( vars );
+        if ( cached != null ) { return cached; }
+
+        // Find ancestors of vars in P
+        BitSet ancestors = (BitSet)vars.clone();
+        ArrayList<Integer> stack = new ArrayList<Integer>();
+        for ( int v = vars.nextSetBit(0); v >= 0; v = vars.nextSetBit(v+1) ) { stack.add(v); }
+        while ( !stack.isEmpty() ) {
+            int v = stack.remove( stack.size()-1 );
+            for ( int p : parentsP[v] ) {
+                if ( !ancestors.get(p) ) { ancestors.set(p); stack.add(p); }
+            }
+        }
+
+        ArrayList<Factor> factors = new ArrayList<Factor>();
+        for ( int v = ancestors.nextSetBit(0); v >= 0; v = ancestors.nextSetBit(v+1) ) {
+            factors.add( cpt[v] );
+        }
+
+        BitSet eliminate = (BitSet)ancestors.clone();
+        eliminate.andNot( vars );
+        while ( !eliminate.isEmpty() ) {
+            // Choose the variable producing the smallest intermediate factor.
+            int best = -1;
+            long bestSize = Long.MAX_VALUE;
+            for ( int v = eliminate.nextSetBit(0); v >= 0; v = eliminate.nextSetBit(v+1) ) {
+                BitSet scope = new BitSet();
+                for ( Factor f : factors ) { if ( f.contains(v) ) { scope.or( f.scope ); } }
+                long size = scopeSize( scope );
+                if ( size < bestSize ) { bestSize = size; best = v; }
+            }
+            if ( bestSize > maxFactorSize ) {
+                throw new InfeasibleException("Factor of size " + bestSize + " too large for exact KL.");
+            }
+
+            Factor product = null;
+            ArrayList<Factor> remaining = new ArrayList<Factor>();
+            for ( Factor f : factors ) {
+                if ( f.contains(best) ) { product = (product == null) ? f : product.multiply(f); }
+                else { remaining.add(f); }
+            }
+            remaining.add( product.sumOut(best) );
+            factors = remaining;
+            eliminate.clear(best);
+        }
+
+        if ( scopeSize(vars) > maxFactorSize ) {
+            throw new InfeasibleException("Factor of size " + scopeSize(vars) + " too large for exact KL.");
+        }
+        Factor result = factors.get(0);
+        for ( int j = 1; j < factors.size(); j++ ) { result = result.multiply( factors.get(j) ); }
+
+        marginalCache.put( (BitSet)vars.clone(), result );
+        return result;
+    }
+
+    /** Number of entries in a factor over scope. */
+    private long scopeSize( BitSet scope ) {
+        long size = 1;
+        for ( int v = scope.nextSetBit(0); v >= 0; v = scope.nextSetBit(v+1) ) {
+            size *= arity[v];
+            if ( size > Integer.MAX_VALUE ) { return Long.MAX_VALUE; }
+        }
+        return size;
+    }
+
+    /**
+     * A table over a sorted set of discrete variables.  The last variable varies fastest,
+     * matching BNet.incrementBitfield.
+     */
+    protected class Factor
+    {
+        /** Variables in ascending order. */
+        final int[] vars;
+
+        /** vars as a BitSet */
+        final BitSet scope;
+
+        /** stride of each variable in table */
+        final int[] strides;
+
+        /** Factor values */
+        final double[] table;
+
+        Factor( int[] vars ) {
+            this.vars = vars;
+            this.scope = new BitSet();
+            this.strides = new int[vars.length];
+            int size = 1;
+            for ( int j = vars.length-1; j >= 0; j-- ) {
+                scope.set( vars[j] );
+                strides[j] = size;
+                size *= arity[vars[j]];
+            }
+            this.table = new double[size];
+        }
+
+        boolean contains( int v ) { return scope.get(v); }
+
+        /** Return the stride of variable v, or 0 if v is not in this factor. */
+        int stride( int v ) {
+            int j = java.util.Arrays.binarySearch( vars, v );
+            return (j < 0) ? 0 : strides[j];
+        }
+
+        /** Index of the entry matching state (indexed by variable number). */
+        int index( int[] state ) {
+            int index = 0;
+            for ( int j = 0; j < vars.length; j++ ) { index += state[vars[j]] * strides[j]; }
+            return index;
+        }
+
+        /** Return the product of this and f */
+        Factor multiply( Factor f ) {
+            BitSet union = (BitSet)scope.clone();
+            union.or( f.scope );
+            Factor result = new Factor( toArray(union) );
+
+            // Walk the result table keeping track of the matching entries in this and f.
+            int[] a = new int[result.vars.length];
+            int[] s1 = new int[a.length];
+            int[] s2 = new int[a.length];
+            for ( int j = 0; j < a.length; j++ ) {
+                a[j] = arity[result.vars[j]];
+                s1[j] = stride( result.vars[j] );
+                s2[j] = f.stride( result.vars[j] );
+            }
+            int[] digit = new int[a.length];
+            int i1 = 0, i2 = 0;
+            for ( int k = 0; k < result.table.length; k++ ) {
+                result.table[k] = table[i1] * f.table[i2];
+                for ( int j = a.length-1; j >= 0; j-- ) {
+                    digit[j]++;
+                    i1 += s1[j];
+                    i2 += s2[j];
+                    if ( digit[j] != a[j] ) { break; }
+                    digit[j] = 0;
+                    i1 -= s1[j] * a[j];
+                    i2 -= s2[j] * a[j];
+                }
+            }
+            return result;
+        }
+
+        /** Return this factor with v summed out. */
+        Factor sumOut( int v ) {
+            BitSet rest = (BitSet)scope.clone();
+            rest.clear( v );
+            Factor result = new Factor( toArray(rest) );
+            int vStride = stride( v );
+            int vArity = arity[v];
+            // Entries of this factor are grouped as [outer][v][inner]
+            int inner = vStride;
+            int outer = table.length / (vStride * vArity);
+            for ( int o = 0; o < outer; o++ ) {
+                for ( int x = 0; x < vArity; x++ ) {
+                    int src = (o * vArity + x) * inner;
+                    int dst = o * inner;
+                    for ( int k = 0; k < inner; k++ ) {
+                        result.table[dst+k] += table[src+k];
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    /** Convert a BitSet into a sorted array of set bits. */
+    private static int[] toArray( BitSet bits ) {
+        int[] array = new int[bits.cardinality()];
+        int j = 0;
+        for ( int v = bits.nextSetBit(0); v >= 0; v = bits.nextSetBit(v+1) ) { array[j++] = v; }
+        return array;
+    }
+}
@@ -135,9 +135,18 @@ public class BDECPTLearner extends CPTLearner
         return totalCost;    
     }
 
+    /** Parameterize and cost from counts using BDE with ess shared between combinations. */
+    protected double countParameterizeAndCost( CPT cptModel, int[][] tally )
+    {
+        return new BDELearner(ess/cptModel.numCombinations).tallyCost( tally );
+    }
+
     /** return "CPTLearner(leafModelLearner)"*/
     public String toString() { return "CPTLearner("+leafModelLearner+")"; }
     
+    /** return "BDECPTLearner(ess)" as leafModelLearner is not used. */
+    public String getLearnerKey() { return "BDECPTLearner(" + ess + ")"; }
+    
     /** return "CPTLearner" */
     public String getName() { return "CPTLearner"; }    
     
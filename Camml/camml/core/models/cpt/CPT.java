@@ -39,6 +39,9 @@ package camml.core.models.cpt;
 import java.util.Random;
 
 import cdms.core.*;
+import camml.core.library.BitmapIndex;
+import camml.core.library.ContingencyCache;
+import camml.core.library.DiscreteColumnVector;
 import camml.core.library.SelectedVector;
 import camml.core.models.ModelLearner.GetNumParams;
 import camml.core.models.multinomial.MultinomialLearner.Multinomial2;
@@ -493,6 +496,10 @@ public class CPT extends Value.Model
             throw new RuntimeException("Vector lengths do not match in CPT.getSufficient.");
         }
         
+        // Count straight from primitive columns when x and z are views of the same store.
+        int[][] columnTally = getSufficientArrayFromColumns( x, z );
+        if ( columnTally != null ) { return columnTally; }
+        
         // Split up all data points relative to their parents.
         // decodedParant[i] == decodeParent( z.elt(i) )
         int[] decodedParent = decodeParentVector(z);
@@ -513,6 +520,56 @@ public class CPT extends Value.Model
     
     
     
+    /**
+     * Calculate getSufficientArray(x,z) directly from a DiscreteColumnVector if x and z are
+     * views of the same rows of one store, otherwise return null.
+     */
+    protected int[][] getSufficientArrayFromColumns( Value.Vector x, Value.Vector z )
+    {
+        DiscreteColumnVector.View xView = DiscreteColumnVector.view(x);
+        if ( xView == null || xView.cols.length != 1 ) { return null; }
+        DiscreteColumnVector.View zView = DiscreteColumnVector.view(z);
+        if ( zView == null || zView.store != xView.store || zView.cols.length != parentlwbs.length ) {
+            return null;
+        }
+        if ( xView.rows != zView.rows && !java.util.Arrays.equals(xView.rows,zView.rows) ) {
+            return null;
+        }
+        
+        DiscreteColumnVector store = xView.store;
+        Type.Discrete xType = (Type.Discrete)((Type.Model)t).dataSpace;
+        int arity = (int)xType.UPB - (int)xType.LWB + 1;
+        if ( store.getArity(xView.cols[0]) != arity ) { return null; }
+        
+        // Parent states in the store are relative to the store's lwb, not parentlwbs.
+        int[] offsets = new int[parentlwbs.length];
+        for ( int j = 0; j < offsets.length; j++ ) {
+            offsets[j] = store.getLWB(zView.cols[j]) - parentlwbs[j];
+            if ( store.getArity(zView.cols[j]) != parentupbs[j]-parentlwbs[j]+1 ) {
+                return null;
+            }
+        }
+        // Low arity counts over all rows are cheaper from bitmaps than from a row pass.
+        BitmapIndex bitmaps = store.getBitmapIndex();
+        if ( bitmaps != null && xView.rows == null && bitmaps.preferred(xView.cols[0],zView.cols) ) {
+            return bitmaps.tally( xView.cols[0], zView.cols, multipliers, offsets, numCombinations );
+        }
+        // Full data without offsets can be answered from cached contingency tables.
+        ContingencyCache cache = store.getContingencyCache();
+        if ( cache != null && xView.rows == null && allZero(offsets) ) {
+            return cache.tally( xView.cols[0], zView.cols, multipliers, numCombinations );
+        }
+        return store.tally( xView.cols[0], zView.cols, multipliers, offsets,
+                            xView.rows, numCombinations );
+    }
+    
+    /** Return true if every element of x is zero. */
+    private static boolean allZero( int[] x )
+    {
+        for ( int i = 0; i < x.length; i++ ) { if ( x[i] != 0 ) { return false; } }
+        return true;
+    }
+    
     /** logP(X_1|Y,Z_1) + logP(X_2|Y,Z_2) + ... where s is a sufficient statistic of X for Y.
         In this case, s is simply the vector x */
     public double logPSufficient(Value s, Value y)
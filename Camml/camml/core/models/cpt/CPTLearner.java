@@ -52,6 +52,7 @@ import camml.core.models.normal.NormalLearner;
  * leaf and should have a "shared space" (aka. parentSpace or z) of Value.TRIV
  */
 public class CPTLearner extends ModelLearner.DefaultImplementation
+    implements ModelLearner.TallyLearner, ModelLearner.BoundedLearner, ModelLearner.KeyedLearner
 {
     //////////////////////////////////////////////////////////////////////////////////////
     // Static instances of CPTLearner.  The four adaptiveCPTLearners use adaptive code. //
@@ -244,6 +245,9 @@ public class CPTLearner extends ModelLearner.DefaultImplementation
                     
         try {
             CPT cptModel = new CPT( childModel, lwbArray, upbArray );
+            if ( leafModelLearner instanceof CountLearner ) {
+                return countParameterizeAndCost( cptModel, cptModel.getSufficientArray(x,z) );
+            }
             Value sufficientStats = cptModel.getSufficient(x,z);
             return sParameterizeAndCost( cptModel, sufficientStats );
         }
@@ -270,9 +274,74 @@ public class CPTLearner extends ModelLearner.DefaultImplementation
         return totalCost;    
     }
 
+    /**
+     * Parameterize and cost from tally[x][parentCombination] (as returned by
+     * CPT.getSufficientArray) without creating Values.  leafModelLearner must be a CountLearner.
+     */
+    protected double countParameterizeAndCost( CPT cptModel, int[][] tally )
+    {
+        return ((CountLearner)leafModelLearner).tallyCost( tally );
+    }
+    
+    /** CPTLearner can share tallies if leafModelLearner is a CountLearner. */
+    public boolean costsFromTally()
+    {
+        return leafModelLearner instanceof CountLearner;
+    }
+    
+    /** Return tally[x][parentCombination] as calculated by CPT.getSufficientArray */
+    public int[][] getTally( Value.Vector x, Value.Vector z ) throws LearnerException
+    {
+        try { return makeCPT( x, z ).getSufficientArray( x, z ); }
+        catch ( CPT.ExcessiveCombinationsException e ) { throw new LearnerException( e ); }
+    }
+    
+    /** Parameterize and cost from a tally returned by getTally(x,z) */
+    public double tallyParameterizeAndCost( Value.Vector x, Value.Vector z, int[][] tally )
+        throws LearnerException
+    {
+        try { return countParameterizeAndCost( makeCPT( x, z ), tally ); }
+        catch ( CPT.ExcessiveCombinationsException e ) { throw new LearnerException( e ); }
+    }
+    
+    /**
+     * An adaptive code is a mixture over all parameter values, so each cell costs at least the
+     * cost of its data under the maximum likelihood parameters plus the cost of an empty cell.
+     */
+    public double costLowerBound( Value.Vector x, Value.Vector z, double mlCost )
+    {
+        if ( !(leafModelLearner instanceof AdaptiveCodeLearner) ) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        Type.Discrete xType = (Type.Discrete)((Type.Vector)x.t).elt;
+        double emptyCellCost = ((AdaptiveCodeLearner)leafModelLearner).
+            countParameterizeAndCost( new int[(int)xType.UPB - (int)xType.LWB + 1] );
+        
+        int[][] bounds = getBounds(z);
+        double numCombinations = 1;
+        for ( int i = 0; i < bounds[0].length; i++ ) {
+            numCombinations *= bounds[1][i] - bounds[0][i] + 1;
+        }
+        return mlCost + numCombinations * emptyCellCost;
+    }
+    
+    /** Create the CPT used to model x given z */
+    protected CPT makeCPT( Value.Vector x, Value.Vector z ) throws LearnerException
+    {
+        int[][] bounds = getBounds(z);
+        return new CPT( getChildModel(x,leafModelLearner), bounds[0], bounds[1] );
+    }
+    
     /** return "CPTLearner(leafModelLearner)"*/
     public String toString() { return "CPTLearner("+leafModelLearner+")"; }
     
+    /** return "CPTLearner(leafKey)", or null if leafModelLearner has no key. */
+    public String getLearnerKey() 
+    { 
+        String leafKey = keyOf( leafModelLearner );
+        return (leafKey == null) ? null : "CPTLearner(" + leafKey + ")";
+    }
+    
     /** return "CPTLearner" */
     public String getName() { return "CPTLearner"; }    
     
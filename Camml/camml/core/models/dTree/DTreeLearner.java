@@ -36,11 +36,18 @@
 
 package camml.core.models.dTree;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
 import cdms.core.*;
 import camml.core.models.ModelLearner;
+import camml.core.models.multinomial.AdaptiveCodeLearner;
 import camml.core.models.multinomial.MultinomialLearner;
 
 import camml.core.library.DTreeSelectedVector;
+import camml.core.library.WorkerPool;
 
 /**
  * DTreeLearner is a standard module for parameterizing and costing DTrees. <br>
@@ -53,6 +60,8 @@ import camml.core.library.DTreeSelectedVector;
  * leaf and must have a "shared space" (aka. parentSpace or z) of Value.TRIV
  */
 public class DTreeLearner extends ModelLearner.DefaultImplementation
+    implements ModelLearner.BoundedLearner, ModelLearner.KeyedLearner, 
+               ModelLearner.CopyableLearner
 {
     /** Serial ID required to evolve class while maintaining serialisation compatibility. */
     private static final long serialVersionUID = -9097992381856737052L;
@@ -254,126 +263,251 @@ public class DTreeLearner extends ModelLearner.DefaultImplementation
         return bestMSY;
     }
     
-    public boolean rootNodeFlag = false;
+    /** Number of threads used to evaluate the candidate splits of the root. (default == 1) */
+    protected int splitThreads = 1;
     
-    /** Parameterize and return (m,s,y) */
-    public double parameterizeAndCost( Value initialInfo, Value.Vector x, Value.Vector z )
-        throws LearnerException
+    /** Roots holding fewer rows than this evaluate their candidate splits serially. */
+    protected int minParallelRows = 1000;
+    
+    /** Set the number of threads used to evaluate the candidate splits of the root. */
+    public void setSplitThreads( int splitThreads ) { this.splitThreads = splitThreads; }
+    
+    /** Return the number of threads used to evaluate the candidate splits of the root. */
+    public int getSplitThreads() { return splitThreads; }
+    
+    /** Set the number of rows below which the root's candidate splits are evaluated serially. */
+    public void setMinParallelRows( int minParallelRows ) { this.minParallelRows = minParallelRows; }
+    
+    /** Return a DTreeLearner with the same leaf learner and settings. */
+    public ModelLearner copyLearner()
     {
-        if ( z.length() != z.length() ) {
-            throw new RuntimeException("Length mismatch in DTreeLearner.parameterize");
-        }
-        
-        boolean rootNode = false;
-        if ( rootNodeFlag == false ) {
-            rootNode = true;
-            rootNodeFlag = true;
-        }
-        
-        
-        double oneBit = Math.log(2);
+        DTreeLearner copy = new DTreeLearner( leafModelLearner );
+        copy.splitThreads = splitThreads;
+        copy.minParallelRows = minParallelRows;
+        return copy;
+    }
+    
+    /** Number of leaf costs reused instead of being recalculated. */
+    protected final AtomicLong leafCostReuses = new AtomicLong();
+    
+    /** Return the number of leaf costs reused instead of being recalculated. */
+    public long getLeafCostReuses() { return leafCostReuses.get(); }
+    
+    /** The data split upon a single variable, along with the cost of a leaf in each partition. */
+    protected static class Candidate
+    {
+        DTreeSelectedVector[] splitX;
+        DTreeSelectedVector[] splitZ;
+        /** cost of a leaf in each partition. */
+        double[] leafCost;
+        /** structure cost + cost of a leaf in each partition. */
+        double cost;
+    }
+    
+    /**
+     * State shared by all nodes of a single parameterizeAndCost call.  Only the partitions and
+     * leaf costs of the winning split of a node are kept, and are passed on when its subtrees
+     * are built.
+     */
+    protected class Learning
+    {
+        final Value initialInfo;
         
-        double bestCost = leafModelLearner.parameterizeAndCost(initialInfo,x,z) + oneBit;
-        int bestSplit = -1;
+        /** Cost of a leaf holding no rows, or NaN until it is first needed. */
+        volatile double emptyLeafCost = Double.NaN;
         
-        // Find the number of splits which must be tested from this node.
-        Type.Structured inputType = (Type.Structured)((Type.Vector)z.t).elt;
-        int numVars = inputType.cmpnts.length;
+        Learning( Value initialInfo ) { this.initialInfo = initialInfo; }
         
-        // if there are no variables to split on stating we don't split is redundant and inefficient
-        // we can remove the bit we used to state this before.
-        if ( numVars == 0 ) {
-            bestCost -= oneBit;
-        }
-        
-        if ( rootNode && numVars != 0 ) {
-            bestCost = Double.POSITIVE_INFINITY;
+        /** Cost of a leaf holding rows (x,z) */
+        double leafCost( Value.Vector x, Value.Vector z )
+            throws LearnerException
+        {
+            if ( x.length() != 0 ) {
+                return leafModelLearner.parameterizeAndCost( initialInfo, x, z );
+            }
+            double c = emptyLeafCost;
+            if ( Double.isNaN(c) ) {
+                c = leafModelLearner.parameterizeAndCost( initialInfo, x, z );
+                emptyLeafCost = c;
+            }
+            else { leafCostReuses.incrementAndGet(); }
+            return c;
         }
         
-        for ( int i = 0; i < numVars; i++ ) {
-            // Split the input & output vector into splitZ[] and splitZ[] respectively.
-            DTreeSelectedVector[] splitZ = DTreeSelectedVector.d_splitVector( z, i, true );
-            DTreeSelectedVector[] splitX = new DTreeSelectedVector[splitZ.length];
-            for ( int j = 0; j < splitZ.length; j++ ) {
-                splitX[j] = splitZ[j].d_copyRowSplit( x );
-            }
+        /** Split (x,z) on variable i and cost a leaf in each partition. */
+        Candidate split( Value.Vector x, Value.Vector z, int i, int numVars )
+            throws LearnerException
+        {
+            double oneBit = Math.log(2);
             
-            // number of splits = arity of data
-            //int arity = splitX.length;
+            Candidate c = new Candidate();
+            c.splitZ = DTreeSelectedVector.d_splitVector( z, i, true );
+            c.splitX = new DTreeSelectedVector[c.splitZ.length];
+            c.leafCost = new double[c.splitZ.length];
+            for ( int j = 0; j < c.splitZ.length; j++ ) {
+                c.splitX[j] = c.splitZ[j].d_copyRowSplit( x );
+            }
             
             // structure cost = log(numVars) + 1 see WallacePatrick.
             // 1 bit to state this is a split node, log(numVars) to state what is being split upon.
             double structureCost =  Math.log(numVars) + oneBit;
             
-            // Find total cost (& parameters) of stating all subtrees.
+            // Find total cost of stating all subtrees as leaves.
             double subTreeCost = 0;
-            for ( int j = 0; j < splitX.length; j++ ) {
+            for ( int j = 0; j < c.splitX.length; j++ ) {
                 // add cost for each leaf +1 for each node to state structure.
-                subTreeCost += 
-                    leafModelLearner.parameterizeAndCost( initialInfo, splitX[j], splitZ[j] ) + oneBit;
+                c.leafCost[j] = leafCost( c.splitX[j], c.splitZ[j] );
+                subTreeCost += c.leafCost[j] + oneBit;
             }
             
-            double totalCost = structureCost + subTreeCost;
-            
-            if ( totalCost < bestCost ) {
-                bestCost = totalCost;
-                bestSplit = i;
-            }
-        }        
+            c.cost = structureCost + subTreeCost;
+            return c;
+        }
         
-        // if a good split was found.
-        if ( bestSplit != -1) {
-            DTreeSelectedVector[] splitZ = DTreeSelectedVector.d_splitVector( z, bestSplit, true );
-            DTreeSelectedVector[] splitX = new DTreeSelectedVector[splitZ.length];
-            for ( int j = 0; j < splitZ.length; j++ ) {
-                splitX[j] = splitZ[j].d_copyRowSplit( x );
+        /**
+         * Split (x,z) on every variable.  Only the splits of the root are evaluated in 
+         * parallel, using up to splitThreads threads of the pool shared by WorkerPool.runShared.
+         */
+        Candidate[] splitAll( final Value.Vector x, final Value.Vector z, final int numVars,
+                              boolean rootNode )
+            throws LearnerException
+        {
+            Candidate[] candidate = new Candidate[numVars];
+            if ( rootNode && splitThreads > 1 && numVars > 1 && x.length() >= minParallelRows ) {
+                List<Callable<Candidate>> tasks = new ArrayList<Callable<Candidate>>();
+                for ( int i = 0; i < numVars; i++ ) {
+                    final int var = i;
+                    tasks.add( new Callable<Candidate>() {
+                            public Candidate call() throws LearnerException {
+                                return split( x, z, var, numVars );
+                            }
+                        } );
+                }
+                try {
+                    WorkerPool.runShared( tasks, splitThreads ).toArray( candidate );
+                } catch ( RuntimeException e ) {
+                    if ( e.getCause() instanceof LearnerException ) {
+                        throw (LearnerException)e.getCause();
+                    }
+                    throw e;
+                }
             }
+            else {
+                for ( int i = 0; i < numVars; i++ ) {
+                    candidate[i] = split( x, z, i, numVars );
+                }
+            }
+            return candidate;
+        }
+        
+        /**
+         * Cost of the best tree for (x,z) splitting on numVars variables.  leafCost is the
+         * cost of a leaf holding (x,z), or NaN if it is not known yet.  The root node is
+         * always split if a split is available.
+         */
+        double treeCost( Value.Vector x, Value.Vector z, int numVars, double leafCost,
+                         boolean rootNode )
+            throws LearnerException
+        {
+            double oneBit = Math.log(2);
             
-            // number of splits = arity of data
-            //int arity = splitX.length;
+            if ( Double.isNaN(leafCost) ) { leafCost = leafCost( x, z ); }
+            else { leafCostReuses.incrementAndGet(); }
+            double bestCost = leafCost + oneBit;
             
-            // Now we recurse deeper to find thr true best cost/parameters.
-            // structure cost = log(numVars) + log(arity) see WallacePatrick.
-            double structureCost =  Math.log(numVars) + oneBit;
+            // if there are no variables to split on stating we don't split is redundant and
+            // inefficient we can remove the bit we used to state this before.
+            if ( numVars == 0 ) {
+                bestCost -= oneBit;
+            }
             
-            // Find total cost (& parameters) of stating all subtrees.
-            double subTreeCost = 0;
-            //Value.Structured[] msy = new Value.Structured[ arity ];
-            for ( int j = 0; j < splitX.length; j++ ) {
-                // ??? do I need to add oneBit to this?
-                subTreeCost += parameterizeAndCost(initialInfo, splitX[j], splitZ[j]);
+            if ( rootNode && numVars != 0 ) {
+                bestCost = Double.POSITIVE_INFINITY;
             }
             
-            bestCost = structureCost + subTreeCost;        
-        }
-        
-        if ( rootNode == true ) {
-            rootNodeFlag = false;
-            if (bestSplit == -1 ) {
-                //             System.out.println("bestSplit = " + bestSplit + "\tbestCost = " + bestCost 
-                //                         + "\tnumParents = " + numVars );
-                emptyTrees[numVars]++;
-                totalEmptyTrees ++;
+            Candidate[] candidate = splitAll( x, z, numVars, rootNode );
+            int bestSplit = -1;
+            for ( int i = 0; i < numVars; i++ ) {
+                if ( candidate[i].cost < bestCost ) {
+                    bestCost = candidate[i].cost;
+                    bestSplit = i;
+                }
+            }
+            
+            // if a good split was found recurse deeper to find the true best cost, reusing
+            // the partitions and leaf costs of the winning split.
+            if ( bestSplit != -1 ) {
+                Candidate best = candidate[bestSplit];
+                candidate = null;
                 
-                if ( totalEmptyTrees % 1000 == 0 ) { 
-                    System.out.println("empty Trees : " + totalEmptyTrees );
-                    for ( int i = 0; i < emptyTrees.length; i++ ) {
-                        System.out.print("" + emptyTrees[i] + "\t");
-                    }
-                    System.out.println();
+                // structure cost = log(numVars) + log(arity) see WallacePatrick.
+                double structureCost =  Math.log(numVars) + oneBit;
+                
+                // Find total cost of stating all subtrees.
+                double subTreeCost = 0;
+                for ( int j = 0; j < best.splitX.length; j++ ) {
+                    subTreeCost += treeCost( best.splitX[j], best.splitZ[j], numVars-1,
+                                             best.leafCost[j], false );
+                    best.splitX[j] = null;
+                    best.splitZ[j] = null;
                 }
+                
+                bestCost = structureCost + subTreeCost;
             }
+            
+            return bestCost;
+        }
+    }
+    
+    /**
+     * Parameterize and return cost.  Candidate splits of the root are evaluated in parallel
+     * when splitThreads > 1, and the partitions of the winning split of each node are reused
+     * when building its subtrees.
+     */
+    public double parameterizeAndCost( Value initialInfo, Value.Vector x, Value.Vector z )
+        throws LearnerException
+    {
+        if ( z.length() != z.length() ) {
+            throw new RuntimeException("Length mismatch in DTreeLearner.parameterize");
         }
-        //     else {
-        //         System.out.println("nonRoot bestSplit = " + bestSplit + "\tnumVars = " + numVars);
-        //     }
         
-        return bestCost;
+        // Find the number of splits which must be tested from the root node.
+        Type.Structured inputType = (Type.Structured)((Type.Vector)z.t).elt;
+        int numVars = inputType.cmpnts.length;
+        
+        return new Learning( initialInfo ).treeCost( x, z, numVars, Double.NaN, true );
     }
     
     
-    int[] emptyTrees = new int[11];
-    int totalEmptyTrees = 0;
+    /**
+     * Lower bound on the cost of a tree with adaptive code leaves.  Each leaf costs at least its
+     * maximum likelihood cost plus the cost of an empty leaf, and the ML costs sum to at least
+     * mlCost.  The root is always split, which costs log(numVars) + 1 bits and gives at least
+     * minArity subtrees, each costing a bit to state when it may be split further.
+     */
+    public double costLowerBound( Value.Vector x, Value.Vector z, double mlCost )
+    {
+        if ( !(leafModelLearner instanceof AdaptiveCodeLearner) ) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        Type.Discrete xType = (Type.Discrete)((Type.Vector)x.t).elt;
+        double emptyLeafCost = ((AdaptiveCodeLearner)leafModelLearner).
+            countParameterizeAndCost( new int[(int)xType.UPB - (int)xType.LWB + 1] );
+        
+        Type[] inputType = ((Type.Structured)((Type.Vector)z.t).elt).cmpnts;
+        int numVars = inputType.length;
+        if ( numVars == 0 ) { return mlCost + emptyLeafCost; }
+        
+        double oneBit = Math.log(2);
+        int minArity = Integer.MAX_VALUE;
+        for ( int i = 0; i < numVars; i++ ) {
+            int arity = (int)((Type.Discrete)inputType[i]).UPB - 
+                (int)((Type.Discrete)inputType[i]).LWB + 1;
+            if ( arity < minArity ) { minArity = arity; }
+        }
+        double subTreeCost = emptyLeafCost + ((numVars > 1) ? oneBit : 0);
+        return mlCost + Math.log(numVars) + oneBit + minArity * subTreeCost;
+    }
     
     /** Parameterize and return (m,s,y) */
     public Value.Structured sParameterize( Value.Model model, Value s )
@@ -423,5 +557,12 @@ public class DTreeLearner extends ModelLearner.DefaultImplementation
     }
     
     public String toString() { return "DTreeLearner("+leafModelLearner+")"; }    
+    
+    /** return "DTreeLearner(leafKey)", or null if leafModelLearner has no key. */
+    public String getLearnerKey() 
+    { 
+        String leafKey = keyOf( leafModelLearner );
+        return (leafKey == null) ? null : "DTreeLearner(" + leafKey + ")";
+    }
 }
 
@@ -36,14 +36,19 @@
 
 package camml.core.models.dTree;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 import cdms.core.*;
 import camml.core.models.FunctionStruct;
 import camml.core.models.ModelLearner;
 import camml.core.library.DTreeSelectedVector;
 import camml.core.library.Library;
+import camml.core.library.LogFactorialTable;
 import camml.core.library.SelectedVector;
+import camml.core.library.WorkerPool;
 import camml.core.models.multinomial.AdaptiveCodeLearner;
 
 /**
@@ -64,7 +69,9 @@ import camml.core.models.multinomial.AdaptiveCodeLearner;
  * used. We subtract the probability of expressing a tree with less than N
  * splits where N is the number of inputs.
  */
-public class ForcedSplitDTreeLearner extends ModelLearner.DefaultImplementation {
+public class ForcedSplitDTreeLearner extends ModelLearner.DefaultImplementation
+    implements ModelLearner.BoundedLearner, ModelLearner.KeyedLearner,
+               ModelLearner.CopyableLearner {
     //    double parentUsedPrior = 0.9;
     
     /** Serial ID required to evolve class while maintaining serialisation compatibility. */
@@ -86,6 +93,29 @@ public class ForcedSplitDTreeLearner extends ModelLearner.DefaultImplementation
     /** ModelLearner used to cost leaves of the tree. */
     ModelLearner leafLearner;
     
+    /** Number of threads used to evaluate the candidate splits of the root. (default == 1) */
+    protected int splitThreads = 1;
+    
+    /** Roots holding fewer rows than this evaluate their candidate splits serially. */
+    protected int minParallelRows = 1000;
+    
+    /** Set the number of threads used to evaluate the candidate splits of the root. */
+    public void setSplitThreads(int splitThreads) { this.splitThreads = splitThreads; }
+    
+    /** Return the number of threads used to evaluate the candidate splits of the root. */
+    public int getSplitThreads() { return splitThreads; }
+    
+    /** Set the number of rows below which the root's candidate splits are evaluated serially. */
+    public void setMinParallelRows(int minParallelRows) { this.minParallelRows = minParallelRows; }
+    
+    /** Return a ForcedSplitDTreeLearner with the same leaf learner and settings. */
+    public ModelLearner copyLearner() {
+        ForcedSplitDTreeLearner copy = new ForcedSplitDTreeLearner(leafLearner);
+        copy.splitThreads = splitThreads;
+        copy.minParallelRows = minParallelRows;
+        return copy;
+    }
+    
     /**
      * Default constructor same as
      * ForcedSplitDTreeLearner(MultinomialLearner.multinomialLearner)
@@ -167,8 +197,7 @@ public class ForcedSplitDTreeLearner extends ModelLearner.DefaultImplementation
             }
             
             if (bestCost < leafCost) {
-                Split split = new Split(leaf);
-                split.setSplit(bestIndex);
+                Split split = leaf.takeSplit(bestIndex);
                 splitUsed[bestIndex] = true;
                 for (int j = 0; j < split.splitArray.length; j++) {
                     leafList.add(split.splitArray[j]);
@@ -217,8 +246,7 @@ public class ForcedSplitDTreeLearner extends ModelLearner.DefaultImplementation
             // we do NOT check to see if there is a cost improvement. We must
             // accept this split
             // even if the costing says not to.
-            Split split = new Split(bestLeaf);
-            split.setSplit(bestIndex);
+            Split split = bestLeaf.takeSplit(bestIndex);
             splitUsed[bestIndex] = true;
             for (int j = 0; j < split.splitArray.length; j++) {
                 leafList.add(split.splitArray[j]);
@@ -243,6 +271,32 @@ public class ForcedSplitDTreeLearner extends ModelLearner.DefaultImplementation
         
     }
 
+    /**
+     * Lower bound on the cost of a tree with adaptive code leaves.  Each leaf costs at least its
+     * maximum likelihood cost plus the cost of an empty leaf, and the ML costs sum to at least
+     * mlCost.  The tree must split on each of its N inputs, so it has at least 1 + sum(arity-1)
+     * leaves and N splits.  Ordered by depth the k'th input first split on has at most k
+     * ancestors, so stating which inputs are split on costs at least log(N!).
+     */
+    public double costLowerBound(Value.Vector x, Value.Vector z, double mlCost) {
+        if (!(leafLearner instanceof AdaptiveCodeLearner)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        Type.Discrete xType = (Type.Discrete) ((Type.Vector) x.t).elt;
+        double emptyLeafCost = ((AdaptiveCodeLearner) leafLearner)
+            .countParameterizeAndCost(new int[(int) xType.UPB - (int) xType.LWB + 1]);
+        
+        Type[] inputType = ((Type.Structured) ((Type.Vector) z.t).elt).cmpnts;
+        int numLeaves = 1;
+        for (int i = 0; i < inputType.length; i++) {
+            numLeaves += (int) ((Type.Discrete) inputType[i]).UPB
+                - (int) ((Type.Discrete) inputType[i]).LWB;
+        }
+        return mlCost + numLeaves * (emptyLeafCost + oneBit) + inputType.length * oneBit
+            + LogFactorialTable.logFactorial(inputType.length)
+            - calculateSaving(inputType, inputType.length);
+    }
+    
     /** Return true if array[] contains any false values. */
     boolean containsFalse(boolean[] array) {
         for (int i = 0; i < array.length; i++) {
@@ -309,63 +363,7 @@ public class ForcedSplitDTreeLearner extends ModelLearner.DefaultImplementation
 
         /** Calculate savings made in stating the DTree structure by knowing we split on all variables at least once*/
         public double calculateSaving() {
-            double saving = 0.0;
-            
-            // cost saved by not allowing < N splits
-            int numVars = availableParent.length;
-            
-            
-            if (numVars == 0) {return 1.0;}
-            
-            // probability of having less than numVars nodes in a tree.
-            double probNotEnoughNodes;
-            if (numVars < CatlanTable.maxReliable) {
-                probNotEnoughNodes = CatlanTable.getTotalProb(numVars - 1);
-            } else { // if we can't calculate a value, assume there is no
-                // saving (VERY rare)
-                probNotEnoughNodes = 0.0;
-            }
-            
-            // probability of having more than 2^N nodes in the network.
-            // note: This should really be
-            // 2^(binaryVars)*3^(ternaryVars)...*n^(naryVars)
-            double probTooManyNodes;
-            
-            // Calculate the maximum number of splits possible given the parent arities.
-            int layerSplits = 1;
-            int maxSplits = 0;
-            int arityArray[] = new int[availableParent.length];
-            for (int i = 0; i < availableParent.length; i++) {
-                arityArray[i] = (int) (((Type.Discrete) allInputType[i]).UPB
-                                       - ((Type.Discrete) allInputType[i]).LWB + 1);
-            }
-            // sort list
-            Arrays.sort(arityArray);
-            for ( int i = arityArray.length-1; i >= 0; i--) {
-                maxSplits += layerSplits;
-                layerSplits *= arityArray[i];
-            }
-                
-            if (maxSplits < CatlanTable.maxReliable) {
-                probTooManyNodes = 1.0 - CatlanTable
-                    .getTotalProb(maxSplits);
-            } else { // probability of having too too many nodes in a
-                // network asymptotes to 0
-                // for large numVars.
-                probTooManyNodes = 0.0;
-            }
-            
-            saving = -Math.log(1.0 - probNotEnoughNodes - probTooManyNodes);
-            
-            if (Double.isInfinite(saving)) {
-                System.out.println("numVars = " + numVars);
-                System.out.println("maxSplits = " + maxSplits);
-                System.out.println("CatlanTableTotalProb(maxSplits) = "
-                                   + CatlanTable.getTotalProb(maxSplits));
-                
-            }
-            
-            return saving;
+            return ForcedSplitDTreeLearner.calculateSaving(allInputType, availableParent.length);
         }
 
         public String toString() {
@@ -437,23 +435,150 @@ public class ForcedSplitDTreeLearner extends ModelLearner.DefaultImplementation
          */
         private double[] splitCostArray = null;
         
-        /** calculate the cost of splitting on each variable. */
+        /**
+         * The cheapest split found by findAllSplitCosts, kept so it does not have to be
+         * rebuilt if it is chosen.  Null once taken or if no split has a finite cost.
+         */
+        private Split bestSplitNode = null;
+        
+        /** The variable bestSplitNode splits on. */
+        private int bestSplitVar = -1;
+        
+        /**
+         * calculate the cost of splitting on each variable.  Splits of the root are evaluated
+         * in parallel when splitThreads > 1, using the pool shared by WorkerPool.runShared.
+         */
         double[] findAllSplitCosts() throws LearnerException {
             // computed lazily.
             if (splitCostArray != null) {
                 return splitCostArray;
             }
             
-            splitCostArray = new double[availableParent.length];
-            Split splitNode = new Split(this);
-            for (int i = 0; i < splitCostArray.length; i++) {
-                int currentSplit = availableParent[i];
-                splitNode.setSplit(currentSplit);
-                splitCostArray[i] = splitNode.getCost();
+            double[] costArray = new double[availableParent.length];
+            double bestCost = Double.POSITIVE_INFINITY;
+            if (parentNode == null && splitThreads > 1 && costArray.length > 1
+                && output.length() >= minParallelRows) {
+                List<Callable<Split>> tasks = new ArrayList<Callable<Split>>();
+                for (int i = 0; i < costArray.length; i++) {
+                    final int currentSplit = availableParent[i];
+                    tasks.add(new Callable<Split>() {
+                            public Split call() throws LearnerException {
+                                Split splitNode = new Split(Leaf.this);
+                                splitNode.setSplit(currentSplit);
+                                return splitNode;
+                            }
+                        });
+                }
+                List<Split> splits;
+                try {
+                    splits = WorkerPool.runShared(tasks, splitThreads);
+                } catch (RuntimeException e) {
+                    if (e.getCause() instanceof LearnerException) {
+                        throw (LearnerException) e.getCause();
+                    }
+                    throw e;
+                }
+                for (int i = 0; i < costArray.length; i++) {
+                    costArray[i] = splits.get(i).getCost();
+                    if (costArray[i] < bestCost) {
+                        bestCost = costArray[i];
+                        bestSplitNode = splits.get(i);
+                        bestSplitVar = availableParent[i];
+                    }
+                }
+            } else {
+                for (int i = 0; i < costArray.length; i++) {
+                    Split splitNode = new Split(this);
+                    splitNode.setSplit(availableParent[i]);
+                    costArray[i] = splitNode.getCost();
+                    if (costArray[i] < bestCost) {
+                        bestCost = costArray[i];
+                        bestSplitNode = splitNode;
+                        bestSplitVar = availableParent[i];
+                    }
+                }
             }
+            splitCostArray = costArray;
             
             return splitCostArray;
         }
+        
+        /**
+         * Return the split on splitVar.  The cheapest split found by findAllSplitCosts is
+         * reused, any other split is rebuilt.
+         */
+        Split takeSplit(int splitVar) throws LearnerException {
+            findAllSplitCosts();
+            if (bestSplitNode != null && bestSplitVar == splitVar) {
+                Split split = bestSplitNode;
+                bestSplitNode = null;
+                return split;
+            }
+            Split split = new Split(this);
+            split.setSplit(splitVar);
+            return split;
+        }
+    }
+    
+    /**
+     * Calculate savings made in stating the DTree structure by knowing we split on all numVars
+     * variables at least once.  allInputType holds the type of each variable.
+     */
+    public static double calculateSaving(Type[] allInputType, int numVars) {
+        double saving = 0.0;
+        
+        // cost saved by not allowing < N splits
+        if (numVars == 0) {return 1.0;}
+        
+        // probability of having less than numVars nodes in a tree.
+        double probNotEnoughNodes;
+        if (numVars < CatlanTable.maxReliable) {
+            probNotEnoughNodes = CatlanTable.getTotalProb(numVars - 1);
+        } else { // if we can't calculate a value, assume there is no
+            // saving (VERY rare)
+            probNotEnoughNodes = 0.0;
+        }
+        
+        // probability of having more than 2^N nodes in the network.
+        // note: This should really be
+        // 2^(binaryVars)*3^(ternaryVars)...*n^(naryVars)
+        double probTooManyNodes;
+        
+        // Calculate the maximum number of splits possible given the parent arities.
+        int layerSplits = 1;
+        int maxSplits = 0;
+        int arityArray[] = new int[numVars];
+        for (int i = 0; i < numVars; i++) {
+            arityArray[i] = (int) (((Type.Discrete) allInputType[i]).UPB
+                                   - ((Type.Discrete) allInputType[i]).LWB + 1);
+        }
+        // sort list
+        Arrays.sort(arityArray);
+        for ( int i = arityArray.length-1; i >= 0; i--) {
+            maxSplits += layerSplits;
+            layerSplits *= arityArray[i];
+        }
+            
+        if (maxSplits < CatlanTable.maxReliable) {
+            probTooManyNodes = 1.0 - CatlanTable
+                .getTotalProb(maxSplits);
+        } else { // probability of having too too many nodes in a
+            // network asymptotes to 0
+            // for large numVars.
+            probTooManyNodes = 0.0;
+        }
+        
+        saving = -Math.log(1.0 - probNotEnoughNodes - probTooManyNodes);
+        
+        if (Double.isInfinite(saving)) {
+            System.out.println("numVars = " + numVars);
+            System.out.println("maxSplits = " + maxSplits);
+            System.out.println("CatlanTableTotalProb(maxSplits) = "
+                               + CatlanTable.getTotalProb(maxSplits));
+            
+        }
+        
+        return saving;
     }
     
     /** returns the structure (split,cost,params) */
@@ -686,6 +811,12 @@ public class ForcedSplitDTreeLearner extends ModelLearner.DefaultImplementation
         return "ForcedSplitDTreeLearner(" + leafLearner + ")";
     }
     
+    /** return "ForcedSplitDTreeLearner(leafKey)", or null if leafLearner has no key. */
+    public String getLearnerKey() {
+        String leafKey = keyOf(leafLearner);
+        return (leafKey == null) ? null : "ForcedSplitDTreeLearner(" + leafKey + ")";
+    }
+    
     /** Default implementation of makeForcedSplitDTreeLearnerStruct */
     public static final MakeForcedSplitDTreeLearnerStruct makeForcedSplitDTreeLearnerStruct = new MakeForcedSplitDTreeLearnerStruct();
     
@@ -36,7 +36,15 @@
 
 package camml.core.models.dual;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
 import cdms.core.*;
+import camml.core.library.WorkerPool;
 import camml.core.models.ModelLearner;
 import camml.core.models.cpt.*;
 import camml.core.models.dTree.*;
@@ -54,8 +62,12 @@ import camml.core.models.multinomial.*;
  * To get a true MML cost we need to add ln(2) nits to the final cost to represent the selection
  * between the two competing models (uniform prior assumed).  In the case where there are no parent
  * variables there is no need to add this constant as a CPT and DTree are identical for this case.
+ * <br>
+ * Learners implementing BoundedLearner are skipped when their lower bound shows they cannot beat
+ * the best cost already found, so the cost returned is unchanged.
  */
 public class DualLearner extends ModelLearner.DefaultImplementation
+    implements ModelLearner.KeyedLearner, ModelLearner.CopyableLearner
 {
     /** Serial ID required to evolve class while maintaining serialisation compatibility. */
     private static final long serialVersionUID = -5173499146899569056L;
@@ -150,109 +162,263 @@ public class DualLearner extends ModelLearner.DefaultImplementation
         
     }
     
-    /** Parameterize and return (m,s,y) */
-    public Value.Structured parameterize( Value initialInfo, Value.Vector x, Value.Vector z )
-        throws LearnerException
+    /** Number of threads used to cost the alternatives after the first. (default == 1) */
+    protected int alternativeThreads = 1;
+    
+    /** Alternatives for fewer rows than this are always costed serially. */
+    protected int minParallelRows = 1000;
+    
+    /** Skip alternatives whose lower bound shows they cannot beat the best cost found. */
+    protected boolean useBounds = true;
+    
+    /** Set the number of threads used to cost the alternatives after the first. */
+    public void setAlternativeThreads( int alternativeThreads ) 
+    { this.alternativeThreads = alternativeThreads; }
+    
+    /** Return the number of threads used to cost the alternatives after the first. */
+    public int getAlternativeThreads() { return alternativeThreads; }
+    
+    /** Set the number of rows below which alternatives are always costed serially. */
+    public void setMinParallelRows( int minParallelRows ) { this.minParallelRows = minParallelRows; }
+    
+    /** Set whether alternatives which cannot beat the best cost found are skipped. */
+    public void setUseBounds( boolean useBounds ) { this.useBounds = useBounds; }
+    
+    /** Return true if alternatives which cannot beat the best cost found are skipped. */
+    public boolean getUseBounds() { return useBounds; }
+    
+    /** 
+     * Return a DualLearner with the same settings choosing between copies of any alternatives
+     * implementing CopyableLearner.  An alternative listed more than once is copied once.
+     */
+    public ModelLearner copyLearner()
+    {
+        IdentityHashMap<ModelLearner,ModelLearner> copies = 
+            new IdentityHashMap<ModelLearner,ModelLearner>();
+        DualLearner copy = new DualLearner( copyAll( zeroParentLearner, copies ),
+                                            copyAll( singleParentLearner, copies ),
+                                            copyAll( multiParentLearner, copies ) );
+        copy.alternativeThreads = alternativeThreads;
+        copy.minParallelRows = minParallelRows;
+        copy.useBounds = useBounds;
+        return copy;
+    }
+    
+    /** Return learner[] with each CopyableLearner replaced by its entry in copies. */
+    private static ModelLearner[] copyAll( ModelLearner[] learner, 
+                                           IdentityHashMap<ModelLearner,ModelLearner> copies )
+    {
+        ModelLearner[] copy = new ModelLearner[learner.length];
+        for ( int i = 0; i < learner.length; i++ ) {
+            copy[i] = copies.get( learner[i] );
+            if ( copy[i] == null ) {
+                copy[i] = (learner[i] instanceof CopyableLearner) ? 
+                    ((CopyableLearner)learner[i]).copyLearner() : learner[i];
+                copies.put( learner[i], copy[i] );
+            }
+        }
+        return copy;
+    }
+    
+    /** Bounds are reduced by this many nits to allow for rounding in the costs they bound. */
+    protected static final double boundTolerance = 1e-6;
+    
+    /** Number of alternatives skipped as their lower bound could not beat the best cost. */
+    protected final AtomicLong boundSkips = new AtomicLong();
+    
+    /** Return the number of alternatives skipped as they could not beat the best cost. */
+    public long getBoundSkips() { return boundSkips.get(); }
+    
+    /** Return every learner chosen between, for any number of inputs (may hold duplicates). */
+    public ModelLearner[] getAlternatives()
+    {
+        ModelLearner[] all = new ModelLearner[ zeroParentLearner.length + 
+                                               singleParentLearner.length + multiParentLearner.length ];
+        System.arraycopy( zeroParentLearner, 0, all, 0, zeroParentLearner.length );
+        System.arraycopy( singleParentLearner, 0, all, zeroParentLearner.length, 
+                          singleParentLearner.length );
+        System.arraycopy( multiParentLearner, 0, all, 
+                          zeroParentLearner.length + singleParentLearner.length, 
+                          multiParentLearner.length );
+        return all;
+    }
+    
+    /** Return the list of learners to choose between for inputs z */
+    protected ModelLearner[] getModelLearnerList( Value.Vector z )
     {
-        Value.Structured bestParameterization = null;
-        double bestCost = Double.POSITIVE_INFINITY;
-        
         Type.Structured inputType = (Type.Structured)((Type.Vector)z.t).elt;
         int numInputs = inputType.cmpnts.length;
         
-        ModelLearner[] modelLearnerList;
+        if (numInputs == 0) { return zeroParentLearner; }
+        else if (numInputs == 1) { return singleParentLearner; }
+        else { return multiParentLearner; }
+    }
+    
+    /**
+     * The tally of x given z, shared by all TallyLearners, and the maximum likelihood cost used
+     * to bound each BoundedLearner.  Both are only calculated when first needed.
+     */
+    protected static class SharedTally
+    {
+        final Value.Vector x, z;
+        boolean done = false;
+        int[][] tally = null;
+        double mlCost = Double.NEGATIVE_INFINITY;
         
-        if (numInputs == 0) { modelLearnerList = zeroParentLearner; }
-        else if (numInputs == 1) { modelLearnerList = singleParentLearner; }
-        else { modelLearnerList = multiParentLearner; }
+        SharedTally( Value.Vector x, Value.Vector z ) { this.x = x; this.z = z; }
         
-        /*
-          if ( numInputs == 0 ) {
-          // If there are no inputs, always use multinomialModelLearner.
-          bestParameterization = modelLearnerList[2].parameterize( initialInfo, x, z );            
-          }
-          else if ( numInputs == 1 ) {
-          // For a single input CPT and DTree are identical, so use a CPT.
-          bestParameterization = modelLearnerList[0].parameterize( initialInfo, x, z );
-          }
-          else {
-        */
-        // loop through modelLearnerList and return the parameters with the best cost.
-        // do not attempt to cost as a multinomial is numInputs > 0
-        for ( int i = 0; i < modelLearnerList.length; i++ ) {
-            Value.Structured params;
-            double cost;
+        /** Return the tally of x given z, or null if the CPT has too many combinations. */
+        synchronized int[][] getTally()
+        {
+            if ( !done ) {
+                done = true;
+                try { tally = CPTLearner.mlMultinomialCPTLearner.getTally( x, z ); }
+                catch ( LearnerException e ) { return null; }
                 
-            // If one parameterization method fails (excessive CPT combinations, etc) then simply
-            // try the other methods instead.
-            try {
-                params = modelLearnerList[i].parameterize( initialInfo, x, z );
-                //cost =  modelLearnerList[i].msyCost( params );
-                cost = modelLearnerList[i].parameterizeAndCost(initialInfo,x,z);
+                // -log likelihood of x using the ML estimate for each parent combination.
+                mlCost = 0;
+                int numCombinations = (tally.length == 0) ? 0 : tally[0].length;
+                for ( int j = 0; j < numCombinations; j++ ) {
+                    int total = 0;
+                    for ( int k = 0; k < tally.length; k++ ) {
+                        int n = tally[k][j];
+                        if ( n != 0 ) { mlCost -= n * Math.log(n); }
+                        total += n;
+                    }
+                    if ( total != 0 ) { mlCost += total * Math.log(total); }
+                }
+            }
+            return tally;
+        }
+        
+        /** Return the ML cost of x given z, or -infinity if it cannot be calculated. */
+        synchronized double getMLCost()
+        {
+            getTally();
+            return mlCost;
+        }
+    }
+    
+    /** Return true if learner may return a cost below bestCost. */
+    protected boolean mayBeat( ModelLearner learner, SharedTally shared, Value.Vector x,
+                               Value.Vector z, double bestCost )
+    {
+        if ( !useBounds || bestCost == Double.POSITIVE_INFINITY || 
+             !(learner instanceof BoundedLearner) ) { return true; }
+        double bound = ((BoundedLearner)learner).costLowerBound( x, z, shared.getMLCost() );
+        if ( bound - boundTolerance >= bestCost ) {
+            boundSkips.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+    
+    /** Return learner.parameterizeAndCost(initialInfo,x,z), or infinity if it fails. */
+    protected static double cost( ModelLearner learner, SharedTally shared, Value initialInfo,
+                                  Value.Vector x, Value.Vector z )
+    {
+        // If one parameterization method fails (excessive CPT combinations, etc) then 
+        // simply try the other methods instead.
+        try {
+            if ( learner instanceof TallyLearner && ((TallyLearner)learner).costsFromTally() ) {
+                int[][] tally = shared.getTally();
+                if ( tally != null ) {
+                    return ((TallyLearner)learner).tallyParameterizeAndCost( x, z, tally );
+                }
             }
-            catch ( LearnerException e ) {
-                params = null;
-                cost = Double.POSITIVE_INFINITY;
+            return learner.parameterizeAndCost( initialInfo, x, z );
+        }
+        catch ( LearnerException e ) {
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+    
+    /**
+     * Return the cost of each learner in modelLearnerList.  Learners are tried in order and
+     * those which fail or cannot beat the best cost found so far are given a cost of infinity.
+     * With alternativeThreads > 1, at least three learners and minParallelRows rows, only the
+     * first learner is costed alone.  The rest are costed together once it has set a cost to bound them by.
+     */
+    protected double[] costAll( ModelLearner[] modelLearnerList, final Value initialInfo,
+                                final Value.Vector x, final Value.Vector z )
+        throws LearnerException
+    {
+        final double[] cost = new double[modelLearnerList.length];
+        Arrays.fill( cost, Double.POSITIVE_INFINITY );
+        final SharedTally shared = new SharedTally( x, z );
+        
+        int numSerial = modelLearnerList.length;
+        if ( alternativeThreads > 1 && numSerial > 2 && x.length() >= minParallelRows ) {
+            numSerial = 1;
+        }
+        
+        double bestCost = Double.POSITIVE_INFINITY;
+        for ( int i = 0; i < numSerial; i++ ) {
+            if ( mayBeat( modelLearnerList[i], shared, x, z, bestCost ) ) {
+                cost[i] = cost( modelLearnerList[i], shared, initialInfo, x, z );
+                if ( cost[i] < bestCost ) { bestCost = cost[i]; }
             }
-                
-            if ( cost < bestCost ) {
-                bestParameterization = params;
-                bestCost = cost;
+        }
+        
+        List<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+        final List<Integer> index = new ArrayList<Integer>();
+        for ( int i = numSerial; i < modelLearnerList.length; i++ ) {
+            final ModelLearner learner = modelLearnerList[i];
+            if ( mayBeat( learner, shared, x, z, bestCost ) ) {
+                index.add( i );
+                tasks.add( new Callable<Double>() {
+                        public Double call() {
+                            return cost( learner, shared, initialInfo, x, z );
+                        }
+                    } );
             }
-        }    
-            
-        //}    
-        if ( bestParameterization == null ) {
-            throw new LearnerException("All parameterization attempts failed.");
+        }
+        if ( !tasks.isEmpty() ) {
+            List<Double> result = WorkerPool.runShared( tasks, alternativeThreads );
+            for ( int i = 0; i < result.size(); i++ ) { cost[index.get(i)] = result.get(i); }
         }
         
-        return bestParameterization;
+        return cost;
     }
     
     /** Parameterize and return (m,s,y) */
-    public double parameterizeAndCost( Value initialInfo, Value.Vector x, Value.Vector z )
+    public Value.Structured parameterize( Value initialInfo, Value.Vector x, Value.Vector z )
         throws LearnerException
     {
-        double bestCost = Double.POSITIVE_INFINITY;
-        
-        Type.Structured inputType = (Type.Structured)((Type.Vector)z.t).elt;
-        int numInputs = inputType.cmpnts.length;
+        ModelLearner[] modelLearnerList = getModelLearnerList( z );
+        double[] cost = costAll( modelLearnerList, initialInfo, x, z );
         
-        ModelLearner[] modelLearnerList;
-        if (numInputs == 0) { modelLearnerList = zeroParentLearner; }
-        else if (numInputs == 1) { modelLearnerList = singleParentLearner; }
-        else { modelLearnerList = multiParentLearner; }
-
-        /*
-          if ( numInputs == 0 ) {
-          // If there are no inputs, always use multinomialModelLearner.
-          bestCost = modelLearnerList[2].parameterizeAndCost( initialInfo, x, z );
-          }
-          else if ( numInputs == 1 ) {
-          // For a single input CPT and DTree are identical, so use a CPT.
-          bestCost = modelLearnerList[0].parameterizeAndCost( initialInfo, x, z );
-          }
-          else {
-        */    
-        // loop through modelLearnerList and return the parameters with the best cost.
-        // do not attempt to cost as a multinomial is numInputs > 0
-        for ( int i = 0; i < modelLearnerList.length; i++ ) {
-            double cost;
-                
-            // If one parameterization method fails (excessive CPT combinations, etc) then 
-            // simply try the other methods instead.
-            try {
-                cost = modelLearnerList[i].parameterizeAndCost(initialInfo,x,z);
+        // Parameterize using the cheapest learner (earliest on ties).  If it fails, try the
+        // next cheapest instead.
+        boolean[] tried = new boolean[cost.length];
+        while ( true ) {
+            int best = -1;
+            for ( int i = 0; i < cost.length; i++ ) {
+                if ( !tried[i] && cost[i] != Double.POSITIVE_INFINITY &&
+                     (best == -1 || cost[i] < cost[best]) ) { best = i; }
             }
-            catch ( LearnerException e ) {
-                cost = Double.POSITIVE_INFINITY;
-            }
-                
-            if ( cost < bestCost ) {
-                bestCost = cost;
+            if ( best == -1 ) { break; }
+            tried[best] = true;
+            try {
+                return modelLearnerList[best].parameterize( initialInfo, x, z );
             }
-        }            
-        //}    
+            catch ( LearnerException e ) { /* try the next cheapest learner. */ }
+        }
+        
+        throw new LearnerException("All parameterization attempts failed.");
+    }
+    
+    /** Parameterize and return cost */
+    public double parameterizeAndCost( Value initialInfo, Value.Vector x, Value.Vector z )
+        throws LearnerException
+    {
+        ModelLearner[] modelLearnerList = getModelLearnerList( z );
+        double[] cost = costAll( modelLearnerList, initialInfo, x, z );
+        
+        double bestCost = Double.POSITIVE_INFINITY;
+        for ( int i = 0; i < cost.length; i++ ) {
+            if ( cost[i] < bestCost ) { bestCost = cost[i]; }
+        }
         return bestCost + Math.log(modelLearnerList.length);
     }
     
@@ -324,5 +490,26 @@ public class DualLearner extends ModelLearner.DefaultImplementation
         s += ")";
         return s;
     }    
+    
+    /** 
+     * return "DualLearner([zeroParentKeys],[singleParentKeys],[multiParentKeys])", or null 
+     * if any alternative has no key.
+     */
+    public String getLearnerKey() {
+        ModelLearner[][] lists = { zeroParentLearner, singleParentLearner, multiParentLearner };
+        StringBuilder s = new StringBuilder( "DualLearner(" );
+        for ( int i = 0; i < lists.length; i++ ) {
+            if ( i != 0 ) { s.append( "," ); }
+            s.append( "[" );
+            for ( int j = 0; j < lists[i].length; j++ ) {
+                String key = keyOf( lists[i][j] );
+                if ( key == null ) { return null; }
+                if ( j != 0 ) { s.append( "," ); }
+                s.append( key );
+            }
+            s.append( "]" );
+        }
+        return s.append( ")" ).toString();
+    }
 }
 
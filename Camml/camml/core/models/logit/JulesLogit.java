@@ -37,8 +37,14 @@
 package camml.core.models.logit;
 
 import java.io.PrintStream;
+import java.lang.ref.WeakReference;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
 
+import camml.core.library.DiscreteColumnVector;
 import camml.core.models.ModelLearner;
 import camml.core.models.ModelLearner.LearnerException;
 import cdms.core.*;
@@ -75,6 +81,200 @@ public class JulesLogit {
     int numParents = 0;
     
     private static boolean noOptimizationWarningPrinted = false;
+
+    /** Number of calls to nodeCost */
+    private static final AtomicLong totalFits = new AtomicLong();
+    /** Number of fits started from a cached fit */
+    private static final AtomicLong totalWarmStarts = new AtomicLong();
+    /** Newton iterations over all fits */
+    private static final AtomicLong totalIterations = new AtomicLong();
+    /** Time spent in nodeCost */
+    private static final AtomicLong totalNanos = new AtomicLong();
+    
+    /** Return number of fits made by all JulesLogit instances. */
+    public static long getTotalFits() { return totalFits.get(); }
+    /** Return number of fits which were warm started. */
+    public static long getTotalWarmStarts() { return totalWarmStarts.get(); }
+    /** Return number of Newton iterations made by all fits. */
+    public static long getTotalIterations() { return totalIterations.get(); }
+    /** Return total time (in nanoseconds) spent fitting. */
+    public static long getTotalNanos() { return totalNanos.get(); }
+    
+    /** Reset fit statistics. */
+    public static void resetStats() {
+        totalFits.set(0); totalWarmStarts.set(0); totalIterations.set(0); totalNanos.set(0);
+    }
+    
+    /** Newton iterations used by the last call to nodeCost (including any restart). */
+    int iterations;
+    
+    /** Was the last fit warm started? */
+    boolean warmStarted;
+    
+    /** Return Newton iterations used by the last call to nodeCost. */
+    public int getIterations() { return iterations; }
+    
+    /** Return true if the last call to nodeCost was warm started. */
+    public boolean isWarmStarted() { return warmStarted; }
+    
+    /** Parameters of a converged fit, parents are columns of cacheStore. */
+    private static class Fit {
+        final int[] parents;
+        final double[] c;
+        final double[][][] d;
+        
+        Fit(int[] parents, double[] c, double[][][] d) {
+            this.parents = parents.clone();
+            this.c = c.clone();
+            this.d = new double[d.length][parents.length][];
+            for (int k = 0; k < d.length; k++) {
+                for (int i = 0; i < parents.length; i++) { this.d[k][i] = d[k][i].clone(); }
+            }
+        }
+        
+        /** Number of parents in common with cols */
+        int common(int[] cols) {
+            int n = 0;
+            for (int i = 0; i < cols.length; i++) {
+                if (indexOf(cols[i]) != -1) { n++; }
+            }
+            return n;
+        }
+        
+        int indexOf(int col) {
+            for (int j = 0; j < parents.length; j++) {
+                if (parents[j] == col) { return j; }
+            }
+            return -1;
+        }
+        
+        /** Copy c, and d for parents in common with cols. */
+        void copyTo(double[] c, double[][][] d, int[] cols) {
+            System.arraycopy(this.c, 0, c, 0, c.length);
+            for (int i = 0; i < cols.length; i++) {
+                int j = indexOf(cols[i]);
+                if (j == -1) { continue; }
+                for (int k = 0; k < c.length; k++) {
+                    System.arraycopy(this.d[k][j], 0, d[k][i], 0, d[k][i].length);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Recent converged fits of the columns of a DiscreteColumnVector, used to warm start
+     * later fits.  Fits of a different store clear the cache.  A FitCache may be shared by
+     * JulesLogit instances in different threads.
+     */
+    public static class FitCache {
+        /** Number of fits kept per child. */
+        protected final int maxCachedFits;
+        
+        /** Data the cached fits were made from. */
+        private WeakReference<DiscreteColumnVector> cacheStore;
+        
+        /** Recent fits (most recent first) for each child column of cacheStore. */
+        private final HashMap<Integer,LinkedList<Fit>> fits = new HashMap<Integer,LinkedList<Fit>>();
+        
+        /** Create a cache keeping up to maxCachedFits fits per child. */
+        public FitCache(int maxCachedFits) { this.maxCachedFits = maxCachedFits; }
+        
+        /** Create a cache keeping up to 16 fits per child. */
+        public FitCache() { this(16); }
+        
+        /** Remove all cached fits. */
+        public synchronized void clear() { fits.clear(); cacheStore = null; }
+        
+        /**
+         * Return the fit of child in store with the most parents in common with parentCol,
+         * then the fewest extra parents, then the most recent.  Returns null if none share
+         * a parent (the fit with no parents may start any parent set).
+         */
+        synchronized Fit find(DiscreteColumnVector store, int child, int[] parentCol) {
+            if (cacheStore == null || cacheStore.get() != store) {
+                fits.clear();
+                cacheStore = new WeakReference<DiscreteColumnVector>(store);
+                return null;
+            }
+            LinkedList<Fit> childFits = fits.get(child);
+            if (childFits == null) { return null; }
+            Fit startFit = null;
+            int bestCommon = -1, bestExtra = 0;
+            for (Fit fit : childFits) {
+                int common = fit.common(parentCol);
+                int extra = fit.parents.length - common;
+                if (common == 0 && extra > 0) { continue; }
+                if (common > bestCommon || (common == bestCommon && extra < bestExtra)) {
+                    startFit = fit; bestCommon = common; bestExtra = extra;
+                }
+            }
+            return startFit;
+        }
+        
+        /** Add fit of child in store, replacing any previous fit of the same parent set. */
+        synchronized void save(DiscreteColumnVector store, int child, Fit fit) {
+            if (cacheStore == null || cacheStore.get() != store) { return; }
+            LinkedList<Fit> childFits = fits.get(child);
+            if (childFits == null) {
+                childFits = new LinkedList<Fit>();
+                fits.put(child, childFits);
+            }
+            for (Iterator<Fit> it = childFits.iterator(); it.hasNext();) {
+                Fit f = it.next();
+                if (f.parents.length == fit.parents.length && 
+                    f.common(fit.parents) == fit.parents.length) {
+                    it.remove();
+                }
+            }
+            childFits.addFirst(fit);
+            while (childFits.size() > maxCachedFits) { childFits.removeLast(); }
+        }
+    }
+    
+    /** Fits used to warm start this instance, or null for cold starts. (default == null) */
+    private FitCache fitCache;
+    
+    /** Set the cache used to warm start fits of a DiscreteColumnVector, null to start cold. */
+    public void setFitCache(FitCache fitCache) { this.fitCache = fitCache; }
+    
+    /** Fit to start from, or null for a cold start */
+    private Fit startFit;
+    
+    /** Store and store columns of the child and parents being fit, or -1 if not from a store. */
+    private DiscreteColumnVector store;
+    private int childCol = -1;
+    private int[] parentCol;
+    
+    /** Set childCol and parentCol (and startFit) for the data x,z if fitCache is set. */
+    private void findStartFit(Value.Vector x, Value.Vector z) {
+        startFit = null;
+        store = null;
+        childCol = -1;
+        if (fitCache == null) { return; }
+        DiscreteColumnVector.View xView = DiscreteColumnVector.view(x);
+        DiscreteColumnVector.View zView = DiscreteColumnVector.view(z);
+        if (xView == null || zView == null || xView.store != zView.store ||
+            xView.rows != null || zView.rows != null) { return; }
+        store = xView.store;
+        childCol = xView.cols[0];
+        parentCol = zView.cols;
+        startFit = fitCache.find(store, childCol, parentCol);
+    }
+    
+    /** Add the current parameters to the warm start cache. */
+    private void saveFit() {
+        if (childCol == -1) { return; }
+        fitCache.save(store, childCol, new Fit(parentCol, c, d));
+    }
+    
+    /** Return true if c and d have the shape needed to fit node. */
+    private boolean paramsFit(Node node) {
+        if (c == null || c.length != arity[node.nd] || d[0].length != node.ndad) { return false; }
+        for (int i = 0; i < node.ndad; i++) {
+            if (d[0][i].length != arity[node.dads[i]]) { return false; }
+        }
+        return true;
+    }
     
     /** Setup everything as required by the given dataset.*/
     private void setup(Value.Vector xz) throws ModelLearner.LearnerException {
@@ -82,6 +282,7 @@ public class JulesLogit {
         // Calculate variable arities.
         Type.Structured xzType = (Type.Structured) ((Type.Vector) xz.t).elt;
         arity = new int[xzType.cmpnts.length];
+        maxArity = 0;
         for (int i = 0; i < xzType.cmpnts.length; i++) {
             arity[i] = (int) ((Type.Discrete) xzType.cmpnts[i]).UPB
                 - (int) ((Type.Discrete) xzType.cmpnts[i]).LWB + 1;
@@ -113,13 +314,13 @@ public class JulesLogit {
         }
 
         //        Make storage for counts of cases with Y=y, Xi=xi 
-        vN = new int[rN[numVars]][rN[numVars]];
+        if (vN == null || vN.length < rN[numVars]) {
+            vN = new int[rN[numVars]][rN[numVars]];
+        }
 
         //        Now count cases for every pair of variable values
         for (int i = 0; i < rN[numVars]; i++) {
-            for (int j = 0; j < rN[numVars]; j++) {
-                vN[i][j] = 0;
-            }
+            Arrays.fill(vN[i], 0, rN[numVars], 0);
         }
 
         // Shortcut method to extract data from xz as an int[][]
@@ -131,6 +332,13 @@ public class JulesLogit {
             if ( tempVec instanceof VectorFN.FastDiscreteVector ) { 
                 xzArray[i] = ((VectorFN.FastDiscreteVector)tempVec).getData(false);
             }
+            else if ( tempVec instanceof DiscreteColumnVector.Column ) {
+                // Primitive column, intAt() does not create any Values.
+                xzArray[i] = new int[ tempVec.length() ];
+                for ( int j = 0; j < xzArray[i].length; j++ ) {
+                    xzArray[i][j] = tempVec.intAt(j);
+                }
+            }
             else {
                 if ( !noOptimizationWarningPrinted ) {
                     System.out.println("WARNING: No optimisation possible in JulesLogit : " + tempVec.getClass());
@@ -253,7 +461,7 @@ public class JulesLogit {
             }            
         }
         // Copy top half of matrix to bottom.
-        for (int i = 0; i < vN.length; i++) {
+        for (int i = 0; i < rN[numVars]; i++) {
             for (int j = 0; j < i; j++) {
                 vN[i][j] = vN[j][i];
             }
@@ -268,26 +476,44 @@ public class JulesLogit {
             throw new ModelLearner.LearnerException("Arity too high for Logit Learner.");
         }
         
-        Ndot = new int[Maxcell];
-        Nyl = new int[Maxcell];
+        // Work buffers are kept between calls and only reallocated when too small.
+        if (Ndot == null) {
+            Ndot = new int[Maxcell];
+            Nyl = new int[Maxcell];
+        }
         
-        kN = new int[maxArity+1];
+        if (kN == null || kN.length < maxArity+1) { kN = new int[maxArity+1]; }
         //pN = new int[maxArity+1];
-        pN = new int[numParents+1];
+        if (pN == null || pN.length < numParents+1) {
+            pN = new int[numParents+1];
+            pofs = new int[numParents];
+            kpofs = new int[numParents];
+            lpofs = new int[numParents];
+        }
 
-        Sy = new double[maxArity];
-        S = new double[maxArity*maxParams*maxArity];
-        
-        
+        if (Sy == null || Sy.length < maxArity) {
+            Sy = new double[maxArity];
+            P = new double[maxArity];
+            S2yz = new double[maxArity][maxArity];
+        }
+        if (S == null || S.length < maxArity*maxParams*maxArity) {
+            S = new double[maxArity*maxParams*maxArity];
+        }
         
-        id = new double[maxParams];
-        S2yz = new double[maxArity][maxArity];
-
-        F = new double[maxParams][maxParams];
+        if (F == null || F.length < maxParams) {
+            id = new double[maxParams];
+            dLL = new double[maxParams];
+            h = new double[maxParams];
+            F = new double[maxParams][maxParams];
+        }
     }
 
     /** reciprocal of diagonal elements */
     double id[];// = new double[Maxparm];
+    /** vector of LL first derivatives */
+    double dLL[];
+    /** vector of changes to params */
+    double h[];
     double Sy[];// = new double[Maxs];
     double S[];// = new double[Maxs * Maxp * Maxs];
 
@@ -436,7 +662,23 @@ public class JulesLogit {
     //}
         
     public double nodeCost(Value.Vector x, Value.Vector z) throws LearnerException {
-        Value.Vector xz = LogitFN.combineXZ(x,z);                
+        long start = System.nanoTime();
+        iterations = 0;
+        warmStarted = false;
+        findStartFit(x,z);
+        try {
+            return nodeCost(x,z,LogitFN.combineXZ(x,z));
+        } finally {
+            // Do not keep the data alive through this (possibly pooled) instance.
+            store = null;
+            totalFits.incrementAndGet();
+            if (warmStarted) { totalWarmStarts.incrementAndGet(); }
+            totalIterations.addAndGet(iterations);
+            totalNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+    
+    private double nodeCost(Value.Vector x, Value.Vector z, Value.Vector xz) throws LearnerException {
         setup(xz);
         
         Type.Structured zType = (Type.Structured)((Type.Vector)z.t).elt;
@@ -496,6 +738,7 @@ public class JulesLogit {
             fprintf(stderr, "\n");
             exit(1);
         }
+        saveFit();
 
         calcsums(node, 2);
         nfreeparms = calcfisher(node);
@@ -594,10 +837,8 @@ public class JulesLogit {
         boolean conservative; /* use conservative scale adjustment */
         int maxiters; /* maximum number of iterations */
 
-        //double dLL[] = new double[Maxparm]; // vector of LL first derivatives
-        double dLL[] = new double[maxParams];
-        //double h[] = new double[Maxparm]; // vector of changes to params
-        double h[] = new double[maxParams];
+        final double dLL[] = this.dLL;
+        final double h[] = this.h;
 
         int ndad, dad[];
         int y, yk, yry;
@@ -613,21 +854,30 @@ public class JulesLogit {
             ndad = node.ndad;
             dad = node.dads;
             
-            /* Initialize parameters */        
-            c = new double[arity[y]];
-            d = new double[arity[y]][ndad][];
+            /* Initialize parameters, reusing c and d if they have the right shape. */
+            if (!paramsFit(node)) {
+                c = new double[arity[y]];
+                d = new double[arity[y]][ndad][];
+                for (k = 0; k < arity[y]; k++) {
+                    for (i = 0; i < ndad; i++) {
+                        d[k][i] = new double[arity[dad[i]]];
+                    }
+                }
+            }
             
             for (k = 0; k < arity[y]; k++) {
                 c[k] = 0.0;
                 for (i = 0; i < ndad; i++) {
-                    ri = arity[dad[i]];
-                    d[k][i] = new double[ri];
-                    for (xi = 0; xi < ri; xi++) {
-                        d[k][i][xi] = 0.0;
-                    }
+                    Arrays.fill(d[k][i], 0.0);
                 }
             }
             
+            // Start from a fit of a similar parent set unless that already failed.
+            warmStarted = (startFit != null && !conservative);
+            if (warmStarted) {
+                startFit.copyTo(c, d, parentCol);
+            }
+            
             /*
              * Now use the gereralized Newton method to adjust the parameters until
              * they settle on a value that gives zeroes partial first derivatives
@@ -787,6 +1037,8 @@ public class JulesLogit {
                 
             } while (!converged && iters < maxiters);
             
+            iterations += iters;
+            
             /*
              * printf("iters %3d params %3d\n\n", iters, Fi); for (k=0; k<=ry; k++) {
              * printf("c[%2d] = %8.4f\n" , k, c[k]); for (i=0; i<ndad; i++) { ri =
@@ -887,7 +1139,8 @@ public class JulesLogit {
             }
             kps = ps * arity[y] + data.cmpnt(y).intAt(n);
             if (Ndot[ps] == 0) {
-                int[] temp = new int[arity.length];
+                int[] temp = estate[npstates];
+                if (temp == null || temp.length != arity.length) { temp = new int[arity.length]; }
                 for (int ii = 0; ii < temp.length; ii++) {
                     try {
                         temp[ii] = data.cmpnt(ii).intAt(n);
@@ -1009,8 +1262,14 @@ public class JulesLogit {
 
     /** Return (c,d) parameter structure */
     public Value.Structured getParams() {
-        Value.Vector cVec = LogitFN.makeVec(c);
-        Value.Vector dVec = LogitFN.makeVec(d);
+        // c and d are reused by later fits, so copy them.
+        double[][][] dCopy = new double[d.length][][];
+        for (int k = 0; k < d.length; k++) {
+            dCopy[k] = new double[d[k].length][];
+            for (int i = 0; i < d[k].length; i++) { dCopy[k][i] = d[k][i].clone(); }
+        }
+        Value.Vector cVec = LogitFN.makeVec(c.clone());
+        Value.Vector dVec = LogitFN.makeVec(dCopy);
         return new Value.DefStructured(new Value[] {cVec,dVec});
     }
     
@@ -1046,6 +1305,9 @@ public class JulesLogit {
     //Sf S[Maxs*Maxp*Maxs];
 
     double S2yz[][];// = new double[Maxs][Maxs];
+    /** Work buffers for calcsums */
+    int pofs[], kpofs[], lpofs[];
+    double P[];
     double S2ij[][];// = new double[Maxs * Maxp * Maxs][Maxs * Maxp * Maxs];
 
     void calcsums(Node node, int diag) {
@@ -1059,13 +1321,13 @@ public class JulesLogit {
         int ry;
         int n;
 
-        int pofs[] = new int[numParents]; /* Offset of parent i in state ps into sums arrays */
-        int kpofs[] = new int[numParents];
-        int lpofs[] = new int[numParents];
+        final int pofs[] = this.pofs; /* Offset of parent i in state ps into sums arrays */
+        final int kpofs[] = this.kpofs;
+        final int lpofs[] = this.lpofs;
         double s[];
 
         double Q;
-        double P[] = new double[maxArity]; /* P[k] is Pr(Y=k|Parents = ps) */
+        final double P[] = this.P; /* P[k] is Pr(Y=k|Parents = ps) */
         double Pry;
 
         int es, ps, kps; /* parent combination counter */
@@ -1086,8 +1348,9 @@ public class JulesLogit {
         ry = arity[y] - 1;
 
         kix = kN[ry + 1]; /* number of combos of Y with one parent */        
-        //System.out.println("allocating S2ij[" + (kix+1)+"]["+(kix+1)+"]");
-        S2ij = new double[kix+1][kix+1];
+        if (S2ij == null || S2ij.length < kix+1) {
+            S2ij = new double[kix+1][kix+1];
+        }
         
         
         if (diag == 1) {
@@ -1097,7 +1360,7 @@ public class JulesLogit {
             }
             for (i = 0; i < kix; i++) { /* for each Y=k,Xi=xi combo */
                 S[i] = 0.0;
-                S2ij[i][i] = 0.0;
+                Arrays.fill(S2ij[i], 0, kix+1, 0);
             }
         } else {
             for (k = 0; k < ry; k++) {
@@ -1114,8 +1377,8 @@ public class JulesLogit {
             //memset(S, 0, kix*sizeof(Sf));
 
             // TODO: I think this is what the code below is doing?
-            for (int ii = 0; ii < S2ij.length; ii++) {
-                Arrays.fill(S2ij[ii], 0);
+            for (int ii = 0; ii <= kix; ii++) {
+                Arrays.fill(S2ij[ii], 0, kix+1, 0);
             }
             /*
               j = sizeof(Sf);
@@ -36,7 +36,12 @@
 
 package camml.core.models.logit;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import camml.core.models.ModelLearner;
+import camml.core.models.ModelLearner.CopyableLearner;
 import camml.core.models.ModelLearner.DefaultImplementation;
+import camml.core.models.ModelLearner.KeyedLearner;
 import camml.core.models.bNet.BNetLearner;
 import camml.core.models.cpt.CPTLearner;
 import cdms.core.Type;
@@ -53,7 +58,7 @@ import cdms.core.Value.Vector;
  * $Source: /u/csse/public/bai/bepi/cvs/CAMML/Camml/camml/core/models/logit/LogitLearner.java,v $
  */
 
-public class LogitLearner extends DefaultImplementation {
+public class LogitLearner extends DefaultImplementation implements KeyedLearner, CopyableLearner {
 
     /** Serial ID required to evolve class while maintaining serialisation compatibility. */
     private static final long serialVersionUID = 8756964567398266052L;
@@ -66,6 +71,46 @@ public class LogitLearner extends DefaultImplementation {
      */
     public LogitLearner() {    super(Type.MODEL, Type.TRIV); }
 
+    /** 
+     * Idle JulesLogit instances, so work buffers are reused by later calls whichever thread 
+     * makes them.  At most one instance is created per concurrent call.
+     */
+    private transient ConcurrentLinkedQueue<JulesLogit> workspaces;
+    
+    /** Fits used to warm start parameterizeAndCost, or null if warm starts are off. */
+    private transient volatile JulesLogit.FitCache fitCache;
+    
+    /** 
+     * Set whether parameterizeAndCost starts fits from the closest parent set previously
+     * fitted by this learner. (default == false)
+     */
+    public void setWarmStart( boolean warmStart )
+    {
+        if ( !warmStart ) { fitCache = null; }
+        else if ( fitCache == null ) { fitCache = new JulesLogit.FitCache(); }
+    }
+    
+    /** Return true if parameterizeAndCost warm starts fits. */
+    public boolean getWarmStart() { return fitCache != null; }
+    
+    /** 
+     * Return a LogitLearner with the same warm start setting.  The copy keeps its own fits
+     * and work buffers, so it does not warm start from fits made by this learner.
+     */
+    public ModelLearner copyLearner()
+    {
+        LogitLearner copy = new LogitLearner();
+        copy.setWarmStart( getWarmStart() );
+        return copy;
+    }
+    
+    /** Return the queue of idle JulesLogit instances, creating it if required. */
+    private synchronized ConcurrentLinkedQueue<JulesLogit> getWorkspaces()
+    {
+        if ( workspaces == null ) { workspaces = new ConcurrentLinkedQueue<JulesLogit>(); }
+        return workspaces;
+    }
+
     /** Parameterize and cost data all in one hit.   */
     public double parameterizeAndCost( Value i, Value.Vector x, Value.Vector z )
         throws LearnerException
@@ -74,9 +119,16 @@ public class LogitLearner extends DefaultImplementation {
         Type.Discrete xType = (Type.Discrete)((Type.Vector)x.t).elt;
         if ( xType.UPB == xType.LWB ) { return 0; }
 
-        JulesLogit logit = new JulesLogit();
-        logit.nodeCost(x,z);        
-        return logit.getMMLCost();
+        ConcurrentLinkedQueue<JulesLogit> idle = getWorkspaces();
+        JulesLogit logit = idle.poll();
+        if ( logit == null ) { logit = new JulesLogit(); }
+        try {
+            logit.setFitCache( fitCache );
+            logit.nodeCost(x,z);        
+            return logit.getMMLCost();
+        } finally {
+            idle.offer( logit );
+        }
     }
 
     
@@ -109,5 +161,13 @@ public class LogitLearner extends DefaultImplementation {
     public String getName() {
         return "LogitLearner";
     }
+    
+    /** 
+     * return "LogitLearner", or null while warm starts are on as costs then depend on 
+     * previous fits.
+     */
+    public String getLearnerKey() {
+        return getWarmStart() ? null : "LogitLearner";
+    }
 
 }
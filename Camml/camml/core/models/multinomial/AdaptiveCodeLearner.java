@@ -42,7 +42,6 @@ import camml.core.library.*;
 import cdms.plugin.model.*;
 import camml.core.models.*;
 
-import cdms.core.FN.LogFactorial;
 
 /**
  * Cost models using an adaptive code.<br>
@@ -50,6 +49,7 @@ import cdms.core.FN.LogFactorial;
  *              Add (|x|-1)*log(Pi*e/6)/2 to make it a MML score (as done in CaMML) <br>
  */
 public class AdaptiveCodeLearner extends ModelLearner.DefaultImplementation
+    implements ModelLearner.CountLearner, ModelLearner.KeyedLearner
 {
     /** Serial ID required to evolve class while maintaining serialisation compatibility. */
     private static final long serialVersionUID = -4679307451046263387L;
@@ -140,6 +140,13 @@ public class AdaptiveCodeLearner extends ModelLearner.DefaultImplementation
         Type.Discrete xType = (Type.Discrete)((Type.Vector)x.t).elt;
         Value.Model multinomialModel = 
             MultinomialLearner.getMultinomialModel((int)xType.LWB, (int)xType.UPB);
+        DiscreteColumnVector.View view = DiscreteColumnVector.view(x);
+        if ( view != null && view.cols.length == 1 && 
+             view.store.getArity(view.cols[0]) == (int)xType.UPB - (int)xType.LWB + 1 ) {
+            ContingencyCache cache = (view.rows == null) ? view.store.getContingencyCache() : null;
+            if ( cache != null ) { return countParameterizeAndCost( cache.counts(view.cols[0]) ); }
+            return countParameterizeAndCost( view.store.counts(view.cols[0],view.rows) );
+        }
         Value.Structured stats = (Value.Structured)multinomialModel.getSufficient(x,z);
         
         return sParameterizeAndCost( multinomialModel, stats );
@@ -152,11 +159,18 @@ public class AdaptiveCodeLearner extends ModelLearner.DefaultImplementation
         
         // Extract tallys from stats. 
         int[] tally = new int[stats.length()];
-        int totalTally = 0;
         for (int i = 0; i < tally.length; i++) {        
             tally[i] = stats.intCmpnt(i);
-            totalTally += tally[i];
         }
+        return countParameterizeAndCost( tally );
+    }
+    
+    /** Parameterise and cost from the number of occurrences of each value. */
+    public double countParameterizeAndCost( int[] tally )
+    {
+        int totalTally = 0;
+        for (int i = 0; i < tally.length; i++) { totalTally += tally[i]; }
+        double[] logFactorial = LogFactorialTable.get( totalTally + tally.length - 1 );
         
         // adaptive code cost = log( (N+|x|-1)!/((|x|-1)!*product(x_i)) )
         // = log!(N+|x|-1) - log!(|x|-1) - sum log!(x_i)
@@ -164,10 +178,10 @@ public class AdaptiveCodeLearner extends ModelLearner.DefaultImplementation
         
         double cost = 0;
         for (int i = 0; i < tally.length; i++) {        
-            cost -= LogFactorial.logFactorial( tally[i] );
+            cost -= LogFactorialTable.lookup( logFactorial, tally[i] );
         }
-        cost += LogFactorial.logFactorial( totalTally + tally.length - 1);
-        cost -= LogFactorial.logFactorial( tally.length - 1 );
+        cost += LogFactorialTable.lookup( logFactorial, totalTally + tally.length - 1 );
+        cost -= LogFactorialTable.lookup( logFactorial, tally.length - 1 );
         
         if ( useMMLScore ) {
             cost += (tally.length - 1) * 0.17649;
@@ -175,6 +189,35 @@ public class AdaptiveCodeLearner extends ModelLearner.DefaultImplementation
         return cost;
     }
     
+    /** Sum of countParameterizeAndCost over each column of tally[x][j] */
+    public double tallyCost( int[][] tally )
+    {
+        final int arity = tally.length;
+        final int numCombinations = (arity == 0) ? 0 : tally[0].length;
+        int maxTotal = 0;
+        for (int j = 0; j < numCombinations; j++) {
+            int total = 0;
+            for (int x = 0; x < arity; x++) { total += tally[x][j]; }
+            if ( total > maxTotal ) { maxTotal = total; }
+        }
+        double[] logFactorial = LogFactorialTable.get( maxTotal + arity - 1 );
+        
+        double totalCost = 0;
+        for (int j = 0; j < numCombinations; j++) {
+            int total = 0;
+            double cost = 0;
+            for (int x = 0; x < arity; x++) {
+                total += tally[x][j];
+                cost -= LogFactorialTable.lookup( logFactorial, tally[x][j] );
+            }
+            cost += LogFactorialTable.lookup( logFactorial, total + arity - 1 );
+            cost -= LogFactorialTable.lookup( logFactorial, arity - 1 );
+            if ( useMMLScore ) { cost += (arity - 1) * 0.17649; }
+            totalCost += cost;
+        }
+        return totalCost;
+    }
+    
     
     /** Multinomial2 is the same as Multinomial but implementing GetNumParams */
     public static class Multinomial2 extends Multinomial implements GetNumParams
@@ -194,6 +237,9 @@ public class AdaptiveCodeLearner extends ModelLearner.DefaultImplementation
     /** Return "AdaptiveCodeLearner" */
     public String toString() { return "AdaptiveCodeLearner(" + biasVal+",mml="+useMMLScore+")"; }
     
+    /** return "AdaptiveCodeLearner(biasVal,useMMLScore)" */
+    public String getLearnerKey() { return "AdaptiveCodeLearner(" + biasVal + "," + useMMLScore + ")"; }
+    
     
     
     
@@ -49,6 +49,7 @@ import cdms.plugin.model.Gamma;
  * Cost models using an BDE code.<br>
  */
 public class BDELearner extends ModelLearner.DefaultImplementation
+    implements ModelLearner.CountLearner, ModelLearner.KeyedLearner
 {
     /** Serial ID required to evolve class while maintaining serialisation compatibility. */
     private static final long serialVersionUID = 6038596144648560788L;
@@ -134,11 +135,17 @@ public class BDELearner extends ModelLearner.DefaultImplementation
         
         // Convert from Struct -> int[]
         int[] tally = new int[stats.length()];
-        int totalTally = 0;
         for (int i = 0; i < tally.length; i++) {        
             tally[i] = stats.intCmpnt(i);
-            totalTally += tally[i];
         }
+        return countParameterizeAndCost( tally );
+    }
+    
+    /** Parameterise and cost from the number of occurrences of each value. */
+    public double countParameterizeAndCost( int[] tally )
+    {
+        int totalTally = 0;
+        for (int i = 0; i < tally.length; i++) { totalTally += tally[i]; }
         
         double cost = Gamma.logGamma(ess+totalTally) - Gamma.logGamma(ess);
         for ( int i = 0; i < tally.length; i++ ) {
@@ -149,6 +156,39 @@ public class BDELearner extends ModelLearner.DefaultImplementation
         return cost;
     }
     
+    /** Sum of countParameterizeAndCost over each column of tally[x][j] */
+    public double tallyCost( int[][] tally )
+    {
+        final int arity = tally.length;
+        final int numCombinations = (arity == 0) ? 0 : tally[0].length;
+        final double alpha = ess / arity;
+        final double logGammaAlpha = Gamma.logGamma( alpha );
+        final double logGammaEss = Gamma.logGamma( ess );
+        
+        // logGamma(alpha + n) for each count n seen so far (most counts are small and repeated)
+        double[] logGammaCount = new double[64];
+        boolean[] known = new boolean[64];
+        
+        double totalCost = 0;
+        for (int j = 0; j < numCombinations; j++) {
+            int total = 0;
+            for (int x = 0; x < arity; x++) { total += tally[x][j]; }
+            double cost = Gamma.logGamma(ess+total) - logGammaEss;
+            for (int x = 0; x < arity; x++) {
+                int n = tally[x][j];
+                if ( n >= known.length ) {
+                    int size = Math.max( n + 1, 2 * known.length );
+                    logGammaCount = java.util.Arrays.copyOf( logGammaCount, size );
+                    known = java.util.Arrays.copyOf( known, size );
+                }
+                if ( !known[n] ) { logGammaCount[n] = Gamma.logGamma( alpha + n ); known[n] = true; }
+                cost += logGammaAlpha - logGammaCount[n];
+            }
+            totalCost += cost;
+        }
+        return totalCost;
+    }
+    
     /** return cost, parameters are ignored. */
     public double sCost( Value.Model m, Value stats, Value params )
     {
@@ -158,6 +198,9 @@ public class BDELearner extends ModelLearner.DefaultImplementation
     
     public String toString() { return "BDELearner"; }
     
+    /** return "BDELearner(ess)" */
+    public String getLearnerKey() { return "BDELearner(" + ess + ")"; }
+    
     
     
     
@@ -49,6 +49,7 @@ import camml.core.models.ModelLearner;
  * standard way. <br>
  */
 public class MLMultinomialLearner extends ModelLearner.DefaultImplementation
+    implements ModelLearner.KeyedLearner
 {
     /** Serial ID required to evolve class while maintaining serialisation compatibility. */
     private static final long serialVersionUID = 377380353677126451L;
@@ -128,5 +129,8 @@ public class MLMultinomialLearner extends ModelLearner.DefaultImplementation
     }
     
     public String toString() { return "MLMultinomialLearner";}
+    
+    /** return "MLMultinomialLearner" */
+    public String getLearnerKey() { return "MLMultinomialLearner"; }
 }
 
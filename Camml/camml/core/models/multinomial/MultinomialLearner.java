@@ -49,6 +49,7 @@ import camml.core.models.*;
  * standard way. <br>
  */
 public class MultinomialLearner extends ModelLearner.DefaultImplementation
+    implements ModelLearner.CountLearner, ModelLearner.KeyedLearner
 {
     /** Serial ID required to evolve class while maintaining serialisation compatibility. */
     private static final long serialVersionUID = 6399666127784362130L;
@@ -132,14 +133,41 @@ public class MultinomialLearner extends ModelLearner.DefaultImplementation
     /** Parameterise and cost data all in one hit.   */
     public double sParameterizeAndCost( Value.Model m, Value s )
     {
-        // sParameterize
         Value.Structured stats = (Value.Structured)s;
-        
-        double paramArray[] = new double[stats.length()];
+        double[] counts = new double[stats.length()];
+        for (int i = 0; i < counts.length; i++) { counts[i] = stats.doubleCmpnt(i); }
+        return parameterizeAndCost( counts );
+    }
+    
+    /** Parameterise and cost from the number of occurrences of each value. */
+    public double countParameterizeAndCost( int[] counts )
+    {
+        double[] c = new double[counts.length];
+        for (int i = 0; i < c.length; i++) { c[i] = counts[i]; }
+        return parameterizeAndCost( c );
+    }
+    
+    /** Sum of countParameterizeAndCost over each column of tally[x][j] */
+    public double tallyCost( int[][] tally )
+    {
+        final int numCombinations = (tally.length == 0) ? 0 : tally[0].length;
+        double[] c = new double[tally.length];
+        double totalCost = 0;
+        for (int j = 0; j < numCombinations; j++) {
+            for (int x = 0; x < c.length; x++) { c[x] = tally[x][j]; }
+            totalCost += parameterizeAndCost( c );
+        }
+        return totalCost;
+    }
+    
+    /** Shared implementation of sParameterizeAndCost and countParameterizeAndCost */
+    protected double parameterizeAndCost( double[] counts )
+    {
+        double paramArray[] = new double[counts.length];
         double total = (double)paramArray.length * biasVal;
         
         for (int i = 0; i < paramArray.length; i++) {        
-            paramArray[i] = stats.doubleCmpnt(i);
+            paramArray[i] = counts[i];
             total += paramArray[i];
         }
         
@@ -148,12 +176,12 @@ public class MultinomialLearner extends ModelLearner.DefaultImplementation
             paramArray[i] = (paramArray[i] + biasVal) / total;
         }
         
-        int arity = stats.length();
+        int arity = counts.length;
         double total2 = 0;
         double cost = 0;
         
         for(int i = 0; i < arity; i++) {        
-            total2 += stats.doubleCmpnt(i);
+            total2 += counts[i];
         }
         
         if(total2 > 0) {
@@ -174,7 +202,7 @@ public class MultinomialLearner extends ModelLearner.DefaultImplementation
             double logLH = 0;
             for(int i = 0; i < arity; i++)
                 {
-                    logLH -= stats.doubleCmpnt(i) * Math.log( paramArray[i] );
+                    logLH -= counts[i] * Math.log( paramArray[i] );
                 }
             
             cost += logLH;
@@ -295,6 +323,9 @@ public class MultinomialLearner extends ModelLearner.DefaultImplementation
     
     public String toString() { return "MultinomialLearner"; }
     
+    /** return "MultinomialLearner(biasVal)" */
+    public String getLearnerKey() { return "MultinomialLearner(" + biasVal + ")"; }
+    
     
     
     
@@ -36,9 +36,14 @@
 
 package camml.core.search;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
 import cdms.core.*;
 import camml.core.models.ModelLearner;
 import camml.core.library.WallaceRandom;
+import camml.core.library.WorkerPool;
 
 /**
  * Anneal search is based on the Anneal search in the original version of CaMML by
@@ -196,6 +201,9 @@ public class AnnealSearch extends BNetSearch
      *
      * At the end of each epoch arcProb is recalculated based on the best model found.
      *
+     * If caseInfo.annealThreads > 1 all fill and clear epochs are run in parallel during a 
+     *  single call (see doParallelRestarts()).
+     *
      * Once isFinished() returns true the best model will be obtained by calling getBestTOM().
      *
      * The best cost found so far is returned after each call to doEpoch.
@@ -218,27 +226,21 @@ public class AnnealSearch extends BNetSearch
             System.out.print('I');
             doSteps( 7 * nCubed );
         }
+        // Run all fill and clear epochs at once if multiple threads are available.
+        else if ( epoch == 1 && caseInfo.annealThreads > 1 && !caseInfo.regression ) {
+            doParallelRestarts( 7 * nCubed );
+            epoch = fillEpochs + clearEpochs;
+        }
         // Try starting from a fully connected model
         // If searchfactor too low, skip fill step.
         else if ( epoch <= fillEpochs && caseInfo.searchFactor != 0) {
-            tom.clearArcs();
-            tom.randomOrder( rand );        
-            tom.fillArcs( tom.maxNumParents ); // fill arcs (max of 7 parents per node) 
-            caseInfo.tomCoster.repairTOM(tom);
-            
-            // This line does nothing (apart from advancing random number seed) 
-            // and is entirely for regression.
-            if ( caseInfo.regression ) { tom.buildOrder( rand ); }
-            
+            startRestart( true );
             System.out.print('F');    
             doSteps( 7 * nCubed );        
         }
         // Try starting from an empty model.
         else if ( epoch <= fillEpochs + clearEpochs ) {
-            tom.clearArcs();
-            tom.randomOrder( rand ); 
-            caseInfo.tomCoster.repairTOM(tom);
-            
+            startRestart( false );
             System.out.print('C');
             doSteps( 7 * nCubed );
         }
@@ -271,6 +273,82 @@ public class AnnealSearch extends BNetSearch
         return bestCost;
     }
     
+    /** 
+     * Set tom to the starting point of a fill (fully connected) or clear (empty) restart 
+     * epoch.  A random total ordering is used.
+     */
+    protected void startRestart( boolean fill )
+    {
+        tom.clearArcs();
+        tom.randomOrder( rand );        
+        if ( fill ) {
+            tom.fillArcs( tom.maxNumParents ); // fill arcs (max of 7 parents per node) 
+        }
+        caseInfo.tomCoster.repairTOM(tom);
+        
+        // This line does nothing (apart from advancing random number seed) 
+        // and is entirely for regression.
+        if ( fill && caseInfo.regression ) { tom.buildOrder( rand ); }
+    }
+    
+    /**
+     * Run all fill and clear restart epochs in parallel using caseInfo.annealThreads threads.<br>
+     * Each restart uses its own AnnealSearch with its own TOM, CaseInfo and a random stream
+     * seeded from rand.  Restarts are created in batches of annealThreads, so at most
+     * annealThreads restarts exist at once.  All restarts share the NodeCache returned by
+     * NodeCache.getSharedCache(), costs they learn are merged back into caseInfo.nodeCache.
+     * All restarts use the arcProb found by the initial epoch (instead of the arcProb
+     * re-estimated after each serial epoch).  The best TOM found by any restart is kept and
+     * arcProb is re-estimated from it as in doSteps().
+     */
+    protected void doParallelRestarts( final long numSteps )
+    {
+        int numRestarts = fillEpochs + clearEpochs;
+        int numThreads = caseInfo.annealThreads;
+        NodeCache sharedCache = caseInfo.nodeCache.getSharedCache();
+        
+        for ( int first = 0; first < numRestarts; first += numThreads ) {
+            // Restarts are created in this thread as constructing a search modifies tomCoster.
+            List<Callable<AnnealSearch>> tasks = new ArrayList<Callable<AnnealSearch>>();
+            for ( int i = first; i < Math.min( first + numThreads, numRestarts ); i++ ) {
+                CaseInfo restartInfo = caseInfo.makeWorkerCopy( sharedCache );
+                final AnnealSearch r = 
+                    new AnnealSearch( new java.util.Random( rand.nextLong() ), restartInfo );
+                r.setArcProb( arcProb );
+                r.fixedArcProb = true;
+                r.tom.setMaxNumParents( tom.getMaxNumParents() );
+                
+                // If searchfactor too low, skip fill step.
+                final boolean fill = (i < fillEpochs && caseInfo.searchFactor != 0);
+                tasks.add( new Callable<AnnealSearch>() {
+                        public AnnealSearch call() {
+                            r.startRestart( fill );
+                            r.currentCost = r.costNetwork( r.mmlModelLearner, false );
+                            r.bestTOM.setStructure( r.tom );
+                            r.bestCost = r.currentCost;
+                            for ( long j = 0; j < numSteps; j++ ) { r.step(j); }
+                            System.out.print( fill ? 'F' : 'C' );
+                            return r;
+                        }
+                    });
+            }
+            tomCoster.setArcProb( arcProb );
+            
+            // Reduce to the best TOM found by any restart.
+            for ( AnnealSearch r : WorkerPool.runAll( tasks, numThreads ) ) {
+                if ( r.bestCost + 0.001 < bestCost ) {
+                    bestTOM.setStructure( r.bestTOM );
+                    bestCost = r.bestCost;
+                }
+            }
+        }
+        caseInfo.nodeCache.mergeSharedCache( sharedCache );
+        
+        // Re-estimate arcProb and clean the best TOM.
+        tom.setStructure( bestTOM );
+        doSteps( 0 );
+    }
+    
     /** return percentage of search completed. */
     public double getPercentage() 
     {
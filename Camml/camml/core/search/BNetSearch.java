@@ -37,13 +37,20 @@
 package camml.core.search;
 
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
 
 import cdms.core.*;
 import cdms.plugin.search.*;
 
+import camml.core.library.DiscreteColumnVector;
 import camml.core.models.ModelLearner;
 import camml.core.models.bNet.BNet;
 import camml.core.models.bNet.BNetStochastic;
+import camml.core.models.dTree.DTreeLearner;
+import camml.core.models.dTree.ForcedSplitDTreeLearner;
+import camml.core.models.dual.DualLearner;
+import camml.core.models.logit.LogitLearner;
 import camml.plugin.netica.BNetNetica;
 import camml.plugin.tomCoster.ExpertElicitedTOMCoster;
 
@@ -170,10 +177,10 @@ public abstract class BNetSearch implements Search.SearchObject
     protected final java.util.Random rand;
     
     /** Learner to find MML estimates of node costs and parameters */
-    protected final ModelLearner mmlModelLearner;
+    protected ModelLearner mmlModelLearner;
     
     /** Leraner to find ML estimated of node costs and parameters */
-    protected final ModelLearner mlModelLearner;
+    protected ModelLearner mlModelLearner;
     
     /** Prior on arcs being present. */
     protected double arcProb = 0.5;
@@ -193,6 +200,110 @@ public abstract class BNetSearch implements Search.SearchObject
     /** Current Epoch */
     public /*protected*/ long epoch = 0; // temporarily made public for jython
     
+    /**
+     * Return the learners this search costs nodes with (caseInfo.mmlModelLearner and 
+     * caseInfo.mlModelLearner) and the alternatives of any DualLearner among them.
+     */
+    protected List<ModelLearner> getNodeLearners()
+    {
+        List<ModelLearner> learners = new ArrayList<ModelLearner>();
+        learners.add( caseInfo.mmlModelLearner );
+        learners.add( caseInfo.mlModelLearner );
+        for ( int i = 0; i < learners.size(); i++ ) {
+            ModelLearner learner = learners.get(i);
+            if ( learner instanceof DualLearner ) {
+                for ( ModelLearner alt : ((DualLearner)learner).getAlternatives() ) {
+                    if ( !learners.contains(alt) ) { learners.add( alt ); }
+                }
+            }
+        }
+        return learners;
+    }
+    
+    /** Has getPrivateLearners() replaced this search's learners with copies? */
+    private boolean privateLearners = false;
+    
+    /**
+     * Return getNodeLearners() after first replacing this search's learners with copies used
+     * by this search only (see ModelLearner.CopyableLearner), so options changing how a learner
+     * runs do not affect other searches sharing it (eg. DualLearner.dualCPTDTreeLearner).  The
+     * first call replaces caseInfo's learners and caseInfo.nodeCache with copies.  Returns an
+     * empty list if the node cache can not be copied (eg. DBN searches).
+     */
+    protected List<ModelLearner> getPrivateLearners()
+    {
+        if ( !privateLearners ) {
+            Class<?> c = caseInfo.nodeCache.getClass();
+            if ( c != NodeCache.class && c != ConcurrentNodeCache.class ) { 
+                return new ArrayList<ModelLearner>(); 
+            }
+            ModelLearner mml = copyLearner( caseInfo.mmlModelLearner );
+            ModelLearner ml = (caseInfo.mlModelLearner == caseInfo.mmlModelLearner) ? 
+                mml : copyLearner( caseInfo.mlModelLearner );
+            caseInfo.mmlModelLearner = mmlModelLearner = mml;
+            caseInfo.mlModelLearner = mlModelLearner = ml;
+            caseInfo.nodeCache = caseInfo.nodeCache.copyWithLearners( mml, ml );
+            privateLearners = true;
+        }
+        return getNodeLearners();
+    }
+    
+    /** Return a copy of learner if it is a CopyableLearner, otherwise learner. */
+    private static ModelLearner copyLearner( ModelLearner learner )
+    {
+        if ( learner instanceof ModelLearner.CopyableLearner ) {
+            return ((ModelLearner.CopyableLearner)learner).copyLearner();
+        }
+        return learner;
+    }
+    
+    /** Has the logitWarmStart option been set? */
+    private boolean logitWarmStart = false;
+    
+    /** 
+     * Turn warm starts of this search's LogitLearners on if the logitWarmStart option is set,
+     * or off if it is not or regression is set (as warm starts change costs slightly).  The
+     * learners are only replaced by copies (see getPrivateLearners) if a setting must change.
+     */
+    private void setLogitWarmStart()
+    {
+        boolean warmStart = logitWarmStart && !caseInfo.regression;
+        boolean change = false;
+        for ( ModelLearner learner : getNodeLearners() ) {
+            if ( learner instanceof LogitLearner && 
+                 ((LogitLearner)learner).getWarmStart() != warmStart ) { change = true; }
+        }
+        if ( !change ) { return; }
+        
+        for ( ModelLearner learner : getPrivateLearners() ) {
+            if ( learner instanceof LogitLearner ) {
+                ((LogitLearner)learner).setWarmStart( warmStart );
+            }
+        }
+    }
+    
+    /** Store returned by getPrivateStore(), null until first needed. */
+    private DiscreteColumnVector privateStore = null;
+    
+    /**
+     * Return a DiscreteColumnVector holding caseInfo.data which is used by this search only, 
+     * so options changing how counts are cached do not affect other searches over the same 
+     * data.  The first call replaces caseInfo.data and caseInfo.nodeCache with a copy of the 
+     * store (sharing its columns) and a node cache over it.  Returns null if the data is not 
+     * held in a DiscreteColumnVector, or the node cache can not be copied (eg. DBN searches).
+     */
+    protected DiscreteColumnVector getPrivateStore()
+    {
+        Class<?> c = caseInfo.nodeCache.getClass();
+        if ( privateStore == null && caseInfo.data instanceof DiscreteColumnVector &&
+             (c == NodeCache.class || c == ConcurrentNodeCache.class) ) {
+            privateStore = ((DiscreteColumnVector)caseInfo.data).copy();
+            caseInfo.data = privateStore;
+            caseInfo.nodeCache = caseInfo.nodeCache.copyWithData( privateStore );
+        }
+        return privateStore;
+    }
+    
     /** 
      * Set an option by name to a given value. Some options are search specific. <br> 
      * Return false if option name is unknown <p>
@@ -219,6 +330,33 @@ public abstract class BNetSearch implements Search.SearchObject
      *    <b>minTotalPosterior</b> -- Minimal posterior retained post metropolis sampling.
      *                    If more than 'maxSECs' SECs are required, this condition is ignored. 
      *    <b>useNetica</b> -- Return BNetNetica instead of BNetStochastic models.
+     *    <b>numChains</b> -- Number of independent Metropolis chains sampled in parallel. (default == 1)
+     *    <b>annealThreads</b> -- Number of threads used for anneal restart epochs. (default == 1)
+     *    <b>klThreads</b> -- Number of threads used to build the stochastic KL matrix. (default == 1)
+     *    <b>paramThreads</b> -- Number of threads used to parameterise result TOMs. (default == 1)
+     *    <b>dTreeThreads</b> -- Number of threads used by this search's decision tree learners to
+     *                   evaluate the candidate splits of the root. (default == 1, see DTreeLearner)
+     *    <b>dualThreads</b> -- Number of threads used to cost the alternative models considered by
+     *                   this search's DualLearners. (default == 1)
+     *    <b>dualBounds</b> -- Skip alternatives of this search's DualLearners whose lower bound
+     *                   cannot beat the best cost found. (default == true)
+     *    <b>logitWarmStart</b> -- Start this search's logit fits from the closest previously fitted
+     *                   parent set.  Ignored when regression is set. (default == false, see LogitLearner)
+     *    <b>contingencyCacheMB</b> -- Memory used by this search to cache count tables and row
+     *                   bitmaps of discrete data, 0 disables both. (default == 32, see ContingencyCache)
+     *    <b>bitmapIndex</b> -- Count low arity discrete data using row bitmaps where cheaper
+     *                   than a pass over the data. (default == true, see BitmapIndex)
+     *    <b>sharedSampleKL</b> -- Estimate all KL distances from one pooled sample. (default == false)
+     *    <b>concurrentNodeCache</b> -- Use a single ConcurrentNodeCache shared by all threads.
+     *    <b>leastUsedEviction</b> -- Evict the least used entry probed from a full NodeCache
+     *                   instead of the first. (default == false, see NodeCache.EvictionPolicy)
+     *    <b>nodeCostStore</b> -- File used to store node costs between runs on the same data.
+     *    <b>stopOnConvergence</b> -- Stop sampling once minESS, maxTopSECChange and maxArcDrift
+     *                   are all met. (default == false, see ConvergenceMonitor)
+     *    <b>minESS</b> -- Minimum effective sample size of the cost trace. (default == 1000)
+     *    <b>maxTopSECChange</b> -- Maximum change in top SEC posterior between checks. (default == 0.01)
+     *    <b>maxArcDrift</b> -- Maximum change in any arc portion between checks. (default == 0.01)
+     *    <b>maxSeconds</b> -- Wall clock limit on sampling in seconds. (default == 0, no limit)
      */ 
     public boolean setOption( final String option, Value v ) {
         if ( option.equals("arcProb") ) {        
@@ -262,6 +400,7 @@ public abstract class BNetSearch implements Search.SearchObject
         else if ( option.equals("regression") ) {
             caseInfo.regression = (((Value.Discrete)v).getDiscrete() == 0);        
             System.out.println( "Setting regression: " + caseInfo.regression );
+            setLogitWarmStart();
         }
         else if ( option.equals("TOMCoster") ) {
             setTOMCoster((TOMCoster)((Value.Obj)v).getObj());            
@@ -280,6 +419,123 @@ public abstract class BNetSearch implements Search.SearchObject
             int x = ((Value.Scalar)v).getDiscrete();
             caseInfo.maxNumSECs = x;
         }
+        else if ( option.equals("numChains") ) {
+            int x = ((Value.Scalar)v).getDiscrete();
+            if ( x < 1 ) { throw new RuntimeException("numChains must be >= 1"); }
+            caseInfo.numChains = x;
+        }
+        else if ( option.equals("annealThreads") ) {
+            int x = ((Value.Scalar)v).getDiscrete();
+            if ( x < 1 ) { throw new RuntimeException("annealThreads must be >= 1"); }
+            caseInfo.annealThreads = x;
+        }
+        else if ( option.equals("klThreads") ) {
+            int x = ((Value.Scalar)v).getDiscrete();
+            if ( x < 1 ) { throw new RuntimeException("klThreads must be >= 1"); }
+            caseInfo.klThreads = x;
+        }
+        else if ( option.equals("contingencyCacheMB") ) {
+            double x = ((Value.Scalar)v).getContinuous();
+            if ( x < 0 ) { throw new RuntimeException("contingencyCacheMB must be >= 0"); }
+            DiscreteColumnVector store = getPrivateStore();
+            if ( store != null ) { store.setContingencyCacheBytes( (long)(x * (1 << 20)) ); }
+        }
+        else if ( option.equals("bitmapIndex") ) {
+            DiscreteColumnVector store = getPrivateStore();
+            if ( store != null ) { store.setUseBitmapIndex( ((Value.Discrete)v).getDiscrete() == 0 ); }
+        }
+        else if ( option.equals("paramThreads") ) {
+            int x = ((Value.Scalar)v).getDiscrete();
+            if ( x < 1 ) { throw new RuntimeException("paramThreads must be >= 1"); }
+            caseInfo.paramThreads = x;
+        }
+        else if ( option.equals("dTreeThreads") ) {
+            int x = ((Value.Scalar)v).getDiscrete();
+            if ( x < 1 ) { throw new RuntimeException("dTreeThreads must be >= 1"); }
+            for ( ModelLearner learner : getPrivateLearners() ) {
+                if ( learner instanceof DTreeLearner ) { 
+                    ((DTreeLearner)learner).setSplitThreads( x ); 
+                }
+                else if ( learner instanceof ForcedSplitDTreeLearner ) {
+                    ((ForcedSplitDTreeLearner)learner).setSplitThreads( x );
+                }
+            }
+        }
+        else if ( option.equals("dualThreads") ) {
+            int x = ((Value.Scalar)v).getDiscrete();
+            if ( x < 1 ) { throw new RuntimeException("dualThreads must be >= 1"); }
+            for ( ModelLearner learner : getPrivateLearners() ) {
+                if ( learner instanceof DualLearner ) { 
+                    ((DualLearner)learner).setAlternativeThreads( x ); 
+                }
+            }
+        }
+        else if ( option.equals("dualBounds") ) {
+            boolean useBounds = (((Value.Discrete)v).getDiscrete() == 0);
+            for ( ModelLearner learner : getPrivateLearners() ) {
+                if ( learner instanceof DualLearner ) { 
+                    ((DualLearner)learner).setUseBounds( useBounds ); 
+                }
+            }
+        }
+        else if ( option.equals("logitWarmStart") ) {
+            logitWarmStart = (((Value.Discrete)v).getDiscrete() == 0);
+            setLogitWarmStart();
+        }
+        else if ( option.equals("sharedSampleKL") ) {
+            caseInfo.sharedSampleKL = (((Value.Discrete)v).getDiscrete() == 0);
+        }
+        else if ( option.equals("stopOnConvergence") ) {
+            caseInfo.stopOnConvergence = (((Value.Discrete)v).getDiscrete() == 0);
+        }
+        else if ( option.equals("minESS") ) {
+            caseInfo.minESS = ((Value.Scalar)v).getContinuous();
+        }
+        else if ( option.equals("maxTopSECChange") ) {
+            caseInfo.maxTopSECChange = ((Value.Scalar)v).getContinuous();
+        }
+        else if ( option.equals("maxArcDrift") ) {
+            caseInfo.maxArcDrift = ((Value.Scalar)v).getContinuous();
+        }
+        else if ( option.equals("maxSeconds") ) {
+            double d = ((Value.Scalar)v).getContinuous();
+            if ( d < 0 ) { throw new RuntimeException("maxSeconds must be >= 0"); }
+            caseInfo.maxSamplingSeconds = d;
+        }
+        else if ( option.equals("concurrentNodeCache") ) {
+            if ( ((Value.Discrete)v).getDiscrete() == 0 ) {
+                NodeCache old = caseInfo.nodeCache;
+                if ( old.getClass() != NodeCache.class ) {
+                    throw new RuntimeException("concurrentNodeCache unavailable for " + old.getClass());
+                }
+                caseInfo.nodeCache = new ConcurrentNodeCache( old.data, old.mmlLearner, old.mlLearner,
+                                                              old.mbPerNode, old.capacityBytes,
+                                                              old.verifyKeys );
+                caseInfo.nodeCache.evictionPolicy = old.evictionPolicy;
+                caseInfo.nodeCache.costStore = old.costStore;
+                caseInfo.nodeCache.caseInfo = caseInfo;
+            }
+            System.out.println( "Using concurrent node cache: " + 
+                                (caseInfo.nodeCache instanceof ConcurrentNodeCache) );
+        }
+        else if ( option.equals("leastUsedEviction") ) {
+            caseInfo.nodeCache.evictionPolicy = (((Value.Discrete)v).getDiscrete() == 0) ?
+                NodeCache.EvictionPolicy.LEAST_USED : NodeCache.EvictionPolicy.OVERWRITE_HOME;
+        }
+        else if ( option.equals("nodeCostStore") ) {
+            NodeCache nc = caseInfo.nodeCache;
+            if ( nc.getClass() != NodeCache.class && nc.getClass() != ConcurrentNodeCache.class ) {
+                throw new RuntimeException("nodeCostStore unavailable for " + nc.getClass());
+            }
+            String fileName = ((Value.Str)v).getString();
+            try {
+                nc.costStore = new NodeCostStore( new java.io.File(fileName), nc.data, 
+                                                  nc.mmlLearner, nc.mlLearner );
+            } catch ( java.io.IOException e ) {
+                throw new RuntimeException( "Could not open nodeCostStore : " + fileName, e );
+            }
+            System.out.println( "Using node cost store: " + nc.costStore );
+        }
         else if ( option.equals("minTotalPosterior") ) {
             double d = ((Value.Scalar)v).getContinuous();
             caseInfo.minTotalPosterior = d;
@@ -418,9 +674,15 @@ public abstract class BNetSearch implements Search.SearchObject
         caseInfo.tomCoster = tomCoster;
     }
     
-    /** return true is search finished */
+    /** 
+     * return true is search finished.  Once the search is finished any costs it has added to
+     * caseInfo.nodeCache.costStore are written to disk.
+     */
     public boolean isFinished() 
     {
+        if ( searchDone && caseInfo.nodeCache.costStore != null ) {
+            caseInfo.nodeCache.costStore.flush();
+        }
         return searchDone;
     }
     
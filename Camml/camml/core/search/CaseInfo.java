@@ -40,6 +40,7 @@ package camml.core.search;
 import cdms.core.*;
 import camml.core.models.bNet.BNet;
 import camml.core.models.bNet.BNetStochastic;
+import camml.core.library.DiscreteColumnVector;
 
 import camml.core.models.*;
 import camml.core.search.SEC.CompactTOM;
@@ -159,6 +160,36 @@ public class CaseInfo implements Serializable {
     /** Some code should only be used in regression testing. */
     public boolean regression = false;
     
+    /** Number of independent Metropolis chains to run in parallel.  
+     *  Each chain samples (1/numChains) of the total number of TOMs. */
+    public int numChains = 1;
+    
+    /** Number of threads used to run the fill and clear restart epochs of AnnealSearch.
+     *  When 1 the restarts are run serially. */
+    public int annealThreads = 1;
+    
+    /** Number of threads used to calculate rows of the stochastic KL matrix in MetropolisSearch */
+    public int klThreads = 1;
+    
+    /** Number of threads used to parameterise the representative TOM of each SEC when
+     *  building results.  Node models are learned in parallel over nodes and SECs. */
+    public int paramThreads = 1;
+    
+    /** 
+     * Estimate the stochastic KL matrix from a single sample pooled over all SECs, 
+     * see MetropolisSearch.makeSharedSampleKL 
+     */
+    public boolean sharedSampleKL = false;
+    
+    /** Should Metropolis sampling stop early once ConvergenceMonitor thresholds are met? */
+    public boolean stopOnConvergence = false;
+    
+    /** Thresholds used by ConvergenceMonitor to decide if sampling has converged. */
+    public double minESS = 1000, maxTopSECChange = 0.01, maxArcDrift = 0.01;
+    
+    /** Limit on Metropolis sampling time in seconds, sampling stops once reached.  0 = no limit */
+    public double maxSamplingSeconds = 0;
+    
     /** How should DAGs within an SEC be sorted? */
     public Comparator<CompactTOM> tomComparator = SEC.tomWeightComparator;
     
@@ -193,7 +224,7 @@ public class CaseInfo implements Serializable {
     public CaseInfo( TOMHash tomHash, SECHash secHash, Value.Vector data, ModelLearner mmlModelLearner, 
                      ModelLearner mlModelLearner,     double referenceWeight, NodeCache nodeCache ) {
         this.tomHash = tomHash; this.secHash = secHash;
-        this.data = data; this.mmlModelLearner = mmlModelLearner;
+        this.data = DiscreteColumnVector.make(data); this.mmlModelLearner = mmlModelLearner;
         this.nodeCache = nodeCache;
         this.mlModelLearner = mlModelLearner; this.referenceWeight = referenceWeight;
         this.totalWeight = 0;
@@ -202,6 +233,48 @@ public class CaseInfo implements Serializable {
     }
     
     
+    /** 
+     * Create a copy of this CaseInfo for use by a worker search (eg. a parallel Metropolis 
+     * chain) running in its own thread. <br>
+     * Data, learners, hash functions, tomCoster, tomCleaner and search options are shared. 
+     * All accumulated weights (totalWeight, arcWeights, ...) are reset so the worker can 
+     * accumulate its own.  Logging is disabled in the worker as cammlLog is not thread safe.
+     */
+    public CaseInfo makeWorkerCopy( NodeCache nodeCache ) {
+        CaseInfo c = new CaseInfo( null, null, data, mmlModelLearner, mlModelLearner,
+                                   referenceWeight, nodeCache );
+        c.bNet = bNet;
+        c.tomHash = tomHash;
+        c.secHash = secHash;
+        c.tomCoster = tomCoster;
+        c.tomCleaner = tomCleaner;
+        c.arcProb = arcProb;
+        c.temperature = temperature;
+        c.searchFactor = searchFactor;
+        
+        c.allowMergeToModelWithMoreArcs = allowMergeToModelWithMoreArcs;
+        c.cklJoinType = cklJoinType;
+        c.joinDAGs = joinDAGs;
+        c.joinSECs = joinSECs;
+        c.useExactKL = useExactKL;
+        c.useNetica = useNetica;
+        c.maxNumSECs = maxNumSECs;
+        c.minTotalPosterior = minTotalPosterior;
+        c.regression = regression;
+        c.klThreads = klThreads;
+        c.paramThreads = paramThreads;
+        c.sharedSampleKL = sharedSampleKL;
+        c.stopOnConvergence = stopOnConvergence;
+        c.minESS = minESS;
+        c.maxTopSECChange = maxTopSECChange;
+        c.maxArcDrift = maxArcDrift;
+        c.maxSamplingSeconds = maxSamplingSeconds;
+        c.tomComparator = tomComparator;
+        
+        if ( arcWeights != null ) { c.arcWeights = new double[arcWeights.length][arcWeights.length]; }
+        return c;
+    }
+    
     /** Print details. */
     public String toString() {
         return "bNet = " + bNet + "\n" + 
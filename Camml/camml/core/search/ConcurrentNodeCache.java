@@ -0,0 +1,290 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Thread safe Node Cache for CaMML
+//
+
+// File:   ConcurrentNodeCache.java
+
+package camml.core.search;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import cdms.core.*;
+import camml.core.models.ModelLearner;
+
+/**
+ *  ConcurrentNodeCache is a NodeCache which may be shared between several searches running
+ *  in different threads on the same dataset (ie. parallel Metropolis chains or anneal
+ *  restarts). <br>
+ *  
+ *  Cache slots are protected by a fixed number of striped locks, a slot is only locked while
+ *  its hash or costs are read or written.  Node costs are calculated outside any lock, so two
+ *  threads may occasionally learn the same node at once, but both produce the same value. <br>
+ *
+ *  Statistics are kept in LongAdders and copied into the public NodeCache variables by
+ *  collectStats().
+ */
+public class ConcurrentNodeCache extends NodeCache
+{
+    /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+    private static final long serialVersionUID = -2712838593847623131L;
+
+    /** Number of locks used to protect cache slots.  Must be a power of 2. */
+    public final static int numLocks = 1024;
+    
+    /** Locks protecting cache slots.  Slot i is protected by lock[i & (numLocks-1)] */
+    protected final transient Object[] lock;
+    
+    /** Thread safe versions of NodeCache statistics. */
+    protected final LongAdder getIndexCalledCount = new LongAdder(), 
+        newHashCount = new LongAdder(), hashFailedCount = new LongAdder(), 
+        evictionsCount = new LongAdder(), collisionsCount = new LongAdder(),
+        hashSucceedCount = new LongAdder(), numCacheEntriesCount = new LongAdder(),
+        totalCostingsCount = new LongAdder(), totalLearningsCount = new LongAdder(),
+        totalInfiniteLearningsCount = new LongAdder(), 
+        totalInfiniteCostingsCount = new LongAdder();
+    
+    /** Thread safe versions of learnings[] and costings[] */
+    protected final AtomicIntegerArray learningsCount, costingsCount;
+    
+    /** Convenience constructor for ConcurrentNodeCache */
+    public ConcurrentNodeCache( Value.Vector data, ModelLearner mmlLearner, ModelLearner mlLearner )
+    {
+        this(data,mmlLearner,mlLearner,2.0);
+    }
+    
+    /** Constructor, see NodeCache for details. */
+    public ConcurrentNodeCache( Value.Vector data, ModelLearner mmlLearner, ModelLearner mlLearner, 
+                                double mbPerNode )
+    {
+        this( data, mmlLearner, mlLearner, mbPerNode, -1, false );
+    }
+    
+    /** Constructor using a cache of approximately capacityBytes, see NodeCache for details. */
+    public ConcurrentNodeCache( Value.Vector data, ModelLearner mmlLearner, ModelLearner mlLearner, 
+                                long capacityBytes, boolean verifyKeys )
+    {
+        this( data, mmlLearner, mlLearner, 0.0, capacityBytes, verifyKeys );
+    }
+    
+    /** Constructor used by all others. */
+    protected ConcurrentNodeCache( Value.Vector data, ModelLearner mmlLearner, ModelLearner mlLearner,
+                                   double mbPerNode, long capacityBytes, boolean verifyKeys )
+    {
+        super( data, mmlLearner, mlLearner, mbPerNode, capacityBytes, verifyKeys );
+        lock = new Object[numLocks];
+        for ( int i = 0; i < lock.length; i++ ) { lock[i] = new Object(); }
+        learningsCount = new AtomicIntegerArray( numNodes );
+        costingsCount = new AtomicIntegerArray( numNodes );
+        
+        // Hash arrays are created here instead of lazily to avoid a race.
+        makeHashArrays();
+    }
+    
+    /** Return the lock protecting slot index. */
+    protected final Object getLock( int index ) { return lock[index & (numLocks-1)]; }
+    
+    /** Copy thread safe statistics into public NodeCache variables. */
+    public void collectStats()
+    {
+        getIndexCalled = getIndexCalledCount.sum();
+        newHash = newHashCount.sum();
+        hashFailed = hashFailedCount.sum();
+        hashSucceed = hashSucceedCount.sum();
+        evictions = evictionsCount.sum();
+        collisions = collisionsCount.sum();
+        numCacheEntries = (int)numCacheEntriesCount.sum();
+        totalCostings = (int)totalCostingsCount.sum();
+        totalLearnings = (int)totalLearningsCount.sum();
+        totalInfiniteLearnings = (int)totalInfiniteLearningsCount.sum();
+        totalInfiniteCostings = (int)totalInfiniteCostingsCount.sum();
+        for ( int i = 0; i < numNodes; i++ ) {
+            learnings[i] = learningsCount.get(i);
+            costings[i] = costingsCount.get(i);
+        }
+    }
+    
+    /** Accessor function for numCacheEntries */
+    public int getNumCacheEntries()
+    {
+        return (int)numCacheEntriesCount.sum();
+    }
+    
+    /** The caller must hold the lock protecting index. */
+    protected void overwriteCacheEntry( int index, long hash )
+    {
+        mmlCost[index] = -1;
+        mlCost[index] = -1;
+        hashLookup[index] = hash;
+        useCount[index] = 1;
+        newHashCount.increment();
+    }
+    
+    /** 
+     * Find (or allocate) the index of the cache entry for nodeHash.  Another thread may
+     * overwrite the entry after this returns, so the entry must be checked again with
+     * entryMatches() (holding the lock) before it is used.
+     */
+    protected int getIndex( long nodeHash, Node node ) 
+    {
+        getIndexCalledCount.increment();
+        
+        int homeIndex = (int)(nodeHash % cacheSize);
+        int nodeIndex = homeIndex;
+        int victim = homeIndex;
+        for ( int i = 0; i < maxCacheAttempts; i++ ) {
+            nodeIndex = (nodeIndex + i) % cacheSize;
+            synchronized ( getLock(nodeIndex) ) {
+                if ( hashLookup[nodeIndex] == nodeHash ) {
+                    if ( verifyKeys && !keyMatches( nodeIndex, node ) ) {
+                        collisionsCount.increment();
+                        overwriteCacheEntry( nodeIndex, nodeHash );
+                        setKey( nodeIndex, node );
+                        return nodeIndex;
+                    }
+                    hashSucceedCount.increment();
+                    if ( useCount[nodeIndex] < maxUseCount ) { useCount[nodeIndex] ++; }
+                    return nodeIndex;
+                }
+                if ( hashLookup[nodeIndex] == -1 ) {
+                    hashLookup[nodeIndex] = nodeHash;
+                    useCount[nodeIndex] = 1;
+                    if ( verifyKeys ) { setKey( nodeIndex, node ); }
+                    newHashCount.increment();
+                    numCacheEntriesCount.increment();
+                    return nodeIndex;
+                }
+            }
+            // useCount is only a hint, so it is read without locking.
+            if ( useCount[nodeIndex] < useCount[victim] ) { victim = nodeIndex; }
+            hashFailedCount.increment();
+        }
+        
+        // We are forced to overwrite a value.
+        if ( evictionPolicy == EvictionPolicy.LEAST_USED ) {
+            ageEntries( homeIndex );
+            nodeIndex = victim;
+        }
+        else {
+            nodeIndex = homeIndex;
+        }
+        evictionsCount.increment();
+        synchronized ( getLock(nodeIndex) ) {
+            overwriteCacheEntry( nodeIndex, nodeHash );
+            if ( verifyKeys ) { setKey( nodeIndex, node ); }
+        }
+        return nodeIndex;
+    }
+    
+    /** Return true if entry index still belongs to node.  The caller must hold its lock. */
+    protected boolean entryMatches( int index, long nodeHash, Node node )
+    {
+        return hashLookup[index] == nodeHash && (!verifyKeys || keyMatches( index, node ));
+    }
+    
+    /** 
+     * Return cost[] entry for node, calculating it with learnCost(node,mml) if required. 
+     * learned[0] is set to true if the cost was calculated.
+     */
+    protected double getCost( Node node, double[] cost, boolean mml, boolean[] learned )
+    {
+        long nodeHash = getHash( node );
+        int index = getIndex( nodeHash, node );
+        Object slotLock = getLock( index );
+        double[] otherCost = mml ? mlCost : mmlCost;
+        boolean other;
+        synchronized ( slotLock ) {
+            if ( entryMatches( index, nodeHash, node ) && cost[index] != -1 ) { return cost[index]; }
+            other = !entryMatches( index, nodeHash, node ) || otherCost[index] == -1;
+        }
+        
+        // Learn outside the lock so other threads are not held up.
+        double[] c = learnCosts( node, mml, other );
+        learned[0] = true;
+        
+        synchronized ( slotLock ) {
+            // Only store the result if the slot has not been given to another node.
+            if ( entryMatches( index, nodeHash, node ) ) {
+                cost[index] = c[0];
+                if ( !Double.isNaN(c[1]) && otherCost[index] == -1 ) { otherCost[index] = c[1]; }
+            }
+        }
+        return c[0];
+    }
+    
+    /** Return unclean ML costs from default dataset */
+    public double getMLCost( Node node )
+    {
+        return getCost( node, mlCost, false, new boolean[1] );
+    }
+    
+    /** Return unclean MML costs from default dataset */
+    public double getMMLCost( Node node )
+    {
+        boolean[] learned = new boolean[1];
+        double c = getCost( node, mmlCost, true, learned );
+        int numParents = node.getNumParents();
+        
+        if ( learned[0] ) {
+            learningsCount.incrementAndGet( numParents );
+            totalLearningsCount.increment();
+            if ( Double.isInfinite(c) ) { totalInfiniteLearningsCount.increment(); }
+        }
+        
+        costingsCount.incrementAndGet( numParents );
+        totalCostingsCount.increment();
+        if ( Double.isInfinite(c) ) { totalInfiniteCostingsCount.increment(); }
+        
+        return c;
+    }
+    
+    /** A ConcurrentNodeCache can be shared by all workers. */
+    public NodeCache getSharedCache()
+    {
+        return this;
+    }
+    
+    /** Entries are copied while no other thread is using either cache. */
+    protected void copyEntries( NodeCache c )
+    {
+        super.copyEntries( c );
+        numCacheEntriesCount.reset();
+        numCacheEntriesCount.add( numCacheEntries );
+    }
+    
+    /** Create a ConcurrentNodeCache, see NodeCache.makeCache() */
+    protected NodeCache makeCache( double mbPerNode, long capacityBytes )
+    {
+        return new ConcurrentNodeCache( data, mmlLearner, mlLearner, mbPerNode, capacityBytes,
+                                        verifyKeys );
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Convergence diagnostics for Metropolis sampling in CaMML
+//
+
+// File:   ConvergenceMonitor.java
+
+package camml.core.search;
+
+/**
+ *  ConvergenceMonitor computes online convergence diagnostics for a MetropolisSearch. <br>
+ *  
+ *  Three diagnostics are tracked: <br>
+ *  - The effective sample size (ESS) of the MML cost trace, estimated by batch means.  The
+ *    batch size doubles whenever maxBatches batches are full, so memory use is fixed. <br>
+ *  - The change in posterior of the highest posterior SEC since the previous check.  If the
+ *    top SEC has changed the change is 1. <br>
+ *  - The largest change in any arc portion (see MetropolisSearch.getArcPortions) since the
+ *    previous check. <br>
+ *  
+ *  addCost() is called every step, check() is called periodically by MetropolisSearch.
+ *  The search is converged once all diagnostics meet the thresholds in CaseInfo.  
+ */
+public class ConvergenceMonitor
+{
+    /** Maximum number of batches kept before adjacent batches are merged. */
+    protected final static int maxBatches = 64;
+    
+    /** Thresholds and the wall clock limit are taken from caseInfo. */
+    protected final CaseInfo caseInfo;
+    
+    /** Sum of costs in each completed batch. */
+    protected final double[] batchSum = new double[maxBatches];
+    
+    /** Number of completed batches, number of samples per batch and samples in current batch */
+    protected int numBatches = 0;
+    protected long batchSize = 1;
+    protected long inBatch = 0;
+    
+    /** Sum of costs in the current batch. */
+    protected double currentBatch = 0;
+    
+    /** Mean and sum of squared deviations of all costs (Welford's algorithm) */
+    protected double mean = 0, m2 = 0;
+    
+    /** Time of the first call to addCost(), from System.nanoTime() */
+    protected long startTime;
+    
+    /** Hash and posterior of the top SEC at the previous check. */
+    protected long prevTopSEC = 0;
+    protected double prevTopPosterior = Double.NaN;
+    
+    /** Arc portions at the previous check */
+    protected double[][] prevArcPortions;
+    
+    /** Number of costs added. */
+    protected long numSamples = 0;
+    
+    /** Diagnostics calculated by the last call to check() */
+    protected double ess = 0;
+    protected double topSECPosterior = Double.NaN;
+    protected double topSECChange = Double.POSITIVE_INFINITY;
+    protected double arcDrift = Double.POSITIVE_INFINITY;
+    protected double elapsedSeconds = 0;
+    protected boolean converged = false;
+    protected boolean timedOut = false;
+    
+    public long getNumSamples() { return numSamples; }
+    public double getESS() { return ess; }
+    public double getTopSECPosterior() { return topSECPosterior; }
+    public double getTopSECChange() { return topSECChange; }
+    public double getArcDrift() { return arcDrift; }
+    public double getElapsedSeconds() { return elapsedSeconds; }
+    public boolean isConverged() { return converged; }
+    public boolean isTimedOut() { return timedOut; }
+    
+    /** Create a monitor using the thresholds in caseInfo. */
+    public ConvergenceMonitor( CaseInfo caseInfo )
+    {
+        this.caseInfo = caseInfo;
+    }
+    
+    /** Add the cost of the current TOM to the cost trace. */
+    public void addCost( double cost )
+    {
+        if ( numSamples == 0 ) { startTime = System.nanoTime(); }
+        numSamples ++;
+        double delta = cost - mean;
+        mean += delta / numSamples;
+        m2 += delta * (cost - mean);
+        
+        currentBatch += cost;
+        inBatch ++;
+        if ( inBatch == batchSize ) {
+            batchSum[numBatches++] = currentBatch;
+            currentBatch = 0;
+            inBatch = 0;
+            
+            // Merge adjacent batches, halving the number of batches and doubling their size.
+            if ( numBatches == maxBatches ) {
+                for ( int i = 0; i < maxBatches / 2; i++ ) {
+                    batchSum[i] = batchSum[2*i] + batchSum[2*i+1];
+                }
+                numBatches = maxBatches / 2;
+                batchSize *= 2;
+            }
+        }
+    }
+    
+    /** 
+     * Return the effective sample size of the cost trace. <br>
+     * ESS = n * var(cost) / (batchSize * var(batch means))
+     */
+    public double calcESS()
+    {
+        if ( numSamples < 2 ) { return numSamples; }
+        double variance = m2 / (numSamples - 1);
+        if ( numBatches < 2 || variance == 0 ) { return numSamples; }
+        
+        double batchMean = 0;
+        for ( int i = 0; i < numBatches; i++ ) { batchMean += batchSum[i] / batchSize; }
+        batchMean /= numBatches;
+        double batchVar = 0;
+        for ( int i = 0; i < numBatches; i++ ) {
+            double d = batchSum[i] / batchSize - batchMean;
+            batchVar += d * d;
+        }
+        batchVar /= (numBatches - 1);
+        
+        double asymptoticVar = batchSize * batchVar;
+        if ( asymptoticVar <= variance ) { return numSamples; }
+        return numSamples * variance / asymptoticVar;
+    }
+    
+    /** Return true if the wall clock limit on sampling (if any) has been reached. */
+    public boolean isOutOfTime()
+    {
+        return caseInfo.maxSamplingSeconds > 0 && numSamples > 0 &&
+            (System.nanoTime() - startTime) / 1e9 >= caseInfo.maxSamplingSeconds;
+    }
+    
+    /**
+     * Update all diagnostics from the current state of search.  Return true if sampling should
+     * stop, ie. the thresholds are met and caseInfo.stopOnConvergence is set, or the wall
+     * clock limit has been reached.
+     */
+    public boolean check( MetropolisSearch search )
+    {
+        ess = calcESS();
+        elapsedSeconds = (System.nanoTime() - startTime) / 1e9;
+        
+        // SEC weights and totalWeight share a reference weight, so weight / totalWeight is
+        // valid even if a rescale is pending.
+        camml.core.library.LongHashMap<SEC> secs = search.getSECHashTable();
+        int top = findTopSEC( secs );
+        if ( top != -1 ) {
+            long topHash = secs.keyAt(top);
+            topSECPosterior = secs.valueAt(top).weight / search.caseInfo.totalWeight;
+            if ( Double.isNaN(prevTopPosterior) || topHash != prevTopSEC ) { topSECChange = 1; }
+            else { topSECChange = Math.abs( topSECPosterior - prevTopPosterior ); }
+            prevTopSEC = topHash;
+            prevTopPosterior = topSECPosterior;
+        }
+        
+        // Largest change in arc portions since the previous check.
+        double[][] arcPortions = search.getArcPortions();
+        if ( prevArcPortions != null ) {
+            arcDrift = 0;
+            for ( int i = 0; i < arcPortions.length; i++ ) {
+                for ( int j = 0; j < arcPortions.length; j++ ) {
+                    double d = Math.abs( arcPortions[i][j] - prevArcPortions[i][j] );
+                    if ( d > arcDrift ) { arcDrift = d; }
+                }
+            }
+        }
+        prevArcPortions = arcPortions;
+        
+        converged = ess >= caseInfo.minESS && 
+            topSECChange <= caseInfo.maxTopSECChange && 
+            arcDrift <= caseInfo.maxArcDrift;
+        timedOut = caseInfo.maxSamplingSeconds > 0 && elapsedSeconds >= caseInfo.maxSamplingSeconds;
+        
+        return (converged && caseInfo.stopOnConvergence) || timedOut;
+    }
+    
+    /** Return the position in secs of the SEC with the highest weight, or -1 if secs is empty. */
+    protected static int findTopSEC( camml.core.library.LongHashMap<SEC> secs )
+    {
+        int top = -1;
+        for ( int i = 0; i < secs.capacity(); i++ ) {
+            SEC sec = secs.valueAt(i);
+            if ( sec != null && (top == -1 || sec.weight > secs.valueAt(top).weight) ) { top = i; }
+        }
+        return top;
+    }
+    
+    /**
+     * Combine the diagnostics of several independent chains once they have been merged into
+     * search.  ESS and sample counts are summed, for other diagnostics the worst chain is
+     * reported.  The top SEC posterior is taken from the merged SECs.
+     */
+    public static ConvergenceMonitor combine( MetropolisSearch search, ConvergenceMonitor[] chain )
+    {
+        ConvergenceMonitor m = new ConvergenceMonitor( search.caseInfo );
+        int top = findTopSEC( search.getSECHashTable() );
+        if ( top != -1 ) {
+            m.topSECPosterior = 
+                search.getSECHashTable().valueAt(top).weight / search.caseInfo.totalWeight;
+        }
+        m.topSECChange = 0;
+        m.arcDrift = 0;
+        m.converged = true;
+        for ( ConvergenceMonitor c : chain ) {
+            m.numSamples += c.numSamples;
+            m.ess += c.ess;
+            m.topSECChange = Math.max( m.topSECChange, c.topSECChange );
+            m.arcDrift = Math.max( m.arcDrift, c.arcDrift );
+            m.elapsedSeconds = Math.max( m.elapsedSeconds, c.elapsedSeconds );
+            m.converged &= c.converged;
+            m.timedOut |= c.timedOut;
+        }
+        return m;
+    }
+    
+    /** Print diagnostics calculated by the last call to check(). */
+    public String toString()
+    {
+        java.text.DecimalFormat f = caseInfo.posteriorFormat;
+        return "Convergence : samples = " + numSamples + 
+            "\tESS = " + f.format(ess) + 
+            "\ttopSECPosterior = " + f.format(topSECPosterior) + 
+            "\ttopSECChange = " + f.format(topSECChange) + 
+            "\tarcDrift = " + f.format(arcDrift) + 
+            "\tseconds = " + f.format(elapsedSeconds) + 
+            "\tconverged = " + converged + 
+            (timedOut ? "\t(time limit reached)" : "");
+    }
+}
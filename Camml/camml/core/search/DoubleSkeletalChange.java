@@ -105,7 +105,6 @@ public class DoubleSkeletalChange extends TOMTransformation {
         // The modification of the parents of node3 means that is may change.
         // so we must find it's original cost before changing it.
         Node childNode = tom.getNode( childVar );    
-        int[] originalParents = childNode.parent;
         double oldChildCost = caseInfo.nodeCache.getMMLCost( childNode );
         
         // Check if the mutation will add too many parents to NodeJ    
@@ -161,7 +160,6 @@ public class DoubleSkeletalChange extends TOMTransformation {
         else {
             // toggle node1 -> node3 and node2 -> node3 back to their original state.
             doubleMutate( tom, parentVar1, parentVar2, childVar);
-            childNode.parent = originalParents;
             return false;
         }
     }   
@@ -42,11 +42,14 @@ import cdms.plugin.search.*;
 import camml.core.models.bNet.BNet;
 import camml.core.models.mixture.Mixture;
 
-import java.util.Hashtable;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 import camml.core.models.ModelLearner;
+import camml.core.library.LongHashMap;
 import camml.core.library.WallaceRandom;
+import camml.core.library.WorkerPool;
 import camml.plugin.augment.AugmentFN3;
 import camml.plugin.netica.BNetNetica;
 
@@ -64,14 +67,14 @@ import camml.plugin.netica.BNetNetica;
  * MMLECs, or MML Equivelence Classes.  These MMLECs attempt to use strict MML to join SECs.
  * <br>
  *
- *  To keep track of the various models a Hashtable secHashtable is used.  Each entry in 
- *  secHashTable is a SEC, which contains numerous TOMs.
+ *  To keep track of the various models a LongHashMap secHashtable is used.  Each entry in 
+ *  secHashTable is a SEC (keyed by its 64 bit hash), which contains numerous TOMs.
  */
 public class MetropolisSearch extends BNetSearch
 {
     /** Hash Table containing the number of times each SEC is visited */
-    protected Hashtable<SECHashKey,SEC> secHashtable;
-    public Hashtable<SECHashKey,SEC> getSECHashTable() { return secHashtable; }
+    protected LongHashMap<SEC> secHashtable;
+    public LongHashMap<SEC> getSECHashTable() { return secHashtable; }
     
     /** Maximum number of epochs */
     // Long required as int boundary may be exceeded at ~= 200 nodes. 
@@ -88,6 +91,13 @@ public class MetropolisSearch extends BNetSearch
     
     /** Should we treat the first epoch as special and do the anneal search there? */
     public boolean doAnnealOnFirstEpoch = true;
+    
+    /** Should a progress bar be printed while sampling?  Disabled for parallel chains. */
+    protected boolean printProgress = true;
+    
+    /** Convergence diagnostics for the current run, created when sampling starts. */
+    protected ConvergenceMonitor convergence;
+    public ConvergenceMonitor getConvergence() { return convergence; }
 
     /** Update currentCost and cleanMLCost. 
      * @param nodeChanged: list of nodes with parent changes since last call to updateCosts. 
@@ -120,23 +130,6 @@ public class MetropolisSearch extends BNetSearch
         bestCost = currentCost;
     }
     
-    /** Class used as key to secHashTable.  This is essentially a long (64 bit) value 
-     *      turned into an object so it can be used as a key to a hashtable.
-     */
-    protected static class SECHashKey implements Cloneable { 
-        private long key;
-        public SECHashKey( long key ) { this.key = key; }
-        public int hashCode() { return (int)((key >> 32) + key); }
-        public boolean equals( Object o ) { 
-            if (((SECHashKey)o).key == this.key ) return true; else return false; 
-        }
-        public Object clone() { return new SECHashKey(key);    }
-        public void set( long key ) { this.key = key; }
-    }
-    
-    /** We allocate a single key to save reallocation for each iteration. */
-    protected SECHashKey tempKey = new SECHashKey(0);
-    
     /** Run AnnealSearch to estimate arcProb and set bestModel */
     private void runAnnealSearch( ) {
         // create AnnealSearch object
@@ -162,29 +155,57 @@ public class MetropolisSearch extends BNetSearch
         caseInfo.referenceWeight = bestCost;    
     }
     
-    /** Update weights so that currentCost has a weight of 1.0
-     * This should be done when a new best cost is found.
+    /** 
+     * Largest log weight (in relation to caseInfo.referenceWeight) a TOM may have before all
+     * weights are rescaled.  exp(300) leaves plenty of room to sum weights without overflow.
+     */
+    public static double maxLogWeight = 300;
+    
+    /** Best cost passed to updateReferenceWeight(), or NaN if it has not been called. */
+    protected double bestReferenceWeight = Double.NaN;
+    
+    /** 
+     * Called when a new best cost is found. <br>
+     * A TOM of cost c has weight exp( (caseInfo.referenceWeight - c) * (1-1/temperature) ).
+     * Posteriors only depend on ratios of weights, so referenceWeight does not have to be the
+     * best cost found.  Weights are only rescaled (an O(#SECs * #TOMs + n^2) operation) when
+     * the weight of currentCost would exceed exp(maxLogWeight), so finding a new best is O(1)
+     * in almost all cases.  flushReferenceWeight() rescales weights in relation to the best
+     * cost found.
      */
     public void updateReferenceWeight( double currentCost ) 
+    {
+        bestReferenceWeight = currentCost;
+        double logWeight = (caseInfo.referenceWeight - currentCost) * (1.0 - (1.0/temperature));
+        if ( Math.abs(logWeight) > maxLogWeight ) { rescaleWeights( currentCost ); }
+    }
+    
+    /** Rescale all weights so the best cost found so far has a weight of 1.0 */
+    public void flushReferenceWeight()
+    {
+        if ( !Double.isNaN(bestReferenceWeight) && bestReferenceWeight != caseInfo.referenceWeight ) {
+            rescaleWeights( bestReferenceWeight );
+        }
+    }
+    
+    /** Update weights so that newReference has a weight of 1.0 */
+    protected void rescaleWeights( double newReference ) 
     {
         double oldReferenceWeight = caseInfo.referenceWeight;
         //double oldTotalWeight = caseInfo.totalWeight;
-        caseInfo.referenceWeight = currentCost;
+        caseInfo.referenceWeight = newReference;
         
         //     Fixed version of multiplier code.
         double multiplier =
-            Math.exp( (currentCost - oldReferenceWeight) * (1.0 - (1.0/temperature)));
+            Math.exp( (newReference - oldReferenceWeight) * (1.0 - (1.0/temperature)));
         
         caseInfo.totalWeight *= multiplier;
         weightIgnored *= multiplier;
         
-        // dump secHashtable into an arraylist for easy management.
-        ArrayList<SEC> secList = new ArrayList<SEC>( secHashtable.values() );
-        
         // all weights must be multiplied by the multiplier.  referenceWeight always << oldWeight
         // so multiplies always fractional.  All Weights reduced.
-        for ( int i = 0; i < secList.size(); i++ ) {
-            secList.get(i).updateReferenceWeight( multiplier );
+        for ( SEC sec : secHashtable ) {
+            sec.updateReferenceWeight( multiplier );
         }
         
         // Update arc portions
@@ -284,14 +305,35 @@ public class MetropolisSearch extends BNetSearch
             tom.setStructure( bestTOM );
             updateCosts( null );
             
+            // Split sampling between several chains if required.  All sampling is
+            // performed in runChains() so the search is finished after this epoch.
+            if ( caseInfo.numChains > 1 && !caseInfo.regression ) {
+                runChains( caseInfo.numChains );
+                return currentCost;
+            }
+            
             // print out progress bar header.
             for (int i = 0; i < 100; i++) {    System.out.print(i % 10); }
             System.out.println();                        
         }
         
+        return sampleEpoch();
+    }
+    
+    /**
+     * Sample a single TOM (the part of doEpoch() after the first epoch is set up). <br>
+     * The starting TOM is sampled on epoch 0, on later epochs one mutation is attempted.  The
+     * SEC of the current TOM has its posterior updated and convergence diagnostics are 
+     * checked, finishing the search if all epochs are done, the diagnostics have converged or
+     * the time limit is reached.  Shared by subclasses overriding doEpoch().
+     */
+    protected double sampleEpoch()
+    {
         // gradually print progress bar as search runs.
-        if (max < 100 || epoch % (max / 100) == 0) { System.out.print("."); }
-        if ( epoch == max-1) { System.out.println(); }
+        if ( printProgress ) {
+            if (max < 100 || epoch % (max / 100) == 0) { System.out.print("."); }
+            if ( epoch == max-1) { System.out.println(); }
+        }
         
         // Randomise TOM order in the current DAG.  Arc directions remain unchanged.        
         if ( epoch == 0 && doAnnealOnFirstEpoch && caseInfo.regression) {
@@ -302,6 +344,7 @@ public class MetropolisSearch extends BNetSearch
         
         if ( epoch == 0 ) {     // Never transform on the first epoch.
             updateCosts(null); // This ensures starting model is sampled at least once.
+            convergence = new ConvergenceMonitor( caseInfo );
         }
         else {
             doTransform();
@@ -311,12 +354,24 @@ public class MetropolisSearch extends BNetSearch
         // Extract SEC from Hash and update its posterior
         SEC sec = getSEC();        
         updatePosterior(sec);    
+        convergence.addCost( currentCost );
         
         // increment the number of epochs completed.
         epoch++;
         
         // If all epoch complete, finish.
         if ( epoch == max+1 ) {
+            convergence.check( this );
+            searchDone = true;
+        }
+        // Check diagnostics 100 times per run stopping early if converged, and check the clock
+        // every epoch so a time limit is not overshot.
+        else if ( (epoch % Math.max( max / 100, 1 ) == 0 || convergence.isOutOfTime()) && 
+                  convergence.check( this ) ) {
+            if ( printProgress ) {
+                System.out.println();
+                System.out.println( "Sampling stopped after " + epoch + " of " + max + " TOMs" );
+            }
             searchDone = true;
         }
         
@@ -337,6 +392,138 @@ public class MetropolisSearch extends BNetSearch
         return currentCost;
     }
 
+    /**
+     * Split sampling into numChains independent chains, each run in its own thread. <br>
+     * Each chain starts from bestTOM and samples max/numChains TOMs using its own TOM,
+     * mutation operators, random number stream and CaseInfo.  Chains share the data, learners,
+     * hash functions and tomCoster.  All chains share the NodeCache returned by
+     * NodeCache.getSharedCache(), costs learned by the chains are merged back into
+     * caseInfo.nodeCache once sampling is finished. <br>
+     * Once all chains are complete their results are merged into secHashtable, arcWeights and
+     * totalWeight (see mergeChains()) and the search is flagged as finished.
+     */
+    protected void runChains( int numChains )
+    {
+        System.out.println( "Sampling using " + numChains + " parallel chains" );
+        
+        // Chains are created in this thread as constructing a search modifies tomCoster.
+        NodeCache sharedCache = caseInfo.nodeCache.getSharedCache();
+        final MetropolisSearch[] chain = new MetropolisSearch[numChains];
+        for ( int i = 0; i < chain.length; i++ ) {
+            CaseInfo chainInfo = caseInfo.makeWorkerCopy( sharedCache );
+            chainInfo.updateArcWeights = caseInfo.updateArcWeights;
+            
+            // Each chain uses a random stream seeded from the parent stream.
+            chain[i] = new MetropolisSearch( new java.util.Random( rand.nextLong() ), chainInfo );
+            chain[i].setArcProb( arcProb );
+            chain[i].setTemperature( temperature );
+            chain[i].fixedArcProb = true;
+            chain[i].fixedTemperature = true;
+            
+            chain[i].doAnnealOnFirstEpoch = false;
+            chain[i].printProgress = false;
+            chain[i].max = (max + numChains - 1) / numChains;
+            chainInfo.minESS = caseInfo.minESS / numChains;
+            chain[i].bestTOM.setStructure( bestTOM );
+            chain[i].reset();
+        }
+        
+        // Run all chains to completion.
+        List<Callable<MetropolisSearch>> tasks = new ArrayList<Callable<MetropolisSearch>>();
+        for ( int i = 0; i < chain.length; i++ ) {
+            final MetropolisSearch c = chain[i];
+            final int chainNum = i;
+            tasks.add( new Callable<MetropolisSearch>() {
+                    public MetropolisSearch call() {
+                        while ( !c.isFinished() ) { c.doEpoch(); }
+                        System.out.print( chainNum % 10 );
+                        return c;
+                    }
+                });
+        }
+        WorkerPool.runAll( tasks, numChains );
+        System.out.println();
+        caseInfo.nodeCache.mergeSharedCache( sharedCache );
+        
+        mergeChains( chain );
+        
+        ConvergenceMonitor[] chainConvergence = new ConvergenceMonitor[chain.length];
+        for ( int i = 0; i < chain.length; i++ ) { chainConvergence[i] = chain[i].convergence; }
+        convergence = ConvergenceMonitor.combine( this, chainConvergence );
+        
+        epoch = max + 1;
+        searchDone = true;
+    }
+    
+    /**
+     * Merge the results of several finished chains into this search. <br>
+     * Each chain accumulates weights in relation to the best cost it has found
+     * (caseInfo.referenceWeight).  Weights are rescaled so all chains use the best reference
+     * weight found by any chain before being added to this search.
+     */
+    protected void mergeChains( MetropolisSearch[] chain )
+    {
+        // Find the reference weight all chains will be rescaled to and the best TOM found.
+        double referenceWeight = caseInfo.referenceWeight;
+        for ( MetropolisSearch c : chain ) {
+            c.flushReferenceWeight();
+            if ( c.caseInfo.referenceWeight < referenceWeight ) {
+                referenceWeight = c.caseInfo.referenceWeight;
+            }
+            if ( c.bestCost < bestCost ) {
+                bestCost = c.bestCost;
+                bestTOM.setStructure( c.bestTOM );
+            }
+        }
+        rescaleWeights( referenceWeight );
+        bestReferenceWeight = referenceWeight;
+        
+        double[][] arcWeights = caseInfo.arcWeights;
+        for ( MetropolisSearch c : chain ) {
+            double multiplier = 
+                Math.exp( (referenceWeight - c.caseInfo.referenceWeight) * (1.0 - 1.0/temperature) );
+            
+            caseInfo.totalWeight += c.caseInfo.totalWeight * multiplier;
+            weightIgnored += c.weightIgnored * multiplier;
+            
+            // Merge SECs with identical hashes.
+            LongHashMap<SEC> chainSECs = c.secHashtable;
+            for ( int i = 0; i < chainSECs.capacity(); i++ ) {
+                SEC chainSEC = chainSECs.valueAt(i);
+                if ( chainSEC == null ) { continue; }
+                SEC sec = secHashtable.get( chainSECs.keyAt(i) );
+                if ( sec == null ) {
+                    sec = new SEC( chainSEC, caseInfo );
+                    secHashtable.put( chainSECs.keyAt(i), sec );
+                }
+                sec.merge( chainSEC, multiplier );
+            }
+            
+            // Chain arc weights do not include the weight accumulated by its final TOM.
+            if ( caseInfo.updateArcWeights ) {
+                double[][] chainWeights = c.caseInfo.arcWeights;
+                for ( int i = 0; i < arcWeights.length; i++ ) {
+                    for ( int j = 0; j < arcWeights.length; j++ ) {
+                        double w = chainWeights[i][j];
+                        if ( c.tom.isDirectedArc(j,i) ) { w += c.caseInfo.totalWeight; }
+                        arcWeights[i][j] += w * multiplier;
+                    }
+                }
+            }
+        }
+        
+        // Leave the search at bestTOM.  arcWeights are stored relative to the current TOM.
+        tom.setStructure( bestTOM );
+        updateCosts( null );
+        if ( caseInfo.updateArcWeights ) {
+            for ( int i = 0; i < arcWeights.length; i++ ) {
+                for ( int j = 0; j < arcWeights.length; j++ ) {
+                    if ( tom.isDirectedArc(j,i) ) { arcWeights[i][j] -= caseInfo.totalWeight; }
+                }
+            }
+        }
+    }
+    
     /**
      * Update the posterior of SEC based on currentCost and temperature
      * If SEC == NULL, add posterior to "ignored" instead
@@ -383,14 +570,13 @@ public class MetropolisSearch extends BNetSearch
         }
         
         // Check if current SEC is in secHashtable
-        tempKey.set( hashValue );
-        SEC sec = (SEC)secHashtable.get( tempKey );
+        SEC sec = secHashtable.get( hashValue );
         
         
         // If SEC not found and current TOM has a reasonable posterior, add SEC to the list of SECs.
         if ( sec == null && currentCost < bestCost + ignoreCap ) {
             sec = new SEC( cleantom, currentMLCost, caseInfo);
-            secHashtable.put( new SECHashKey(hashValue), sec );        
+            secHashtable.put( hashValue, sec );        
         }
         return sec;
     }
@@ -408,9 +594,10 @@ public class MetropolisSearch extends BNetSearch
         // Shortcut if getResults is called twice.
         if ( results != null ) { return results; }
         
-        // dump all SECs from secHashTable into an ArrayList for easy manipulation.
-        ArrayList<SEC> secList = new ArrayList<SEC>( secHashtable.values() );
-        int uniqueSECs = secList.size();
+        // Weights are made relative to the best cost found.
+        flushReferenceWeight();
+        
+        int uniqueSECs = secHashtable.size();
         
         // Hopefully this should never happen.
         if ( uniqueSECs == 0 ) { throw new RuntimeException("No SECs kept during sampling."); }
@@ -420,10 +607,13 @@ public class MetropolisSearch extends BNetSearch
         System.out.println("total weight kept : " + (totalWeight-weightIgnored) );
         System.out.println("total weight ignored : " + weightIgnored);
         System.out.println("" + uniqueSECs + " unique SECs sampled" );
+        if ( convergence != null ) { System.out.println( convergence ); }
         
-        // calculate SEC posteriors from weights.
-        for (int i = 0; i < uniqueSECs; i++) {
-            secList.get(i).posterior = ((SEC) secList.get(i)).weight / totalWeight;
+        // calculate SEC posteriors from weights while collecting SECs into a list for sorting.
+        ArrayList<SEC> secList = new ArrayList<SEC>( uniqueSECs );
+        for ( SEC sec : secHashtable ) {
+            sec.posterior = sec.weight / totalWeight;
+            secList.add( sec );
         }
         
         // Sort all SECs by their posterior probability.  Highest posterior first
@@ -453,6 +643,8 @@ public class MetropolisSearch extends BNetSearch
 
         
         
+        parameterizeSECs( secList );
+        
         System.out.println("Calculating relative priors.");
         // calculate the relative prior for each SEC (needed for joinByKLDistance.)
         SEC bestSEC = secList.get(0);
@@ -499,6 +691,38 @@ public class MetropolisSearch extends BNetSearch
         return results;
     }
     
+    /**
+     * Parameterise the representative (highest posterior) TOM of each SEC, and calculate its
+     * data cost if required for relative priors.  Node models are learned in parallel over
+     * all nodes and SECs using caseInfo.paramThreads threads, with each distinct family
+     * learned only once.  Results are kept in each SEC so makeKL and the results vector
+     * do not repeat the work.
+     */
+    protected void parameterizeSECs( List<SEC> secs )
+    {
+        TOM[] toms = new TOM[secs.size()];
+        for ( int i = 0; i < toms.length; i++ ) { toms[i] = secs.get(i).getTOM(0); }
+        
+        // SECs using a family which failed are left to be parameterised one at a time when
+        // used, as before.  All other SECs keep the parameters found here.
+        ModelLearner.LearnerException[] failure = new ModelLearner.LearnerException[toms.length];
+        Value.Vector[] params = TOM.makeParameters( toms, caseInfo.mmlModelLearner, 
+                                                    caseInfo.paramThreads, failure );
+        for ( int i = 0; i < params.length; i++ ) { 
+            if ( failure[i] == null ) { secs.get(i).tomList.get(0).setParams( params[i] ); }
+        }
+        
+        if ( !caseInfo.regression && caseInfo.paramThreads > 1 ) {
+            List<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+            for ( final SEC sec : secs ) {
+                tasks.add( new Callable<Double>() {
+                        public Double call() { return sec.getDataCost(0); }
+                    } );
+            }
+            WorkerPool.runAll( tasks, caseInfo.paramThreads );
+        }
+    }
+    
     //
     // Calculate the proportion of time arc[i][j] is set in the TOM being sampled
     //
@@ -527,7 +751,11 @@ public class MetropolisSearch extends BNetSearch
     }
 
     
-    /** Using relative prior, KL distance and SMML formula, which models should be joined? */
+    /** 
+     * Using relative prior, KL distance and SMML formula, which models should be joined? <br>
+     * The join with the highest gain is made until no join has positive gain.  Gains are kept
+     * in a heap and only joins involving the merged MMLEC are recalculated after each join.
+     */
     protected MMLEC[] joinByKLDistance( SEC[] secArray, int dataLength  )
     {    
         System.out.println("Joining by KL distance");
@@ -547,75 +775,42 @@ public class MetropolisSearch extends BNetSearch
         
         
         
-        double bestGain = -1;
-        int bestI = -1;
-        int bestJ = -1;
+        // Each MMLEC keeps its initial representative SEC (merged SECs are appended).
+        int[] numArcs = new int[mmlec.length];
+        for ( int i = 0; i < mmlec.length; i++ ) { numArcs[i] = mmlec[i].getSEC(0).getNumArcs(); }
         
-        while (true) { 
+        // Heap of all joins with positive gain.  version[i] is incremented whenever mmlec[i]
+        // changes, so candidates created before the change can be discarded when popped.
+        int[] version = new int[mmlec.length];
+        java.util.PriorityQueue<JoinCandidate> heap = new java.util.PriorityQueue<JoinCandidate>();
+        for ( int i = 0; i < mmlec.length; i++ ) {
+            for ( int j = 0; j < mmlec.length; j++ ) {
+                addJoinCandidate( heap, mmlec, kl, numArcs, version, i, j );
+            }
+        }
+        
+        while ( !heap.isEmpty() ) { 
+            JoinCandidate best = heap.poll();
+            if ( best.versionI != version[best.i] || best.versionJ != version[best.j] ) { continue; }
+            int bestI = best.i;
+            int bestJ = best.j;
             
-            // loop through all possible joins to see which has the highest gain.
-            for ( int i = 0; i < kl.length; i++ ) {
-                for ( int j = 0; j < kl[i].length; j++ ) {
-                    // ensure mmlec[i] and mmlec[j] each contain at least one SEC
-                    if ( mmlec[i].length() > 0 && mmlec[j].length() > 0 ) {
-                        
-                        // extract representative SECs
-                        SEC secI = mmlec[i].getSEC(0);
-                        SEC secJ = mmlec[j].getSEC(0);
-                        
-                        // extract numArcs from representative SECs
-                        int arcsI = secI.getNumArcs();
-                        int arcsJ = secJ.getNumArcs();
-                        
-                        if ( i != j && 
-                             (arcsI <= arcsJ || (caseInfo.allowMergeToModelWithMoreArcs == true))
-                             ) {  
-                            // extract relative priors from MMLECs
-                            double p1 = mmlec[i].relativePrior;
-                            double p2 = mmlec[j].relativePrior;
-                            double p3 = p1 + p2;
-                            
-                            // Use SMML formula to test if SECs should be merged 
-                            //             double gain = p1 * Math.log( p1 ) + p2 * Math.log( p2 ) 
-                            //                 - ( p1 + p2 ) * Math.log( p1 + p2 ) 
-                            //                 + p2 * kl[j][i] * dataLength ;
-                            //             gain = (-gain) / (p1+p2);
-                            double before = -(p1 * Math.log(p1) + p2 * Math.log( p2 ));
-                            double after = -(p3 * Math.log(p3)) + p2 * kl[j][i];
-                            double gain = before - after;
-                            
-                            if ( gain > bestGain ) {
-                                bestGain = gain;
-                                bestI = i;
-                                bestJ = j;
-                            }
-                        }
-                    }
-                }        
-            } // end : for ( int i = 0; i < kl.length; i++ ) { ... }
+            System.out.println("Joining model " + bestI + " and " + bestJ  + "\t" +
+                               "["+caseInfo.posteriorFormat.format(mmlec[bestI].getPosterior())+" + "+
+                               caseInfo.posteriorFormat.format(mmlec[bestJ].getPosterior())+
+                               " = "+caseInfo.posteriorFormat.format(mmlec[bestI].getPosterior()+
+                                                                     mmlec[bestJ].getPosterior())+"]");
             
+            mmlec[bestI].merge( mmlec[bestJ] );
+            version[bestI] ++;
+            version[bestJ] ++;
             
-            // if best gain found is positive, join models.
-            // if not, model joining is done.
-            if ( bestGain > 0 ) {
-                System.out.println("Joining model " + bestI + " and " + bestJ  + "\t" +
-                                   "["+caseInfo.posteriorFormat.format(mmlec[bestI].getPosterior())+" + "+
-                                   caseInfo.posteriorFormat.format(mmlec[bestJ].getPosterior())+
-                                   " = "+caseInfo.posteriorFormat.format(mmlec[bestI].getPosterior()+
-                                                                         mmlec[bestJ].getPosterior())+"]");
-                
-                mmlec[bestI].merge( mmlec[bestJ] );
-                
-                bestGain = -1;
-                bestI = -1;
-                bestJ = -1;
-            } 
-            else {
-                break;
+            // Only joins involving mmlec[bestI] have changed gain, mmlec[bestJ] is now empty.
+            for ( int k = 0; k < mmlec.length; k++ ) {
+                addJoinCandidate( heap, mmlec, kl, numArcs, version, bestI, k );
+                addJoinCandidate( heap, mmlec, kl, numArcs, version, k, bestI );
             }
-            
-        } // end while(true) { ... }
-        
+        }
         
         // compact all non empty MMLECs and return resuls.
         int uniqueMMLECs = 0;
@@ -638,6 +833,52 @@ public class MetropolisSearch extends BNetSearch
         return finalMMLECArray;
     }
     
+    /** 
+     * A possible join of mmlec[j] into mmlec[i] used by joinByKLDistance.  Candidates are
+     * ordered by decreasing gain, ties are broken by (i,j) so joins happen in the same order
+     * as a full scan of all pairs.
+     */
+    protected static class JoinCandidate implements Comparable<JoinCandidate> {
+        final double gain;
+        final int i, j, versionI, versionJ;
+        
+        JoinCandidate( double gain, int i, int j, int versionI, int versionJ ) {
+            this.gain = gain; this.i = i; this.j = j; 
+            this.versionI = versionI; this.versionJ = versionJ;
+        }
+        
+        public int compareTo( JoinCandidate c ) {
+            if ( gain != c.gain ) { return gain > c.gain ? -1 : 1; }
+            if ( i != c.i ) { return i < c.i ? -1 : 1; }
+            return j < c.j ? -1 : (j == c.j ? 0 : 1);
+        }
+    }
+    
+    /** Add the join of mmlec[j] into mmlec[i] to heap if it is allowed and has positive gain. */
+    private void addJoinCandidate( java.util.PriorityQueue<JoinCandidate> heap, MMLEC[] mmlec, 
+                                   double[][] kl, int[] numArcs, int[] version, int i, int j )
+    {
+        // ensure mmlec[i] and mmlec[j] each contain at least one SEC
+        if ( i == j || mmlec[i].length() == 0 || mmlec[j].length() == 0 ) { return; }
+        if ( numArcs[i] > numArcs[j] && !caseInfo.allowMergeToModelWithMoreArcs ) { return; }
+        
+        // extract relative priors from MMLECs
+        double p1 = mmlec[i].relativePrior;
+        double p2 = mmlec[j].relativePrior;
+        double p3 = p1 + p2;
+        
+        // Use SMML formula to test if SECs should be merged 
+        //             double gain = p1 * Math.log( p1 ) + p2 * Math.log( p2 ) 
+        //                 - ( p1 + p2 ) * Math.log( p1 + p2 ) 
+        //                 + p2 * kl[j][i] * dataLength ;
+        //             gain = (-gain) / (p1+p2);
+        double before = -(p1 * Math.log(p1) + p2 * Math.log( p2 ));
+        double after = -(p3 * Math.log(p3)) + p2 * kl[j][i];
+        double gain = before - after;
+        
+        if ( gain > 0 ) { heap.add( new JoinCandidate( gain, i, j, version[i], version[j] ) ); }
+    }
+    
     /**
      * Find the KL distance between each SEC and return it as an array of doubles.
      *
@@ -650,7 +891,7 @@ public class MetropolisSearch extends BNetSearch
      *  using every other BNet.  
      *  klDistance[i][j] = (net[i].logLH( net[i].generate ) - net[j].logLH( net[i].generate )) / N;
      */
-    protected double[][] makeKL( SEC[] secArray, int n ) 
+    protected double[][] makeKL( SEC[] secArray, final int n ) 
     {
         // how many SECs it is worth looking at?  It is slow to look at them all.
         int secUsed = secArray.length;
@@ -659,11 +900,11 @@ public class MetropolisSearch extends BNetSearch
         if (secUsed == 1) { return new double[1][1]; }
         
         // create array of  parameters        
-        Value.Vector[] params = new Value.Vector[ secUsed ];        
-        BNet bNet = secArray[0].caseInfo.bNet;
+        final Value.Vector[] params = new Value.Vector[ secUsed ];        
+        final BNet bNet = secArray[0].caseInfo.bNet;
         for ( int i = 0; i < params.length; i++ ) {            
             try {
-                params[i] = secArray[i].getTOM(0).makeParameters( mmlModelLearner );
+                params[i] = secArray[i].getParams(0);
             }        
             catch ( ModelLearner.LearnerException e ) {
                 throw new RuntimeException("Exception recreating parameters",e);
@@ -676,7 +917,6 @@ public class MetropolisSearch extends BNetSearch
         
         // Allocate klArray
         double[][] klArray = new double[secUsed][secUsed];
-        Value.Vector inputVec = new VectorFN.ConstantVector( n, Value.TRIV ); 
         
         if ( caseInfo.useExactKL ) {
             if (caseInfo.cklJoinType != 0) {
@@ -704,51 +944,217 @@ public class MetropolisSearch extends BNetSearch
                 }
             }
         }
+        else if ( caseInfo.sharedSampleKL ) {
+            if (caseInfo.cklJoinType != 0) {
+                throw new RuntimeException("shared sample CKL Joining not implemented.");
+            }
+            double[] posterior = new double[secUsed];
+            for ( int i = 0; i < secUsed; i++ ) { posterior[i] = secArray[i].getPosterior(); }
+            klArray = makeSharedSampleKL( params, bNet, n, posterior );
+        }
         else { // else use stochastic KL
-            for ( int i = 0; i < params.length; i++ ) {
-                // print progrsss.
+            final Value.Vector inputVec = new VectorFN.ConstantVector( n, Value.TRIV ); 
+            klArray = makeKLRows( secUsed, new KLRowMaker() {
+                    public double[] makeRow( int i, java.util.Random rowRand ) {
+                        return makeStochasticKLRow( i, params, bNet, n, inputVec, rowRand );
+                    }
+                });
+        }
+        System.out.println();
+        return klArray;
+    }
+    
+    /** Calculates row i of a KL matrix using the random stream supplied. */
+    protected interface KLRowMaker {
+        public double[] makeRow( int i, java.util.Random rand );
+    }
+    
+    /**
+     * Calculate numRows rows of a KL matrix using rowMaker. <br>
+     * Rows are calculated in parallel using caseInfo.klThreads threads.  Each row uses its own
+     * random stream seeded from rand before any row is started, so the matrix returned does not
+     * depend on the number of threads used.  In regression mode rows are calculated serially
+     * sharing rand (as in oldCamml).
+     */
+    protected double[][] makeKLRows( int numRows, final KLRowMaker rowMaker )
+    {
+        double[][] klArray = new double[numRows][];
+        if ( caseInfo.regression ) {
+            for ( int i = 0; i < numRows; i++ ) {
                 System.out.print("X");
-            
-                // Test what metric is being joined by
-                Value.Vector augParams[];
-                BNet augBNet = null;
-                // if KL, do nothing.
-                if ( caseInfo.cklJoinType == 0) {
-                    augParams = params;
-                    augBNet = bNet;
-                }
-                // if CKL3, augment all parameters.
-                else if (caseInfo.cklJoinType == 3) {
-                    augParams = new Value.Vector[params.length];
-                    for (int j = 0; j < params.length; j++) {
-                        Value.Structured s = AugmentFN3.augment3.apply(bNet,params[j],params[i]);
-                        augParams[j] = (Value.Vector)s.cmpnt(1);
-                        if (i == j) { augBNet = (BNet)s.cmpnt(0); }
+                klArray[i] = rowMaker.makeRow( i, rand );
+            }
+            return klArray;
+        }
+        
+        List<Callable<double[]>> tasks = new ArrayList<Callable<double[]>>( numRows );
+        for ( int i = 0; i < numRows; i++ ) {
+            final int row = i;
+            final java.util.Random rowRand = 
+                new WallaceRandom( new int[] { rand.nextInt(), rand.nextInt() } );
+            tasks.add( new Callable<double[]>() {
+                    public double[] call() {
+                        double[] klRow = rowMaker.makeRow( row, rowRand );
+                        System.out.print("X");
+                        return klRow;
                     }
+                });
+        }
+        return WorkerPool.runAll( tasks, caseInfo.klThreads ).toArray( klArray );
+    }
+    
+    /**
+     * Calculate row i of the stochastic KL matrix.  n samples are generated from params[i] and
+     * row[j] = (logP(data|params[i]) - logP(data|params[j])) * (caseInfo.data.length() / n)
+     */
+    protected double[] makeStochasticKLRow( int i, Value.Vector[] params, BNet bNet, int n,
+                                            Value.Vector inputVec, java.util.Random rand )
+    {
+        // Test what metric is being joined by
+        Value.Vector augParams[];
+        BNet augBNet = null;
+        // if KL, do nothing.
+        if ( caseInfo.cklJoinType == 0) {
+            augParams = params;
+            augBNet = bNet;
+        }
+        // if CKL3, augment all parameters.
+        else if (caseInfo.cklJoinType == 3) {
+            augParams = new Value.Vector[params.length];
+            for (int j = 0; j < params.length; j++) {
+                Value.Structured s = AugmentFN3.augment3.apply(bNet,params[j],params[i]);
+                augParams[j] = (Value.Vector)s.cmpnt(1);
+                if (i == j) { augBNet = (BNet)s.cmpnt(0); }
+            }
+        }
+        // Other methods not implemented.
+        else { throw new RuntimeException("Unhandled CKL join type."); }
+        
+        // generate data from current parameter set
+        Value.Vector tempData = augBNet.generate( rand, n, augParams[i], Value.TRIV );
+        
+        // Calculate cost of stating data with current model
+        double selfCost = - augBNet.logP( tempData, augParams[i], inputVec );
+        
+        // Loop through all models calculating cost to state data with each.
+        // kl[i][j] = (logP( data|params[i] ) - logP(data|params[j])) / n
+        double[] klRow = new double[augParams.length];
+        for ( int j = 0; j < augParams.length; j++ ) {
+            double cost = - augBNet.logP( tempData, augParams[j], inputVec );
+            klRow[j] = caseInfo.data.length() * (cost - selfCost) / n;        
+        }
+        return klRow;
+    }
+    
+    /**
+     * Estimate the KL matrix of all networks in params from a single pooled sample. <br>
+     * n cases are drawn from the mixture q = sum_m w[m] * P(.|params[m]), with half the weight
+     * proportional to posterior and half uniform so every network is sampled.  Cases are
+     * stratified, each network generating (approximately) n * w[m] of them. <br>
+     * Each network is scored once on the pooled sample, giving a (k * n) matrix of logP values,
+     * and KL(i,j) is estimated by self normalised importance sampling with weights 
+     * P(x|params[i]) / q(x).  This requires k*n logP evaluations instead of k*k*n. <br>
+     * Networks are scored in parallel using caseInfo.klThreads threads.
+     */
+    protected double[][] makeSharedSampleKL( final Value.Vector[] params, final BNet bNet, 
+                                             int n, double[] posterior )
+    {
+        final int k = params.length;
+        
+        // Mixture weights.
+        double totalPosterior = 0;
+        for ( int m = 0; m < k; m++ ) { totalPosterior += posterior[m]; }
+        double[] logW = new double[k];
+        int[] count = new int[k];
+        double[] remainder = new double[k];
+        int used = 0;
+        for ( int m = 0; m < k; m++ ) {
+            double w = 0.5 / k;
+            w += (totalPosterior > 0) ? 0.5 * posterior[m] / totalPosterior : 0.5 / k;
+            logW[m] = Math.log( w );
+            count[m] = (int)(n * w);
+            remainder[m] = n * w - count[m];
+            used += count[m];
+        }
+        // Allocate leftover cases by largest remainder.
+        for ( ; used < n; used++ ) {
+            int best = 0;
+            for ( int m = 1; m < k; m++ ) { if ( remainder[m] > remainder[best] ) { best = m; } }
+            count[best] ++;
+            remainder[best] = -1;
+        }
+        
+        // Generate the pooled sample.
+        final List<Value.Vector> sample = new ArrayList<Value.Vector>();
+        for ( int m = 0; m < k; m++ ) {
+            if ( count[m] > 0 ) { sample.add( bNet.generate( rand, count[m], params[m], Value.TRIV ) ); }
+        }
+        
+        // logP[m][s] = log P(case s | params[m])
+        List<Callable<double[]>> tasks = new ArrayList<Callable<double[]>>( k );
+        for ( int m = 0; m < k; m++ ) {
+            final int net = m;
+            tasks.add( new Callable<double[]>() {
+                    public double[] call() {
+                        double[] row = new double[ caseCount( sample ) ];
+                        int pos = 0;
+                        for ( Value.Vector x : sample ) {
+                            double[] logP = bNet.noInputLogPArray( x, params[net] );
+                            System.arraycopy( logP, 0, row, pos, logP.length );
+                            pos += logP.length;
+                        }
+                        System.out.print("X");
+                        return row;
+                    }
+                });
+        }
+        double[][] logP = WorkerPool.runAll( tasks, caseInfo.klThreads ).toArray( new double[k][] );
+        
+        // log q(case s)
+        int numCases = caseCount( sample );
+        double[] logQ = new double[numCases];
+        for ( int s = 0; s < numCases; s++ ) {
+            double max = Double.NEGATIVE_INFINITY;
+            for ( int m = 0; m < k; m++ ) { max = Math.max( max, logW[m] + logP[m][s] ); }
+            double sum = 0;
+            for ( int m = 0; m < k; m++ ) { sum += Math.exp( logW[m] + logP[m][s] - max ); }
+            logQ[s] = max + Math.log( sum );
+        }
+        
+        // kl[i][j] = N * sum_s r[s] (logP[i][s] - logP[j][s]) / sum_s r[s], r[s] = P_i(s)/q(s)
+        double[][] klArray = new double[k][k];
+        double[] r = new double[numCases];
+        for ( int i = 0; i < k; i++ ) {
+            double maxLogR = Double.NEGATIVE_INFINITY;
+            for ( int s = 0; s < numCases; s++ ) {
+                r[s] = logP[i][s] - logQ[s];
+                maxLogR = Math.max( maxLogR, r[s] );
+            }
+            double totalR = 0;
+            for ( int s = 0; s < numCases; s++ ) {
+                r[s] = Math.exp( r[s] - maxLogR );
+                totalR += r[s];
+            }
+            for ( int j = 0; j < k; j++ ) {
+                if ( i == j ) { continue; }
+                double kl = 0;
+                for ( int s = 0; s < numCases; s++ ) {
+                    if ( r[s] != 0 ) { kl += r[s] * (logP[i][s] - logP[j][s]); }
                 }
-                // Other methods not implemented.
-                else { throw new RuntimeException("Unhandled CKL join type."); }
-            
-            
-            
-                // generate data from current parameter set
-                Value.Vector tempData = augBNet.generate( rand, n, augParams[i], Value.TRIV );
-            
-                // Calculate cost of stating data with current model
-                double selfCost = - augBNet.logP( tempData, augParams[i], inputVec );
-            
-                // Loop through all models calculating cost to state data with each.
-                // kl[i][j] = (logP( data|params[i] ) - logP(data|params[j])) / n
-                for ( int j = 0; j < augParams.length; j++ ) {
-                    double cost = - augBNet.logP( tempData, augParams[j], inputVec );
-                    klArray[i][j] = caseInfo.data.length() * (cost - selfCost) / n;        
-                }
+                klArray[i][j] = caseInfo.data.length() * kl / totalR;
             }
         }
-        System.out.println();
         return klArray;
     }
     
+    /** Return the total number of cases in a list of samples. */
+    private static int caseCount( List<Value.Vector> sample )
+    {
+        int total = 0;
+        for ( Value.Vector x : sample ) { total += x.length(); }
+        return total;
+    }
+    
     /** Using values from getResults() return (m,y) for a mixture model. */
     public Value.Structured getMixResults( ) {
         return getMixResults( getResults(), fullData, caseInfo.useNetica );
@@ -822,6 +1228,7 @@ public class MetropolisSearch extends BNetSearch
     {
         System.out.println( getResults() );
         
+        caseInfo.nodeCache.collectStats();
         System.out.println("GetIndex Called     \t" + caseInfo.nodeCache.getIndexCalled );
         System.out.println("Cache New           \t" + caseInfo.nodeCache.newHash );
         System.out.println("Cache Success       \t" + caseInfo.nodeCache.hashSucceed );
@@ -847,6 +1254,18 @@ public class MetropolisSearch extends BNetSearch
         return tomParams;
     }
     
+    /** 
+     * Create a MetropolisSearch using an existing caseInfo.  caseInfo must already contain
+     * tomHash, secHash and arcWeights.  Used to create parallel chains.
+     */
+    protected MetropolisSearch( java.util.Random rand, CaseInfo caseInfo )
+    {
+        super( rand, caseInfo );
+        secHashtable = new LongHashMap<SEC>();
+        max = 1;
+        setTemperature( 1.8 );
+    }
+    
     /**  */
     public MetropolisSearch( java.util.Random rand, Value.Vector data,
                              ModelLearner mlModelLearner, ModelLearner mmlModelLearner ) 
@@ -863,7 +1282,7 @@ public class MetropolisSearch extends BNetSearch
         caseInfo.arcWeights = new double[numNodes][numNodes];
         
         // Initialise SEC hash table
-        secHashtable = new Hashtable<SECHashKey,SEC>();
+        secHashtable = new LongHashMap<SEC>();
 
         // Number of epochs is calculated properly during first epoch.
         // max must be > 0 or it won't reach the first epoch.
@@ -77,8 +77,7 @@ public class Node implements Cloneable
     /** Constructor sets dependant variable to var, and parents to empty.*/
     public Node(int var)
     {
-        this.var = var;
-        parent = new int[0];
+        this( var, new int[0] );
     }
     
     /** Constructor sets current variable and its parents. */
@@ -86,24 +85,100 @@ public class Node implements Cloneable
     {
         this.var = var;
         this.parent = parent;    
+        parentArray( parent.length );
+        parentArrays[ parent.length ] = parent;
+        parentBits = new long[0];
+        for ( int i = 0; i < parent.length; i++ ) {
+            setParentBit( parent[i], true );
+            parentHash += hashParent( parent[i] );
+        }
     }
     
     /** which node is this in a TOM */ 
     public final int var;
     
-    /** List of Parents of this node. */
+    /** 
+     * List of Parents of this node, in increasing order.  Arrays are reused as parents are
+     * added and removed, so parent[] must be copied (see getParentCopy) if it is kept while the
+     * node changes.
+     */
     protected int parent[];
     
+    /** 
+     * parentArrays[n] is the array used as parent[] when this node has n parents.  Reusing
+     * these means adding or removing a parent does not allocate.
+     */
+    private int[][] parentArrays;
+    
+    /** Parents of this node as a bitset, words past the end of the array are zero. */
+    private long[] parentBits;
+    
+    /** Sum of hashParent(p) over all parents p, updated as parents are added and removed. */
+    private long parentHash;
+    
     public int getNumParents() { return parent.length; }
     public int[] getParentCopy() { return parent.clone(); }
     
+    /** Return true if p is a parent of this node. */
+    public boolean hasParent( int p )
+    {
+        int word = p >>> 6;
+        return word < parentBits.length && (parentBits[word] & (1L << p)) != 0;
+    }
+    
+    /** Return word w of the parent bitset, parent p is stored in bit (p % 64) of word (p / 64). */
+    public long getParentWord( int w )
+    {
+        return w < parentBits.length ? parentBits[w] : 0;
+    }
+    
+    /** Return the sum of hashParent(p) over all parents of this node. */
+    public long getParentHash() { return parentHash; }
+    
+    /** Return a well mixed 64 bit hash of parent p (SplitMix64 finaliser). */
+    public static long hashParent( int p )
+    {
+        long z = (p + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+    
+    /** Return the (reused) array to be used as parent[] when there are n parents. */
+    private int[] parentArray( int n )
+    {
+        if ( parentArrays == null || parentArrays.length <= n ) {
+            int[][] newArrays = new int[Math.max( n + 1, 4 )][];
+            if ( parentArrays != null ) {
+                System.arraycopy( parentArrays, 0, newArrays, 0, parentArrays.length );
+            }
+            parentArrays = newArrays;
+        }
+        if ( parentArrays[n] == null ) { parentArrays[n] = new int[n]; }
+        return parentArrays[n];
+    }
+    
+    /** Set or clear bit p of parentBits, growing it if required. */
+    private void setParentBit( int p, boolean value )
+    {
+        int word = p >>> 6;
+        if ( word >= parentBits.length ) {
+            if ( !value ) { return; }
+            long[] newBits = new long[word + 1];
+            System.arraycopy( parentBits, 0, newBits, 0, parentBits.length );
+            parentBits = newBits;
+        }
+        if ( value ) { parentBits[word] |= 1L << p; }
+        else { parentBits[word] &= ~(1L << p); }
+    }
+    
     /** add a single parent to this node. If maxParents is already reached, throw an exception */
     public void addParent( int node )
     {
         //        if ( parent.length >= maxNumParents ) {
         //            throw new ExcessiveArcsException("MaxParents already reached, cannot add another.");
         //        }
-        int[] newParent = new int[parent.length + 1];
+        int[] newParent = parentArray(parent.length + 1);
         //boolean inserted = false;
         int i = 0;
         while ( i < parent.length && parent[i] < node ) {
@@ -117,12 +192,14 @@ public class Node implements Cloneable
             i++;
         }
         parent = newParent;
+        setParentBit( node, true );
+        parentHash += hashParent( node );
     }
     
     /** remove a single parent from this node. */
     public void removeParent( int node )
     {
-        int[] newParent = new int[parent.length - 1];
+        int[] newParent = parentArray(parent.length - 1);
         int i = 0;
         while ( parent[i] != node ) { 
             newParent[i] = parent[i]; 
@@ -133,6 +210,8 @@ public class Node implements Cloneable
             i++; 
         }
         parent = newParent;
+        setParentBit( node, false );
+        parentHash -= hashParent( node );
     }
     
     /**
@@ -174,17 +253,64 @@ public class Node implements Cloneable
         }
         // Problem with learning model.  For example CPT has too many states and runs out of memory.
         catch ( ModelLearner.LearnerException e ) {
-            if ( warningsPrinted < 10) {
-                System.err.println("WARNING: Costing node " + this + " failed." +
-                                   "ModelLearner = " + modelLearner + 
-                                   "\terr = " + e);            
-            }
-            else if ( warningsPrinted == 10 ) {
-                System.err.println("WARNING: Too many Node costing warnings, reporting disabled.");
+            return costFailed( modelLearner, e );
+        }
+    }
+    
+    /**
+     *  Return true if learner1 and learner2 are both TallyLearners currently able to cost
+     *  from a tally, so cost(learner1,learner2,data) needs only a single pass over data.
+     */
+    public static boolean canShareTally(ModelLearner learner1, ModelLearner learner2)
+    {
+        return learner1 instanceof ModelLearner.TallyLearner &&
+            learner2 instanceof ModelLearner.TallyLearner &&
+            ((ModelLearner.TallyLearner)learner1).costsFromTally() &&
+            ((ModelLearner.TallyLearner)learner2).costsFromTally();
+    }
+    
+    /**
+     *  Return {cost(learner1,data), cost(learner2,data)}.  If canShareTally(learner1,learner2)
+     *  the counts are taken from data once and shared, otherwise each learner is run in turn.
+     */
+    public double[] cost(ModelLearner learner1, ModelLearner learner2, Value.Vector data)
+    {
+        if ( !canShareTally( learner1, learner2 ) ) {
+            return new double[] { cost(learner1,data), cost(learner2,data) };
+        }
+        
+        Value.Vector x = dependentVector(data);
+        Value.Vector z = parentView(data);
+        int[][] tally;
+        try { tally = ((ModelLearner.TallyLearner)learner1).getTally( x, z ); }
+        catch ( ModelLearner.LearnerException e ) {
+            return new double[] { costFailed(learner1,e), costFailed(learner2,e) };
+        }
+        
+        ModelLearner[] learner = { learner1, learner2 };
+        double[] cost = new double[2];
+        for ( int i = 0; i < cost.length; i++ ) {
+            try {
+                cost[i] = ((ModelLearner.TallyLearner)learner[i]).tallyParameterizeAndCost(x,z,tally);
             }
-            warningsPrinted++;
-            return Double.POSITIVE_INFINITY;
+            catch ( ModelLearner.LearnerException e ) { cost[i] = costFailed( learner[i], e ); }
+        }
+        return cost;
+    }
+    
+    /** Print a warning (at most 10 times) and return an infinite cost. */
+    private double costFailed( ModelLearner modelLearner, ModelLearner.LearnerException e )
+    {
+        if ( warningsPrinted < 10) {
+            System.err.println("WARNING: Costing node " + this + " failed." +
+                               "ModelLearner = " + modelLearner + 
+                               "\terr = " + e);            
+        }
+        else if ( warningsPrinted == 10 ) {
+            System.err.println("WARNING: Too many Node costing warnings, reporting disabled.");
         }
+        warningsPrinted++;
+        return Double.POSITIVE_INFINITY;
     }
     
     /** This returns a vector of just the dependant variable. */
@@ -197,7 +323,8 @@ public class Node implements Cloneable
         //        Value.Function dataView = (Value.Function)CammlFN.view.apply( data );
         //        Value.Vector parentVector = new VectorFN.FastDiscreteVector( parent );
         //        return (Value.Vector)dataView.apply( parentVector );
-        return new SelectedVector(data,null,parent);
+        // parent[] is reused as parents change, so the view needs its own copy.
+        return new SelectedVector(data,null,parent.clone());
     }
     
     /** Print a little ascii version of a node's connections.   Looks like  : "1  : <- 2 <- 3" */
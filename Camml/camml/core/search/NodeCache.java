@@ -42,6 +42,7 @@ import java.io.Serializable;
 
 import cdms.core.*;
 import camml.core.models.ModelLearner;
+import camml.core.library.DiscreteColumnVector;
 
 /**
  *  NodeCache contains numerous lazy functors dealing with caching the cost of a Node. <br>
@@ -65,6 +66,26 @@ public class NodeCache implements Serializable
      */
     public final static int maxCacheAttempts = 100;
     
+    /** 
+     * Policies used to choose which entry is removed when no free entry is found. <br>
+     * OVERWRITE_HOME -- Overwrite the first entry probed (the original NodeCache behaviour,
+     *                   and the default) <br>
+     * LEAST_USED     -- CLOCK style eviction.  Each hit increases the use count of an entry, 
+     *                   the least used entry probed is overwritten and all other probed 
+     *                   entries have their use count halved (so they must be used again to
+     *                   stay in the cache).
+     */
+    public static enum EvictionPolicy { OVERWRITE_HOME, LEAST_USED }
+    
+    /** Policy used to remove entries from a full cache. */
+    public EvictionPolicy evictionPolicy = EvictionPolicy.OVERWRITE_HOME;
+    
+    /** Maximum value stored in useCount[] */
+    protected final static byte maxUseCount = 127;
+    
+    /** Approximate number of bytes used by each cache entry (mmlCost, mlCost, hashLookup, useCount)*/
+    public final static int bytesPerEntry = 8 + 8 + 8 + 1;
+    
     /** length of all arrays in the cache. */
     public final int cacheSize;
     
@@ -86,7 +107,16 @@ public class NodeCache implements Serializable
     /** Details about this case (dataset & search instance) */
     public CaseInfo caseInfo;
     
-    /** parentHash and childHash are arrays of random doubles used to generate node hashes. */
+    /** 
+     * Persistent store of node costs shared between runs, checked before a node is learned.
+     * May be null.  Only valid for Nodes (not DNodes) using data, mmlLearner and mlLearner.
+     */
+    public transient NodeCostStore costStore;
+    
+    /** 
+     * parentHash and childHash are arrays of random longs used to generate node hashes.
+     * NodeCache itself uses Node.getParentHash() in place of parentHashArray.
+     */
     protected long[] parentHashArray, childHashArray;
     
     ///////////////////////////////
@@ -104,6 +134,25 @@ public class NodeCache implements Serializable
      *  Ideally (cacheHash[i] % cacheIndex.length == i) but this will differ due to cache clashes*/
     protected final long[] hashLookup;
     
+    /** Number of times each entry has been used, see EvictionPolicy.LEAST_USED */
+    protected final byte[] useCount;
+    
+    /** 
+     * If true the child and parent set of each entry is stored in keyVar[] and keyBits[] and
+     * checked on each hit, so hash collisions are detected instead of returning the wrong cost.
+     */
+    public final boolean verifyKeys;
+    
+    /** Number of longs required to store the parent set of an entry in keyBits[] */
+    protected final int keyWords;
+    
+    /** Child variable of each entry.  Only allocated if verifyKeys is set. */
+    protected final int[] keyVar;
+    
+    /** Parent set of each entry stored as a bitset of keyWords longs per entry. 
+     *  Only allocated if verifyKeys is set. */
+    protected final long[] keyBits;
+    
     /** current value used in entryNumber[] */
     //protected int currentEntryNumber;
     
@@ -112,7 +161,7 @@ public class NodeCache implements Serializable
     ///////////////////////////////////////////////////////
     /** Variables to monitor cache, not essential. long is used as int is not big enough */
     public long getIndexCalled = 0, newHash = 0, hashFailed = 0, hashSucceed = 0,
-        recalculations = 0,    cleanCalled = 0, outOfRange = 0;
+        recalculations = 0,    cleanCalled = 0, outOfRange = 0, evictions = 0, collisions = 0;
     
     /** Keep track of cache statistics */
     public final int[] costings;
@@ -149,8 +198,12 @@ public class NodeCache implements Serializable
         return numCacheEntries;
     }
 
+    /** MB per node used to size cache, (only used if capacityBytes is negative) */
     double mbPerNode;
     
+    /** Total capacity of cache in bytes, or -1 if mbPerNode is used to size the cache. */
+    long capacityBytes = -1;
+    
     /** Convenience constructor for NodeCache */
     public NodeCache( Value.Vector data, ModelLearner mmlLearner, ModelLearner mlLearner ){
         this(data,mmlLearner,mlLearner,2.0);
@@ -169,14 +222,39 @@ public class NodeCache implements Serializable
      */
     public NodeCache( Value.Vector data, ModelLearner mmlLearner, ModelLearner mlLearner, double mbPerNode )
     {
-        // Save values passed in
-        this.data = data;
+        this( data, mmlLearner, mlLearner, mbPerNode, -1, false );
+    }
+    
+    /**
+     *  Constructor for NodeCache using a cache of approximately capacityBytes bytes. <br>
+     *  If verifyKeys is true the parent set of each entry is stored (using more memory per
+     *  entry) so hash collisions can be detected.
+     */
+    public NodeCache( Value.Vector data, ModelLearner mmlLearner, ModelLearner mlLearner, 
+                      long capacityBytes, boolean verifyKeys )
+    {
+        this( data, mmlLearner, mlLearner, 0.0, capacityBytes, verifyKeys );
+    }
+    
+    /** 
+     * Constructor used by all others.  If capacityBytes is negative cacheSize is calculated
+     * from mbPerNode, otherwise from capacityBytes.
+     */
+    protected NodeCache( Value.Vector data, ModelLearner mmlLearner, ModelLearner mlLearner, 
+                         double mbPerNode, long capacityBytes, boolean verifyKeys )
+    {
+        // Save values passed in.  Discrete data is held in columns so nodes count from
+        // primitive arrays.
+        this.data = DiscreteColumnVector.make(data);
         this.mmlLearner = mmlLearner;
         this.mlLearner = mlLearner;
         this.mbPerNode = mbPerNode;
+        this.capacityBytes = capacityBytes;
+        this.verifyKeys = verifyKeys;
         
         // Work out various contants needed for choosing a cache size.
         numNodes = ((Type.Structured)((Type.Vector)data.t).elt).cmpnts.length;    
+        keyWords = verifyKeys ? (numNodes + 63) / 64 : 0;
         
         // used to gather statistics about nodeCache 
         costings = new int[numNodes];
@@ -184,14 +262,21 @@ public class NodeCache implements Serializable
         
         // Allocate some big slabs of memory to cache various things in.
         try {
-            // Try to keep cache size linear compared to numNodes.  2 MegeBytes per node?
-            double cacheSizeMB = numNodes * mbPerNode;
-            
-            // Maximum cache size of 1gb.
-            if (cacheSizeMB > maxCacheSizeMB) cacheSizeMB = maxCacheSizeMB;
-            
-            // each cache entry is approx 24 bytes, multiply by 42000 to get MB
-            cacheSize = (int)cacheSizeMB * 42000 + 7; // add 7 to make it a prime... maybe
+            if ( capacityBytes < 0 ) {
+                // Try to keep cache size linear compared to numNodes.  2 MegeBytes per node?
+                double cacheSizeMB = numNodes * mbPerNode;
+                
+                // Maximum cache size of 1gb.
+                if (cacheSizeMB > maxCacheSizeMB) cacheSizeMB = maxCacheSizeMB;
+                
+                // each cache entry is approx 24 bytes, multiply by 42000 to get MB
+                cacheSize = (int)cacheSizeMB * 42000 + 7; // add 7 to make it a prime... maybe
+            }
+            else {
+                int entryBytes = bytesPerEntry + (verifyKeys ? 4 + 8 * keyWords : 0);
+                long maxEntries = (Integer.MAX_VALUE - 8) / Math.max( keyWords, 1 );
+                cacheSize = (int)Math.min( capacityBytes / entryBytes + 7, maxEntries );
+            }
             
             numCacheEntries = 0;
             
@@ -201,6 +286,9 @@ public class NodeCache implements Serializable
             mmlCost = new double[cacheSize];
             mlCost = new double[cacheSize];
             hashLookup = new long[cacheSize];
+            useCount = new byte[cacheSize];
+            keyVar = verifyKeys ? new int[cacheSize] : null;
+            keyBits = verifyKeys ? new long[cacheSize * keyWords] : null;
             
             // Initialise cache values.
             for ( int i = 0; i < cacheSize; i++ ) { 
@@ -215,6 +303,32 @@ public class NodeCache implements Serializable
         
     }           
     
+    /** 
+     * Return a new empty cache of the same type and configuration as this one. 
+     * If empty is true a cache of minimal size is created instead (used by writeReplace).
+     */
+    protected NodeCache newCache( boolean empty )
+    {
+        NodeCache nc = empty ? makeCache( 0.0, -1 ) : makeCache( mbPerNode, capacityBytes );
+        nc.mbPerNode = mbPerNode;
+        nc.capacityBytes = capacityBytes;
+        nc.evictionPolicy = evictionPolicy;
+        nc.costStore = costStore;
+        return nc;
+    }
+    
+    /** Create a cache of the same type as this one.  Subclasses should override this. */
+    protected NodeCache makeCache( double mbPerNode, long capacityBytes )
+    {
+        return new NodeCache( data, mmlLearner, mlLearner, mbPerNode, capacityBytes, verifyKeys );
+    }
+    
+    /** 
+     * Ensure the public statistics variables are up to date.  Subclasses which do not update
+     * them directly (ie. ConcurrentNodeCache) should override this.
+     */
+    public void collectStats() { }
+    
     /**
      * Print statistics about cache useage. <br>
      * Level 0 = no printing <br>
@@ -223,6 +337,7 @@ public class NodeCache implements Serializable
      */
     public void printStats( int level )
     {
+        collectStats();
         if ( level <= 0 ) {}
         else if ( level == 1 ) {
             // Print out line of general cache info.
@@ -240,6 +355,8 @@ public class NodeCache implements Serializable
             System.out.println( "recalculations = " + recalculations );
             System.out.println( "cleanCalled =    " + cleanCalled );
             System.out.println( "outOfRange =     " + outOfRange );
+            System.out.println( "evictions =      " + evictions );
+            System.out.println( "collisions =     " + collisions );
             System.out.println( "infiniteLearnings = " + totalInfiniteLearnings );
             System.out.println( "infiniteCostings  = " + totalInfiniteCostings );
             System.out.println();
@@ -265,37 +382,74 @@ public class NodeCache implements Serializable
         
         // index[hash] now represents the node with long hash nodeID
         hashLookup[index] = hash;
+        useCount[index] = 1;
         
         newHash ++;
     }
     
+    /** Store the child and parents of node as the key of entry index. */
+    protected void setKey( int index, Node node )
+    {
+        keyVar[index] = node.var;
+        int offset = index * keyWords;
+        for ( int i = 0; i < keyWords; i++ ) { keyBits[offset + i] = node.getParentWord(i); }
+    }
+    
+    /** Return true if the key stored at index matches node. */
+    protected boolean keyMatches( int index, Node node )
+    {
+        if ( keyVar[index] != node.var ) { return false; }
+        int offset = index * keyWords;
+        for ( int i = 0; i < keyWords; i++ ) {
+            if ( keyBits[offset + i] != node.getParentWord(i) ) { return false; }
+        }
+        return true;
+    }
+    
+    /** Create parentHashArray and childHashArray */
+    protected void makeHashArrays() {
+        java.util.Random rand = new java.util.Random(123);
+        parentHashArray = new long[numNodes];
+        childHashArray = new long[numNodes];
+        for ( int i = 0; i < parentHashArray.length; i++ ) {
+            parentHashArray[i] = rand.nextLong();
+            childHashArray[i] = rand.nextLong();
+        }
+    }
+    
     /** Generate an index into the cache */
     protected int getIndex( Node node ) {
-        getIndexCalled ++;
-        
+        return getIndex( getHash(node), node );
+    }
+    
+    /** Return the 63 bit hash representing node's parent[]->child combination. */
+    protected long getHash( Node node ) {
         // if not allocated, create parentHash and childHash
-        if ( parentHashArray == null ) {
-            java.util.Random rand = new java.util.Random(123);
-            parentHashArray = new long[numNodes];
-            childHashArray = new long[numNodes];
-            for ( int i = 0; i < parentHashArray.length; i++ ) {
-                parentHashArray[i] = rand.nextLong();
-                childHashArray[i] = rand.nextLong();
-            }
-        }
+        if ( parentHashArray == null ) { makeHashArrays(); }
         
         // create hash for node.  hash is a random 63 bit value representing each parent[]->child
         // combinations.  It is possible (though remarkably unlikely) for two nodes to hash to the
-        // same value.  No checks are in place as this will probably never happen.
-        long nodeHash = childHashArray[ node.var ];
-        for ( int i = 0; i < node.parent.length; i++ ) {
-            nodeHash += parentHashArray[node.parent[i]];
-        }
+        // same value, see verifyKeys.  The parent part of the hash is kept up to date by Node as
+        // parents are added and removed, so no loop over parents is required.
+        long nodeHash = childHashArray[ node.var ] + node.getParentHash();
         // we use a 63 bit value so nodeHash is always positive.
         nodeHash &= 0x7FFFFFFFFFFFFFFFl;
+        return nodeHash;
+    }
+    
+    /** 
+     * Find (or allocate) the index of the cache entry for nodeHash.  If verifyKeys is set node
+     * is compared to the key stored with the entry, so node must not be null.
+     */
+    protected int getIndex( long nodeHash, Node node ) {
+        getIndexCalled ++;
         
         // Using nodeHash create an index into arrays.
-        int nodeIndex = (int)(nodeHash % cacheSize);
+        int homeIndex = (int)(nodeHash % cacheSize);
+        int nodeIndex = homeIndex;
+        
+        // Least used entry probed, replaced if no free entry is found.
+        int victim = homeIndex;
         
         // use quadratic probing to find a free entry in the hashtable.  This has better behaviour
         // than linear probe (although it is not guarenteed to fill the entire table.)
@@ -306,37 +460,123 @@ public class NodeCache implements Serializable
             
             // If the nodeHash is found, return nodeIndex.
             if ( hashLookup[nodeIndex] == nodeHash ) {
-                hashSucceed ++;
+                // Two nodes with the same hash, replace the old entry with the new node.
+                if ( verifyKeys && !keyMatches( nodeIndex, node ) ) {
+                    collisions ++;
+                    overwriteCacheEntry( nodeIndex, nodeHash );
+                    setKey( nodeIndex, node );
+                    return nodeIndex;
+                }
                 
+                hashSucceed ++;
+                if ( useCount[nodeIndex] < maxUseCount ) { useCount[nodeIndex] ++; }
                 return nodeIndex;
             }
             
             // If an empty entry is found, assign nodeHash to this nodeIndex
             if ( hashLookup[ nodeIndex ] == -1 ) {
                 hashLookup[ nodeIndex ] = nodeHash;
+                useCount[ nodeIndex ] = 1;
+                if ( verifyKeys ) { setKey( nodeIndex, node ); }
                 
                 newHash ++;
                 numCacheEntries ++;
                 return nodeIndex;
             }
             
+            if ( useCount[nodeIndex] < useCount[victim] ) { victim = nodeIndex; }
+            
             // current cache entry already used by another node, so try again with new index.
             hashFailed ++;
         }    
-                
+        
         // We are forced to overwrite a value.
-        nodeIndex = (int)(nodeHash % cacheSize);
+        if ( evictionPolicy == EvictionPolicy.LEAST_USED ) {
+            ageEntries( homeIndex );
+            nodeIndex = victim;
+        }
+        else {
+            nodeIndex = homeIndex;
+        }
+        evictions ++;
         overwriteCacheEntry( nodeIndex, nodeHash );
+        if ( verifyKeys ) { setKey( nodeIndex, node ); }
         
         return nodeIndex;
     }
     
+    /** 
+     * Halve the use count of all entries probed starting from homeIndex.  Entries which are
+     * not used again will eventually be evicted.  Probe i is i*(i+1)/2 entries past homeIndex,
+     * so probes are distinct while this offset is less than cacheSize.  Only these probes
+     * are aged, so no entry is halved twice (which only matters in very small caches).
+     */
+    protected void ageEntries( int homeIndex )
+    {
+        long offset = 0;
+        for ( int i = 0; i < maxCacheAttempts; i++ ) {
+            offset += i;
+            if ( offset >= cacheSize ) { break; }
+            useCount[ (int)((homeIndex + offset) % cacheSize) ] >>= 1;
+        }
+    }
+    
+    /** 
+     * Calculate the MML (or ML) cost of node.  If costStore is set the stored cost is used
+     * when available, otherwise the cost is learned and added to costStore.
+     */
+    protected double learnCost( Node node, boolean mml )
+    {
+        ModelLearner learner = mml ? mmlLearner : mlLearner;
+        if ( costStore == null ) { return node.cost( learner, data ); }
+        
+        double cost = mml ? costStore.getMMLCost( node ) : costStore.getMLCost( node );
+        if ( Double.isNaN( cost ) ) {
+            cost = node.cost( learner, data );
+            if ( mml ) { costStore.putMMLCost( node, cost ); }
+            else { costStore.putMLCost( node, cost ); }
+        }
+        return cost;
+    }
+    
+    /**
+     * Calculate the MML (or ML) cost of node, and if other is set the cost with the other
+     * learner as well.  The other cost is only calculated when both costs can be taken from
+     * a single pass over the data (see Node.canShareTally), as it is otherwise no cheaper than
+     * learning it when it is first needed.
+     * Returns {cost, otherCost}, otherCost is NaN if it was not calculated.
+     */
+    protected double[] learnCosts( Node node, boolean mml, boolean other )
+    {
+        if ( !other || !Node.canShareTally( mmlLearner, mlLearner ) ) { return new double[] { learnCost( node, mml ), Double.NaN }; }
+        
+        double mmlStored = Double.NaN, mlStored = Double.NaN;
+        if ( costStore != null ) {
+            mmlStored = costStore.getMMLCost( node );
+            mlStored = costStore.getMLCost( node );
+        }
+        double[] cost;
+        if ( Double.isNaN(mmlStored) && Double.isNaN(mlStored) ) {
+            cost = node.cost( mmlLearner, mlLearner, data );
+            if ( costStore != null ) {
+                costStore.putMMLCost( node, cost[0] );
+                costStore.putMLCost( node, cost[1] );
+            }
+        }
+        else {
+            cost = new double[] { learnCost( node, true ), learnCost( node, false ) };
+        }
+        return mml ? cost : new double[] { cost[1], cost[0] };
+    }
+    
     /** Return unclean ML costs from default dataset */
     public double getMLCost( Node node )       
     {
         int hash = getIndex(node);
         if ( mlCost[hash] == -1 ) {
-            mlCost[hash] = node.cost( mlLearner, data ); 
+            double[] cost = learnCosts( node, false, mmlCost[hash] == -1 );
+            mlCost[hash] = cost[0];
+            if ( !Double.isNaN(cost[1]) ) { storeLearnedMMLCost( node, hash, cost[1] ); }
         }
         return mlCost[hash];
     }
@@ -347,14 +587,9 @@ public class NodeCache implements Serializable
         int index = getIndex(node);
         
         if ( mmlCost[index] == -1 ) {
-            mmlCost[index] = node.cost( mmlLearner, data ); 
-            
-            learnings[ node.parent.length ] ++;
-            totalLearnings ++;
-            
-            if ( Double.isInfinite( mmlCost[index] ) ) {
-                totalInfiniteLearnings ++;
-            }
+            double[] cost = learnCosts( node, true, mlCost[index] == -1 );
+            storeLearnedMMLCost( node, index, cost[0] );
+            if ( !Double.isNaN(cost[1]) ) { mlCost[index] = cost[1]; }
         }
         
         costings[ node.parent.length ]++;
@@ -366,7 +601,111 @@ public class NodeCache implements Serializable
         
         return mmlCost[index];
     }
+    
+    /** Store a newly learned MML cost and update learning statistics. */
+    private void storeLearnedMMLCost( Node node, int index, double cost )
+    {
+        mmlCost[index] = cost;
+        learnings[ node.parent.length ] ++;
+        totalLearnings ++;
+        if ( Double.isInfinite( cost ) ) { totalInfiniteLearnings ++; }
+    }
         
+    /**
+     * Return a NodeCache which may be shared by worker searches running in other threads. <br>
+     * NodeCache is not thread safe, so a ConcurrentNodeCache of the same size holding a copy
+     * of all entries in this cache is returned.  All workers should share the returned cache,
+     * and once they are finished mergeSharedCache() copies the costs they learned back into
+     * this cache.  A ConcurrentNodeCache returns itself.
+     */
+    public NodeCache getSharedCache()
+    {
+        if ( getClass() != NodeCache.class ) {
+            throw new RuntimeException( getClass().getName() + " can not be shared between threads" );
+        }
+        NodeCache shared = new ConcurrentNodeCache( data, mmlLearner, mlLearner, mbPerNode,
+                                                    capacityBytes, verifyKeys );
+        shared.mbPerNode = mbPerNode;
+        shared.capacityBytes = capacityBytes;
+        shared.evictionPolicy = evictionPolicy;
+        shared.costStore = costStore;
+        shared.caseInfo = caseInfo;
+        shared.copyEntries( this );
+        return shared;
+    }
+    
+    /**
+     * Return a cache of the same type, size and entries as this one which learns new costs
+     * from data.  data must hold the same values as this cache's data (eg. a copy of the
+     * DiscreteColumnVector holding it), so cached costs remain valid.
+     */
+    public NodeCache copyWithData( Value.Vector data )
+    {
+        return copy( data, mmlLearner, mlLearner );
+    }
+    
+    /**
+     * Return a cache of the same type, size and entries as this one which learns new costs
+     * with mmlLearner and mlLearner.  These must return the same costs as this cache's
+     * learners (eg. copies of them), so cached costs remain valid.
+     */
+    public NodeCache copyWithLearners( ModelLearner mmlLearner, ModelLearner mlLearner )
+    {
+        return copy( data, mmlLearner, mlLearner );
+    }
+    
+    /** Return a copy of this cache using data, mmlLearner and mlLearner. */
+    private NodeCache copy( Value.Vector data, ModelLearner mmlLearner, ModelLearner mlLearner )
+    {
+        NodeCache nc;
+        if ( getClass() == NodeCache.class ) {
+            nc = new NodeCache( data, mmlLearner, mlLearner, mbPerNode, capacityBytes, verifyKeys );
+        }
+        else if ( getClass() == ConcurrentNodeCache.class ) {
+            nc = new ConcurrentNodeCache( data, mmlLearner, mlLearner, mbPerNode,
+                                          capacityBytes, verifyKeys );
+        }
+        else {
+            throw new RuntimeException( getClass().getName() + " can not be copied" );
+        }
+        nc.mbPerNode = mbPerNode;
+        nc.capacityBytes = capacityBytes;
+        nc.evictionPolicy = evictionPolicy;
+        nc.costStore = costStore;
+        nc.caseInfo = caseInfo;
+        nc.copyEntries( this );
+        return nc;
+    }
+
+    /** 
+     * Copy all entries of a cache returned by getSharedCache() back into this cache.
+     * Nothing is done if shared is this cache.
+     */
+    public void mergeSharedCache( NodeCache shared )
+    {
+        if ( shared != this ) { copyEntries( shared ); }
+    }
+    
+    /** 
+     * Replace all entries in this cache with those of c.  Both caches must have the same
+     * cacheSize and hash functions, so each entry stays in the same slot.
+     */
+    protected void copyEntries( NodeCache c )
+    {
+        if ( c.cacheSize != cacheSize || c.verifyKeys != verifyKeys ) {
+            throw new RuntimeException( "Can not copy entries between caches of different sizes" );
+        }
+        System.arraycopy( c.mmlCost, 0, mmlCost, 0, cacheSize );
+        System.arraycopy( c.mlCost, 0, mlCost, 0, cacheSize );
+        System.arraycopy( c.hashLookup, 0, hashLookup, 0, cacheSize );
+        System.arraycopy( c.useCount, 0, useCount, 0, cacheSize );
+        if ( verifyKeys ) {
+            System.arraycopy( c.keyVar, 0, keyVar, 0, cacheSize );
+            System.arraycopy( c.keyBits, 0, keyBits, 0, keyBits.length );
+        }
+        numCacheEntries = c.getNumCacheEntries();
+    }
+
     /** return cost using a given modelLearner on data. */
     public double getCost( Node node, ModelLearner modelLearner ) 
     {
@@ -383,21 +722,18 @@ public class NodeCache implements Serializable
     public Object writeReplace() throws ObjectStreamException
     {
         // Create a cache of size 0
-        NodeCache nc = new NodeCache(data,mmlLearner,mlLearner,0.0);
-        // Trick the serialised cache into thinking it is larger.
-        // mbPerNode flags to our unserialise method the desired size.
-        nc.mbPerNode = mbPerNode;
-        return nc;
+        // The serialised cache remembers mbPerNode and capacityBytes, 
+        // this flags to our unserialise method the desired size.
+        return newCache( true );
     }
 
     /**
      * Unserialise NodeCache and create cache of the correct size.
      */
     public Object readResolve() throws ObjectStreamException {
-        // When unserialising mpPerNode is used to determine cache size
+        // When unserialising mpPerNode (or capacityBytes) is used to determine cache size
         // instead of the actual size which writeReplace sets to 0.0
-        NodeCache nc = new NodeCache(data,mmlLearner,mlLearner,mbPerNode);
-        return nc;
+        return newCache( false );
     }
 
     
@@ -0,0 +1,383 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Persistent store of node costs for CaMML
+//
+
+// File:   NodeCostStore.java
+
+package camml.core.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import cdms.core.*;
+import camml.core.models.ModelLearner;
+
+/**
+ *  NodeCostStore is a memory mapped file storing the MML and ML costs of nodes, so costs
+ *  learned in one run of CaMML can be reused by later runs on the same dataset (ie. with 
+ *  different seeds, priors or searchFactor). <br>
+ *  
+ *  The file begins with a header containing a fingerprint of the dataset and the MML and ML
+ *  learners used.  If the fingerprint of an existing file does not match it is cleared.
+ *  Learners are identified by ModelLearner.KeyedLearner.getLearnerKey(), a store written
+ *  using a learner without a key is never reused. <br>
+ *  
+ *  Each slot stores two independent 64 bit hashes of the node (child and parent set) followed
+ *  by its MML and ML cost (NaN if unknown).  A fixed number of slots is probed linearly, if no
+ *  free slot is found the first slot probed is overwritten. <br>
+ *  
+ *  All methods are synchronized so a single store may be shared by several NodeCaches.
+ *  A store should not be written by more than one process at a time.
+ */
+public class NodeCostStore
+{
+    /** Identifies a NodeCostStore file ("CaMMLNCS") */
+    protected final static long magic = 0x43614d4d4c4e4353L;
+    
+    /** Version of the file format */
+    protected final static int version = 2;
+    
+    /** Size of header in bytes (magic, version, numSlots, fingerprint) */
+    protected final static int headerBytes = 8 + 4 + 4 + 8;
+    
+    /** Size of each slot in bytes (hash, check, mmlCost, mlCost) */
+    protected final static int slotBytes = 8 + 8 + 8 + 8;
+    
+    /** Number of slots probed before an entry is overwritten. */
+    public final static int maxProbes = 16;
+    
+    /** Default number of slots, approximately 32MB */
+    public final static int defaultNumSlots = 1 << 20;
+    
+    /** File the store is mapped from. */
+    public final File file;
+    
+    /** Fingerprint of dataset and learners. */
+    public final long fingerprint;
+    
+    /** Number of slots in the store. */
+    public final int numSlots;
+    
+    /** Number of nodes in the dataset. */
+    protected final int numNodes;
+    
+    /** Random values used to hash nodes. */
+    protected final long[] childHash, childCheck, parentCheck;
+    
+    /** Mapped file contents. */
+    protected final MappedByteBuffer buffer;
+    
+    /** Statistics */
+    public long hits = 0, misses = 0, writes = 0;
+    
+    /** Value of writes at the last flush() */
+    protected long flushedWrites = 0;
+    
+    /** Create a store of defaultNumSlots slots (or use an existing store), see below */
+    public NodeCostStore( File file, Value.Vector data, 
+                          ModelLearner mmlLearner, ModelLearner mlLearner ) 
+        throws IOException
+    {
+        this( file, data, mmlLearner, mlLearner, defaultNumSlots );
+    }
+    
+    /**
+     * Open the store in file, creating it if required.  If file exists and was created with the
+     * same data and learners it is reused (keeping its original size), otherwise a new store of
+     * numSlots slots is created.
+     */
+    public NodeCostStore( File file, Value.Vector data, 
+                          ModelLearner mmlLearner, ModelLearner mlLearner, int numSlots ) 
+        throws IOException
+    {
+        this.file = file;
+        this.fingerprint = fingerprint( data, mmlLearner, mlLearner );
+        this.numNodes = ((Type.Structured)((Type.Vector)data.t).elt).cmpnts.length;
+        
+        // Independent random values are used for hash and check.
+        java.util.Random rand = new java.util.Random(fingerprint);
+        childHash = new long[numNodes];
+        childCheck = new long[numNodes];
+        parentCheck = new long[numNodes];
+        for ( int i = 0; i < numNodes; i++ ) {
+            childHash[i] = rand.nextLong();
+            childCheck[i] = rand.nextLong();
+            parentCheck[i] = rand.nextLong();
+        }
+        
+        RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        try {
+            // Check if an existing store can be reused.
+            boolean reuse = false;
+            if ( raf.length() >= headerBytes ) {
+                long fileMagic = raf.readLong();
+                int fileVersion = raf.readInt();
+                int fileSlots = raf.readInt();
+                long fileFingerprint = raf.readLong();
+                if ( fileMagic == magic && fileVersion == version && fileSlots > 0 &&
+                     fileFingerprint == fingerprint &&
+                     raf.length() == headerBytes + (long)fileSlots * slotBytes ) {
+                    numSlots = fileSlots;
+                    reuse = true;
+                }
+            }
+            this.numSlots = numSlots;
+            
+            long length = headerBytes + (long)numSlots * slotBytes;
+            if ( length > Integer.MAX_VALUE ) { 
+                throw new IllegalArgumentException("NodeCostStore too large : " + numSlots); 
+            }
+            raf.setLength( length );
+            buffer = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, length );
+            
+            if ( !reuse ) { clear(); }
+        } finally {
+            // The mapping remains valid after the file is closed.
+            raf.close();
+        }
+        
+        // Searches flush the store when they finish, this catches runs which are cut short.
+        register( this );
+    }
+    
+    /** 
+     * Stores flushed when the JVM exits.  Stores are weakly referenced so an unused store 
+     * (and its mapping) can be reclaimed.
+     */
+    private static final Set<NodeCostStore> openStores = 
+        Collections.newSetFromMap( new WeakHashMap<NodeCostStore,Boolean>() );
+    
+    /** Shutdown hook flushing openStores, null until the first store is opened. */
+    private static Thread shutdownHook = null;
+    
+    /** Add store to openStores, registering shutdownHook if required. */
+    private static void register( NodeCostStore store )
+    {
+        synchronized ( openStores ) {
+            openStores.add( store );
+            if ( shutdownHook == null ) {
+                shutdownHook = new Thread( "NodeCostStore flush" ) {
+                        public void run() { 
+                            List<NodeCostStore> stores;
+                            synchronized ( openStores ) { 
+                                stores = new ArrayList<NodeCostStore>( openStores ); 
+                            }
+                            for ( NodeCostStore s : stores ) { s.flush(); }
+                        }
+                    };
+                Runtime.getRuntime().addShutdownHook( shutdownHook );
+            }
+        }
+    }
+    
+    /** Remove all entries and write a new header. */
+    public synchronized void clear()
+    {
+        buffer.putLong( 0, magic );
+        buffer.putInt( 8, version );
+        buffer.putInt( 12, numSlots );
+        buffer.putLong( 16, fingerprint );
+        for ( int i = 0; i < numSlots; i++ ) {
+            int pos = headerBytes + i * slotBytes;
+            buffer.putLong( pos, 0 );
+            buffer.putLong( pos + 8, 0 );
+            buffer.putDouble( pos + 16, Double.NaN );
+            buffer.putDouble( pos + 24, Double.NaN );
+        }
+    }
+    
+    /** 
+     * Return a 64 bit fingerprint of data and the learners used to cost it.  If either learner
+     * has no key a random fingerprint is returned, so the store is not reused.
+     */
+    public static long fingerprint( Value.Vector data, ModelLearner mmlLearner, ModelLearner mlLearner )
+    {
+        String mmlKey = learnerKey( mmlLearner );
+        String mlKey = learnerKey( mlLearner );
+        if ( mmlKey == null || mlKey == null ) {
+            System.out.println( "NodeCostStore : learners " + mmlLearner + " and " + mlLearner +
+                                " can not be identified, stored costs will not be reused." );
+            return new java.security.SecureRandom().nextLong();
+        }
+        
+        long f = 0xcbf29ce484222325L;
+        f = mix( f, data.t.toString().hashCode() );
+        f = mix( f, data.length() );
+        f = mix( f, mmlKey.hashCode() );
+        f = mix( f, mlKey.hashCode() );
+        
+        int numVars = ((Type.Structured)((Type.Vector)data.t).elt).cmpnts.length;
+        for ( int j = 0; j < numVars; j++ ) {
+            Value.Vector column = data.cmpnt(j);
+            for ( int i = 0; i < column.length(); i++ ) {
+                Value v = column.elt(i);
+                if ( v instanceof Value.Discrete ) {
+                    f = mix( f, ((Value.Discrete)v).getDiscrete() );
+                }
+                else if ( v instanceof Value.Continuous ) {
+                    f = mix( f, Double.doubleToLongBits( ((Value.Continuous)v).getContinuous() ) );
+                }
+                else {
+                    f = mix( f, v.toString().hashCode() );
+                }
+            }
+        }
+        return f;
+    }
+    
+    /** Key identifying a learner and its parameters, or null if it has none. */
+    protected static String learnerKey( ModelLearner learner )
+    {
+        if ( learner == null ) { return "null"; }
+        String key = ModelLearner.DefaultImplementation.keyOf( learner );
+        return (key == null) ? null : learner.getClass().getName() + ":" + key;
+    }
+    
+    /** Mix x into hash h (FNV-1a style, 64 bit) */
+    protected static long mix( long h, long x )
+    {
+        for ( int i = 0; i < 8; i++ ) {
+            h ^= (x >>> (i * 8)) & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+    
+    /** Return position in buffer of slot containing node, or -1 if not present. */
+    protected int find( long hash, long check )
+    {
+        int home = (int)((hash & 0x7FFFFFFFFFFFFFFFL) % numSlots);
+        for ( int i = 0; i < maxProbes; i++ ) {
+            int pos = headerBytes + ((home + i) % numSlots) * slotBytes;
+            long h = buffer.getLong( pos );
+            if ( h == hash && buffer.getLong( pos + 8 ) == check ) { return pos; }
+            if ( h == 0 ) { return -1; }
+        }
+        return -1;
+    }
+    
+    /** Return position of slot to store node in, possibly overwriting another entry. */
+    protected int findOrAllocate( long hash, long check )
+    {
+        int home = (int)((hash & 0x7FFFFFFFFFFFFFFFL) % numSlots);
+        for ( int i = 0; i < maxProbes; i++ ) {
+            int pos = headerBytes + ((home + i) % numSlots) * slotBytes;
+            long h = buffer.getLong( pos );
+            if ( h == hash && buffer.getLong( pos + 8 ) == check ) { return pos; }
+            if ( h == 0 ) { return initSlot( pos, hash, check ); }
+        }
+        return initSlot( headerBytes + home * slotBytes, hash, check );
+    }
+    
+    /** Assign slot at pos to node, clearing its costs. */
+    private int initSlot( int pos, long hash, long check )
+    {
+        buffer.putLong( pos, hash );
+        buffer.putLong( pos + 8, check );
+        buffer.putDouble( pos + 16, Double.NaN );
+        buffer.putDouble( pos + 24, Double.NaN );
+        return pos;
+    }
+    
+    /** 
+     * Return hash of node (never 0 as 0 flags an empty slot).  The parent part of the hash is
+     * kept up to date by Node, see Node.getParentHash().
+     */
+    protected long getHash( Node node )
+    {
+        long h = childHash[node.var] + node.getParentHash();
+        return (h == 0) ? 1 : h;
+    }
+    
+    /** 
+     * Return second hash of node.  This must be independent of getHash() to detect its
+     * collisions, so it is summed over the parents using parentCheck[].
+     */
+    protected long getCheck( Node node )
+    {
+        long h = childCheck[node.var];
+        for ( int i = 0; i < node.parent.length; i++ ) { h += parentCheck[node.parent[i]]; }
+        return h;
+    }
+    
+    /** Return stored cost of node, or NaN if not stored.  Offset is 16 for MML, 24 for ML. */
+    protected synchronized double getCost( Node node, int offset )
+    {
+        int pos = find( getHash(node), getCheck(node) );
+        double cost = (pos == -1) ? Double.NaN : buffer.getDouble( pos + offset );
+        if ( Double.isNaN(cost) ) { misses ++; } else { hits ++; }
+        return cost;
+    }
+    
+    /** Store cost of node.  Offset is 16 for MML, 24 for ML. */
+    protected synchronized void putCost( Node node, int offset, double cost )
+    {
+        int pos = findOrAllocate( getHash(node), getCheck(node) );
+        buffer.putDouble( pos + offset, cost );
+        writes ++;
+    }
+    
+    /** Return stored MML cost of node, or NaN if not stored. */
+    public double getMMLCost( Node node ) { return getCost( node, 16 ); }
+    
+    /** Return stored ML cost of node, or NaN if not stored. */
+    public double getMLCost( Node node ) { return getCost( node, 24 ); }
+    
+    /** Store MML cost of node. */
+    public void putMMLCost( Node node, double cost ) { putCost( node, 16, cost ); }
+    
+    /** Store ML cost of node. */
+    public void putMLCost( Node node, double cost ) { putCost( node, 24, cost ); }
+    
+    /** Write all changes to disk.  Nothing is done if there have been no writes since the last flush. */
+    public synchronized void flush()
+    {
+        if ( writes != flushedWrites ) {
+            buffer.force();
+            flushedWrites = writes;
+        }
+    }
+    
+    public String toString()
+    {
+        return "NodeCostStore(" + file + ", slots = " + numSlots + 
+            ", hits = " + hits + ", misses = " + misses + ", writes = " + writes + ")";
+    }
+}
@@ -128,7 +128,6 @@ public class ParentSwapChange extends TOMTransformation
         // The cost of node1 and node2 cannot be changed (as thier parents remain constant).
         // The modification of the parents of node3 means that it may change.
         // so we must find it's original cost before changing it.    
-        int[] originalParents = nodeJ.parent;
         double oldJCost = caseInfo.nodeCache.getMMLCost( nodeJ );
         
         // Links I--J & K--J are toggled.
@@ -183,7 +182,6 @@ public class ParentSwapChange extends TOMTransformation
         else {
             // toggle node1 -> node3 and node2 -> node3 back to their original state.
             doubleMutate( tom, nodeI.var, nodeK.var, nodeJ.var );
-            nodeJ.parent = originalParents;
             return false;
         }
     }    
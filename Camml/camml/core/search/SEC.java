@@ -42,6 +42,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 
+import camml.core.library.LongHashMap;
 import camml.core.models.ModelLearner;
 import cdms.core.Value;
 import cdms.core.VectorFN;
@@ -59,6 +60,12 @@ public class SEC implements Serializable
     /** A vector of CompactTOMs */
     protected final ArrayList<CompactTOM> tomList;
     
+    /**
+     * Index from TOM hash to the CompactTOM in tomList.  Not serialised, it is rebuilt
+     * lazily by findTOM after deserialisation.
+     */
+    protected transient LongHashMap<CompactTOM> tomsByHash;
+    
     /** Layout of undirected edges for this SEC */
     protected final int[][] edgeList2;
     
@@ -120,15 +127,52 @@ public class SEC implements Serializable
     }
     
     /**
-     * Record a new visit to this SEC, if this TOM hasn't been visited before, it will be added 
+     * Create an empty SEC with the same skeleton and clean ML cost as sec, but belonging
+     * to a different caseInfo.  Used to combine the results of several Metropolis chains.
+     */
+    protected SEC( SEC sec, CaseInfo caseInfo )
+    {
+        this.caseInfo = caseInfo;
+        this.edgeList2 = sec.edgeList2;
+        this.cleanMLCost = sec.cleanMLCost;
+        this.tomList = new java.util.ArrayList<CompactTOM>();
+    }
+
+    /**
+     * Add all TOMs visited in sec to this SEC.  Weights from sec are multiplied by multiplier
+     * so they are in relation to this SEC's caseInfo.referenceWeight. <br>
+     * caseInfo.totalWeight is not modified.
+     */
+    public void merge( SEC sec, double multiplier )
+    {
+        if ( sec.bestMML < bestMML ) { bestMML = sec.bestMML; }
+        if ( sec.bestUncleanMML < bestUncleanMML ) { bestUncleanMML = sec.bestUncleanMML; }
+        weight += sec.weight * multiplier;
+
+        for ( CompactTOM otherTOM : sec.tomList ) {
+            CompactTOM currentTOM = findTOM( otherTOM.hash );
+
+            if ( currentTOM == null ) {
+                currentTOM = new CompactTOM( otherTOM.order, otherTOM.hash );
+                currentTOM.bestMML = otherTOM.bestMML;
+                addCompactTOM( currentTOM );
+            }
+            else if ( otherTOM.bestMML < currentTOM.bestMML ) {
+                currentTOM.bestMML = otherTOM.bestMML;
+            }
+            currentTOM.numVisits += otherTOM.numVisits;
+            currentTOM.totalWeight += otherTOM.totalWeight * multiplier;
+        }
+    }
+
+    /**
+     * Record a new visit to this SEC, if this TOM hasn't been visited before, it will be added
      *  to this list tomVector.  Weight is updated to reflect a visit to the appropriate TOM.
      */
     public void addTOM( TOM cleanTom, double uncleanMML, double temperature )
     {
         // hash a clean version of this TOM
         long hash = caseInfo.tomHash.hash( cleanTom, cleanMLCost );
-        int foundAt = -1;
-        CompactTOM currentTOM = null;
         
         
         if ( uncleanMML < bestMML ) { bestMML = uncleanMML; }
@@ -153,19 +197,15 @@ public class SEC implements Serializable
         }
         
         // Check if this TOM has already been sampled
-        for ( int i = 0; i < tomList.size(); i++ ) {
-            if ( ((CompactTOM)tomList.get(i)).hash == hash ) { foundAt = i; break;}
-        }
+        CompactTOM currentTOM = findTOM( hash );
         
         // If TOM not already in the list, add it. 
-        if ( foundAt == -1 ) {
-            tomList.add( new CompactTOM( cleanTom, hash ) );
-            foundAt = tomList.size() - 1;
-            currentTOM = ((CompactTOM)tomList.get(foundAt));
+        if ( currentTOM == null ) {
+            currentTOM = new CompactTOM( cleanTom, hash );
+            addCompactTOM( currentTOM );
             currentTOM.bestMML = uncleanMML;        
         }
         else { // if TOM is already in the list, make sure it's best MML is recorded.
-            currentTOM = ((CompactTOM)tomList.get(foundAt));
             if ( currentTOM.bestMML > uncleanMML ) {
                 currentTOM.bestMML = uncleanMML;
             }
@@ -190,6 +230,26 @@ public class SEC implements Serializable
         }   
     }
     
+    /**
+     * Return the TOM in tomList with the given hash, or null if it has not been sampled.
+     * The hash index is rebuilt if it is missing or out of step with tomList.
+     */
+    protected CompactTOM findTOM( long hash )
+    {
+        if ( tomsByHash == null || tomsByHash.size() != tomList.size() ) {
+            tomsByHash = new LongHashMap<CompactTOM>( tomList.size() );
+            for ( CompactTOM tom : tomList ) { tomsByHash.put( tom.hash, tom ); }
+        }
+        return tomsByHash.get( hash );
+    }
+    
+    /** Append tom to tomList and the hash index. */
+    protected void addCompactTOM( CompactTOM tom )
+    {
+        tomList.add( tom );
+        if ( tomsByHash != null ) { tomsByHash.put( tom.hash, tom ); }
+    }
+    
     /** Update reference weight for SEC and all DAGs within SEC*/
     public void updateReferenceWeight( double multiplier )
     {
@@ -274,8 +334,14 @@ public class SEC implements Serializable
         /** Constructor : store totalOrder.clone() and hash */
         public CompactTOM( TOM tom, long hash )
         {
-            this.order = (int[])tom.totalOrder.clone();
-            this.hash = hash;        
+            this( tom.totalOrder, hash );
+        }
+
+        /** Constructor : store order.clone() and hash */
+        protected CompactTOM( int[] order, long hash )
+        {
+            this.order = (int[])order.clone();
+            this.hash = hash;
         }
         
         /** Accessor function */
@@ -295,13 +361,24 @@ public class SEC implements Serializable
         
         protected double dataCost = -1;
         
+        /** MML parameters of this TOM, kept once calculated. */
+        protected transient Value.Vector params;
+        
+        /** Return the MML parameterisation of this TOM, calculating it if required. */
+        public Value.Vector getParams() throws ModelLearner.LearnerException {
+            if ( params == null ) { params = makeTOM().makeParameters(caseInfo.mmlModelLearner); }
+            return params;
+        }
+        
+        /** Set parameters calculated elsewhere (see MetropolisSearch.parameterizeSECs) */
+        public void setParams( Value.Vector params ) { this.params = params; }
+        
         /** Calculate logP(Data|Model,Params) for tom[i] */
         public double getDataCost() {
             if ( dataCost != -1) { return dataCost;}
-            TOM tom = makeTOM();
             Value.Vector params;
             
-            try { params = tom.makeParameters(caseInfo.mmlModelLearner); }
+            try { params = getParams(); }
             catch (ModelLearner.LearnerException e) { return Double.POSITIVE_INFINITY;}
             Value.Vector x = caseInfo.data;
             dataCost = -caseInfo.bNet.logP(x,params,new VectorFN.UniformVector(x.length(),Value.TRIV));
@@ -346,6 +423,11 @@ public class SEC implements Serializable
     /** Accessor function */
     public TOM getTOM( int i ) { return ((CompactTOM)tomList.get(i)).makeTOM(); }
     
+    /** Return the MML parameterisation of tom[i] */
+    public Value.Vector getParams( int i ) throws ModelLearner.LearnerException {
+        return tomList.get(i).getParams();
+    }
+    
     /** Accessor function */
     public int[] getTOMOrdering( int i ) { return ((CompactTOM)tomList.get(i)).order; }
     
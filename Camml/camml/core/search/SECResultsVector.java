@@ -206,7 +206,7 @@ public class SECResultsVector extends Value.Vector {
             if ( i == 0 ) {    return sec.caseInfo.bNet; }
             else if ( i == 1 ) {
                 try {
-                    return sec.getTOM( tomIndex ).makeParameters( sec.caseInfo.mmlModelLearner );
+                    return sec.getParams( tomIndex );
                 } catch ( ModelLearner.LearnerException e ) {
                     throw new RuntimeException(e);
                 }
@@ -219,7 +219,7 @@ public class SECResultsVector extends Value.Vector {
             else if ( i == 7 ) {
                 Value params;
                 try {
-                    params = sec.getTOM( tomIndex ).makeParameters( sec.caseInfo.mmlModelLearner );
+                    params = sec.getParams( tomIndex );
                 } catch ( ModelLearner.LearnerException e ) {
                     throw new RuntimeException(e);
                 }
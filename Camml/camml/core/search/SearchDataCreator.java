@@ -646,5 +646,20 @@ public class SearchDataCreator {
                 }));
     }
     
+    /** 
+     * Return columns [from,to) of data as a vector of structured with columns labelled 
+     * "var"+column, eg. to use as the parents (z) given to a ModelLearner.
+     */
+    public static Value.Vector selectColumns( Value.Vector data, int from, int to )
+    {
+        Value.Vector[] cmpnt = new Value.Vector[to-from];
+        String[] label = new String[cmpnt.length];
+        for ( int i = 0; i < cmpnt.length; i++ ) {
+            cmpnt[i] = data.cmpnt(from+i);
+            label[i] = "var" + (from+i);
+        }
+        return new VectorFN.MultiCol( new Value.DefStructured(cmpnt,label) );
+    }
+    
 }
 
@@ -101,9 +101,6 @@ public class SkeletalChange extends TOMTransformation
         }
         //Value.Vector data = tom.getData();
         
-        // record old node j.
-        int[] oldParentsJ = nodeJ.parent;
-        
         double oldCostJ = caseInfo.nodeCache.getMMLCost( nodeJ );
         final double costToToggleArc = caseInfo.tomCoster.costToToggleArc(tom,i,j);
         
@@ -138,8 +135,6 @@ public class SkeletalChange extends TOMTransformation
                 { tom.removeArc(i, j); }
             else
                 { tom.addArc(i, j); }
-            
-            nodeJ.parent = oldParentsJ;
             return false;
         }
     }
@@ -38,8 +38,14 @@
 package camml.core.search;
 
 
+import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
 
+import camml.core.library.WorkerPool;
 import camml.core.models.ModelLearner;
 import cdms.core.Type;
 import cdms.core.Value;
@@ -517,6 +523,157 @@ public class TOM implements Cloneable
      */
     public Value.Vector makeParameters( ModelLearner modelLearner )
         throws ModelLearner.LearnerException
+    {
+        Value.Structured[] msy = new Value.Structured[ getNumNodes() ];
+        for ( int i = 0; i < msy.length; i++ ) {
+            msy[i] = node[i].learnModel( modelLearner, data );
+        }
+        return makeParameters( msy );
+    }
+
+    /**
+     *  As makeParameters(modelLearner), but the model of each node is learned in parallel
+     *  using up to numThreads threads (numThreads <= 0 uses all processors).
+     */
+    public Value.Vector makeParameters( ModelLearner modelLearner, int numThreads )
+        throws ModelLearner.LearnerException
+    {
+        return makeParameters( new TOM[] {this}, modelLearner, numThreads )[0];
+    }
+
+    /**
+     *  Parameterise several TOMs at once.  Node models are learned in parallel over all nodes
+     *  of all TOMs, and a family (variable and parent set) shared by several TOMs is only
+     *  learned once.  Subclasses with their own parameterisation (eg. DTOM) are parameterised
+     *  whole, one task per TOM.  <br>
+     *  modelLearner is shared by all worker threads, so when numThreads > 1 it must be safe
+     *  for concurrent use.
+     */
+    public static Value.Vector[] makeParameters( final TOM[] toms, final ModelLearner modelLearner,
+                                                 int numThreads )
+        throws ModelLearner.LearnerException
+    {
+        ModelLearner.LearnerException[] failure = new ModelLearner.LearnerException[toms.length];
+        Value.Vector[] params = makeParameters( toms, modelLearner, numThreads, failure );
+        for ( int i = 0; i < failure.length; i++ ) {
+            if ( failure[i] != null ) { throw failure[i]; }
+        }
+        return params;
+    }
+
+    /**
+     *  As makeParameters(toms,modelLearner,numThreads), but a LearnerException only affects
+     *  the TOMs using the family (or whole TOM) which failed.  Those TOMs are given null 
+     *  parameters and failure[i] is set to the exception, all others are parameterised.
+     */
+    public static Value.Vector[] makeParameters( final TOM[] toms, final ModelLearner modelLearner,
+                                                 int numThreads, 
+                                                 ModelLearner.LearnerException[] failure )
+    {
+        // msy[i][j] = (model,stats,params) for node j of toms[i]
+        final Value.Structured[][] msy = new Value.Structured[toms.length][];
+        Value.Vector[] params = new Value.Vector[toms.length];
+
+        // Find each distinct family and which TOM nodes use it.
+        HashMap<Long,List<Node>> familyMap = new HashMap<Long,List<Node>>();
+        List<Node> families = new ArrayList<Node>();
+        List<Value.Vector> familyData = new ArrayList<Value.Vector>();
+        List<List<int[]>> users = new ArrayList<List<int[]>>();
+        IdentityHashMap<Node,Integer> familyIndex = new IdentityHashMap<Node,Integer>();
+        final List<Integer> wholeTOMs = new ArrayList<Integer>();
+        for ( int i = 0; i < toms.length; i++ ) {
+            if ( toms[i].getClass() != TOM.class ) { wholeTOMs.add(i); continue; }
+            msy[i] = new Value.Structured[toms[i].getNumNodes()];
+            int words = (toms[i].getNumNodes() + 63) / 64;
+            for ( int j = 0; j < msy[i].length; j++ ) {
+                Node node = toms[i].node[j];
+                Long key = node.getParentHash() + Node.hashParent( -1 - node.var );
+                List<Node> bucket = familyMap.get( key );
+                if ( bucket == null ) {
+                    bucket = new ArrayList<Node>();
+                    familyMap.put( key, bucket );
+                }
+                Node match = null;
+                for ( Node other : bucket ) {
+                    if ( sameFamily( node, other, words ) ) { match = other; break; }
+                }
+                if ( match == null ) {
+                    match = node;
+                    bucket.add( node );
+                    familyIndex.put( node, families.size() );
+                    families.add( node );
+                    familyData.add( toms[i].data );
+                    users.add( new ArrayList<int[]>() );
+                }
+                users.get( familyIndex.get(match) ).add( new int[] {i,j} );
+            }
+        }
+
+        // One task per distinct family, and one per TOM which must be parameterised whole.
+        // A task returns the LearnerException it failed with so other tasks are kept.
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for ( int f = 0; f < families.size(); f++ ) {
+            final Node family = families.get(f);
+            final Value.Vector data = familyData.get(f);
+            tasks.add( new Callable<Object>() {
+                    public Object call() {
+                        try { return family.learnModel( modelLearner, data ); }
+                        catch ( ModelLearner.LearnerException e ) { return e; }
+                    }
+                } );
+        }
+        for ( final Integer i : wholeTOMs ) {
+            tasks.add( new Callable<Object>() {
+                    public Object call() {
+                        try { return toms[i].makeParameters( modelLearner ); }
+                        catch ( ModelLearner.LearnerException e ) { return e; }
+                    }
+                } );
+        }
+
+        List<Object> results = WorkerPool.runAll( tasks, numThreads );
+
+        for ( int f = 0; f < families.size(); f++ ) {
+            Object result = results.get(f);
+            for ( int[] user : users.get(f) ) {
+                if ( result instanceof ModelLearner.LearnerException ) {
+                    if ( failure[user[0]] == null ) { 
+                        failure[user[0]] = (ModelLearner.LearnerException)result; 
+                    }
+                }
+                else { msy[user[0]][user[1]] = (Value.Structured)result; }
+            }
+        }
+        for ( int k = 0; k < wholeTOMs.size(); k++ ) {
+            Object result = results.get( families.size() + k );
+            if ( result instanceof ModelLearner.LearnerException ) {
+                failure[wholeTOMs.get(k)] = (ModelLearner.LearnerException)result;
+            }
+            else { params[wholeTOMs.get(k)] = (Value.Vector)result; }
+        }
+        for ( int i = 0; i < toms.length; i++ ) {
+            if ( params[i] == null && failure[i] == null ) { 
+                params[i] = toms[i].makeParameters( msy[i] ); 
+            }
+        }
+        return params;
+    }
+
+    /** Return true if a and b have the same variable and parents. */
+    private static boolean sameFamily( Node a, Node b, int words )
+    {
+        if ( a.var != b.var || a.getNumParents() != b.getNumParents() ) { return false; }
+        for ( int w = 0; w < words; w++ ) {
+            if ( a.getParentWord(w) != b.getParentWord(w) ) { return false; }
+        }
+        return true;
+    }
+
+    /**
+     *  Create the parameter list for this TOM given the (model,stats,params) learned for
+     *  each node.
+     */
+    protected Value.Vector makeParameters( Value.Structured[] msy )
     {
         int numVars = getNumNodes();
         
@@ -548,9 +705,8 @@ public class TOM implements Cloneable
         
         // set CPT models and parameters for nodes.
         for ( int i = 0; i < subModel.length; i++ ) {
-            Value.Structured msy = node[i].learnModel( modelLearner, data );
-            subModel[i] = (Value.Model)msy.cmpnt(0);
-            subModelParam[i] = msy.cmpnt(2);
+            subModel[i] = (Value.Model)msy[i].cmpnt(0);
+            subModelParam[i] = msy[i].cmpnt(2);
         }    
         
         // ( subModel, subParam )
@@ -320,8 +320,9 @@ public interface TOMCoster extends Serializable {
         /** Cache of last N tom hashes counted. */
         private static int countCacheIndex = 0;
         
-        /** Count the number of linear extensins for the supplied TOM */
-        public static double countExtensions(TOM tom) {
+        /** Count the number of linear extensins for the supplied TOM. <br>
+         *  Synchronized as the count cache and counter are shared by all searches. */
+        public synchronized static double countExtensions(TOM tom) {
             
             // Check if TOM perms is already in cache.
             int tomHash = tom.hashCode();
@@ -60,8 +60,6 @@ public class DBNSEC extends SEC {
 	public void addTOM( TOM cleanTom, double uncleanMML, double temperature ){
 		// hash a clean version of this TOM
         long hash = caseInfo.tomHash.hash( cleanTom, cleanMLCost );
-        int foundAt = -1;
-        CompactTOM currentTOM = null;
         
         
         if ( uncleanMML < bestMML ) { bestMML = uncleanMML; }
@@ -86,19 +84,15 @@ public class DBNSEC extends SEC {
         }
         
         // Check if this TOM has already been sampled
-        for ( int i = 0; i < tomList.size(); i++ ) {
-            if ( ((CompactTOM)tomList.get(i)).hash == hash ) { foundAt = i; break;}
-        }
+        CompactTOM currentTOM = findTOM( hash );
         
         // If TOM not already in the list, add it. 
-        if ( foundAt == -1 ) {
-            tomList.add( new CompactDTOM( cleanTom, hash ) );		//Only change in this method vs. SEC.addTOM(...)
-            foundAt = tomList.size() - 1;
-            currentTOM = ((CompactTOM)tomList.get(foundAt));
+        if ( currentTOM == null ) {
+            currentTOM = new CompactDTOM( cleanTom, hash );		//Only change in this method vs. SEC.addTOM(...)
+            addCompactTOM( currentTOM );
             currentTOM.bestMML = uncleanMML;        
         }
         else { // if TOM is already in the list, make sure it's best MML is recorded.
-            currentTOM = ((CompactTOM)tomList.get(foundAt));
             if ( currentTOM.bestMML > uncleanMML ) {
                 currentTOM.bestMML = uncleanMML;
             }
@@ -182,7 +176,7 @@ public class DBNSEC extends SEC {
             int numNodes = tom.getNumNodes();
             Value.Vector params;
             
-            try { params = tom.makeParameters(caseInfo.mmlModelLearner); }
+            try { params = getParams(); }
             catch (ModelLearner.LearnerException e) { return Double.POSITIVE_INFINITY;}
             
             
@@ -199,7 +193,7 @@ public class DBNSEC extends SEC {
             	temporalParentList[i] = ((DNode)tom.getNode(i)).getTemporalParentCopy();
             }
             
-            double dataCost = -DBNStaticMethods.DBNlogP( caseInfo.data, subModel, subParam, order, parentList, temporalParentList );
+            dataCost = -DBNStaticMethods.DBNlogP( caseInfo.data, subModel, subParam, order, parentList, temporalParentList );
             
             return dataCost;
 		}
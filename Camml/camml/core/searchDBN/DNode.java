@@ -92,7 +92,8 @@ public class DNode extends Node {
     protected Value.Vector parentView(Value.Vector data) {
     	//Need to get data(1...length-1) for intraslice arc parents
     	//Also need data(0...length-2) for temporal arc parents
-    	return new DBNDataWrapper(data,parent,temporalParent);
+    	//parent[] is reused as parents change (see Node), so the view needs its own copies.
+    	return new DBNDataWrapper(data,parent.clone(),temporalParent.clone());
     }
     
     /** Make a deep copy of the current DNode. */
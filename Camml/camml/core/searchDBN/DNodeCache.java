@@ -24,6 +24,16 @@ public class DNodeCache extends NodeCache {
 		super(data, mmlLearner, mlLearner, mbPerNode);
 	}
 	
+	protected DNodeCache(Vector data, ModelLearner mmlLearner,
+			ModelLearner mlLearner, double mbPerNode, long capacityBytes) {
+		super(data, mmlLearner, mlLearner, mbPerNode, capacityBytes, false);
+	}
+	
+	/** Create a DNodeCache of the same size. OVERRIDES NodeCache.makeCache() */
+	protected NodeCache makeCache( double mbPerNode, long capacityBytes ) {
+		return new DNodeCache( data, mmlLearner, mlLearner, mbPerNode, capacityBytes );
+	}
+	
 	
 	/** Generate an index into the cache.
 	 *  NOTE: Code largely taken from NodeCache.getIndex(). Only changes are for temporal (inter-slice) parents
@@ -3,7 +3,6 @@ package camml.core.searchDBN;
 import java.util.ArrayList;
 import java.util.Random;
 
-import camml.core.library.WallaceRandom;
 import camml.core.models.ModelLearner;
 import camml.core.search.MMLEC;
 import camml.core.search.MetropolisSearch;
@@ -105,17 +104,15 @@ public class MetropolisSearchDBN extends MetropolisSearch {
         caseInfo.referenceWeight = bestCost;
 	}
 	
-	/** Updates weights so that currentCost has a weight of 1.0.
-	 * See MetropolisSearch.updateReferenceWeight(...)
+	/** Updates weights so that newReference has a weight of 1.0.
+	 * See MetropolisSearch.rescaleWeights(...)
 	 */
-	public void updateReferenceWeight( double currentCost ){
-		//As per MetropolisSearch.updateReferenceWeight():
+	protected void rescaleWeights( double newReference ){
+		//As per MetropolisSearch.rescaleWeights():
 		double oldReferenceWeight = caseInfo.referenceWeight;
-        caseInfo.referenceWeight = currentCost;
-        double multiplier = Math.exp( (currentCost - oldReferenceWeight) * (1.0 - (1.0/temperature)));
+        double multiplier = Math.exp( (newReference - oldReferenceWeight) * (1.0 - (1.0/temperature)));
 		
-		
-		super.updateReferenceWeight( currentCost );
+		super.rescaleWeights( newReference );
 		
 		//Update arc portions for temporal arcs
 		if( caseInfo.updateArcWeights ){
@@ -189,7 +186,8 @@ public class MetropolisSearchDBN extends MetropolisSearch {
 	
 	/**In a single epoch one mutation of the current DTOM is attempted.
 	 * Overrides MetropolisSearch.doEpoch()
-	 * Vast majority of code taken from MetropolisSearch.doEpoch(), but minor changes made
+	 * The first epoch is set up as in MetropolisSearch.doEpoch() (with more epochs and
+	 * temporal arcs), sampling is shared with MetropolisSearch.sampleEpoch()
 	 */
 	public double doEpoch(){
 		if (epoch == 0 && doAnnealOnFirstEpoch) {
@@ -227,52 +225,7 @@ public class MetropolisSearchDBN extends MetropolisSearch {
             System.out.println();
         }
 		
-		// gradually print progress bar as search runs.
-        if (max < 100 || epoch % (max / 100) == 0) { System.out.print("."); }
-        if ( epoch == max-1) { System.out.println(); }
-        
-        // Randomise TOM order in the current DAG.  Arc directions remain unchanged.        
-        if ( epoch == 0 && doAnnealOnFirstEpoch && caseInfo.regression) {
-            tom.buildOrder( rand );
-            // Ensure any TOM constraints are honoured.
-            caseInfo.tomCoster.repairTOM(tom);
-        }
-        
-        if ( epoch == 0 ) {     // Never transform on the first epoch.
-            updateCosts(null); // This ensures starting model is sampled at least once.
-        }
-        else {
-            doTransform();
-        }
-        
-        
-        // Extract SEC from Hash and update its posterior
-        SEC sec = getSEC();        
-        updatePosterior(sec);    
-        
-        // increment the number of epochs completed.
-        epoch++;
-        
-        // If all epoch complete, finish.
-        if ( epoch == max+1 ) {
-            searchDone = true;
-        }
-        
-        // debug logging.
-        if ( caseInfo.logging ) {
-            try {
-                caseInfo.cammlLog.write( "STEP : " + epoch + 
-                                         "\tMMLCost = " + caseInfo.costFormat.format(currentCost) + 
-                                         "\trand: " + ((WallaceRandom)rand).numCalls + "\n");
-                caseInfo.cammlLog.flush();
-            } catch (Exception e) { 
-                for ( int ii = 0; ii < 100; ii++ ) { System.out.println(e); }
-                throw new RuntimeException(e);
-            }
-        }    
-        
-        // currentCost is required by search interface to draw "pretty graphs", etc.  with.
-        return currentCost;
+		return sampleEpoch();
 	}
 	
 	/** Extract SEC from hashtable for the cleantom. Create the SEC if required 
@@ -290,15 +243,14 @@ public class MetropolisSearchDBN extends MetropolisSearch {
         }
         
         // Check if current SEC is in secHashtable
-        tempKey.set( hashValue );
-        SEC sec = (SEC)secHashtable.get( tempKey );
+        SEC sec = secHashtable.get( hashValue );
         
         
         // If SEC not found and current TOM has a reasonable posterior, add SEC to the list of SECs.
         if ( sec == null && currentCost < bestCost + ignoreCap ) {
             //sec = new SEC( cleantom, currentMLCost, caseInfo);
         	sec = new DBNSEC( cleantom, currentMLCost, caseInfo);
-            secHashtable.put( new SECHashKey(hashValue), sec );        
+            secHashtable.put( hashValue, sec );        
         }
         return sec;
     }
@@ -330,9 +282,10 @@ public class MetropolisSearchDBN extends MetropolisSearch {
         // Shortcut if getResults is called twice.
         //if ( results != null ) { return results; }
         
-        // dump all SECs from secHashTable into an ArrayList for easy manipulation.
-        ArrayList<SEC> secList = new ArrayList<SEC>( secHashtable.values() );
-        int uniqueSECs = secList.size();
+        // Weights are made relative to the best cost found.
+        flushReferenceWeight();
+        
+        int uniqueSECs = secHashtable.size();
         
         // Hopefully this should never happen.
         if ( uniqueSECs == 0 ) { throw new RuntimeException("No SECs kept during sampling."); }
@@ -343,9 +296,11 @@ public class MetropolisSearchDBN extends MetropolisSearch {
         System.out.println("total weight ignored : " + weightIgnored);
         System.out.println("" + uniqueSECs + " unique SECs sampled" );
         
-        // calculate SEC posteriors from weights.
-        for (int i = 0; i < uniqueSECs; i++) {
-            ((DBNSEC)secList.get(i)).setPosterior( ((SEC) secList.get(i)).getWeight() / totalWeight );
+        // calculate SEC posteriors from weights while collecting SECs into a list for sorting.
+        ArrayList<SEC> secList = new ArrayList<SEC>( uniqueSECs );
+        for ( SEC sec : secHashtable ) {
+            ((DBNSEC)sec).setPosterior( sec.getWeight() / totalWeight );
+            secList.add( sec );
         }
         
         // Sort all SECs by their posterior probability.  Highest posterior first
@@ -377,6 +332,8 @@ public class MetropolisSearchDBN extends MetropolisSearch {
 
         
         
+        parameterizeSECs( secList );
+        
         System.out.println("Calculating relative priors.");
         // calculate the relative prior for each SEC (needed for joinByKLDistance.)
         SEC bestSEC = secList.get(0);
@@ -421,7 +378,7 @@ public class MetropolisSearchDBN extends MetropolisSearch {
 	 * (i.e. DBN parameters have an extra component for temporal parents)
 	 * Vast majority of this function is the same as MetropolisSearch.makeKL(...)
 	 */
-	protected double[][] makeKL( SEC[] secArray, int n ){
+	protected double[][] makeKL( final SEC[] secArray, final int n ){
 		// how many SECs it is worth looking at?  It is slow to look at them all.
         int secUsed = secArray.length;
         
@@ -429,10 +386,10 @@ public class MetropolisSearchDBN extends MetropolisSearch {
         if (secUsed == 1) { return new double[1][1]; }
         
         // create array of  parameters        
-        Value.Vector[] params = new Value.Vector[ secUsed ];        
+        final Value.Vector[] params = new Value.Vector[ secUsed ];        
         for ( int i = 0; i < params.length; i++ ) {            
             try {
-                params[i] = secArray[i].getTOM(0).makeParameters( mmlModelLearner );
+                params[i] = secArray[i].getParams(0);
             }        
             catch ( ModelLearner.LearnerException e ) {
                 throw new RuntimeException("Exception recreating parameters",e);
@@ -449,68 +406,78 @@ public class MetropolisSearchDBN extends MetropolisSearch {
             throw new RuntimeException("Exact KL Joining not implemented for learning DBNs.");
         }
         else { // else use stochastic KL
-            for ( int i = 0; i < params.length; i++ ) {
-                // print progress.
-                System.out.print("X");
-            
-                // Test what metric is being joined by
-                Value.Vector augParams[];
-                // if KL, do nothing.
-                if ( caseInfo.cklJoinType == 0) {
-                    augParams = params;
-                }
-                // if CKL3, augment all parameters.
-                else if (caseInfo.cklJoinType == 3) {
-                	throw new RuntimeException("Joining by CKL for DBNs not implemented.");
-                }
-                // Other methods not implemented.
-                else { throw new RuntimeException("Unhandled CKL join type."); }
-                
-                
-                //First: Generate a TIME SERIES of length N from the current DBNSEC
-                DTOM dtom = (DTOM)secArray[i].getTOM(0);
-                Value.Vector tempData = DBNStaticMethods.generateTimeSeriesDTOM(rand, dtom, n);
-                
-                
-                //Calculate cost of stating data with the current model:
-                //double selfCost = augBNet.logP(x, y, z);
-                Model[] subModel = DBNStaticMethods.makeSubModelListDBN(augParams[i]);
-                Value[] subParam = DBNStaticMethods.makeSubParamListDBN(augParams[i]);
-                int[] order = dtom.getTotalOrderCopy();
-                int[][] parents = DBNStaticMethods.makeParentsArray( (DTOM)secArray[i].getTOM(0) );
-                int[][] parentsTemporal = DBNStaticMethods.makeParentsTemporalArray( (DTOM)secArray[i].getTOM(0) );
-                	//selfCost is cost of stating  the generated time series using the model it was generated from
-                double selfCost = -DBNStaticMethods.DBNlogP( tempData, subModel, subParam, order, parents, parentsTemporal );
-                
-                
-                //Loop through all models calculating cost to state the generated time series data with each
-                for ( int j = 0; j < augParams.length; j++ ) {
-                    if( i == j ){	//KL divergence between a model and itself is necessarily zero.
-                    	klArray[i][j] = 0.0;
-                    	continue;
+            klArray = makeKLRows( secUsed, new KLRowMaker() {
+                    public double[] makeRow( int i, Random rowRand ) {
+                        return makeStochasticKLRowDBN( i, secArray, params, n, rowRand );
                     }
-                	
-                    //Get all the parameters, parents etc. for the other model:
-                    Model[] subModelJ = DBNStaticMethods.makeSubModelListDBN(augParams[j]);
-                    Value[] subParamJ = DBNStaticMethods.makeSubParamListDBN(augParams[j]);
-                    int[] orderJ = ((DTOM)secArray[j].getTOM(0)).getTotalOrderCopy();
-                    int[][] parentsJ = DBNStaticMethods.makeParentsArray( (DTOM)secArray[j].getTOM(0) );
-                    int[][] parentsTemporalJ = DBNStaticMethods.makeParentsTemporalArray( (DTOM)secArray[j].getTOM(0) );
-                    	//Cost the generated time series data (from model i) using the jth model 
-                    double cost = -DBNStaticMethods.DBNlogP(tempData, subModelJ, subParamJ, orderJ, parentsJ, parentsTemporalJ );
-                    
-                    //klArray[i][j] = caseInfo.data.length() * (cost - selfCost) / n;	//Original...
-                    klArray[i][j] = (caseInfo.data.length()-1) * (cost - selfCost) / (n-1);
-                    //Using length-1 for both original data and generated time series, because we are encoding
-                    // all data using second time slice CPDs only (except very first instance of data, which is
-                    // ignored - hence length-1 )
-                }
-            }
+                });
         }
                
         return klArray;
 	}
 	
+	/**
+	 * DBN equivalent to MetropolisSearch.makeStochasticKLRow(...)
+	 * A time series of length n is generated from secArray[i] and costed using each SEC.
+	 */
+	protected double[] makeStochasticKLRowDBN( int i, SEC[] secArray, Value.Vector[] params, int n,
+	                                           Random rand ){
+        // Test what metric is being joined by
+        Value.Vector augParams[];
+        // if KL, do nothing.
+        if ( caseInfo.cklJoinType == 0) {
+            augParams = params;
+        }
+        // if CKL3, augment all parameters.
+        else if (caseInfo.cklJoinType == 3) {
+        	throw new RuntimeException("Joining by CKL for DBNs not implemented.");
+        }
+        // Other methods not implemented.
+        else { throw new RuntimeException("Unhandled CKL join type."); }
+        
+        
+        //First: Generate a TIME SERIES of length N from the current DBNSEC
+        DTOM dtom = (DTOM)secArray[i].getTOM(0);
+        Value.Vector tempData = DBNStaticMethods.generateTimeSeriesDTOM(rand, dtom, n);
+        
+        
+        //Calculate cost of stating data with the current model:
+        //double selfCost = augBNet.logP(x, y, z);
+        Model[] subModel = DBNStaticMethods.makeSubModelListDBN(augParams[i]);
+        Value[] subParam = DBNStaticMethods.makeSubParamListDBN(augParams[i]);
+        int[] order = dtom.getTotalOrderCopy();
+        int[][] parents = DBNStaticMethods.makeParentsArray( (DTOM)secArray[i].getTOM(0) );
+        int[][] parentsTemporal = DBNStaticMethods.makeParentsTemporalArray( (DTOM)secArray[i].getTOM(0) );
+        	//selfCost is cost of stating  the generated time series using the model it was generated from
+        double selfCost = -DBNStaticMethods.DBNlogP( tempData, subModel, subParam, order, parents, parentsTemporal );
+        
+        
+        //Loop through all models calculating cost to state the generated time series data with each
+        double[] klRow = new double[augParams.length];
+        for ( int j = 0; j < augParams.length; j++ ) {
+            if( i == j ){	//KL divergence between a model and itself is necessarily zero.
+            	klRow[j] = 0.0;
+            	continue;
+            }
+        	
+            //Get all the parameters, parents etc. for the other model:
+            Model[] subModelJ = DBNStaticMethods.makeSubModelListDBN(augParams[j]);
+            Value[] subParamJ = DBNStaticMethods.makeSubParamListDBN(augParams[j]);
+            int[] orderJ = ((DTOM)secArray[j].getTOM(0)).getTotalOrderCopy();
+            int[][] parentsJ = DBNStaticMethods.makeParentsArray( (DTOM)secArray[j].getTOM(0) );
+            int[][] parentsTemporalJ = DBNStaticMethods.makeParentsTemporalArray( (DTOM)secArray[j].getTOM(0) );
+            	//Cost the generated time series data (from model i) using the jth model 
+            double cost = -DBNStaticMethods.DBNlogP(tempData, subModelJ, subParamJ, orderJ, parentsJ, parentsTemporalJ );
+            
+            //klArray[i][j] = caseInfo.data.length() * (cost - selfCost) / n;	//Original...
+            klRow[j] = (caseInfo.data.length()-1) * (cost - selfCost) / (n-1);
+            //Using length-1 for both original data and generated time series, because we are encoding
+            // all data using second time slice CPDs only (except very first instance of data, which is
+            // ignored - hence length-1 )
+        }
+        return klRow;
+	}
+	
 	/**
 	 * Overrides MetropolisSearch.getMixResults(...)
 	 */
@@ -520,10 +487,13 @@ public class MetropolisSearchDBN extends MetropolisSearch {
 	
 	/**
 	 * Overrides BNetSearch.setOption(...)
-	 * So far: No changes.
+	 * Parallel chains are not implemented for DBNs, so numChains must be 1.
 	 */
 	public boolean setOption( final String option, Value v ) {
 		//TODO: Add new options; call super.setOption(...) for all other options
+		if ( option.equals("numChains") && ((Value.Scalar)v).getDiscrete() != 1 ) {
+			throw new RuntimeException("numChains > 1 not implemented for MetropolisSearchDBN");
+		}
 		return super.setOption(option, v);
 	}
 	
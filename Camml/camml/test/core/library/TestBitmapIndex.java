@@ -0,0 +1,125 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Test Cases for BitmapIndex
+//
+
+// File: TestBitmapIndex.java
+
+package camml.test.core.library;
+
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import camml.core.library.BitmapIndex;
+import camml.core.library.ContingencyCache;
+import camml.core.library.DiscreteColumnVector;
+import camml.core.search.SearchDataCreator;
+
+
+
+/** Test functions associated with BitmapIndex.java */
+public class TestBitmapIndex extends TestCase {
+
+    public static Test suite()
+    {
+        return new TestSuite(TestBitmapIndex.class);
+    }
+
+    /** Bitmap counts must match a pass over the rows. */
+    public void testTally()
+    {
+        // 1001 rows so the last bitmap word is partly used.
+        DiscreteColumnVector store = (DiscreteColumnVector)DiscreteColumnVector.make(
+            SearchDataCreator.generateUncorrelatedDataset( new Random(123), 1001,
+                                                           new int[] {2,3,2,4,5,2} ) );
+        BitmapIndex index = new BitmapIndex( store );
+        Random rand = new Random(123);
+        for ( int i = 0; i < 200; i++ ) {
+            int child = rand.nextInt(6);
+            int[] parents = new int[rand.nextInt(4)];
+            int[] mult = new int[parents.length];
+            int[] offsets = new int[parents.length];
+            int numCombinations = 1;
+            for ( int j = 0; j < parents.length; j++ ) {
+                do { parents[j] = rand.nextInt(6); } while ( parents[j] == child );
+                offsets[j] = rand.nextInt(2);
+                mult[j] = numCombinations;
+                numCombinations *= store.getArity(parents[j]) + offsets[j];
+            }
+            int[][] expected = store.tally( child, parents, mult, offsets, null, numCombinations );
+            int[][] actual = index.tally( child, parents, mult, offsets, numCombinations );
+            assertEquals( expected.length, actual.length );
+            for ( int x = 0; x < expected.length; x++ ) {
+                for ( int j = 0; j < numCombinations; j++ ) {
+                    assertEquals( expected[x][j], actual[x][j] );
+                }
+            }
+        }
+    }
+
+    /** Bitmaps should only be preferred for low arity families. */
+    public void testPreferred()
+    {
+        DiscreteColumnVector store = (DiscreteColumnVector)DiscreteColumnVector.make(
+            SearchDataCreator.generateUncorrelatedDataset( new Random(123), 10000,
+                                                           new int[] {2,2,2,10,10,40} ) );
+        BitmapIndex index = new BitmapIndex( store );
+        assertTrue( index.preferred( 0, new int[] {1,2} ) );
+        assertFalse( index.preferred( 3, new int[] {4,0} ) );
+        assertFalse( index.preferred( 0, new int[] {5} ) );
+        assertEquals( 0, index.getUsedBytes() );
+    }
+
+    /** Bitmaps must be charged to the contingency cache budget, and not exceed half of it. */
+    public void testBudget()
+    {
+        // Each binary column needs 2 * 157 words = 2512 bytes of bitmaps.  The last column
+        // stops rows being collapsed into a few cases.
+        DiscreteColumnVector store = (DiscreteColumnVector)DiscreteColumnVector.make(
+            SearchDataCreator.generateUncorrelatedDataset( new Random(123), 10000,
+                                                           new int[] {2,2,2,2,1000} ) );
+        ContingencyCache cache = new ContingencyCache( store, 12000 );
+        BitmapIndex index = new BitmapIndex( store, cache, 2 );
+        assertTrue( index.preferred( 0, new int[] {1} ) );
+        assertEquals( 2 * 2512, cache.getReservedBytes() );
+        assertFalse( index.preferred( 2, new int[] {3} ) );
+        assertTrue( cache.getReservedBytes() <= 6000 );
+
+        // maxArity belongs to the index.
+        store = (DiscreteColumnVector)DiscreteColumnVector.make(
+            SearchDataCreator.generateUncorrelatedDataset( new Random(123), 10000,
+                                                           new int[] {2,3,1000} ) );
+        assertTrue( new BitmapIndex( store ).preferred( 0, new int[] {1} ) );
+        assertFalse( new BitmapIndex( store, null, 2 ).preferred( 0, new int[] {1} ) );
+    }
+}
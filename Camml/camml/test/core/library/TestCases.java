@@ -61,6 +61,11 @@ public class TestCases extends TestCase
         tSuite.addTest( TestExtensionCounter.suite() );
         tSuite.addTest( TestEnumerateDAGs.suite() );
         tSuite.addTest( TestLibrary.suite() );
+        tSuite.addTest( TestLongHashMap.suite() );
+        tSuite.addTest( TestDiscreteColumnVector.suite() );
+        tSuite.addTest( TestContingencyCache.suite() );
+        tSuite.addTest( TestBitmapIndex.suite() );
+        tSuite.addTest( TestWorkerPool.suite() );
         
         return tSuite;
     }
@@ -0,0 +1,198 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Test Cases for ContingencyCache
+//
+
+// File: TestContingencyCache.java
+
+package camml.test.core.library;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import camml.core.library.ContingencyCache;
+import camml.core.library.DiscreteColumnVector;
+import camml.core.library.WorkerPool;
+import camml.core.search.SearchDataCreator;
+
+
+/** Test functions associated with ContingencyCache.java */
+public class TestContingencyCache extends TestCase {
+
+    public static Test suite()
+    {
+        return new TestSuite(TestContingencyCache.class);
+    }
+
+    /** Return CPT style multipliers for parents */
+    private static int[] multipliers( DiscreteColumnVector store, int[] parents )
+    {
+        int[] mult = new int[parents.length];
+        int m = 1;
+        for ( int j = 0; j < parents.length; j++ ) { mult[j] = m; m *= store.getArity(parents[j]); }
+        return mult;
+    }
+
+    /** Check cache.tally against a pass over the rows. */
+    private static void checkTally( ContingencyCache cache, DiscreteColumnVector store,
+                                    int child, int[] parents )
+    {
+        int[] mult = multipliers( store, parents );
+        int numCombinations = 1;
+        for ( int p : parents ) { numCombinations *= store.getArity(p); }
+        int[][] expected = store.tally( child, parents, mult, new int[parents.length],
+                                        null, numCombinations );
+        int[][] actual = cache.tally( child, parents, mult, numCombinations );
+        assertEquals( expected.length, actual.length );
+        for ( int x = 0; x < expected.length; x++ ) {
+            for ( int j = 0; j < numCombinations; j++ ) {
+                assertEquals( expected[x][j], actual[x][j] );
+            }
+        }
+    }
+
+    /** Exact, superset and sparse tables must all give the same counts as the rows. */
+    public void testTally()
+    {
+        DiscreteColumnVector store = (DiscreteColumnVector)DiscreteColumnVector.make(
+            SearchDataCreator.generateUncorrelatedDataset( new Random(123), 2000,
+                                                           new int[] {3,2,4,5,2,30,40} ) );
+        ContingencyCache cache = new ContingencyCache( store, 1 << 24 );
+
+        checkTally( cache, store, 0, new int[] {3,1,2} );
+        assertEquals( 1, cache.getMisses() );
+        checkTally( cache, store, 0, new int[] {3,1,2} );
+        assertEquals( 1, cache.getExactHits() );
+
+        // Subsets (in any order, with any child) are marginalised from the cached table,
+        // and the marginals are cached.
+        checkTally( cache, store, 1, new int[] {2,0} );
+        checkTally( cache, store, 3, new int[] {} );
+        assertEquals( 2, cache.getSupersetHits() );
+        assertEquals( 1, cache.getMisses() );
+        assertEquals( 3, cache.getNumTables() );
+        checkTally( cache, store, 0, new int[] {1,2} );
+        assertEquals( 2, cache.getExactHits() );
+
+        // 30*40*5 cells > 2000 rows so this table is sparse, as is its marginal over {5,6}.
+        checkTally( cache, store, 5, new int[] {6,3} );
+        checkTally( cache, store, 6, new int[] {5} );
+        assertEquals( 2, cache.getMisses() );
+        assertEquals( 5, cache.getNumTables() );
+
+        // Adding a parent refines the row index of the smaller family.
+        long refinements = cache.getRefinements();
+        checkTally( cache, store, 4, new int[] {6,3,5} );
+        assertEquals( refinements + 1, cache.getRefinements() );
+
+        Random rand = new Random(123);
+        for ( int i = 0; i < 200; i++ ) {
+            int child = rand.nextInt(7);
+            int[] parents = new int[rand.nextInt(3)];
+            for ( int j = 0; j < parents.length; j++ ) {
+                do { parents[j] = rand.nextInt(7); } while ( parents[j] == child );
+            }
+            checkTally( cache, store, child, parents );
+        }
+    }
+
+    /** Queries from several threads at once must give the same counts as the rows. */
+    public void testConcurrentTally() throws Exception
+    {
+        final DiscreteColumnVector store = (DiscreteColumnVector)DiscreteColumnVector.make(
+            SearchDataCreator.generateUncorrelatedDataset( new Random(123), 1000,
+                                                           new int[] {3,2,4,5,2,30,40} ) );
+        final ContingencyCache cache = new ContingencyCache( store, 1 << 16 );
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for ( int t = 0; t < 4; t++ ) {
+            final Random rand = new Random(t);
+            tasks.add( new Callable<Object>() {
+                    public Object call() {
+                        for ( int i = 0; i < 100; i++ ) {
+                            int child = rand.nextInt(7);
+                            int[] parents = new int[rand.nextInt(3)];
+                            for ( int j = 0; j < parents.length; j++ ) {
+                                do { parents[j] = rand.nextInt(7); } while ( parents[j] == child );
+                            }
+                            checkTally( cache, store, child, parents );
+                        }
+                        return null;
+                    }
+                } );
+        }
+        WorkerPool.runAll( tasks, 4 );
+        assertTrue( cache.getUsedBytes() <= 1 << 16 );
+    }
+
+    /** Row indexes must be evicted to stay within their own budget and count. */
+    public void testRowIndexBudget()
+    {
+        DiscreteColumnVector store = (DiscreteColumnVector)DiscreteColumnVector.make(
+            SearchDataCreator.generateUncorrelatedDataset( new Random(123), 1000,
+                                                           new int[] {3,3,3,3,300} ) );
+        int indexBytes = 4 * store.getNumCases();
+        ContingencyCache cache = new ContingencyCache( store, 1 << 16, 2 * indexBytes, 3 );
+        checkTally( cache, store, 4, new int[] {} );
+        checkTally( cache, store, 4, new int[] {0} );
+        assertEquals( 1, cache.getRefinements() );
+        for ( int i = 1; i < 4; i++ ) {
+            checkTally( cache, store, 4, new int[] {i} );
+            assertTrue( cache.getRowIndexBytes() <= 2 * indexBytes );
+        }
+        assertEquals( 2 * indexBytes, cache.getRowIndexBytes() );
+
+        cache = new ContingencyCache( store, 1 << 16, 100 * indexBytes, 3 );
+        for ( int i = 0; i < 4; i++ ) { checkTally( cache, store, 4, new int[] {i} ); }
+        assertEquals( 3 * indexBytes, cache.getRowIndexBytes() );
+    }
+
+    /** The cache must stay within its memory budget. */
+    public void testBudget()
+    {
+        DiscreteColumnVector store = (DiscreteColumnVector)DiscreteColumnVector.make(
+            SearchDataCreator.generateUncorrelatedDataset( new Random(123), 1000,
+                                                           new int[] {3,3,3,3,3,3,3,3} ) );
+        long budget = 4000;
+        ContingencyCache cache = new ContingencyCache( store, budget );
+        for ( int i = 0; i < 8; i++ ) {
+            for ( int j = 0; j < 8; j++ ) {
+                if ( i != j ) { checkTally( cache, store, i, new int[] {j} ); }
+                assertTrue( cache.getUsedBytes() <= budget );
+            }
+        }
+        assertTrue( cache.getNumTables() > 0 );
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Test Cases for DiscreteColumnVector
+//
+
+// File: TestDiscreteColumnVector.java
+
+package camml.test.core.library;
+
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import camml.core.library.DiscreteColumnVector;
+import camml.core.library.SelectedVector;
+import camml.core.models.ModelLearner;
+import camml.core.models.cpt.BDECPTLearner;
+import camml.core.models.cpt.CPTLearner;
+import camml.core.models.dTree.DTreeLearner;
+import camml.core.models.multinomial.AdaptiveCodeLearner;
+import camml.core.search.SearchDataCreator;
+import cdms.core.Value;
+import cdms.core.VectorFN;
+
+
+/** Test functions associated with DiscreteColumnVector.java */
+public class TestDiscreteColumnVector extends TestCase {
+
+    public static Test suite()
+    {
+        return new TestSuite(TestDiscreteColumnVector.class);
+    }
+
+    /** Columns must hold the same values as the original data. */
+    public void testColumns()
+    {
+        Value.Vector data = SearchDataCreator.generateUncorrelatedDataset( new Random(123), 500,
+                                                                            new int[] {3,2,4,300} );
+        Value.Vector store = DiscreteColumnVector.make( data );
+        assertTrue( store instanceof DiscreteColumnVector );
+        assertSame( store, DiscreteColumnVector.make( data ) );
+        assertSame( store, DiscreteColumnVector.make( store ) );
+        assertEquals( data.length(), store.length() );
+        for ( int col = 0; col < 4; col++ ) {
+            for ( int row = 0; row < data.length(); row++ ) {
+                assertEquals( data.cmpnt(col).intAt(row), store.cmpnt(col).intAt(row) );
+            }
+        }
+        assertEquals( data.elt(7), store.elt(7) );
+
+        // Continuous data cannot be stored.
+        Value.Vector cts = new VectorFN.FastContinuousVector( new double[] {1.0, 2.0} );
+        assertSame( cts, DiscreteColumnVector.make( cts ) );
+    }
+
+    /** A copy shares the data of a store but changing its cache does not affect the store. */
+    public void testCopy()
+    {
+        Value.Vector data = SearchDataCreator.generateUncorrelatedDataset( new Random(123), 100,
+                                                                            new int[] {3,2,4} );
+        DiscreteColumnVector store = (DiscreteColumnVector)DiscreteColumnVector.make( data );
+        DiscreteColumnVector copy = store.copy();
+        for ( int col = 0; col < 3; col++ ) {
+            assertSame( copy, ((DiscreteColumnVector.Column)copy.cmpnt(col)).getStore() );
+            for ( int row = 0; row < data.length(); row++ ) {
+                assertEquals( store.cmpnt(col).intAt(row), copy.cmpnt(col).intAt(row) );
+            }
+        }
+        assertNotNull( store.getContingencyCache() );
+        copy.setContingencyCacheBytes( 0 );
+        assertNull( copy.getContingencyCache() );
+        assertNotNull( store.getContingencyCache() );
+    }
+
+    /** Views of SelectedVectors must select the same rows and columns. */
+    public void testView()
+    {
+        Value.Vector data = SearchDataCreator.generateUncorrelatedDataset( new Random(123), 100,
+                                                                            new int[] {3,2,4} );
+        Value.Vector store = DiscreteColumnVector.make( data );
+        int[] rows = {5, 3, 99, 0};
+        SelectedVector s = new SelectedVector( new SelectedVector( store, rows, null ), null,
+                                               new int[] {2,0} );
+        DiscreteColumnVector.View view = DiscreteColumnVector.view( s );
+        assertSame( store, view.store );
+        assertEquals( 2, view.cols[0] );
+        assertEquals( 0, view.cols[1] );
+        for ( int i = 0; i < rows.length; i++ ) {
+            assertEquals( rows[i], view.rows[i] );
+            assertEquals( data.cmpnt(2).intAt(rows[i]), s.cmpnt(0).intAt(i) );
+        }
+        assertNull( DiscreteColumnVector.view( data ) );
+    }
+
+    /** Learners counting from columns must give the same costs as counting from Values. */
+    public void testLearnerCosts() throws ModelLearner.LearnerException
+    {
+        Value.Vector data = SearchDataCreator.generateWallaceKorbStyleDataset( new Random(123),
+                                                                                1000, 2, 2, 2 );
+        Value.Vector store = DiscreteColumnVector.make( data );
+        ModelLearner[] learners = { CPTLearner.mmlAdaptiveCPTLearner,
+                                    CPTLearner.adaptiveCPTLearner2,
+                                    new BDECPTLearner(5.0),
+                                    CPTLearner.multinomialCPTLearner };
+        int[][] parents = { {}, {0}, {1,2}, {0,3,5,6} };
+        for ( ModelLearner learner : learners ) {
+            for ( int[] p : parents ) {
+                double expected = learner.parameterizeAndCost( Value.TRIV, data.cmpnt(7),
+                                                               new SelectedVector(data,null,p) );
+                double actual = learner.parameterizeAndCost( Value.TRIV, store.cmpnt(7),
+                                                             new SelectedVector(store,null,p) );
+                assertEquals( expected, actual, 1e-9 );
+            }
+        }
+
+        ModelLearner leaf = AdaptiveCodeLearner.mmlAdaptiveCodeLearner;
+        assertEquals( leaf.parameterizeAndCost( Value.TRIV, data.cmpnt(4), data.cmpnt(4) ),
+                      leaf.parameterizeAndCost( Value.TRIV, store.cmpnt(4), store.cmpnt(4) ), 1e-9 );
+    }
+
+    /** Collapsing duplicate rows must not change counts or costs. */
+    public void testCollapsedRows() throws ModelLearner.LearnerException
+    {
+        Value.Vector data = SearchDataCreator.generateWallaceKorbStyleDataset( new Random(123),
+                                                                                5000, 2, 2, 2 );
+        DiscreteColumnVector store = (DiscreteColumnVector)DiscreteColumnVector.make( data );
+        assertTrue( store.getNumCases() < store.length() / 2 );
+
+        // All rows, a large selection and a small selection.
+        int[] large = new int[3000], small = new int[10];
+        for ( int i = 0; i < large.length; i++ ) { large[i] = (i * 7) % store.length(); }
+        for ( int i = 0; i < small.length; i++ ) { small[i] = i * 3; }
+        int[][] selections = { null, large, small };
+        for ( int[] rows : selections ) {
+            int n = (rows == null) ? store.length() : rows.length;
+            int[][] tally = store.tally( 7, new int[] {0,1}, new int[] {1,2}, new int[2], rows, 4 );
+            int[] counts = store.counts( 3, rows );
+            int[][] expectedTally = new int[2][4];
+            int[] expectedCounts = new int[2];
+            for ( int i = 0; i < n; i++ ) {
+                int row = (rows == null) ? i : rows[i];
+                expectedTally[data.cmpnt(7).intAt(row)]
+                    [data.cmpnt(0).intAt(row) + 2*data.cmpnt(1).intAt(row)]++;
+                expectedCounts[data.cmpnt(3).intAt(row)]++;
+            }
+            for ( int x = 0; x < 2; x++ ) {
+                assertEquals( expectedCounts[x], counts[x] );
+                for ( int j = 0; j < 4; j++ ) { assertEquals( expectedTally[x][j], tally[x][j] ); }
+            }
+        }
+
+        ModelLearner[] learners = { CPTLearner.mmlAdaptiveCPTLearner,
+                                    new BDECPTLearner(5.0),
+                                    DTreeLearner.multinomialDTreeLearner };
+        int[] p = {0,3,5};
+        for ( ModelLearner learner : learners ) {
+            double expected = learner.parameterizeAndCost( Value.TRIV, data.cmpnt(7),
+                                                           new SelectedVector(data,null,p) );
+            double actual = learner.parameterizeAndCost( Value.TRIV, store.cmpnt(7),
+                                                         new SelectedVector(store,null,p) );
+            assertEquals( expected, actual, 1e-9 );
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Test Cases for LongHashMap
+//
+
+// File: TestLongHashMap.java
+
+package camml.test.core.library;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import camml.core.library.LongHashMap;
+
+
+/** Test functions associated with LongHashMap.java */
+public class TestLongHashMap extends TestCase {
+    
+    public static Test suite() 
+    {
+        return new TestSuite(TestLongHashMap.class);
+    }
+    
+    /** LongHashMap should behave like a HashMap with Long keys. */
+    public void testAgainstHashMap()
+    {
+        LongHashMap<String> map = new LongHashMap<String>();
+        HashMap<Long,String> expected = new HashMap<Long,String>();
+        
+        // Use a small key range so some keys are repeated.
+        Random rand = new Random(123);
+        for ( int i = 0; i < 10000; i++ ) {
+            long key = rand.nextInt(5000) * 0x100000000L - 2500;
+            String value = "" + i;
+            assertEquals( expected.put(key,value), map.put(key,value) );
+        }
+        assertEquals( expected.size(), map.size() );
+        for ( Long key : expected.keySet() ) { assertEquals( expected.get(key), map.get(key) ); }
+        assertNull( map.get( 12345 ) );
+        
+        // Iterating by slot and by iterator should find every value once.
+        int found = 0;
+        for ( int i = 0; i < map.capacity(); i++ ) {
+            if ( map.valueAt(i) != null ) {
+                assertEquals( expected.get(map.keyAt(i)), map.valueAt(i) );
+                found ++;
+            }
+        }
+        assertEquals( expected.size(), found );
+        
+        found = 0;
+        for ( String s : map ) { assertNotNull( s ); found ++; }
+        assertEquals( expected.size(), found );
+        
+        map.clear();
+        assertEquals( 0, map.size() );
+        assertFalse( map.iterator().hasNext() );
+        assertNull( map.get( expected.keySet().iterator().next() ) );
+    }
+}
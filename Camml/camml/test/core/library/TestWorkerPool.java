@@ -0,0 +1,122 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Test Cases for WorkerPool
+//
+
+// File: TestWorkerPool.java
+
+package camml.test.core.library;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import camml.core.library.WorkerPool;
+
+/** Test functions associated with WorkerPool.java */
+public class TestWorkerPool extends TestCase {
+
+    public static Test suite()
+    {
+        return new TestSuite(TestWorkerPool.class);
+    }
+
+    /** Return tasks returning 0..n-1 which record how many tasks run at once in maxRunning. */
+    private static List<Callable<Integer>> makeTasks( int n, final AtomicInteger maxRunning )
+    {
+        final AtomicInteger running = new AtomicInteger();
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for ( int i = 0; i < n; i++ ) {
+            final int value = i;
+            tasks.add( new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        int r = running.incrementAndGet();
+                        synchronized ( maxRunning ) { 
+                            if ( r > maxRunning.get() ) { maxRunning.set( r ); } 
+                        }
+                        Thread.sleep( 2 );
+                        running.decrementAndGet();
+                        return value;
+                    }
+                } );
+        }
+        return tasks;
+    }
+
+    /** runShared must return results in task order and run at most numThreads tasks at once. */
+    public void testRunShared()
+    {
+        for ( int rep = 0; rep < 20; rep++ ) {
+            AtomicInteger maxRunning = new AtomicInteger();
+            List<Integer> results = WorkerPool.runShared( makeTasks( 50, maxRunning ), 3 );
+            assertEquals( 50, results.size() );
+            for ( int i = 0; i < results.size(); i++ ) { assertEquals( i, (int)results.get(i) ); }
+            assertTrue( maxRunning.get() <= 3 );
+        }
+    }
+
+    /** Tasks calling runShared themselves must not deadlock. */
+    public void testNestedRunShared()
+    {
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for ( int i = 0; i < 8; i++ ) {
+            tasks.add( new Callable<Integer>() {
+                    public Integer call() {
+                        int sum = 0;
+                        List<Integer> inner = 
+                            WorkerPool.runShared( makeTasks( 10, new AtomicInteger() ), 4 );
+                        for ( int x : inner ) { sum += x; }
+                        return sum;
+                    }
+                } );
+        }
+        for ( int sum : WorkerPool.runShared( tasks, 8 ) ) { assertEquals( 45, sum ); }
+    }
+
+    /** A checked exception thrown by a task must be rethrown as the cause of a RuntimeException. */
+    public void testRunSharedFailure()
+    {
+        List<Callable<Integer>> tasks = makeTasks( 20, new AtomicInteger() );
+        final Exception failure = new Exception( "task failed" );
+        tasks.set( 5, new Callable<Integer>() {
+                public Integer call() throws Exception { throw failure; }
+            } );
+        try {
+            WorkerPool.runShared( tasks, 4 );
+            fail( "Exception expected" );
+        }
+        catch ( RuntimeException e ) { assertSame( failure, e.getCause() ); }
+    }
+}
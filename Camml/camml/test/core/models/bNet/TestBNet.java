@@ -259,6 +259,43 @@ public class TestBNet extends TestCase {
         }
     }
 
+    /** Compare family marginal KL against full enumeration, and stochastic KL for k > 30 */
+    public final void testFamilyKL() throws Exception {
+        Value.Vector data1 = SearchDataCreator.generateWallaceKorbStyleDataset(rand,1000,2,2,2);
+        TOM tom1 = new TOM(data1);
+        TOM tom2 = new TOM(data1);
+        BNet bNet = new BNetStochastic((Type.Structured)((Type.Vector)data1.t).elt);
+
+        for (int i = 0; i < 10; i++) {
+            tom1.randomOrder(rand);
+            tom1.randomArcs(rand,3.0/tom1.getNumNodes());
+            tom2.randomOrder(rand);
+            tom2.randomArcs(rand,3.0/tom2.getNumNodes());
+
+            Value.Vector params1 = tom1.makeParameters(SearchPackage.mmlCPTLearner);
+            Value.Vector params2 = tom2.makeParameters(SearchPackage.mmlCPTLearner);
+
+            assertEquals(bNet.klExactSlow(params1,params2), bNet.klFamily(params1,params2), 0.0000001);
+            assertEquals(0, bNet.klFamily(params1,params1), 0.0000001);
+        }
+
+        // 40 binary variables is far beyond full enumeration.
+        Value.Vector data2 = SearchDataCreator.generateWallaceKorbStyleDataset(rand,1000,10,4,1);
+        TOM tom3 = new TOM(data2);
+        TOM tom4 = new TOM(data2);
+        tom3.randomOrder(rand);
+        tom3.randomArcs(rand,2.0/tom3.getNumNodes());
+        tom4.randomOrder(rand);
+        tom4.randomArcs(rand,2.0/tom4.getNumNodes());
+        Value.Vector params3 = tom3.makeParameters(SearchPackage.mmlCPTLearner);
+        Value.Vector params4 = tom4.makeParameters(SearchPackage.mmlCPTLearner);
+        BNet bNet2 = new BNetStochastic((Type.Structured)((Type.Vector)data2.t).elt);
+
+        double kl = bNet2.kl(params3,params4);
+        assertEquals(bNet2.klFamily(params3,params4), kl, 0.0);
+        assertEquals(bNet2.klStochastic(params3,params4), kl, 0.05 * kl + 0.05);
+    }
+
     public final void testExactKLNetica() throws Exception {
 
         for ( int size = 4; size <= 4; size += 1) {
@@ -0,0 +1,104 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Test Cases for DTreeLearner
+//
+
+// File: TestDTreeLearner.java
+
+
+package camml.test.core.models.dTree;
+
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import camml.core.models.dTree.DTreeLearner;
+import camml.core.models.dTree.ForcedSplitDTreeLearner;
+import camml.core.models.multinomial.AdaptiveCodeLearner;
+import camml.core.search.SearchDataCreator;
+import cdms.core.Value;
+
+
+/** Test functions associated with DTreeLearner.java */
+public class TestDTreeLearner extends TestCase {
+
+    public static Test suite()
+    {
+        return new TestSuite(TestDTreeLearner.class);
+    }
+
+    /** Evaluating root splits in parallel must not change the cost of a tree. */
+    public void testSplitThreads() throws Exception
+    {
+        Random rand = new Random(123);
+        for ( int t = 0; t < 4; t++ ) {
+            Value.Vector data =
+                SearchDataCreator.generateWallaceKorbStyleDataset( rand, 1000, 6, 2, 3 );
+            Value.Vector x = data.cmpnt(0);
+            Value.Vector z = SearchDataCreator.selectColumns( data, 1, 6 );
+
+            DTreeLearner serial = new DTreeLearner( AdaptiveCodeLearner.mmlAdaptiveCodeLearner );
+            double serialCost = serial.parameterizeAndCost( Value.TRIV, x, z );
+            ForcedSplitDTreeLearner serialForced = 
+                new ForcedSplitDTreeLearner( AdaptiveCodeLearner.mmlAdaptiveCodeLearner );
+            double serialForcedCost = serialForced.parameterizeAndCost( Value.TRIV, x, z );
+
+            DTreeLearner parallel = new DTreeLearner( AdaptiveCodeLearner.mmlAdaptiveCodeLearner );
+            parallel.setSplitThreads( 4 );
+            parallel.setMinParallelRows( 1 );
+            ForcedSplitDTreeLearner parallelForced = 
+                new ForcedSplitDTreeLearner( AdaptiveCodeLearner.mmlAdaptiveCodeLearner );
+            parallelForced.setSplitThreads( 4 );
+            parallelForced.setMinParallelRows( 1 );
+
+            assertEquals( serialCost, parallel.parameterizeAndCost( Value.TRIV, x, z ), 0 );
+            assertEquals( serialForcedCost, 
+                          parallelForced.parameterizeAndCost( Value.TRIV, x, z ), 0 );
+            assertEquals( serial.getLeafCostReuses(), parallel.getLeafCostReuses() );
+        }
+    }
+
+    /** Leaf costs found while evaluating splits are reused when the tree is expanded. */
+    public void testLeafCostReuse() throws Exception
+    {
+        Value.Vector data = SearchDataCreator.generateWallaceKorbStyleDataset(
+            new Random(123), 1000, 4, 2, 3 );
+        Value.Vector x = data.cmpnt(0);
+
+        DTreeLearner learner = new DTreeLearner( AdaptiveCodeLearner.mmlAdaptiveCodeLearner );
+        assertEquals( 0, learner.getLeafCostReuses() );
+
+        // The root is always split, so each child leaf cost comes from the winning split.
+        learner.parameterizeAndCost( Value.TRIV, x, SearchDataCreator.selectColumns(data,1,4) );
+        assertTrue( learner.getLeafCostReuses() >= 2 );
+    }
+}
@@ -57,7 +57,7 @@ public class TestCases extends TestCase
     public static Test suite() 
     {
         TestSuite tSuite = new TestSuite(TestCases.class);
-        
+        tSuite.addTest( TestDualLearner.suite() );
         return tSuite;
     }
     
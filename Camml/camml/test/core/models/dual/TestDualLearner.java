@@ -0,0 +1,97 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Test Cases for DualLearner
+//
+
+// File: TestDualLearner.java
+
+package camml.test.core.models.dual;
+
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import camml.core.models.ModelLearner;
+import camml.core.models.cpt.CPTLearner;
+import camml.core.models.dTree.ForcedSplitDTreeLearner;
+import camml.core.models.dual.DualLearner;
+import camml.core.models.logit.LogitLearner;
+import camml.core.models.multinomial.AdaptiveCodeLearner;
+import camml.core.search.SearchDataCreator;
+import cdms.core.Value;
+
+
+/** Test functions associated with DualLearner.java */
+public class TestDualLearner extends TestCase {
+
+    public static Test suite()
+    {
+        return new TestSuite(TestDualLearner.class);
+    }
+
+    /** Skipping alternatives and costing them in parallel must not change the cost. */
+    public void testBounds() throws Exception
+    {
+        DualLearner learner = new DualLearner(
+            new ModelLearner[] {AdaptiveCodeLearner.mmlAdaptiveCodeLearner},
+            new ModelLearner[] {CPTLearner.mmlAdaptiveCPTLearner},
+            new ModelLearner[] {CPTLearner.mmlAdaptiveCPTLearner,
+                                ForcedSplitDTreeLearner.multinomialDTreeLearner,
+                                LogitLearner.logitLearner} );
+        assertEquals( 0, learner.getBoundSkips() );
+        Random rand = new Random(123);
+        for ( int t = 0; t < 40; t++ ) {
+            int n = (t < 20) ? 2 + rand.nextInt(10) : 100 + rand.nextInt(1000);
+            Value.Vector data =
+                SearchDataCreator.generateWallaceKorbStyleDataset( rand, n, 6, 2, 3 );
+            Value.Vector x = data.cmpnt(0);
+            Value.Vector z = SearchDataCreator.selectColumns( data, 1, 3 + rand.nextInt(3) );
+
+            learner.setUseBounds( false );
+            learner.setAlternativeThreads( 1 );
+            double cost = learner.parameterizeAndCost( Value.TRIV, x, z );
+            Value.Model model = (Value.Model)learner.parameterize( Value.TRIV, x, z ).cmpnt(0);
+
+            learner.setUseBounds( true );
+            assertEquals( cost, learner.parameterizeAndCost( Value.TRIV, x, z ), 0 );
+            learner.setAlternativeThreads( 3 );
+            learner.setMinParallelRows( 1 );
+            assertEquals( cost, learner.parameterizeAndCost( Value.TRIV, x, z ), 0 );
+            assertEquals( model.getClass(), 
+                          learner.parameterize( Value.TRIV, x, z ).cmpnt(0).getClass() );
+        }
+        // With little data the CPT is close to its ML cost, so the DTree cannot win.
+        assertTrue( learner.getBoundSkips() > 0 );
+        assertTrue( ((DualLearner)DualLearner.dualCPTDTreeLogitLearner).getUseBounds() );
+        assertEquals( 1, ((DualLearner)DualLearner.dualCPTDTreeLogitLearner).getAlternativeThreads() );
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Test Cases for JulesLogit warm starts
+//
+
+// File: TestJulesLogit.java
+
+package camml.test.core.models.logit;
+
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import camml.core.library.DiscreteColumnVector;
+import camml.core.library.SelectedVector;
+import camml.core.models.logit.JulesLogit;
+import camml.core.models.logit.LogitLearner;
+import camml.core.search.SearchDataCreator;
+import cdms.core.Value;
+
+
+/** Test functions associated with JulesLogit.java */
+public class TestJulesLogit extends TestCase {
+
+    public static Test suite()
+    {
+        return new TestSuite(TestJulesLogit.class);
+    }
+
+    /** Warm started and reused fits must agree with a cold fit by a fresh JulesLogit. */
+    public void testWarmStart() throws Exception
+    {
+        Random rand = new Random(123);
+        DiscreteColumnVector store = (DiscreteColumnVector)DiscreteColumnVector.make(
+            SearchDataCreator.generateWallaceKorbStyleDataset( rand, 1000, 6, 2, 3 ) );
+        int[][] parents = { {}, {1}, {1,2}, {2}, {2,3}, {1,2,3}, {3,2,1}, {4,5,2} };
+
+        JulesLogit.resetStats();
+        JulesLogit.FitCache cache = new JulesLogit.FitCache();
+        JulesLogit reused = new JulesLogit();
+        for ( int child = 0; child < 2; child++ ) {
+            for ( int[] p : parents ) {
+                int[] cols = p.clone();
+                for ( int i = 0; i < cols.length; i++ ) { if ( cols[i] == child ) { cols[i] = 0; } }
+
+                JulesLogit cold = new JulesLogit();
+                double cost = cold.nodeCost( store.cmpnt(child), new SelectedVector(store,null,cols) );
+                assertFalse( cold.isWarmStarted() );
+                reused.setFitCache( null );
+                assertEquals( cost, reused.nodeCost( store.cmpnt(child),
+                                                     new SelectedVector(store,null,cols) ), 0 );
+
+                JulesLogit warm = new JulesLogit();
+                warm.setFitCache( cache );
+                assertEquals( cost, warm.nodeCost( store.cmpnt(child),
+                                                   new SelectedVector(store,null,cols) ), 1e-4 );
+                reused.setFitCache( cache );
+                assertEquals( cost, reused.nodeCost( store.cmpnt(child),
+                                                     new SelectedVector(store,null,cols) ), 1e-4 );
+                assertTrue( warm.getIterations() > 0 );
+            }
+        }
+        assertEquals( 4 * 2 * parents.length, JulesLogit.getTotalFits() );
+        assertTrue( JulesLogit.getTotalWarmStarts() > 0 );
+        assertTrue( JulesLogit.getTotalIterations() > 0 );
+        assertTrue( JulesLogit.getTotalNanos() > 0 );
+    }
+
+    /** Warm starts are off unless asked for, and only used by the learner they are set on. */
+    public void testLearnerWarmStart() throws Exception
+    {
+        LogitLearner learner = new LogitLearner();
+        assertFalse( learner.getWarmStart() );
+        assertFalse( LogitLearner.logitLearner.getWarmStart() );
+
+        DiscreteColumnVector store = (DiscreteColumnVector)DiscreteColumnVector.make(
+            SearchDataCreator.generateWallaceKorbStyleDataset( new Random(123), 1000, 4, 2, 3 ) );
+        double cost = new JulesLogit().nodeCost( store.cmpnt(0), 
+                                                 new SelectedVector(store,null,new int[] {1,2}) );
+
+        learner.setWarmStart( true );
+        assertTrue( learner.getWarmStart() );
+        assertFalse( LogitLearner.logitLearner.getWarmStart() );
+        for ( int[] cols : new int[][] { {1}, {1,2}, {1,2} } ) {
+            learner.parameterizeAndCost( Value.TRIV, store.cmpnt(0), 
+                                         new SelectedVector(store,null,cols) );
+        }
+        assertEquals( cost, learner.parameterizeAndCost( Value.TRIV, store.cmpnt(0),
+                                                         new SelectedVector(store,null,new int[] {1,2}) ), 1e-4 );
+
+        learner.setWarmStart( false );
+        assertEquals( cost, learner.parameterizeAndCost( Value.TRIV, store.cmpnt(0),
+                                                         new SelectedVector(store,null,new int[] {1,2}) ), 0 );
+    }
+}
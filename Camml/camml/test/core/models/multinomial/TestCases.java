@@ -58,6 +58,7 @@ public class TestCases extends TestCase
     {
         TestSuite tSuite = new TestSuite(TestCases.class);
         tSuite.addTest(TestBDE.suite());
+        tSuite.addTest(TestCountLearners.suite());
         return tSuite;
     }
     
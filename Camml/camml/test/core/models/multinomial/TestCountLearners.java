@@ -0,0 +1,104 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Test functions for CountLearner cost kernels
+//
+
+// File: TestCountLearners.java
+
+package camml.test.core.models.multinomial;
+
+import java.util.Random;
+
+import camml.core.library.LogFactorialTable;
+import camml.core.library.StructureFN;
+import camml.core.models.ModelLearner;
+import camml.core.models.multinomial.AdaptiveCodeLearner;
+import camml.core.models.multinomial.BDELearner;
+import camml.core.models.multinomial.MultinomialLearner;
+import cdms.core.*;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Test the primitive count kernels of the multinomial leaf learners give the same costs as
+ * costing from Values.
+ */
+public class TestCountLearners extends TestCase {
+
+    public TestCountLearners(String name) { super(name); }
+    
+    public static Test suite() 
+    {
+        return new TestSuite( TestCountLearners.class );        
+    }
+
+    /** Table must match LogFactorial including the range where Stirling's formula is used */
+    public final void testLogFactorialTable() {
+        for ( int i = 0; i < 5000; i++ ) {
+            assertEquals( FN.LogFactorial.logFactorial(i), LogFactorialTable.logFactorial(i), 0 );
+        }
+
+        // Values past the largest table are calculated directly.
+        int n = LogFactorialTable.maxSize + 5;
+        assertEquals( LogFactorialTable.maxSize, LogFactorialTable.get(n).length );
+        assertEquals( FN.LogFactorial.logFactorial(n), LogFactorialTable.logFactorial(n), 0 );
+    }
+
+    /** tallyCost must equal the sum of sParameterizeAndCost over each parent combination. */
+    public final void testTallyCost() throws Exception {
+        ModelLearner[] learners = { AdaptiveCodeLearner.mmlAdaptiveCodeLearner,
+                                    AdaptiveCodeLearner.adaptiveCodeLearner,
+                                    new BDELearner(3.5),
+                                    MultinomialLearner.multinomialLearner };
+        Random rand = new Random(123);
+        int[][] tally = new int[3][10];
+        for ( int x = 0; x < tally.length; x++ ) {
+            for ( int j = 0; j < tally[x].length; j++ ) {
+                // Include empty cells and counts beyond the 2000 entry LogFactorial table.
+                tally[x][j] = (j % 4 == 0) ? 0 : rand.nextInt( (j < 5) ? 10 : 5000 );
+            }
+        }
+        Value.Model m = MultinomialLearner.getMultinomialModel( 0, tally.length-1 );
+        
+        for ( ModelLearner learner : learners ) {
+            double expected = 0;
+            for ( int j = 0; j < tally[0].length; j++ ) {
+                int[] counts = new int[tally.length];
+                for ( int x = 0; x < counts.length; x++ ) { counts[x] = tally[x][j]; }
+                expected += learner.sParameterizeAndCost( m,
+                                                          new StructureFN.FastDiscreteStructure(counts) );
+            }
+            assertEquals( expected, ((ModelLearner.CountLearner)learner).tallyCost(tally), 1e-9 );
+        }
+    }
+}
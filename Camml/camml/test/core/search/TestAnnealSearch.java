@@ -91,7 +91,31 @@ public class TestAnnealSearch extends TestCase
         
         blockingSearch.start();
     }
-    
+
+    /** Run restart epochs in parallel and check the best TOM is kept. */
+    public void testParallelRestarts()
+    {
+        Value.Vector dataset =
+            SearchDataCreator.generateWallaceKorbStyleDataset(new java.util.Random(123),100,2,2,3);
+        AnnealSearch anneal = new AnnealSearch( new java.util.Random(123), dataset,
+                                                SearchPackage.mlCPTLearner,
+                                                SearchPackage.mmlCPTLearner );
+        anneal.setOption( "annealThreads", new Value.Discrete(4) );
+        anneal.setOption( "searchFactor", new Value.Continuous(0.2) );
+
+        // Initial epoch and all restart epochs.
+        anneal.doEpoch();
+        int entries = anneal.caseInfo.nodeCache.getNumCacheEntries();
+        anneal.doEpoch();
+        assertEquals( 100.0 * 21 / 33, anneal.getPercentage(), 0.000001 );
+        
+        // Costs learned by the restarts are merged back into the search's cache.
+        assertTrue( anneal.caseInfo.nodeCache.getNumCacheEntries() > entries );
+
+        while ( !anneal.isFinished() ) { anneal.doEpoch(); }
+        assertEquals( anneal.getBestTOM().getCost(), anneal.getBestCost(), 0.01 );
+    }
+
     /*
       public void testSearchInterface()
       {
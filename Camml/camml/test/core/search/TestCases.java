@@ -67,6 +67,8 @@ public class TestCases extends TestCase
         
         
         tSuite.addTest( TestTOM.suite() );
+        tSuite.addTest( TestNodeCache.suite() );
+        tSuite.addTest( TestConvergenceMonitor.suite() );
         
         return tSuite;
     }
@@ -0,0 +1,126 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Lucas Hope, Rodney O'Donnell
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// JUnit test routine for ConvergenceMonitor
+//
+
+// File: TestConvergenceMonitor.java
+
+package camml.test.core.search;
+
+import java.util.Random;
+
+import junit.framework.*;
+
+import cdms.core.*;
+import camml.core.search.*;
+
+/**
+ * Test ConvergenceMonitor diagnostics and convergence driven stopping of MetropolisSearch.
+ */
+public class TestConvergenceMonitor extends TestCase
+{
+    /** Data used for searches */
+    Value.Vector data;
+    
+    public TestConvergenceMonitor(String name) 
+    {
+        super(name);
+    }
+    
+    protected void setUp() 
+    {
+        data = SearchDataCreator.generateWallaceKorbStyleDataset(new Random(123),100,2,2,3);
+    }
+    
+    public static Test suite() 
+    {
+        return new TestSuite(TestConvergenceMonitor.class);
+    }
+    
+    /** ESS should be close to n for independent costs and much lower for correlated costs. */
+    public void testESS()
+    {
+        CaseInfo caseInfo = new CaseInfo( null, null, data, null, null, -1, null );
+        Random rand = new Random(123);
+        int n = 100000;
+        
+        ConvergenceMonitor iid = new ConvergenceMonitor( caseInfo );
+        for ( int i = 0; i < n; i++ ) { iid.addCost( rand.nextGaussian() ); }
+        assertEquals( n, iid.getNumSamples() );
+        assertTrue( iid.calcESS() > 0.7 * n );
+        assertTrue( iid.calcESS() <= n );
+        
+        // AR(1) process, ESS ~= n * (1-phi) / (1+phi) = n * 0.026
+        ConvergenceMonitor ar = new ConvergenceMonitor( caseInfo );
+        double x = 0, phi = 0.95;
+        for ( int i = 0; i < n; i++ ) {
+            x = phi * x + rand.nextGaussian();
+            ar.addCost( x );
+        }
+        assertTrue( ar.calcESS() < 0.1 * n );
+        assertTrue( ar.calcESS() > 0.005 * n );
+    }
+    
+    /** Loose thresholds should stop sampling early with the search reporting convergence. */
+    public void testStopOnConvergence()
+    {
+        MetropolisSearch met = new MetropolisSearch( new Random(123), data,
+                                                     SearchPackage.mlCPTLearner,
+                                                     SearchPackage.mmlCPTLearner );
+        met.setOption( "stopOnConvergence", Value.TRUE );
+        met.setOption( "minESS", new Value.Continuous(100) );
+        met.setOption( "maxTopSECChange", new Value.Continuous(0.05) );
+        met.setOption( "maxArcDrift", new Value.Continuous(0.05) );
+        while ( !met.isFinished() ) { met.doEpoch(); }
+        
+        ConvergenceMonitor convergence = met.getConvergence();
+        assertTrue( convergence.isConverged() );
+        assertFalse( convergence.isTimedOut() );
+        assertTrue( met.getPercentage() < 1.0 );
+        assertTrue( convergence.getESS() >= 100 );
+        assertTrue( convergence.getTopSECPosterior() > 0 );
+        met.getResults();
+    }
+    
+    /** Sampling should stop at the first check once the time limit is reached. */
+    public void testTimeLimit()
+    {
+        MetropolisSearch met = new MetropolisSearch( new Random(123), data,
+                                                     SearchPackage.mlCPTLearner,
+                                                     SearchPackage.mmlCPTLearner );
+        met.setOption( "maxSeconds", new Value.Continuous(1e-9) );
+        while ( !met.isFinished() ) { met.doEpoch(); }
+        
+        assertTrue( met.getConvergence().isTimedOut() );
+        // The clock is checked every epoch, not only at the 100 periodic checks.
+        assertTrue( met.getPercentage() < 0.01 );
+    }
+}
@@ -53,6 +53,9 @@ import camml.core.models.ModelLearner;
 import camml.plugin.rodoCamml.*;
 import camml.core.models.bNet.*;
 import camml.core.models.cpt.CPTLearner;
+import camml.core.models.dTree.ForcedSplitDTreeLearner;
+import camml.core.models.dual.DualLearner;
+import camml.core.models.logit.LogitLearner;
 
 import javax.swing.*;
 
@@ -109,8 +112,318 @@ public class TestMetropolisSearch extends TestCase
         
         s.start();
     }
+
+    /** Sample using several chains and check merged results are sensible. */
+    public void testMultiChain()
+    {
+        runMultiChain( false );
+    }
+
+    /** Sample using several chains sharing a ConcurrentNodeCache. */
+    public void testMultiChainConcurrentNodeCache()
+    {
+        runMultiChain( true );
+    }
+
+    /** Lazy reference weighting must give the same posteriors as rescaling every time. */
+    public void testLazyReferenceWeight()
+    {
+        double oldMaxLogWeight = MetropolisSearch.maxLogWeight;
+        MetropolisSearch[] met = new MetropolisSearch[2];
+        try {
+            for ( int i = 0; i < met.length; i++ ) {
+                // maxLogWeight == 0 rescales weights each time a new best cost is found.
+                MetropolisSearch.maxLogWeight = (i == 0) ? 0 : oldMaxLogWeight;
+                Value.Vector dataset =
+                    SearchDataCreator.generateWallaceKorbStyleDataset(new java.util.Random(123),100,2,2,3);
+                met[i] = new MetropolisSearch( new java.util.Random(12345), dataset,
+                                               SearchPackage.mlCPTLearner,
+                                               SearchPackage.mmlCPTLearner );
+                met[i].setOption( "searchFactor", new Value.Continuous(0.2) );
+                while ( !met[i].isFinished() ) { met[i].doEpoch(); }
+                met[i].flushReferenceWeight();
+            }
+        } finally {
+            MetropolisSearch.maxLogWeight = oldMaxLogWeight;
+        }
+        
+        camml.core.library.LongHashMap<SEC> eager = met[0].getSECHashTable();
+        camml.core.library.LongHashMap<SEC> lazy = met[1].getSECHashTable();
+        assertEquals( eager.size(), lazy.size() );
+        for ( int i = 0; i < eager.capacity(); i++ ) {
+            if ( eager.valueAt(i) == null ) { continue; }
+            SEC a = eager.valueAt(i);
+            SEC b = lazy.get( eager.keyAt(i) );
+            assertEquals( a.getWeight(), b.getWeight(), 1e-9 * a.getWeight() );
+        }
+    }
+
+    /** Revisiting TOMs must find them through the hash index, also after sorting. */
+    public void testTOMIndex()
+    {
+        Value.Vector dataset =
+            SearchDataCreator.generateWallaceKorbStyleDataset(new java.util.Random(123),100,2,2,3);
+        MetropolisSearch met = new MetropolisSearch( new java.util.Random(12345), dataset,
+                                                     SearchPackage.mlCPTLearner,
+                                                     SearchPackage.mmlCPTLearner );
+        met.setOption( "searchFactor", new Value.Continuous(0.2) );
+        while ( !met.isFinished() ) { met.doEpoch(); }
+        
+        // Pick the SEC with the most TOMs.
+        SEC sec = null;
+        for ( SEC s : met.getSECHashTable() ) {
+            if ( sec == null || s.getNumTOMs() > sec.getNumTOMs() ) { sec = s; }
+        }
+        sec.sortTOMs();
+        
+        int numTOMs = sec.getNumTOMs();
+        for ( int i = 0; i < numTOMs; i++ ) {
+            int visits = sec.getNumVisitsToTOM(i);
+            sec.addTOM( sec.getTOM(i), sec.getBestMMLOfTOM(i), 1.0 );
+            assertEquals( numTOMs, sec.getNumTOMs() );
+            assertEquals( visits + 1, sec.getNumVisitsToTOM(i) );
+        }
+    }
+
+    /** MetropolisSearch exposing makeKL and joinByKLDistance. */
+    private static class KLSearch extends MetropolisSearch {
+        /** If not null, returned by makeKL */
+        double[][] fixedKL;
+        
+        KLSearch( Value.Vector data ) {
+            super( new java.util.Random(12345), data,
+                   SearchPackage.mlCPTLearner, SearchPackage.mmlCPTLearner );
+        }
+        double[][] kl( SEC[] secArray, int n ) { return makeKL( secArray, n ); }
+        MMLEC[] join( SEC[] secArray ) { return joinByKLDistance( secArray, 100 ); }
+        protected double[][] makeKL( SEC[] secArray, int n ) {
+            return (fixedKL != null) ? fixedKL : super.makeKL( secArray, n );
+        }
+    }
     
+    /** joinByKLDistance must give the same MMLECs as repeatedly scanning all pairs. */
+    public void testJoinByKLDistance()
+    {
+        Value.Vector dataset =
+            SearchDataCreator.generateWallaceKorbStyleDataset(new java.util.Random(123),100,2,2,3);
+        KLSearch met = new KLSearch( dataset );
+        met.setOption( "searchFactor", new Value.Continuous(0.2) );
+        while ( !met.isFinished() ) { met.doEpoch(); }
+        
+        java.util.List<SEC> secList = new java.util.ArrayList<SEC>();
+        for ( SEC sec : met.getSECHashTable() ) { secList.add( sec ); }
+        java.util.Collections.sort( secList, SEC.secWeightComparator );
+        SEC[] secArray = secList.subList( 0, 40 ).toArray( new SEC[40] );
+        
+        java.util.Random rand = new java.util.Random(7);
+        for ( int trial = 0; trial < 5; trial++ ) {
+            double[][] kl = new double[secArray.length][secArray.length];
+            double[] prior = new double[secArray.length];
+            for ( int i = 0; i < secArray.length; i++ ) {
+                secArray[i].relativePrior = prior[i] = rand.nextDouble();
+                for ( int j = 0; j < secArray.length; j++ ) {
+                    kl[i][j] = (i == j) ? 0 : rand.nextDouble() * 3;
+                }
+            }
+            met.fixedKL = kl;
+            MMLEC[] mmlec = met.join( secArray );
+            
+            // Reference implementation : scan all pairs for the best join each time.
+            java.util.List<java.util.List<SEC>> groups = new java.util.ArrayList<java.util.List<SEC>>();
+            for ( SEC sec : secArray ) { 
+                groups.add( new java.util.ArrayList<SEC>( java.util.Arrays.asList( sec ) ) ); 
+            }
+            while ( true ) {
+                double bestGain = -1;
+                int bestI = -1, bestJ = -1;
+                for ( int i = 0; i < kl.length; i++ ) {
+                    for ( int j = 0; j < kl.length; j++ ) {
+                        if ( i == j || groups.get(i).isEmpty() || groups.get(j).isEmpty() ) { continue; }
+                        if ( secArray[i].getNumArcs() > secArray[j].getNumArcs() ) { continue; }
+                        double p1 = prior[i], p2 = prior[j], p3 = p1 + p2;
+                        double gain = -(p1 * Math.log(p1) + p2 * Math.log(p2)) 
+                            + p3 * Math.log(p3) - p2 * kl[j][i];
+                        if ( gain > bestGain ) { bestGain = gain; bestI = i; bestJ = j; }
+                    }
+                }
+                if ( bestGain <= 0 ) { break; }
+                groups.get(bestI).addAll( groups.get(bestJ) );
+                groups.get(bestJ).clear();
+                prior[bestI] += prior[bestJ];
+                prior[bestJ] = 0;
+            }
+            
+            int n = 0;
+            for ( java.util.List<SEC> group : groups ) {
+                if ( group.isEmpty() ) { continue; }
+                assertEquals( group.size(), mmlec[n].length() );
+                for ( int i = 0; i < group.size(); i++ ) { assertSame( group.get(i), mmlec[n].getSEC(i) ); }
+                n++;
+            }
+            assertEquals( n, mmlec.length );
+        }
+    }
     
+    /** The stochastic KL matrix must not depend on the number of threads used. */
+    public void testKLThreads()
+    {
+        double[][][] kl = new double[2][][];
+        for ( int i = 0; i < kl.length; i++ ) {
+            Value.Vector dataset =
+                SearchDataCreator.generateWallaceKorbStyleDataset(new java.util.Random(123),100,2,2,3);
+            KLSearch met = new KLSearch( dataset );
+            met.setOption( "searchFactor", new Value.Continuous(0.2) );
+            met.setOption( "klThreads", new Value.Discrete( i == 0 ? 1 : 4 ) );
+            while ( !met.isFinished() ) { met.doEpoch(); }
+            
+            java.util.List<SEC> secList = new java.util.ArrayList<SEC>();
+            for ( SEC sec : met.getSECHashTable() ) { secList.add( sec ); }
+            java.util.Collections.sort( secList, SEC.secWeightComparator );
+            SEC[] secArray = secList.subList( 0, 8 ).toArray( new SEC[8] );
+            kl[i] = met.kl( secArray, 1000 );
+        }
+        
+        for ( int i = 0; i < kl[0].length; i++ ) {
+            for ( int j = 0; j < kl[0].length; j++ ) {
+                assertEquals( kl[0][i][j], kl[1][i][j], 0.0 );
+            }
+            assertEquals( 0.0, kl[0][i][i], 0.0 );
+        }
+    }
+
+    /** Shared sample KL estimates should agree with per SEC estimates. */
+    public void testSharedSampleKL()
+    {
+        double[][][] kl = new double[2][][];
+        for ( int i = 0; i < kl.length; i++ ) {
+            Value.Vector dataset =
+                SearchDataCreator.generateWallaceKorbStyleDataset(new java.util.Random(123),100,2,2,3);
+            KLSearch met = new KLSearch( dataset );
+            met.setOption( "searchFactor", new Value.Continuous(0.2) );
+            met.setOption( "sharedSampleKL", i == 0 ? Value.FALSE : Value.TRUE );
+            while ( !met.isFinished() ) { met.doEpoch(); }
+            
+            java.util.List<SEC> secList = new java.util.ArrayList<SEC>();
+            for ( SEC sec : met.getSECHashTable() ) { secList.add( sec ); }
+            java.util.Collections.sort( secList, SEC.secWeightComparator );
+            SEC[] secArray = secList.subList( 0, 5 ).toArray( new SEC[5] );
+            kl[i] = met.kl( secArray, 20000 );
+        }
+        
+        for ( int i = 0; i < kl[0].length; i++ ) {
+            for ( int j = 0; j < kl[0].length; j++ ) {
+                assertEquals( kl[0][i][j], kl[1][i][j], 0.1 * Math.abs(kl[0][i][j]) + 0.5 );
+            }
+            assertEquals( 0.0, kl[1][i][i], 0.0 );
+        }
+    }
+
+    /** dTreeThreads must only change the decision tree learners of the search it is set on. */
+    public void testPrivateDTreeLearners()
+    {
+        Value.Vector dataset =
+            SearchDataCreator.generateWallaceKorbStyleDataset(new java.util.Random(123),100,2,2,3);
+        MetropolisSearch met = new MetropolisSearch( new java.util.Random(12345), dataset,
+                                                     SearchPackage.mlCPTLearner,
+                                                     DualLearner.dualCPTDTreeLearner );
+        met.setOption( "searchFactor", new Value.Continuous(0.2) );
+        met.setOption( "dTreeThreads", new Value.Discrete(4) );
+        assertEquals( 1, ForcedSplitDTreeLearner.multinomialDTreeLearner.getSplitThreads() );
+        
+        ModelLearner mml = met.getMMLModelLearner();
+        assertNotSame( DualLearner.dualCPTDTreeLearner, mml );
+        int numDTrees = 0;
+        for ( ModelLearner alt : ((DualLearner)mml).getAlternatives() ) {
+            if ( alt instanceof ForcedSplitDTreeLearner ) {
+                assertEquals( 4, ((ForcedSplitDTreeLearner)alt).getSplitThreads() );
+                numDTrees++;
+            }
+        }
+        assertTrue( numDTrees > 0 );
+        
+        while ( !met.isFinished() ) { met.doEpoch(); }
+        assertTrue( met.getResults().length() > 0 );
+    }
+    
+    /** dualThreads and dualBounds must only change the DualLearners of the search they are set on. */
+    public void testPrivateDualLearners()
+    {
+        Value.Vector dataset =
+            SearchDataCreator.generateWallaceKorbStyleDataset(new java.util.Random(123),100,2,2,3);
+        DualLearner shared = (DualLearner)DualLearner.dualCPTDTreeLearner;
+        MetropolisSearch met = new MetropolisSearch( new java.util.Random(12345), dataset,
+                                                     SearchPackage.mlCPTLearner, shared );
+        met.setOption( "dualThreads", new Value.Discrete(4) );
+        met.setOption( "dualBounds", Value.FALSE );
+        assertEquals( 1, shared.getAlternativeThreads() );
+        assertTrue( shared.getUseBounds() );
+        
+        DualLearner mml = (DualLearner)met.getMMLModelLearner();
+        assertNotSame( shared, mml );
+        assertEquals( 4, mml.getAlternativeThreads() );
+        assertFalse( mml.getUseBounds() );
+    }
+    
+    /** logitWarmStart must only change the LogitLearners of the search it is set on. */
+    public void testPrivateLogitLearners()
+    {
+        Value.Vector dataset =
+            SearchDataCreator.generateWallaceKorbStyleDataset(new java.util.Random(123),100,2,2,3);
+        MetropolisSearch met = new MetropolisSearch( new java.util.Random(12345), dataset,
+                                                     SearchPackage.mlCPTLearner,
+                                                     DualLearner.dualCPTLogitLearner );
+        met.setOption( "logitWarmStart", Value.TRUE );
+        assertFalse( LogitLearner.logitLearner.getWarmStart() );
+        
+        int numLogits = 0;
+        for ( ModelLearner alt : ((DualLearner)met.getMMLModelLearner()).getAlternatives() ) {
+            if ( alt instanceof LogitLearner ) {
+                assertNotSame( LogitLearner.logitLearner, alt );
+                assertTrue( ((LogitLearner)alt).getWarmStart() );
+                numLogits++;
+            }
+        }
+        assertTrue( numLogits > 0 );
+        
+        // Regression turns warm starts off for this search only.
+        LogitLearner.logitLearner.setWarmStart( true );
+        try {
+            met.setOption( "regression", Value.TRUE );
+            assertTrue( LogitLearner.logitLearner.getWarmStart() );
+            for ( ModelLearner alt : ((DualLearner)met.getMMLModelLearner()).getAlternatives() ) {
+                if ( alt instanceof LogitLearner ) { 
+                    assertFalse( ((LogitLearner)alt).getWarmStart() ); 
+                }
+            }
+        }
+        finally { LogitLearner.logitLearner.setWarmStart( false ); }
+    }
+    
+    private void runMultiChain( boolean concurrentNodeCache )
+    {
+        Value.Vector dataset =
+            SearchDataCreator.generateWallaceKorbStyleDataset(new java.util.Random(123),100,2,2,3);
+        MetropolisSearch met = new MetropolisSearch( new java.util.Random(12345), dataset,
+                                                     SearchPackage.mlCPTLearner,
+                                                     SearchPackage.mmlCPTLearner );
+        met.setOption( "searchFactor", new Value.Continuous(0.2) );
+        met.setOption( "numChains", new Value.Discrete(3) );
+        if ( concurrentNodeCache ) { met.setOption( "concurrentNodeCache", Value.TRUE ); }
+
+        while ( !met.isFinished() ) { met.doEpoch(); }
+
+        Value.Vector results = met.getResults();
+        assertTrue( results.length() > 0 );
+
+        double[][] p = met.getArcPortions();
+        for ( int i = 0; i < p.length; i++ ) {
+            for ( int j = 0; j < p.length; j++ ) {
+                assertTrue( p[i][j] > -0.000001 && p[i][j] < 1.000001 );
+            }
+        }
+    }
+
+
     /** 
      * Test main function. <br>
      * Useage : java camml.test.SearchPackage.TestMetropolisSearch datafile <br>
@@ -0,0 +1,333 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Lucas Hope, Rodney O'Donnell
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// JUnit test routine for NodeCache
+//
+
+// File: TestNodeCache.java
+
+package camml.test.core.search;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import junit.framework.*;
+
+import cdms.core.*;
+import camml.core.search.*;
+import camml.core.library.WorkerPool;
+import camml.core.models.ModelLearner;
+import camml.core.models.cpt.BDECPTLearner;
+import camml.core.models.cpt.CPTLearner;
+import camml.core.models.multinomial.MLMultinomialLearner;
+import camml.core.models.dTree.PenalisedDTreeLearner;
+
+/**
+ * Test NodeCache and ConcurrentNodeCache
+ */
+public class TestNodeCache extends TestCase
+{
+    /** Data used to cost nodes */
+    Value.Vector data;
+    
+    /** Random nodes to cost. */
+    Node[] node;
+    
+    public TestNodeCache(String name) 
+    {
+        super(name);
+    }
+    
+    protected void setUp() 
+    {
+        data = SearchDataCreator.generateWallaceKorbStyleDataset(new Random(123),100,2,2,3);
+        int numVars = ((Value.Structured)data.elt(0)).length();
+        
+        // Create nodes with up to three random parents.
+        Random rand = new Random(1);
+        node = new Node[200];
+        for ( int i = 0; i < node.length; i++ ) {
+            node[i] = new Node( rand.nextInt(numVars) );
+            int numParents = rand.nextInt(4);
+            for ( int j = 0; j < numParents; j++ ) {
+                int p = rand.nextInt(numVars);
+                if ( p != node[i].var && !contains(node[i].getParentCopy(),p) ) { 
+                    node[i].addParent(p); 
+                }
+            }
+        }
+    }
+    
+    private static boolean contains( int[] x, int v ) 
+    {
+        for ( int i = 0; i < x.length; i++ ) { if ( x[i] == v ) { return true; } }
+        return false;
+    }
+    
+    public static Test suite() 
+    {
+        return new TestSuite(TestNodeCache.class);
+    }
+    
+    /** A ConcurrentNodeCache shared by several threads must return the same costs as NodeCache */
+    public void testConcurrentNodeCache() throws Exception
+    {
+        NodeCache serial = new NodeCache( data, SearchPackage.mmlCPTLearner, 
+                                          SearchPackage.mlCPTLearner );
+        final double[] mml = new double[node.length];
+        final double[] ml = new double[node.length];
+        for ( int i = 0; i < node.length; i++ ) {
+            mml[i] = serial.getMMLCost( node[i] );
+            ml[i] = serial.getMLCost( node[i] );
+        }
+        
+        final NodeCache cache = new ConcurrentNodeCache( data, SearchPackage.mmlCPTLearner, 
+                                                         SearchPackage.mlCPTLearner );
+        assertSame( cache, cache.getSharedCache() );
+        
+        int numThreads = 4;
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+        for ( int t = 0; t < numThreads; t++ ) {
+            tasks.add( new Callable<Boolean>() {
+                    public Boolean call() {
+                        for ( int i = 0; i < node.length; i++ ) {
+                            if ( cache.getMMLCost(node[i]) != mml[i] ) { return false; }
+                            if ( cache.getMLCost(node[i]) != ml[i] ) { return false; }
+                        }
+                        return true;
+                    }
+                });
+        }
+        for ( Boolean ok : WorkerPool.runAll( tasks, numThreads ) ) { assertTrue( ok ); }
+        
+        cache.collectStats();
+        assertEquals( numThreads * node.length, cache.totalCostings );
+        assertEquals( serial.getNumCacheEntries(), cache.getNumCacheEntries() );
+    }
+    
+    /** Costs learned through a shared cache must be merged back into the original cache. */
+    public void testSharedCache()
+    {
+        NodeCache cache = new NodeCache( data, SearchPackage.mmlCPTLearner, 
+                                         SearchPackage.mlCPTLearner );
+        for ( int i = 0; i < node.length / 2; i++ ) { cache.getMMLCost( node[i] ); }
+        
+        NodeCache shared = cache.getSharedCache();
+        assertTrue( shared instanceof ConcurrentNodeCache );
+        assertEquals( cache.getNumCacheEntries(), shared.getNumCacheEntries() );
+        double[] mml = new double[node.length];
+        for ( int i = 0; i < node.length; i++ ) { mml[i] = shared.getMMLCost( node[i] ); }
+        
+        cache.mergeSharedCache( shared );
+        assertEquals( shared.getNumCacheEntries(), cache.getNumCacheEntries() );
+        int learnings = cache.totalLearnings;
+        for ( int i = 0; i < node.length; i++ ) { assertEquals( mml[i], cache.getMMLCost( node[i] ), 0 ); }
+        assertEquals( learnings, cache.totalLearnings );
+    }
+    
+    /** A small cache must evict entries but still return correct costs. */
+    public void testEviction()
+    {
+        NodeCache serial = new NodeCache( data, SearchPackage.mmlCPTLearner, 
+                                          SearchPackage.mlCPTLearner );
+        NodeCache small = new NodeCache( data, SearchPackage.mmlCPTLearner, 
+                                         SearchPackage.mlCPTLearner, 1000, true );
+        assertEquals( 1000 / (NodeCache.bytesPerEntry + 4 + 8) + 7, small.cacheSize );
+        
+        for ( int rep = 0; rep < 2; rep++ ) {
+            for ( int i = 0; i < node.length; i++ ) {
+                assertEquals( serial.getMMLCost(node[i]), small.getMMLCost(node[i]), 0 );
+                assertEquals( serial.getMLCost(node[i]), small.getMLCost(node[i]), 0 );
+            }
+        }
+        assertTrue( small.evictions > 0 );
+        assertTrue( small.getNumCacheEntries() <= small.cacheSize );
+    }
+    
+    /** Frequently used entries should survive eviction. */
+    public void testLeastUsedEviction()
+    {
+        // Cache with 7 entries.
+        NodeCache cache = new NodeCache( data, SearchPackage.mmlCPTLearner, 
+                                         SearchPackage.mlCPTLearner, 0, false );
+        assertEquals( 7, cache.cacheSize );
+        assertEquals( NodeCache.EvictionPolicy.OVERWRITE_HOME, cache.evictionPolicy );
+        cache.evictionPolicy = NodeCache.EvictionPolicy.LEAST_USED;
+        
+        // hot[i] has parent i+1, so all nodes differ.
+        Node[] hot = new Node[10];
+        for ( int i = 0; i < hot.length; i++ ) {
+            hot[i] = new Node(0);
+            hot[i].addParent(i+1);
+        }
+        
+        for ( int i = 0; i < 50; i++ ) { cache.getMMLCost( hot[0] ); }
+        for ( int i = 1; i < hot.length; i++ ) { cache.getMMLCost( hot[i] ); }
+        assertTrue( cache.evictions > 0 );
+        
+        int learnings = cache.totalLearnings;
+        cache.getMMLCost( hot[0] );
+        assertEquals( learnings, cache.totalLearnings );
+    }
+    
+    /** NodeCache where every node has the same hash. */
+    static class CollidingNodeCache extends NodeCache
+    {
+        private static final long serialVersionUID = 1L;
+        
+        CollidingNodeCache( Value.Vector data ) {
+            super( data, SearchPackage.mmlCPTLearner, SearchPackage.mlCPTLearner, 100000, true );
+        }
+        
+        protected long getHash( Node node ) { return 12345; }
+    }
+    
+    /** Hash collisions must be detected when keys are verified. */
+    public void testVerifyKeys()
+    {
+        NodeCache serial = new NodeCache( data, SearchPackage.mmlCPTLearner, 
+                                          SearchPackage.mlCPTLearner );
+        NodeCache colliding = new CollidingNodeCache( data );
+        for ( int i = 0; i < node.length; i++ ) {
+            assertEquals( serial.getMMLCost(node[i]), colliding.getMMLCost(node[i]), 0 );
+        }
+        assertTrue( colliding.collisions > 0 );
+    }
+    
+    /** Costs stored by one run should be reused by the next. */
+    public void testNodeCostStore() throws Exception
+    {
+        java.io.File file = java.io.File.createTempFile( "nodeCostStore", ".ncs" );
+        file.deleteOnExit();
+        
+        NodeCache first = new NodeCache( data, SearchPackage.mmlCPTLearner, 
+                                         SearchPackage.mlCPTLearner );
+        first.costStore = new NodeCostStore( file, data, SearchPackage.mmlCPTLearner, 
+                                             SearchPackage.mlCPTLearner, 1000 );
+        double[] mml = new double[node.length];
+        for ( int i = 0; i < node.length; i++ ) { mml[i] = first.getMMLCost( node[i] ); }
+        first.costStore.flush();
+        
+        // Reopening the store with the same data and learners finds all costs.
+        NodeCache second = new NodeCache( data, SearchPackage.mmlCPTLearner, 
+                                          SearchPackage.mlCPTLearner );
+        second.costStore = new NodeCostStore( file, data, SearchPackage.mmlCPTLearner, 
+                                              SearchPackage.mlCPTLearner );
+        assertEquals( 1000, second.costStore.numSlots );
+        for ( int i = 0; i < node.length; i++ ) { 
+            assertEquals( mml[i], second.getMMLCost( node[i] ), 0 );
+        }
+        assertEquals( 0, second.costStore.misses );
+        
+        // Different learners must not reuse the stored costs.
+        NodeCostStore other = new NodeCostStore( file, data, SearchPackage.mmlCPTLearner, 
+                                                 SearchPackage.mmlCPTLearner );
+        assertTrue( Double.isNaN( other.getMMLCost( node[0] ) ) );
+        
+        // Learners differing only in a parameter missing from toString() must not reuse costs.
+        NodeCostStore ess1 = new NodeCostStore( file, data, new BDECPTLearner(1), 
+                                                SearchPackage.mlCPTLearner, 1000 );
+        ess1.putMMLCost( node[0], 1.0 );
+        ess1.flush();
+        NodeCostStore ess5 = new NodeCostStore( file, data, new BDECPTLearner(5), 
+                                                SearchPackage.mlCPTLearner, 1000 );
+        assertTrue( Double.isNaN( ess5.getMMLCost( node[0] ) ) );
+        
+        // A store written by a learner without a key is never reused.
+        ModelLearner unkeyed = PenalisedDTreeLearner.multinomialDTreeLearner;
+        NodeCostStore unkeyedFirst = new NodeCostStore( file, data, unkeyed, 
+                                                        SearchPackage.mlCPTLearner, 1000 );
+        unkeyedFirst.putMMLCost( node[0], 1.0 );
+        unkeyedFirst.flush();
+        NodeCostStore unkeyedSecond = new NodeCostStore( file, data, unkeyed, 
+                                                         SearchPackage.mlCPTLearner, 1000 );
+        assertTrue( Double.isNaN( unkeyedSecond.getMMLCost( node[0] ) ) );
+    }
+    
+    /** A store which is no longer used must not be kept alive by the JVM exit flush. */
+    public void testNodeCostStoreReleased() throws Exception
+    {
+        java.io.File file = java.io.File.createTempFile( "nodeCostStore", ".ncs" );
+        file.deleteOnExit();
+        
+        java.lang.ref.WeakReference<NodeCostStore> ref = 
+            new java.lang.ref.WeakReference<NodeCostStore>( 
+                new NodeCostStore( file, data, SearchPackage.mmlCPTLearner, 
+                                   SearchPackage.mlCPTLearner, 1000 ) );
+        for ( int i = 0; i < 100 && ref.get() != null; i++ ) { 
+            System.gc();
+            Thread.sleep( 10 );
+        }
+        assertNull( ref.get() );
+    }
+    /** MML and ML costs learned together must match costs learned separately. */
+    public void testFusedCosts()
+    {
+        NodeCache cache = new NodeCache( data, SearchPackage.mmlCPTLearner, 
+                                         SearchPackage.mlCPTLearner );
+        for ( int i = 0; i < node.length; i++ ) {
+            double[] both = node[i].cost( SearchPackage.mmlCPTLearner, SearchPackage.mlCPTLearner,
+                                          cache.getData() );
+            double mml = node[i].cost( SearchPackage.mmlCPTLearner, cache.getData() );
+            double ml = node[i].cost( SearchPackage.mlCPTLearner, cache.getData() );
+            assertEquals( mml, both[0], 0 );
+            assertEquals( ml, both[1], 0 );
+            
+            // Learning the ML cost also fills in the MML cost.
+            int learnings = cache.totalLearnings;
+            assertEquals( ml, cache.getMLCost( node[i] ), 0 );
+            assertEquals( mml, cache.getMMLCost( node[i] ), 0 );
+            assertTrue( cache.totalLearnings <= learnings + 1 );
+        }
+    }
+    
+    /** MML costs from a learner which cannot cost from a tally must not also run the ML learner. */
+    public void testUnfusedCosts()
+    {
+        final int[] mlCostings = new int[1];
+        ModelLearner mlLearner = new CPTLearner( MLMultinomialLearner.mlMultinomialLearner ) {
+                private static final long serialVersionUID = 1L;
+                public double parameterizeAndCost( Value info, Value.Vector x, Value.Vector z )
+                    throws LearnerException
+                {
+                    mlCostings[0]++;
+                    return super.parameterizeAndCost( info, x, z );
+                }
+            };
+        ModelLearner mmlLearner = PenalisedDTreeLearner.multinomialDTreeLearner;
+        assertFalse( Node.canShareTally( mmlLearner, mlLearner ) );
+        
+        NodeCache cache = new NodeCache( data, mmlLearner, mlLearner );
+        for ( int i = 0; i < node.length; i++ ) { cache.getMMLCost( node[i] ); }
+        assertEquals( 0, mlCostings[0] );
+    }
+}
@@ -41,6 +41,9 @@ import junit.framework.*;
 
 import cdms.core.*;
 import camml.core.search.*;
+import camml.core.models.ModelLearner;
+import camml.core.models.cpt.CPTLearner;
+import camml.core.models.multinomial.AdaptiveCodeLearner;
 
 // import camml.core.models.*;
 // import camml.ModelPackage.*;
@@ -255,7 +258,104 @@ public class TestTOM extends TestCase
     {
     }
 
-    
+    /** Parent bitsets and hashes maintained by Node must agree with parent[] as arcs change. */
+    public void testParentBits()
+    {
+        // More than 64 nodes so parent bitsets need more than one word.
+        TOM tom = new TOM(70);
+        tom.setMaxNumParents(70);
+        java.util.Random rand = new java.util.Random(123);
+        for ( int step = 0; step < 5000; step++ ) {
+            int x = rand.nextInt(70), y = rand.nextInt(70);
+            if ( rand.nextInt(10) == 0 ) { tom.swapOrder( x, y, true ); }
+            else if ( tom.isArc(x,y) ) { tom.removeArc(x,y); }
+            else { tom.addArc(x,y); }
+            
+            for ( int n : new int[] {x,y} ) {
+                Node node = tom.getNode(n);
+                int[] parent = node.getParentCopy();
+                long hash = 0;
+                long[] words = new long[2];
+                for ( int i = 0; i < parent.length; i++ ) {
+                    if ( i > 0 ) { assertTrue( parent[i-1] < parent[i] ); }
+                    assertTrue( tom.isArc( n, parent[i] ) );
+                    hash += Node.hashParent( parent[i] );
+                    words[parent[i] >>> 6] |= 1L << parent[i];
+                }
+                assertEquals( hash, node.getParentHash() );
+                for ( int w = 0; w < words.length; w++ ) {
+                    assertEquals( words[w], node.getParentWord(w) );
+                }
+                for ( int p = 0; p < 70; p++ ) {
+                    assertEquals( (words[p >>> 6] & (1L << p)) != 0, node.hasParent(p) );
+                }
+            }
+        }
+    }
+
+    /** Parameterising TOMs together in parallel must match parameterising each alone. */
+    public void testParallelParameters() throws Exception
+    {
+        java.util.Random rand = new java.util.Random(123);
+        Value.Vector data = SearchDataCreator.generateWallaceKorbStyleDataset(rand,200,2,2,2);
+        TOM[] toms = new TOM[4];
+        for ( int i = 0; i < toms.length; i++ ) {
+            toms[i] = new TOM(data);
+            toms[i].randomOrder(rand);
+            toms[i].randomArcs(rand,0.3);
+        }
+        // Make toms[3] share all but one family with toms[0] by copying its structure
+        // and then toggling a single arc.
+        toms[3].setStructure( toms[0] );
+        int x = toms[3].nodeAt(0), y = toms[3].nodeAt(1);
+        if ( toms[3].isArc(x,y) ) { toms[3].removeArc(x,y); } else { toms[3].addArc(x,y); }
+        assertTrue( toms[0].isArc(x,y) != toms[3].isArc(x,y) );
+
+        Value.Vector[] params = TOM.makeParameters( toms, SearchPackage.mmlCPTLearner, 4 );
+        camml.core.models.bNet.BNet bNet =
+            new camml.core.models.bNet.BNetStochastic((Type.Structured)((Type.Vector)data.t).elt);
+        Value.Vector triv = new VectorFN.UniformVector( data.length(), Value.TRIV );
+        for ( int i = 0; i < toms.length; i++ ) {
+            Value.Vector serial = toms[i].makeParameters( SearchPackage.mmlCPTLearner );
+            assertEquals( serial.toString(), params[i].toString() );
+            assertEquals( bNet.logP(data,serial,triv), bNet.logP(data,params[i],triv), 0.0 );
+        }
+    }
+
+    /** A family which can not be parameterised must only affect the TOMs using it. */
+    public void testParallelParametersFailure() throws Exception
+    {
+        java.util.Random rand = new java.util.Random(123);
+        Value.Vector data = SearchDataCreator.generateWallaceKorbStyleDataset(rand,200,2,2,2);
+        ModelLearner twoParentFails = new CPTLearner( AdaptiveCodeLearner.mmlAdaptiveCodeLearner ) {
+                public Value.Structured parameterize( Value i, Value.Vector x, Value.Vector z )
+                    throws LearnerException {
+                    if ( ((Type.Structured)((Type.Vector)z.t).elt).cmpnts.length > 1 ) {
+                        throw new LearnerException( "two parents" );
+                    }
+                    return super.parameterize( i, x, z );
+                }
+            };
+        TOM[] toms = { new TOM(data), new TOM(data), new TOM(data) };
+        toms[0].addArc( toms[0].nodeAt(0), toms[0].nodeAt(2) );
+        toms[1].addArc( toms[1].nodeAt(0), toms[1].nodeAt(2) );
+        toms[1].addArc( toms[1].nodeAt(1), toms[1].nodeAt(2) );
+        
+        ModelLearner.LearnerException[] failure = new ModelLearner.LearnerException[toms.length];
+        Value.Vector[] params = TOM.makeParameters( toms, twoParentFails, 4, failure );
+        assertNull( failure[0] );
+        assertNotNull( failure[1] );
+        assertNull( failure[2] );
+        assertNotNull( params[0] );
+        assertNull( params[1] );
+        assertNotNull( params[2] );
+        
+        try {
+            TOM.makeParameters( toms, twoParentFails, 4 );
+            fail( "LearnerException expected" );
+        } catch ( ModelLearner.LearnerException e ) { }
+    }
+
     /**
      *  test TOM.clone() function <br>
      *  - Check arc[][] and order[] are done as a deep copy. <br>